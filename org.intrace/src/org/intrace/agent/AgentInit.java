@@ -1,5 +1,7 @@
 package org.intrace.agent;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -7,6 +9,15 @@ import java.net.Socket;
 import org.intrace.agent.server.AgentClientConnection;
 import org.intrace.agent.server.AgentServer;
 import org.intrace.output.AgentHelper;
+import org.intrace.output.CallersEngine;
+import org.intrace.output.InstruRunnable;
+import org.intrace.output.InvocationCounter;
+import org.intrace.output.MethodGovernor;
+import org.intrace.output.MethodSampler;
+import org.intrace.output.SlowCallThresholds;
+import org.intrace.output.StackFingerprints;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.TriggerScope;
 import org.intrace.output.trace.TraceHandler;
 
 public class AgentInit
@@ -36,16 +47,38 @@ public class AgentInit
     AgentSettings args = new AgentSettings(agentArgs);
     AgentHelper.getResponses(null, agentArgs);
 
+    // Load the probe state before any transform can need it
+    ThreadProbeState.current();
+    MethodSampler.isSampled(0);
+    SlowCallThresholds.getThreshold(0);
+    TriggerScope.isTrigger(0);
+    MethodGovernor.isRemoved(0);
+    InvocationCounter.get(0);
+    CallersEngine.isActive();
+    StackFingerprints.lookup(0);
+
     // Construct Transformer
     ClassTransformer t = new ClassTransformer(inst, args);
-    inst.addTransformer(t, inst.isRetransformClassesSupported());
-
-    // Ensure loaded classes are traced
-    t.instrumentKlasses(t.getLoadedClassesForModification());
+    if (args.getOfflineDictionary() != null)
+    {
+      // Classes were instrumented at build time - don't touch class loading
+      loadOfflineDictionary(args.getOfflineDictionary());
+    }
+    else
+    {
+      inst.addTransformer(t, inst.isRetransformClassesSupported());
+    }
 
     // Start Server thread
     new AgentServer(t, args.getServerPort()).start();
 
+    // Ensure loaded classes are traced, in the background so that neither
+    // the server nor the application waits for it
+    if (args.getOfflineDictionary() == null)
+    {
+      instrumentLoadedClasses(t);
+    }
+
     // Store server port
     waitForServerPort();
     args.setActualServerPort(serverPort);
@@ -82,6 +115,48 @@ public class AgentInit
     });
   }
 
+  /**
+   * Load the dictionaries of classes instrumented at build time. The agent
+   * doesn't start without them, the instrumented code would report the wrong
+   * methods.
+   *
+   * @param files
+   *          Dictionary files separated by the path separator.
+   */
+  private static void loadOfflineDictionary(String files)
+  {
+    int numMethods = 0;
+    for (String file : files.split(File.pathSeparator))
+    {
+      try
+      {
+        numMethods += OfflineInstrumenter.loadDictionary(new File(file));
+      }
+      catch (IOException ex)
+      {
+        System.err.println("## Unable to load offline method dictionary: " + file);
+        throw new RuntimeException(ex);
+      }
+    }
+    System.out.println("## Loaded " + numMethods
+                       + " offline instrumented methods");
+  }
+
+  private static void instrumentLoadedClasses(final ClassTransformer t)
+  {
+    Thread startupThread = new Thread(new InstruRunnable()
+    {
+      @Override
+      public void runMethod()
+      {
+        t.instrumentLoadedClasses();
+      }
+    });
+    startupThread.setName("InTrace-StartupInstrumentation");
+    startupThread.setDaemon(true);
+    startupThread.start();
+  }
+
   public static synchronized void setServerPort(int xiServerPort)
   {
     serverPort = xiServerPort;
@@ -21,6 +21,8 @@ public class AgentSettings implements VerboseLogger
   private int serverPort = 9123;
   private int callbackPort = -1;
   private boolean waitStart = false;
+  private String instruCacheDir = null;
+  private String offlineDictionary = null;
   
   // Static state  
   private int actualServerPort = -1;
@@ -40,6 +42,11 @@ private InstrCriteria classesToExclude = null;
   private boolean instruEnabled = true;
   private boolean saveTracedClassfiles = false;
   private boolean verboseMode = false;  
+  private int retransformBudget = 0;
+  private int governorBudget = 0;
+  private int governorRemoveSeconds = 0;
+  private String trivialMode = AgentConfigConstants.TRIVIAL_OFF;
+  private int trivialThreshold = 0;
 
   
 
@@ -54,6 +61,13 @@ private InstrCriteria classesToExclude = null;
     instruEnabled = oldInstance.isInstrumentationEnabled();
     saveTracedClassfiles = oldInstance.saveTracedClassfiles();
     verboseMode = oldInstance.isVerboseMode();
+    retransformBudget = oldInstance.getRetransformBudget();
+    governorBudget = oldInstance.getGovernorBudget();
+    governorRemoveSeconds = oldInstance.getGovernorRemoveSeconds();
+    trivialMode = oldInstance.getTrivialMode();
+    trivialThreshold = oldInstance.getTrivialThreshold();
+    instruCacheDir = oldInstance.getInstruCacheDir();
+    offlineDictionary = oldInstance.getOfflineDictionary();
   }
   public AgentSettings(String args)
   {
@@ -87,6 +101,46 @@ public void parseArgs(String args)
       String serverPortStr = arg.replace(AgentConfigConstants.OPT_SERVER_PORT, "");
       serverPort = Integer.parseInt(serverPortStr);
     }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.INSTRU_CACHE))
+    {
+      instruCacheDir = arg.substring(AgentConfigConstants.INSTRU_CACHE.length());
+    }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.OFFLINE_DICTIONARY))
+    {
+      offlineDictionary = arg.substring(AgentConfigConstants.OFFLINE_DICTIONARY.length());
+    }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.RETRANSFORM_BUDGET))
+    {
+      String budgetStr = arg.substring(AgentConfigConstants.RETRANSFORM_BUDGET.length());
+      retransformBudget = Math.max(0, Integer.parseInt(budgetStr));
+    }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.GOVERNOR_BUDGET))
+    {
+      String budgetStr = arg.substring(AgentConfigConstants.GOVERNOR_BUDGET.length());
+      governorBudget = Math.max(0, Integer.parseInt(budgetStr));
+    }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.GOVERNOR_REMOVE))
+    {
+      String secondsStr = arg.substring(AgentConfigConstants.GOVERNOR_REMOVE.length());
+      governorRemoveSeconds = Math.max(0, Integer.parseInt(secondsStr));
+    }
+    else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.TRIVIAL_THRESHOLD))
+    {
+      String thresholdStr = arg.substring(AgentConfigConstants.TRIVIAL_THRESHOLD.length());
+      trivialThreshold = Math.max(0, Integer.parseInt(thresholdStr));
+    }
+    else if (arg.equalsIgnoreCase(AgentConfigConstants.TRIVIAL + AgentConfigConstants.TRIVIAL_OFF))
+    {
+      trivialMode = AgentConfigConstants.TRIVIAL_OFF;
+    }
+    else if (arg.equalsIgnoreCase(AgentConfigConstants.TRIVIAL + AgentConfigConstants.TRIVIAL_SKIP))
+    {
+      trivialMode = AgentConfigConstants.TRIVIAL_SKIP;
+    }
+    else if (arg.equalsIgnoreCase(AgentConfigConstants.TRIVIAL + AgentConfigConstants.TRIVIAL_COUNT))
+    {
+      trivialMode = AgentConfigConstants.TRIVIAL_COUNT;
+    }
     else if (arg.toLowerCase(Locale.ROOT).startsWith(AgentConfigConstants.CALLBACK_PORT))
     {
       String callbackPortStr = arg.replace(AgentConfigConstants.CALLBACK_PORT, "");
@@ -165,6 +219,25 @@ public void parseArgs(String args)
     return callbackPort;
   }
 
+  /**
+   * @return Directory holding the persistent cache of instrumented classes or
+   *         null if the cache is disabled.
+   */
+  public String getInstruCacheDir()
+  {
+    return instruCacheDir;
+  }
+
+  /**
+   * @return Method dictionaries of classes instrumented at build time,
+   *         separated by the path separator, or null if classes are
+   *         instrumented as they load.
+   */
+  public String getOfflineDictionary()
+  {
+    return offlineDictionary;
+  }
+
   public String[] getClassRegex()
   {
 	  String[] rc = {};
@@ -196,6 +269,52 @@ public void parseArgs(String args)
     return verboseMode;
   }
 
+  /**
+   * @return Maximum milliseconds per second to spend retransforming classes,
+   *         0 for no limit.
+   */
+  public int getRetransformBudget()
+  {
+    return retransformBudget;
+  }
+
+  /**
+   * @return Events per second a method may produce before the governor
+   *         suppresses it, 0 if the governor is off.
+   */
+  public int getGovernorBudget()
+  {
+    return governorBudget;
+  }
+
+  /**
+   * @return Seconds a method stays suppressed before its probes are removed,
+   *         0 to never remove them.
+   */
+  public int getGovernorRemoveSeconds()
+  {
+    return governorRemoveSeconds;
+  }
+
+  /**
+   * @return What happens to trivial methods of instrumented classes: off to
+   *         instrument them as normal, skip to leave them alone or count to
+   *         only count their calls.
+   */
+  public String getTrivialMode()
+  {
+    return trivialMode;
+  }
+
+  /**
+   * @return Methods with fewer instructions than this are trivial, 0 for no
+   *         limit.
+   */
+  public int getTrivialThreshold()
+  {
+    return trivialThreshold;
+  }
+
   @Override
   public String toString()
   {
@@ -241,6 +360,15 @@ public void parseArgs(String args)
                     Boolean.toString(verboseMode));
     settingsMap.put(AgentConfigConstants.SAVE_TRACED_CLASSFILES,
                     Boolean.toString(saveTracedClassfiles));
+    settingsMap.put(AgentConfigConstants.RETRANSFORM_BUDGET,
+                    Integer.toString(retransformBudget));
+    settingsMap.put(AgentConfigConstants.GOVERNOR_BUDGET,
+                    Integer.toString(governorBudget));
+    settingsMap.put(AgentConfigConstants.GOVERNOR_REMOVE,
+                    Integer.toString(governorRemoveSeconds));
+    settingsMap.put(AgentConfigConstants.TRIVIAL, trivialMode);
+    settingsMap.put(AgentConfigConstants.TRIVIAL_THRESHOLD,
+                    Integer.toString(trivialThreshold));
     settingsMap.put(AgentConfigConstants.SERVER_PORT, Integer.toString(actualServerPort));
     settingsMap.put(AgentConfigConstants.START_WAIT, Boolean.toString(waitStart));
     return settingsMap;
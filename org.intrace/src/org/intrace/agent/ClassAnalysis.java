@@ -19,11 +19,16 @@ import org.objectweb.asm.commons.EmptyVisitor;
  * class implements a first pass analysis phase to collect information which we
  * can't collect during the transformation phase.
  * <p>
- * This analysis collects three sets of data.
+ * The analysis is run by {@link InstrumentedClassWriter} over a buffered copy
+ * of each method which is to be instrumented, just before that method is
+ * rewritten, so the classfile is not traversed a second time.
+ * <p>
+ * This analysis collects four sets of data.
  * <ul>
  * <li>Reverse GOTO Lines
  * <li>Method Entry Line
  * <li>Method Argument Names
+ * <li>Trivial Methods
  * </ul>
  * <h1>Reverse GOTO Lines</h1> This analysis records the target line number of
  * GOTOs that jump backwards in the code.
@@ -90,13 +95,31 @@ import org.objectweb.asm.commons.EmptyVisitor;
  * supplied for retransformation. On the Sun JVM this seems to mean
  * that we only get the Local Variable names when we are first transforming
  * a class and not when we retransform classes.
+ * 
+ * <h1>Trivial Methods</h1> This analysis counts the instructions of each
+ * method and notes which kinds it uses, to spot methods which aren't worth
+ * tracing: bridge and synthetic methods, empty methods and constructors,
+ * field getters and setters, methods which return a constant and methods
+ * shorter than a threshold.
  */
 public class ClassAnalysis extends EmptyVisitor
 {
+  /**
+   * Why a method is considered trivial.
+   */
+  public enum TrivialKind
+  {
+    BRIDGE, EMPTY, ACCESSOR, CONSTANT, SMALL
+  }
+
   // Output of this analysis
   public final Map<String, Set<Integer>> methodReverseGOTOLines = new HashMap<String, Set<Integer>>(1);
   public final Map<String, Integer> methodEntryLines = new HashMap<String, Integer>(1);
   public final Map<String, List<String>> methodArgNames = new HashMap<String, List<String>>(1);
+  public final Map<String, TrivialKind> methodTrivialKinds = new HashMap<String, TrivialKind>(1);
+
+  // Methods with fewer instructions than this are trivial, 0 for no limit
+  private final int smallMethodThreshold;
 
   // Intermediate fields
   private Set<Integer> currentMethod_reverseGOTOLines = new HashSet<Integer>(1);
@@ -105,6 +128,30 @@ public class ClassAnalysis extends EmptyVisitor
   private boolean currentMethod_recordedEntryLine = false;
   private int currentMethod_numArgs = 0;
   private boolean currentMethod_skipArg; 
+  private int currentMethod_access;
+  private boolean currentMethod_isCtor;
+  private int currentMethod_numInsns;
+  private int currentMethod_numLoads;
+  private int currentMethod_numConstants;
+  private int currentMethod_numFieldInsns;
+  private int currentMethod_numInvokes;
+  private boolean currentMethod_invokesSuperInit;
+  private boolean currentMethod_hasOtherInsns;
+
+  public ClassAnalysis()
+  {
+    this(0);
+  }
+
+  /**
+   * @param xiSmallMethodThreshold
+   *          Methods with fewer instructions than this are trivial, 0 for no
+   *          limit.
+   */
+  public ClassAnalysis(int xiSmallMethodThreshold)
+  {
+    smallMethodThreshold = xiSmallMethodThreshold;
+  }
 
   @Override
   public MethodVisitor visitMethod(int access, String name, String desc,
@@ -123,6 +170,16 @@ public class ClassAnalysis extends EmptyVisitor
     
     currentMethod_reverseGOTOLines = new HashSet<Integer>(1);
     currentMethod_labelLineNos.clear();
+
+    currentMethod_access = access;
+    currentMethod_isCtor = name.equals("<init>");
+    currentMethod_numInsns = 0;
+    currentMethod_numLoads = 0;
+    currentMethod_numConstants = 0;
+    currentMethod_numFieldInsns = 0;
+    currentMethod_numInvokes = 0;
+    currentMethod_invokesSuperInit = false;
+    currentMethod_hasOtherInsns = false;
     return this;
   }
 
@@ -165,9 +222,117 @@ public class ClassAnalysis extends EmptyVisitor
     currentMethod_labelLineNos.put(xiLabel, xiLineNo);
   }
 
+  @Override
+  public void visitInsn(int opcode)
+  {
+    currentMethod_numInsns++;
+    if ((opcode >= Opcodes.ACONST_NULL) && (opcode <= Opcodes.DCONST_1))
+    {
+      currentMethod_numConstants++;
+    }
+    else if ((opcode < Opcodes.IRETURN) || (opcode > Opcodes.RETURN))
+    {
+      currentMethod_hasOtherInsns = true;
+    }
+  }
+
+  @Override
+  public void visitIntInsn(int opcode, int operand)
+  {
+    currentMethod_numInsns++;
+    if (opcode == Opcodes.NEWARRAY)
+    {
+      currentMethod_hasOtherInsns = true;
+    }
+    else
+    {
+      currentMethod_numConstants++;
+    }
+  }
+
+  @Override
+  public void visitLdcInsn(Object cst)
+  {
+    currentMethod_numInsns++;
+    currentMethod_numConstants++;
+  }
+
+  @Override
+  public void visitVarInsn(int opcode, int var)
+  {
+    currentMethod_numInsns++;
+    if ((opcode >= Opcodes.ILOAD) && (opcode <= Opcodes.ALOAD))
+    {
+      currentMethod_numLoads++;
+    }
+    else
+    {
+      currentMethod_hasOtherInsns = true;
+    }
+  }
+
+  @Override
+  public void visitFieldInsn(int opcode, String owner, String name,
+                             String desc)
+  {
+    currentMethod_numInsns++;
+    currentMethod_numFieldInsns++;
+  }
+
+  @Override
+  public void visitMethodInsn(int opcode, String owner, String name,
+                              String desc)
+  {
+    currentMethod_numInsns++;
+    currentMethod_numInvokes++;
+    if ((opcode == Opcodes.INVOKESPECIAL) && name.equals("<init>")
+        && desc.equals("()V"))
+    {
+      currentMethod_invokesSuperInit = true;
+    }
+  }
+
+  @Override
+  public void visitTypeInsn(int opcode, String type)
+  {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
+  }
+
+  @Override
+  public void visitIincInsn(int var, int increment)
+  {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
+  }
+
+  @Override
+  public void visitTableSwitchInsn(int min, int max, Label dflt,
+                                   Label[] labels)
+  {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
+  }
+
+  @Override
+  public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
+  {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(String desc, int dims)
+  {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
+  }
+
   @Override
   public void visitJumpInsn(int xiOpCode, Label xiBranchLabel)
   {
+    currentMethod_numInsns++;
+    currentMethod_hasOtherInsns = true;
     Integer lineNo = currentMethod_labelLineNos.get(xiBranchLabel);
     if (lineNo != null)
     {
@@ -186,7 +351,55 @@ public class ClassAnalysis extends EmptyVisitor
     
     methodReverseGOTOLines.put(currentMethod_sig,
                                currentMethod_reverseGOTOLines);
+    TrivialKind trivialKind = getTrivialKind();
+    if (trivialKind != null)
+    {
+      methodTrivialKinds.put(currentMethod_sig, trivialKind);
+    }
     currentMethod_sig = null;
     currentMethod_labelLineNos.clear();
   }
+
+  /**
+   * @return Why the current method is trivial, or null if it isn't.
+   */
+  private TrivialKind getTrivialKind()
+  {
+    if ((currentMethod_access & (Opcodes.ACC_BRIDGE | Opcodes.ACC_SYNTHETIC)) != 0)
+    {
+      return TrivialKind.BRIDGE;
+    }
+    if (!currentMethod_hasOtherInsns)
+    {
+      boolean onlySuperInit = currentMethod_isCtor
+                              && currentMethod_invokesSuperInit
+                              && (currentMethod_numInvokes == 1);
+      if (((currentMethod_numInvokes == 0) || onlySuperInit)
+          && (currentMethod_numFieldInsns == 0)
+          && (currentMethod_numConstants == 0)
+          && (currentMethod_numLoads <= (onlySuperInit ? 1 : 0)))
+      {
+        return TrivialKind.EMPTY;
+      }
+      if ((currentMethod_numInvokes == 0)
+          && (currentMethod_numFieldInsns == 1)
+          && (currentMethod_numConstants == 0))
+      {
+        return TrivialKind.ACCESSOR;
+      }
+      if ((currentMethod_numInvokes == 0)
+          && (currentMethod_numFieldInsns == 0)
+          && (currentMethod_numConstants == 1)
+          && (currentMethod_numLoads == 0))
+      {
+        return TrivialKind.CONSTANT;
+      }
+    }
+    if ((smallMethodThreshold > 0)
+        && (currentMethod_numInsns < smallMethodThreshold))
+    {
+      return TrivialKind.SMALL;
+    }
+    return null;
+  }
 }
@@ -0,0 +1,156 @@
+package org.intrace.agent;
+
+/**
+ * Reads the super class and interface names straight out of a classfile
+ * header. Only the constant pool is walked (to find entry offsets) and only
+ * the handful of strings which are asked for are decoded - no fields,
+ * methods or attributes are visited. This is used to reject classes which
+ * don't match the include list without a full ASM parse.
+ * <p>
+ * Names are returned in internal form, e.g. "java/lang/Runnable", which is
+ * what ClassReader.getInterfaces() returns.
+ */
+public class ClassHeaderReader
+{
+  private final byte[] b;
+  private final int[] items;
+  private final int header;
+
+  /**
+   * @param classfile
+   * @throws IllegalArgumentException
+   *           If the classfile is truncated or has an unknown constant pool
+   *           entry.
+   */
+  public ClassHeaderReader(byte[] classfile)
+  {
+    b = classfile;
+    try
+    {
+      int count = readUnsignedShort(8);
+      items = new int[count];
+      int offset = 10;
+      for (int ii = 1; ii < count; ii++)
+      {
+        items[ii] = offset + 1;
+        int tag = b[offset];
+        switch (tag)
+        {
+        case 1: // Utf8
+          offset += 3 + readUnsignedShort(offset + 1);
+          break;
+        case 5: // Long
+        case 6: // Double
+          offset += 9;
+          ii++;
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          offset += 5;
+          break;
+        case 15: // MethodHandle
+          offset += 4;
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          offset += 3;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown constant pool tag " + tag
+                                             + " at offset " + offset);
+        }
+      }
+      header = offset;
+    }
+    catch (ArrayIndexOutOfBoundsException ex)
+    {
+      throw new IllegalArgumentException("Truncated classfile", ex);
+    }
+  }
+
+  /**
+   * @return Internal name of this class.
+   */
+  public String getClassName()
+  {
+    return readClass(header + 2);
+  }
+
+  /**
+   * @return Internal name of the super class or null for java/lang/Object.
+   */
+  public String getSuperName()
+  {
+    return readClass(header + 4);
+  }
+
+  /**
+   * @return Internal names of the directly implemented interfaces.
+   */
+  public String[] getInterfaces()
+  {
+    int offset = header + 6;
+    String[] interfaces = new String[readUnsignedShort(offset)];
+    for (int ii = 0; ii < interfaces.length; ii++)
+    {
+      offset += 2;
+      interfaces[ii] = readClass(offset);
+    }
+    return interfaces;
+  }
+
+  private String readClass(int offset)
+  {
+    int classIndex = readUnsignedShort(offset);
+    if (classIndex == 0)
+    {
+      return null;
+    }
+    return readUTF8(items[readUnsignedShort(items[classIndex])]);
+  }
+
+  private int readUnsignedShort(int offset)
+  {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Decode a modified UTF-8 constant pool entry.
+   */
+  private String readUTF8(int offset)
+  {
+    int len = readUnsignedShort(offset);
+    int index = offset + 2;
+    int end = index + len;
+    char[] buf = new char[len];
+    int strLen = 0;
+    while (index < end)
+    {
+      int c = b[index++] & 0xFF;
+      if (c < 0x80)
+      {
+        buf[strLen++] = (char) c;
+      }
+      else if (c < 0xE0)
+      {
+        buf[strLen++] = (char) (((c & 0x1F) << 6) | (b[index++] & 0x3F));
+      }
+      else
+      {
+        buf[strLen++] = (char) (((c & 0x0F) << 12)
+                                | ((b[index++] & 0x3F) << 6)
+                                | (b[index++] & 0x3F));
+      }
+    }
+    return new String(buf, 0, strLen);
+  }
+}
@@ -0,0 +1,298 @@
+package org.intrace.agent;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of class names, per ClassLoader.
+ * <p>
+ * ClassLoaders are held weakly (and compared by identity, as ClassLoader
+ * doesn't override equals) so the names recorded for a loader are dropped
+ * once the loader is collected, e.g. after a webapp redeploy. Both levels are
+ * concurrent hash maps so lookups from the transform path never lock: a
+ * lookup is a hash of the loader followed by a hash of the name. Entries of
+ * collected loaders are purged when classes are added.
+ * <p>
+ * Each name also records when it was added, relative to the other names, so
+ * callers can tell which classes are the most recently seen.
+ */
+public class ClassRegistry
+{
+  /**
+   * Weak, identity compared reference to a ClassLoader, used as the key of
+   * the registry.
+   */
+  private static final class LoaderRef extends WeakReference<ClassLoader>
+  {
+    private final int hash;
+
+    LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue)
+    {
+      super(loader, queue);
+      hash = System.identityHashCode(loader);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (obj == this)
+      {
+        return true;
+      }
+      ClassLoader loader = get();
+      if (loader == null)
+      {
+        return false;
+      }
+      if (obj instanceof LoaderLookup)
+      {
+        return ((LoaderLookup) obj).loader == loader;
+      }
+      return (obj instanceof LoaderRef) && (((LoaderRef) obj).get() == loader);
+    }
+  }
+
+  /**
+   * Short lived, strong key used to look up a ClassLoader.
+   */
+  private static final class LoaderLookup
+  {
+    private final ClassLoader loader;
+
+    LoaderLookup(ClassLoader loader)
+    {
+      this.loader = loader;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return System.identityHashCode(loader);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      return (obj instanceof LoaderRef) && (((LoaderRef) obj).get() == loader);
+    }
+  }
+
+  private final ConcurrentMap<Object, Map<String, Long>> loaders = new ConcurrentHashMap<Object, Map<String, Long>>();
+  private final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<ClassLoader>();
+
+  /**
+   * Names of the bootstrap loader, which is never collected.
+   */
+  private final Map<String, Long> bootstrapNames = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong nextSequence = new AtomicLong();
+
+  /**
+   * @param loader
+   * @param className
+   * @return True if the class wasn't already registered.
+   */
+  public boolean add(ClassLoader loader, String className)
+  {
+    Map<String, Long> names = getNames(loader);
+    if (names == null)
+    {
+      purgeCollectedLoaders();
+      Map<String, Long> newNames = new ConcurrentHashMap<String, Long>();
+      names = loaders.putIfAbsent(new LoaderRef(loader, collectedLoaders),
+                                  newNames);
+      if (names == null)
+      {
+        names = newNames;
+      }
+    }
+    return !names.containsKey(className)
+           && (names.putIfAbsent(className, nextSequence.getAndIncrement()) == null);
+  }
+
+  /**
+   * @param loader
+   * @param className
+   * @return True if the class was registered.
+   */
+  public boolean remove(ClassLoader loader, String className)
+  {
+    Map<String, Long> names = getNames(loader);
+    return (names != null) && (names.remove(className) != null);
+  }
+
+  public boolean contains(ClassLoader loader, String className)
+  {
+    Map<String, Long> names = getNames(loader);
+    return (names != null) && names.containsKey(className);
+  }
+
+  /**
+   * @param loader
+   * @param className
+   * @return The order in which the class was added, higher numbers being
+   *         more recent, or -1 if the class isn't registered.
+   */
+  public long getSequence(ClassLoader loader, String className)
+  {
+    Map<String, Long> names = getNames(loader);
+    Long sequence = (names != null) ? names.get(className) : null;
+    return (sequence != null) ? sequence.longValue() : -1;
+  }
+
+  public void clear()
+  {
+    loaders.clear();
+    bootstrapNames.clear();
+  }
+
+  /**
+   * @return The number of registered classes of live ClassLoaders.
+   */
+  public int size()
+  {
+    purgeCollectedLoaders();
+    int size = bootstrapNames.size();
+    for (Map<String, Long> names : loaders.values())
+    {
+      size += names.size();
+    }
+    return size;
+  }
+
+  private Map<String, Long> getNames(ClassLoader loader)
+  {
+    if (loader == null)
+    {
+      return bootstrapNames;
+    }
+    return loaders.get(new LoaderLookup(loader));
+  }
+
+  private void purgeCollectedLoaders()
+  {
+    Reference<? extends ClassLoader> ref;
+    while ((ref = collectedLoaders.poll()) != null)
+    {
+      loaders.remove(ref);
+    }
+  }
+
+  /**
+   * @return The registered classes, each qualified by a description of its
+   *         ClassLoader, in the form of {@link Set#toString()}.
+   */
+  @Override
+  public String toString()
+  {
+    List<String> klasses = new ArrayList<String>();
+    for (String className : bootstrapNames.keySet())
+    {
+      klasses.add(describe(null, className));
+    }
+    for (Map.Entry<Object, Map<String, Long>> entry : loaders.entrySet())
+    {
+      ClassLoader loader = ((LoaderRef) entry.getKey()).get();
+      if (loader == null)
+      {
+        continue;
+      }
+      String loaderName = describe(loader);
+      for (String className : entry.getValue().keySet())
+      {
+        klasses.add(loaderName + className);
+      }
+    }
+    Collections.sort(klasses);
+    return klasses.toString();
+  }
+
+  /**
+   * @param loader
+   * @param className
+   * @return The class name qualified by a description of its ClassLoader.
+   */
+  public static String describe(ClassLoader loader, String className)
+  {
+    return describe(loader) + className;
+  }
+
+  private static String describe(ClassLoader klassloader)
+  {
+    String klassLoaderName = "";
+    if (klassloader != null)
+    {
+      if (klassloader.getClass().getName()
+                     .equals("org.apache.catalina.loader.WebappClassLoader"))
+      {
+        klassLoaderName = klassloader.getClass().getName() + '@'
+                          + Integer.toHexString(klassloader.hashCode());
+
+        try
+        {
+          Method klassLoaderJarPath = klassloader.getClass()
+                                                 .getMethod("getURLs");
+          URL[] classURLs = (URL[]) klassLoaderJarPath
+                                                      .invoke(klassloader,
+                                                              (Object[]) null);
+          if (classURLs != null && classURLs.length > 0
+              && classURLs[0] != null)
+          {
+            Set<String> urlSet = new HashSet<String>();
+            for (URL classURL : classURLs)
+            {
+              if (classURL != null)
+              {
+                String urlPath = classURL.getPath();
+                urlPath = urlPath
+                                 .substring(
+                                            0,
+                                            urlPath
+                                                   .lastIndexOf(File.separator) + 1);
+                urlSet.add(urlPath);
+              }
+            }
+            if (urlSet.size() > 0)
+            {
+              klassLoaderName += "\nClasspaths:\n";
+              StringBuilder classUrlStr = new StringBuilder();
+              for (String classURLStr : urlSet)
+              {
+                classUrlStr.append(classURLStr).append("\n");
+              }
+              klassLoaderName += classUrlStr.toString();
+            }
+          }
+        }
+        catch (Throwable th)
+        {
+          // Discard
+        }
+      }
+      else
+      {
+        klassLoaderName = klassloader.toString();
+      }
+      klassLoaderName += ":";
+    }
+    return klassLoaderName;
+  }
+}
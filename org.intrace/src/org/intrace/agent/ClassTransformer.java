@@ -1,16 +1,15 @@
 package org.intrace.agent;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.lang.reflect.Method;
-import java.net.URL;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -19,18 +18,34 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
 
 import org.intrace.agent.server.AgentClientConnection;
 import org.intrace.agent.server.AgentServer;
 import org.intrace.output.AgentHelper;
+import org.intrace.output.CallersEngine;
 import org.intrace.output.InstruRunnable;
+import org.intrace.output.InvocationCounter;
+import org.intrace.output.MethodGovernor;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.MethodSampler;
+import org.intrace.output.SlowCallThresholds;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.TriggerScope;
 import org.intrace.output.trace.TraceHandler;
 import org.intrace.shared.AgentConfigConstants;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.commons.EmptyVisitor;
 
 /**
  * Uses ASM2 to transform class files to add Trace instrumentation.
@@ -48,14 +63,61 @@ public class ClassTransformer implements ClassFileTransformer
   public static final String MATCH_NONE = "";
 
   /**
-   * Set of modified class names
+   * Modified classes
    */
-  private final Set<ComparableClassName> modifiedClasses = new ConcurrentSkipListSet<ComparableClassName>();
+  private final ClassRegistry modifiedClasses = new ClassRegistry();
 
   /**
-   * Map of all seen class names
+   * All seen classes
    */
-  private final Set<ComparableClassName> allClasses = new ConcurrentSkipListSet<ComparableClassName>();
+  private final ClassRegistry allClasses = new ClassRegistry();
+
+  /**
+   * Names of classes, per ClassLoader, which neither match the include list
+   * nor implement an interface which does. Lets a repeat transform of such a
+   * class (e.g. during a bulk retransform) skip reading the classfile at all.
+   * Cleared whenever the include list changes.
+   */
+  private final ClassRegistry rejectedClasses = new ClassRegistry();
+
+  /**
+   * Maximum number of classes passed to each retransformClasses call. Every
+   * call is a JVM safepoint, so fewer larger calls stall the application for
+   * less time overall, but each stall is longer.
+   */
+  private static final int RETRANSFORM_BATCH_SIZE = 128;
+
+  /**
+   * Instrumented bytes generated ahead of a bulk retransform by the
+   * precompute workers, so the JVM callback only has to look them up.
+   */
+  private final Map<Class<?>, PrecomputedClass> precomputedClasses = new ConcurrentHashMap<Class<?>, PrecomputedClass>();
+
+  /**
+   * Outstanding precompute work, by class.
+   */
+  private final Map<Class<?>, Future<?>> precomputeFutures = new ConcurrentHashMap<Class<?>, Future<?>>();
+
+  /**
+   * Incremented whenever a setting which the instrumented bytes depend on
+   * changes, precomputed bytes from an older epoch are ignored.
+   */
+  private final AtomicInteger settingsEpoch = new AtomicInteger();
+
+  /**
+   * Lazily created workers which precompute instrumented bytes.
+   */
+  private ExecutorService precomputeWorkers = null;
+
+  /**
+   * Runs, and throttles, all retransformation.
+   */
+  private final RetransformScheduler retransformScheduler;
+
+  /**
+   * Persistent cache of instrumented classes, null if not enabled.
+   */
+  private final InstrumentedClassCache classCache;
 
   /**
    * Instrumentation interface.
@@ -86,14 +148,75 @@ public class ClassTransformer implements ClassFileTransformer
   {
     inst = xiInst;
     settings = xiArgs;
+
+    // Load every class the class registries use now - loading one of them
+    // for the first time from within transform() would be circular.
+    rejectedClasses.add(null, "");
+    rejectedClasses.contains(null, "");
+    rejectedClasses.remove(null, "");
+    rejectedClasses.size();
+    rejectedClasses.clear();
+
+    retransformScheduler = new RetransformScheduler(settings,
+                                                    RETRANSFORM_BATCH_SIZE,
+                                                    new RetransformHandler());
+    classCache = openClassCache(settings.getInstruCacheDir());
+    MethodSampler.setPolicySource(settings.getClassesToInclude());
+    SlowCallThresholds.setPolicySource(settings.getClassesToInclude());
+    TriggerScope.setPolicySource(settings.getClassesToInclude());
+    configureGovernor();
     if (settings.isVerboseMode())
     {
       TraceHandler.INSTANCE.writeTraceOutput("DEBUG: " + settings.toString());
     }
   }
 
+  private static InstrumentedClassCache openClassCache(String dir)
+  {
+    if (dir == null)
+    {
+      return null;
+    }
+    try
+    {
+      InstrumentedClassCache cache = new InstrumentedClassCache(new File(dir));
+      // Load the classes a lookup needs now rather than from within transform()
+      cache.get("", new byte[0], "");
+      System.out.println("## Using instrumented class cache: " + dir);
+      return cache;
+    }
+    catch (IOException ex)
+    {
+      System.err.println("## Unable to open instrumented class cache: " + dir);
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * @return The criteria which decide which methods of the class are
+   *         instrumented, used to key the class cache.
+   */
+  private String getCriteriaFingerprint(String className)
+  {
+    return getCriteriaFingerprint(settings, className);
+  }
+
+  private static String getCriteriaFingerprint(AgentSettings xiSettings,
+                                               String className)
+  {
+    InstrCriteria include = xiSettings.getClassesToInclude();
+    InstrCriteria exclude = xiSettings.getClassesToExclude();
+    return ((include != null) ? include.getFingerprint(className) : "") + "|"
+           + ((exclude != null) ? exclude.getFingerprint(className) : "") + "|"
+           + MethodGovernor.getRemovedMethods(className) + "|"
+           + xiSettings.getTrivialMode() + xiSettings.getTrivialThreshold()
+           + "|" + TraceHandler.INSTANCE.isSlowCallThresholdSet();
+  }
+
   /**
-   * Generate and return instrumented class bytes.
+   * Generate and return instrumented class bytes, served from the class
+   * cache if possible.
    *
    * @param xiClassName
    * @param classfileBuffer
@@ -106,17 +229,39 @@ public class ClassTransformer implements ClassFileTransformer
   {
     try
     {
-      ClassReader cr = new ClassReader(classfileBuffer);
-      ClassAnalysis analysis = new ClassAnalysis();
-      cr.accept(analysis, 0);
+      String fingerprint = null;
+      if (classCache != null)
+      {
+        fingerprint = getCriteriaFingerprint(xiClassName);
+        byte[] cachedBytes = classCache.get(xiClassName, classfileBuffer,
+                                            fingerprint);
+        if (cachedBytes != null)
+        {
+          if (settings.isVerboseMode())
+          {
+            TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Using cached instrumentation for class: "
+                               + xiClassName);
+          }
+          return cachedBytes;
+        }
+      }
 
+      // The class is only parsed once, by the writer, which also runs the
+      // analysis.
+      ClassReader cr = new ClassReader(classfileBuffer);
       InstrumentedClassWriter writer = new InstrumentedClassWriter(xiClassName,
-                                                                   cr, analysis,
+                                                                   cr,
                                                                    shouldInstrument,
                                                                    settings);
       cr.accept(writer, 0);
 
-      return writer.toByteArray();
+      byte[] newBytes = writer.toByteArray();
+      if (classCache != null)
+      {
+        classCache.put(xiClassName, classfileBuffer, fingerprint, newBytes,
+                       writer.getMethodIds());
+      }
+      return newBytes;
     }
     catch (Throwable th)
     {
@@ -152,11 +297,8 @@ public class ClassTransformer implements ClassFileTransformer
                                                      ProtectionDomain protectionDomain,
                                                      byte[] originalClassfile)
   {
-    ComparableClassName compklass = new ComparableClassName(className,
-                                                            klassloader);
-
     // Record all class names which get this far
-    allClasses.add(compklass);
+    allClasses.add(klassloader, className);
 
     // Don't modify anything if tracing is disabled
     if (!settings.isInstrumentationEnabled())
@@ -175,11 +317,12 @@ public class ClassTransformer implements ClassFileTransformer
     }
 
     // Don't modify a class which is already modified
-    if (modifiedClasses.contains(compklass))
+    if (modifiedClasses.contains(klassloader, className))
     {
       if (settings.isVerboseMode())
       {
-        TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Ignoring class already modified: " + compklass);
+        TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Ignoring class already modified: "
+                           + ClassRegistry.describe(klassloader, className));
       }
       return false;
     }
@@ -196,15 +339,25 @@ public class ClassTransformer implements ClassFileTransformer
     }
 
     // Don't modify classes which fail to match the regex
-    if ((settings.getClassRegex() == null)
-        || !matches(settings.getClassRegex(), className))
+    InstrCriteria include = settings.getClassesToInclude();
+    if ((include == null)
+        || !include.matchesClassName(className))
     {
+      if (rejectedClasses.contains(klassloader, className))
+      {
+        if (settings.isVerboseMode())
+        {
+          TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Ignoring class previously rejected by the active include regex: "
+                             + className);
+        }
+        return false;
+      }
+
       // Actually we should modify if any of the interfaces match the regex
       boolean matchedInterface = false;
       for(String klassInterface : getInterfaces(className, originalClassfile))
       {
-        if ((settings.getClassRegex() != null)
-            && matches(settings.getClassRegex(), klassInterface))
+        if ((include != null) && include.matchesClassName(klassInterface))
         {
           matchedInterface |= true;
         }
@@ -212,6 +365,7 @@ public class ClassTransformer implements ClassFileTransformer
 
       if(!matchedInterface)
       {
+        rejectedClasses.add(klassloader, className);
         if (settings.isVerboseMode())
         {
           TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Ignoring class not matching the active include regex: "
@@ -225,23 +379,15 @@ public class ClassTransformer implements ClassFileTransformer
     return true;
   }
 
+  /**
+   * @return The interfaces of the class, read from the classfile header
+   *         without visiting any fields or methods.
+   */
   private String[] getInterfaces(String className, byte[] originalClassfile)
   {
     try
     {
-      final String[][] interfaceNames = new String[1][];
-      ClassReader cr = new ClassReader(originalClassfile);
-      ClassVisitor cv = new EmptyVisitor() {
-        @Override
-        public void visit(int version, int access, String name,
-            String signature, String superName, String[] interfaces)
-        {
-          interfaceNames[0] = interfaces;
-          super.visit(version, access, name, signature, superName, interfaces);
-        }
-      };
-      cr.accept(cv, 0);
-      return interfaceNames[0];
+      return new ClassHeaderReader(originalClassfile).getInterfaces();
     }
     catch (Throwable th)
     {
@@ -252,27 +398,12 @@ public class ClassTransformer implements ClassFileTransformer
     }
   }
 
-  private boolean matches(String[] strs, String target)
-  {
-    for (String str : strs)
-    {
-      if (str.equals(MATCH_NONE))
-      {
-        continue;
-      }
-      else if (str.equals(MATCH_ALL) ||
-               target.contains(str))
-      {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean isSensitiveClass(String className)
+  static boolean isSensitiveClass(String className)
   {
     return className.contains(".intrace.") ||
-           className.contains("objectweb.asm");
+           className.contains("objectweb.asm") ||
+           className.equals("java.lang.Thread") ||
+           className.startsWith("java.lang.ThreadLocal");
   }
 
   /**
@@ -289,27 +420,26 @@ public class ClassTransformer implements ClassFileTransformer
                           byte[] originalClassfile)
       throws IllegalClassFormatException
   {
-    // Accessing the Thread to set the UncaughtExceptionHandler is safe as we
-    // have some specific exclusions in the isSensitiveClass method to block
-    // instrumentation of this class.
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    currentTh.setUncaughtExceptionHandler(AgentHelper.INSTRU_CRITICAL_BLOCK);
+    // Looking up the probe state is safe as isSensitiveClass blocks
+    // instrumentation of the Thread and ThreadLocal classes it relies on.
+    ThreadProbeState state = ThreadProbeState.current();
+    boolean wasInAgent = state.isInAgent();
+    state.setInAgent(true);
 
     try
     {
       String className = internalClassName.replace('/', '.');
-      ComparableClassName compclass = new ComparableClassName(className, loader);
       int modifiedSize = modifiedClasses.size();
       int allClassesSize = allClasses.size();
 
       boolean shouldInstrument = isToBeConsideredForInstrumentation(classBeingRedefined, loader,
                                                                     className, protectionDomain,
                                                                     originalClassfile);
-      if (shouldInstrument && !"java.lang.Thread".equals(className))
+      if (shouldInstrument)
       {
           if (settings.isVerboseMode())
-            TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! Instrumenting class: " + compclass);
+            TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! Instrumenting class: "
+                                                   + ClassRegistry.describe(loader, className));
     	  
         if (settings.saveTracedClassfiles())
         {
@@ -319,9 +449,14 @@ public class ClassTransformer implements ClassFileTransformer
         byte[] newBytes;
         try
         {
-          newBytes = getInstrumentedClassBytes(className,
-                                               originalClassfile,
-                                               shouldInstrument);
+          newBytes = getPrecomputedClassBytes(classBeingRedefined,
+                                            originalClassfile);
+          if (newBytes == null)
+          {
+            newBytes = getInstrumentedClassBytes(className,
+                                                 originalClassfile,
+                                                 shouldInstrument);
+          }
         }
         catch (RuntimeException th)
         {
@@ -341,7 +476,7 @@ public class ClassTransformer implements ClassFileTransformer
           writeClassBytes(newBytes, internalClassName + "_gen.class");
         }
 
-        modifiedClasses.add(compclass);
+        modifiedClasses.add(loader, className);
 
         sendStatusUpdate(modifiedSize, allClassesSize);
 
@@ -349,7 +484,7 @@ public class ClassTransformer implements ClassFileTransformer
       }
       else
       {
-        modifiedClasses.remove(compclass);
+        modifiedClasses.remove(loader, className);
 
         sendStatusUpdate(modifiedSize, allClassesSize);
         return null;
@@ -357,7 +492,7 @@ public class ClassTransformer implements ClassFileTransformer
     }
     finally
     {
-      currentTh.setUncaughtExceptionHandler(handler);
+      state.setInAgent(wasInAgent);
     }
   }
 
@@ -541,7 +676,18 @@ public class ClassTransformer implements ClassFileTransformer
   {
     List<String> responses = new ArrayList<String>();
     AgentSettings oldSettings = new AgentSettings(settings);
+    boolean wasSlowCallThresholdSet = TraceHandler.INSTANCE.isSlowCallThresholdSet();
     settings.parseArgs(message);
+    if (affectsInstrumentation(oldSettings))
+    {
+      settingsEpoch.incrementAndGet();
+    }
+
+    if ((oldSettings.getGovernorBudget() != settings.getGovernorBudget())
+        || (oldSettings.getGovernorRemoveSeconds() != settings.getGovernorRemoveSeconds()))
+    {
+      configureGovernor();
+    }
 
     if (settings.isVerboseMode()
         && (oldSettings.isVerboseMode() != settings.isVerboseMode()))
@@ -554,41 +700,192 @@ public class ClassTransformer implements ClassFileTransformer
 //      System.out.println("## Settings Changed");
       setInstrumentationEnabled(settings.isInstrumentationEnabled());
     }
-    else if (!Arrays.equals(oldSettings.getClassRegex(), settings.getClassRegex()))
+    else if ((oldSettings.getClassesToInclude() != settings.getClassesToInclude())
+             || (oldSettings.getClassesToExclude() != settings.getClassesToExclude()))
     {
+      if (oldSettings.getClassesToInclude() != settings.getClassesToInclude())
+      {
+        rejectedClasses.clear();
+        // Set before the retransform, the writer looks up the trigger
+        // methods
+        MethodSampler.setPolicySource(settings.getClassesToInclude());
+        SlowCallThresholds.setPolicySource(settings.getClassesToInclude());
+        TriggerScope.setPolicySource(settings.getClassesToInclude());
+      }
 //      System.out.println("## Settings Changed");
-      Set<ComparableClass> klasses = new HashSet<ComparableClass>(getModifiedClasses());
-      modifiedClasses.clear();
-      klasses.addAll(getLoadedClassesForModification());
-      instrumentKlasses(klasses);
+      instrumentKlasses(getClassesWithChangedCriteria(oldSettings));
     }
-    else if (!Arrays.equals(oldSettings.getExcludeClassRegex(), settings.getExcludeClassRegex()))
+    else if (oldSettings.saveTracedClassfiles() != settings
+                                                           .saveTracedClassfiles())
     {
 //      System.out.println("## Settings Changed");
-      Set<ComparableClass> klasses = new HashSet<ComparableClass>(getModifiedClasses());
+      Set<ComparableClass> klasses = getModifiedClasses();
       modifiedClasses.clear();
       klasses.addAll(getLoadedClassesForModification());
       instrumentKlasses(klasses);
     }
-    else if (oldSettings.saveTracedClassfiles() != settings
-                                                           .saveTracedClassfiles())
+    else if (!oldSettings.getTrivialMode().equals(settings.getTrivialMode())
+             || (oldSettings.getTrivialThreshold() != settings.getTrivialThreshold()))
     {
-//      System.out.println("## Settings Changed");
+      // Trivial methods of every instrumented class may change
       Set<ComparableClass> klasses = getModifiedClasses();
       modifiedClasses.clear();
-      klasses.addAll(getLoadedClassesForModification());
       instrumentKlasses(klasses);
     }
     else if (message.equals("[listmodifiedclasses"))
     {
       responses.add(modifiedClasses.toString());
     }
+    else if (message.equals(AgentConfigConstants.GOVERNOR_LIST))
+    {
+      responses.add(MethodGovernor.describeSuppressed());
+    }
+    else if (message.equals(AgentConfigConstants.TRIVIAL_COUNTS))
+    {
+      responses.add(InvocationCounter.getCounts().toString());
+    }
+    else if (message.equals(AgentConfigConstants.GOVERNOR_RESET))
+    {
+      // Put back the probes of any removed methods
+      reinstrumentMethods(MethodGovernor.reset());
+    }
+    else if (message.startsWith(AgentConfigConstants.CALLERS_START))
+    {
+      String pattern = message.substring(AgentConfigConstants.CALLERS_START.length());
+      try
+      {
+        CallersEngine.start(pattern, new CallersHandler());
+      }
+      catch (PatternSyntaxException e)
+      {
+        responses.add("Invalid callers regex: " + e.getMessage());
+      }
+    }
+    else if (message.equals(AgentConfigConstants.CALLERS_STOP))
+    {
+      CallersEngine.stop();
+    }
 
     responses.addAll(AgentHelper.getResponses(connection, message));
 
+    if (wasSlowCallThresholdSet != TraceHandler.INSTANCE.isSlowCallThresholdSet())
+    {
+      // Every instrumented method gains or loses its slow call exit handler
+      settingsEpoch.incrementAndGet();
+      Set<ComparableClass> klasses = getModifiedClasses();
+      modifiedClasses.clear();
+      instrumentKlasses(klasses);
+    }
+
     return responses;
   }
 
+  /**
+   * @param oldSettings
+   * @return True if the instrumented bytes of a class may differ under the
+   *         current settings. Governor removals and the global slow call
+   *         threshold are handled where they change.
+   */
+  private boolean affectsInstrumentation(AgentSettings oldSettings)
+  {
+    return (oldSettings.isInstrumentationEnabled() != settings.isInstrumentationEnabled())
+           || (oldSettings.getClassesToInclude() != settings.getClassesToInclude())
+           || (oldSettings.getClassesToExclude() != settings.getClassesToExclude())
+           || !oldSettings.getTrivialMode().equals(settings.getTrivialMode())
+           || (oldSettings.getTrivialThreshold() != settings.getTrivialThreshold())
+           || (oldSettings.saveTracedClassfiles() != settings.saveTracedClassfiles());
+  }
+
+  private void configureGovernor()
+  {
+    MethodGovernor.configure(settings.getGovernorBudget(),
+                             settings.getGovernorRemoveSeconds(),
+                             new GovernorHandler());
+    if (settings.getGovernorBudget() > 0)
+    {
+      MethodGovernor.start();
+    }
+  }
+
+  /**
+   * Reports the methods suppressed by the {@link MethodGovernor} and
+   * retransforms the classes of the methods it removes.
+   */
+  private class GovernorHandler implements MethodGovernor.Handler
+  {
+    @Override
+    public void methodsSuppressed(List<Integer> methodIds)
+    {
+      broadcastGovernorAction(AgentConfigConstants.GOVERNOR_SUPPRESSED,
+                              methodIds);
+    }
+
+    @Override
+    public void methodsRemoved(List<Integer> methodIds)
+    {
+      broadcastGovernorAction(AgentConfigConstants.GOVERNOR_REMOVED, methodIds);
+      reinstrumentMethods(methodIds);
+    }
+
+    @Override
+    public void methodsRestored(List<Integer> methodIds)
+    {
+      broadcastGovernorAction(AgentConfigConstants.GOVERNOR_RESTORED,
+                              methodIds);
+    }
+  }
+
+  /**
+   * Sends the results of the {@link CallersEngine} to every client.
+   */
+  private class CallersHandler implements CallersEngine.Handler
+  {
+    @Override
+    public void callersReported(Map<String, String> results)
+    {
+      try
+      {
+        AgentServer.broadcastMessage(null, results);
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Retransform the loaded classes which declare the given methods, to pick
+   * up a change in which of their methods the {@link MethodGovernor} has
+   * removed.
+   *
+   * @param methodIds
+   */
+  private void reinstrumentMethods(List<Integer> methodIds)
+  {
+    if (methodIds.isEmpty())
+    {
+      return;
+    }
+    Set<String> classNames = new HashSet<String>();
+    for (int methodId : methodIds)
+    {
+      classNames.add(MethodRegistry.getClassName(methodId));
+    }
+    Set<ComparableClass> klasses = new ConcurrentSkipListSet<ComparableClass>();
+    for (Class<?> loadedClass : inst.getAllLoadedClasses())
+    {
+      if (classNames.contains(loadedClass.getName())
+          && modifiedClasses.remove(loadedClass.getClassLoader(),
+                                    loadedClass.getName()))
+      {
+        klasses.add(new ComparableClass(loadedClass));
+      }
+    }
+    settingsEpoch.incrementAndGet();
+    instrumentKlasses(klasses);
+  }
+
   /**
    * Retransform all modified classes.
    * <p>
@@ -603,12 +900,8 @@ public class ClassTransformer implements ClassFileTransformer
     Class<?>[] loadedClasses = inst.getAllLoadedClasses();
     for (Class<?> loadedClass : loadedClasses)
     {
-      ComparableClassName compclass = new ComparableClassName(
-                                                              loadedClass
-                                                                         .getName(),
-                                                              loadedClass
-                                                                         .getClassLoader());
-      if (modifiedClasses.contains(compclass))
+      if (modifiedClasses.contains(loadedClass.getClassLoader(),
+                                   loadedClass.getName()))
       {
         modifiedKlasses.add(new ComparableClass(loadedClass));
       }
@@ -616,6 +909,75 @@ public class ClassTransformer implements ClassFileTransformer
     return modifiedKlasses;
   }
 
+  /**
+   * Find the loaded classes which the old and new include/exclude criteria
+   * treat differently - either only one of them instruments the class or
+   * they select different methods of it. Only these classes need to be
+   * retransformed and they are removed from the modified set so that the
+   * retransform applies the new criteria.
+   *
+   * @param oldSettings
+   * @return The classes to retransform.
+   */
+  private Set<ComparableClass> getClassesWithChangedCriteria(AgentSettings oldSettings)
+  {
+    Set<ComparableClass> changedKlasses = new ConcurrentSkipListSet<ComparableClass>();
+    if (!settings.isInstrumentationEnabled())
+    {
+      return changedKlasses;
+    }
+    for (ComparableClass klass : getLoadedClassesForModification())
+    {
+      if (isSensitiveClass(klass.klass.getName()))
+      {
+        continue;
+      }
+      String oldKey = getInstrumentationKey(oldSettings, klass.klass);
+      String newKey = getInstrumentationKey(settings, klass.klass);
+      if ((oldKey == null) ? (newKey != null) : !oldKey.equals(newKey))
+      {
+        modifiedClasses.remove(klass.klassloader, klass.klass.getName());
+        changedKlasses.add(klass);
+      }
+    }
+    if (settings.isVerboseMode())
+    {
+      TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Criteria changed for "
+                                             + changedKlasses.size()
+                                             + " loaded classes");
+    }
+    return changedKlasses;
+  }
+
+  /**
+   * @return The criteria fingerprint of a loaded class if the given settings
+   *         would instrument it, otherwise null.
+   */
+  private static String getInstrumentationKey(AgentSettings xiSettings,
+                                              Class<?> klass)
+  {
+    String className = klass.getName();
+    InstrCriteria exclude = xiSettings.getClassesToExclude();
+    if ((exclude != null) && exclude.allMethodsSpecified(className))
+    {
+      return null;
+    }
+    InstrCriteria include = xiSettings.getClassesToInclude();
+    if (include == null)
+    {
+      return null;
+    }
+    boolean matched = include.matchesClassName(className);
+    Class<?>[] klassInterfaces = klass.getInterfaces();
+    for (int ii = 0; !matched && (ii < klassInterfaces.length); ii++)
+    {
+      // Interface names are matched in internal form, as in transform()
+      matched = include.matchesClassName(klassInterfaces[ii].getName()
+                                                            .replace('.', '/'));
+    }
+    return matched ? getCriteriaFingerprint(xiSettings, className) : null;
+  }
+
   /**
    * Consider loaded classes for transformation. Any of the following reasons
    * would prevent a loaded class from being eligible for instrumentation.
@@ -665,6 +1027,38 @@ public class ClassTransformer implements ClassFileTransformer
     return unmodifiedKlasses;
   }
 
+  /**
+   * Instrument the classes which were loaded before the agent. Only the
+   * classes which the criteria select, by name or by interface, are
+   * retransformed. Every other loaded class is simply recorded as seen -
+   * retransforming it would leave it unchanged and it will be looked at again
+   * if the criteria change.
+   */
+  public void instrumentLoadedClasses()
+  {
+    Set<ComparableClass> candidates = new ConcurrentSkipListSet<ComparableClass>();
+    List<ComparableClass> others = new ArrayList<ComparableClass>();
+    for (ComparableClass klass : getLoadedClassesForModification())
+    {
+      if (isInstrumentationCandidate(klass.klass))
+      {
+        candidates.add(klass);
+      }
+      else
+      {
+        others.add(klass);
+      }
+    }
+
+    instrumentKlasses(candidates);
+
+    for (ComparableClass klass : others)
+    {
+      allClasses.add(klass.klassloader, klass.klass.getName());
+    }
+    broadcastStatus(modifiedClasses.size(), allClasses.size());
+  }
+
   public void instrumentKlasses(Set<ComparableClass> klasses)
   {
     if (!inst.isRetransformClassesSupported())
@@ -673,235 +1067,386 @@ public class ClassTransformer implements ClassFileTransformer
       return;
     }
 
+    if (settings.getOfflineDictionary() != null)
+    {
+      // Classes were instrumented at build time and this transformer isn't
+      // registered
+      return;
+    }
+
     if (klasses.size() == 0)
     {
       return;
     }
-    try
+    List<Class<?>> klassList = new ArrayList<Class<?>>(klasses.size());
+    for (ComparableClass klass : klasses)
     {
-      bulkUpdateActive.set(true);
-      int countNumClasses = 0;
-      int totalNumClasses = klasses.size();
-      broadcastProgress(countNumClasses, totalNumClasses);
-      for (ComparableClass klass : klasses)
+      klassList.add(klass.klass);
+    }
+    retransformScheduler.submit(klassList);
+  }
+
+  /**
+   * Retransform work for the {@link RetransformScheduler}. Batches are
+   * prioritised by how recently their classes were loaded.
+   */
+  private class RetransformHandler implements RetransformScheduler.Handler
+  {
+    @Override
+    public long getPriority(Class<?> klass)
+    {
+      return allClasses.getSequence(klass.getClassLoader(), klass.getName());
+    }
+
+    @Override
+    public void prepareBatch(List<Class<?>> batch)
+    {
+      precompute(batch);
+    }
+
+    @Override
+    public void retransformBatch(List<Class<?>> batch)
+    {
+      awaitPrecompute(batch);
+      if (settings.isVerboseMode())
       {
-          if (settings.isVerboseMode())
-              TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! ClassTransformer#instrumentKlasses [" + klass.klass.getName() + "]");
-        try
+        for (Class<?> klass : batch)
         {
-          inst.retransformClasses(klass.klass);
-
-          countNumClasses++;
-          if ((countNumClasses % 100) == 0)
-          {
-            broadcastProgress(countNumClasses, totalNumClasses);
-          }
+          TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! ClassTransformer#instrumentKlasses [" + klass.getName() + "]");
         }
-        catch (Throwable e)
+      }
+      try
+      {
+        ClassTransformer.this.retransformBatch(batch);
+      }
+      finally
+      {
+        for (Class<?> klass : batch)
         {
-        	String error = "Exception [" + e.getMessage() + "] instrumenting [" + klass.klass.getName() + "]";
-            if (settings.isVerboseMode())
-                TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! " + error);
-          System.err.println(error);
-          e.printStackTrace();
+          precomputedClasses.remove(klass);
         }
       }
-      broadcastProgress(totalNumClasses, totalNumClasses, true);
     }
-    finally
+
+    @Override
+    public void runStarted()
+    {
+      bulkUpdateActive.set(true);
+    }
+
+    @Override
+    public void progress(int count, int total, boolean done)
+    {
+      broadcastProgress(count, total, done);
+    }
+
+    @Override
+    public void runFinished()
     {
       bulkUpdateActive.set(false);
       broadcastStatus(modifiedClasses.size(), allClasses.size());
     }
   }
 
-  private void broadcastProgress(int count, int total)
-  {
-    broadcastProgress(count, total, false);
-  }
-
-  private void broadcastProgress(int count, int total, boolean done)
+  /**
+   * Retransform a batch of classes with a single call. If the call fails the
+   * batch is split in half and each half retried, so one bad class only
+   * stops itself being instrumented.
+   *
+   * @return The number of classes successfully retransformed.
+   */
+  private int retransformBatch(List<Class<?>> batch)
   {
-    Map<String, String> progressMap = new HashMap<String, String>();
-    progressMap.put(AgentConfigConstants.NUM_PROGRESS_ID,
-                    AgentConfigConstants.NUM_PROGRESS_ID);
-    progressMap.put(AgentConfigConstants.NUM_PROGRESS_COUNT,
-                    Integer.toString(count));
-    progressMap.put(AgentConfigConstants.NUM_PROGRESS_TOTAL,
-                    Integer.toString(total));
-    if (done)
-    {
-      progressMap.put(AgentConfigConstants.NUM_PROGRESS_DONE, Boolean.TRUE.toString());
-    }
+    Class<?>[] klasses = batch.toArray(new Class<?>[batch.size()]);
     try
     {
-      AgentServer.broadcastMessage(null, progressMap);
+      inst.retransformClasses(klasses);
+      return klasses.length;
     }
-    catch (IOException e)
+    catch (Throwable e)
     {
+      // None of the batch was retransformed
+      for (Class<?> klass : batch)
+      {
+        modifiedClasses.remove(klass.getClassLoader(), klass.getName());
+      }
+
+      if (batch.size() > 1)
+      {
+        int half = batch.size() / 2;
+        return retransformBatch(batch.subList(0, half))
+               + retransformBatch(batch.subList(half, batch.size()));
+      }
+
+      String error = "Exception [" + e.getMessage() + "] instrumenting [" + klasses[0].getName() + "]";
+      if (settings.isVerboseMode())
+          TraceHandler.INSTANCE.writeTraceOutput("DEBUG: !! " + error);
+      System.err.println(error);
       e.printStackTrace();
+      return 0;
     }
   }
 
-  private void broadcastStatus(int count, int total)
+  /**
+   * Generate the instrumented bytes for the classes of a batch which are
+   * expected to be instrumented, on the precompute workers.
+   */
+  private void precompute(List<Class<?>> batch)
   {
-    Map<String, String> progressMap = new HashMap<String, String>();
-    progressMap.put(AgentConfigConstants.STID,
-                    AgentConfigConstants.STID);
-    progressMap.put(AgentConfigConstants.STINST,
-                    Integer.toString(count));
-    progressMap.put(AgentConfigConstants.STCLS,
-                    Integer.toString(total));
-    try
+    final int epoch = settingsEpoch.get();
+    for (final Class<?> klass : batch)
     {
-      AgentServer.broadcastMessage(null, progressMap);
+      if (!isInstrumentationCandidate(klass))
+      {
+        continue;
+      }
+      precomputeFutures.put(klass, getPrecomputeWorkers().submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          String className = klass.getName();
+          byte[] originalClassfile = readClassfile(className,
+                                                   klass.getClassLoader());
+          if (originalClassfile == null)
+          {
+            return;
+          }
+          byte[] newBytes = getInstrumentedClassBytes(className,
+                                                      originalClassfile, true);
+          if (newBytes != null)
+          {
+            precomputedClasses.put(klass,
+                                   new PrecomputedClass(originalClassfile,
+                                                        newBytes, epoch));
+          }
+        }
+      }));
     }
-    catch (IOException e)
+  }
+
+  private void awaitPrecompute(List<Class<?>> batch)
+  {
+    for (Class<?> klass : batch)
     {
-      e.printStackTrace();
+      Future<?> future = precomputeFutures.remove(klass);
+      if (future == null)
+      {
+        continue;
+      }
+      try
+      {
+        future.get();
+      }
+      catch (InterruptedException e)
+      {
+        // Stop waiting - with the interrupt restored each remaining get()
+        // returns at once and those classes are instrumented in the JVM
+        // callback instead
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e)
+      {
+        // The class will be instrumented in the JVM callback instead
+        e.getCause().printStackTrace();
+      }
     }
   }
 
   /**
-   * Container for a Class Name to make it comparable. This is used when
-   * collecting together a Set of which classes are already instrumented. We
-   * cannot refer to the corresponding Class object as we need to construct
-   * these objects before the corresponding Class object has been created by the
-   * JVM.
+   * Cheap check, without the classfile, for whether a loaded class is likely
+   * to be instrumented. The JVM callback still makes the real decision, which
+   * for a loaded class depends on exactly the same criteria.
    */
-  private static class ComparableClassName implements
-      Comparable<ComparableClassName>
+  private boolean isInstrumentationCandidate(Class<?> klass)
   {
-    public final String klassName;
-    public final ClassLoader klassloader;
+    return settings.isInstrumentationEnabled()
+           && !isSensitiveClass(klass.getName())
+           && (getInstrumentationKey(settings, klass) != null);
+  }
 
-    /**
-     * cTor
-     *
-     * @param klassName
-     *          , ClassLoader klassloader
-     */
-    public ComparableClassName(String klassName, ClassLoader klassloader)
+  /**
+   * @return The classfile of a loaded class as its ClassLoader would supply
+   *         it or null if it can't be found.
+   */
+  private static byte[] readClassfile(String className, ClassLoader loader)
+  {
+    String resource = className.replace('.', '/') + ".class";
+    InputStream in = (loader != null) ? loader.getResourceAsStream(resource)
+                                      : ClassLoader.getSystemResourceAsStream(resource);
+    if (in == null)
     {
-      this.klassName = klassName;
-      this.klassloader = klassloader;
+      return null;
     }
-
-    @Override
-    public int compareTo(ComparableClassName other)
+    try
     {
-      if (other.klassloader != this.klassloader)
-      {
-        // klasses loaded by different classloaders are never equal. Compare the
-        // hashcodes of the names to come up with a number which satisfies the
-        // requirement of
-        // compareTo:
-        // sgn(x.compareTo(y)) == -sgn(y.compareTo(x))
-        //
-        // Note that this approach is not guaranteed to work as the hashCode is
-        // allowed to be the same for different objects.
-        return this.toRegularString().compareTo(other.toRegularString());
-      }
-      else
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0)
       {
-        // klasses loaded by the same classloader can be compared by name. This
-        // allows us to use the String compareTo method.
-        return this.klassName.compareTo(other.klassName);
+        out.write(buf, 0, len);
       }
+      return out.toByteArray();
     }
-
-    @Override
-    public boolean equals(Object obj)
+    catch (IOException ex)
+    {
+      return null;
+    }
+    finally
     {
-      if (obj instanceof ComparableClassName)
+      try
       {
-        ComparableClassName compClass = (ComparableClassName) obj;
-        return (compClass.klassloader == this.klassloader)
-               && compClass.klassName.equals(this.klassName);
+        in.close();
       }
-      else
+      catch (IOException ex)
       {
-        return super.equals(obj);
+        // Ignore
       }
     }
+  }
 
-    @Override
-    public int hashCode()
+  /**
+   * @return Precomputed instrumented bytes for the class, or null if there are
+   *         none or they were generated from different classfile bytes or
+   *         settings.
+   */
+  private byte[] getPrecomputedClassBytes(Class<?> klass,
+                                          byte[] originalClassfile)
+  {
+    if (klass == null)
     {
-      return klassName.hashCode();
+      return null;
     }
-
-    protected String toRegularString()
+    PrecomputedClass precomputed = precomputedClasses.get(klass);
+    if ((precomputed != null)
+        && (precomputed.epoch == settingsEpoch.get())
+        && Arrays.equals(precomputed.originalClassfile, originalClassfile))
     {
-      String klassloaderStr = "";
-      if (klassloader != null)
-      {
-        klassloaderStr = klassloader.getClass().getName() + '@'
-                         + Integer.toHexString(klassloader.hashCode()) + ":";
-      }
-      return klassloaderStr + klassName;
+      return precomputed.instrumentedClassfile;
     }
+    return null;
+  }
 
-    @Override
-    public String toString()
+  private synchronized ExecutorService getPrecomputeWorkers()
+  {
+    if (precomputeWorkers == null)
     {
-      String klassLoaderName = "";
-      if (klassloader != null)
+      int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      ThreadPoolExecutor workers = new ThreadPoolExecutor(numWorkers, numWorkers,
+                                                          30, TimeUnit.SECONDS,
+                                                          new LinkedBlockingQueue<Runnable>(),
+                                                          new ThreadFactory()
       {
-        if (klassloader.getClass().getName()
-                       .equals("org.apache.catalina.loader.WebappClassLoader"))
-        {
-          klassLoaderName = klassloader.getClass().getName() + '@'
-                            + Integer.toHexString(klassloader.hashCode());
+        private final AtomicInteger threadNum = new AtomicInteger();
 
-          try
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+          Thread th = new Thread(new InstruRunnable()
           {
-            Method klassLoaderJarPath = klassloader.getClass()
-                                                   .getMethod("getURLs");
-            URL[] classURLs = (URL[]) klassLoaderJarPath
-                                                        .invoke(klassloader,
-                                                                (Object[]) null);
-            if (classURLs != null && classURLs.length > 0
-                && classURLs[0] != null)
+            @Override
+            public void runMethod()
             {
-              Set<String> urlSet = new HashSet<String>();
-              for (URL classURL : classURLs)
-              {
-                if (classURL != null)
-                {
-                  String urlPath = classURL.getPath();
-                  urlPath = urlPath
-                                   .substring(
-                                              0,
-                                              urlPath
-                                                     .lastIndexOf(File.separator) + 1);
-                  urlSet.add(urlPath);
-                }
-              }
-              if (urlSet.size() > 0)
-              {
-                klassLoaderName += "\nClasspaths:\n";
-                StringBuilder classUrlStr = new StringBuilder();
-                for (String classURLStr : urlSet)
-                {
-                  classUrlStr.append(classURLStr).append("\n");
-                }
-                klassLoaderName += classUrlStr.toString();
-              }
+              r.run();
             }
-          }
-          catch (Throwable th)
-          {
-            // Discard
-          }
-        }
-        else
-        {
-          klassLoaderName = klassloader.toString();
+          });
+          th.setDaemon(true);
+          th.setName("InTrace-Precompute-" + threadNum.incrementAndGet());
+          return th;
         }
-        klassLoaderName += ":";
-      }
-      return klassLoaderName + klassName;
+      });
+      workers.allowCoreThreadTimeOut(true);
+      precomputeWorkers = workers;
+    }
+    return precomputeWorkers;
+  }
+
+  private static class PrecomputedClass
+  {
+    final byte[] originalClassfile;
+    final byte[] instrumentedClassfile;
+    final int epoch;
+
+    PrecomputedClass(byte[] originalClassfile, byte[] instrumentedClassfile,
+                     int epoch)
+    {
+      this.originalClassfile = originalClassfile;
+      this.instrumentedClassfile = instrumentedClassfile;
+      this.epoch = epoch;
+    }
+  }
+
+  private void broadcastProgress(int count, int total)
+  {
+    broadcastProgress(count, total, false);
+  }
+
+  private void broadcastProgress(int count, int total, boolean done)
+  {
+    Map<String, String> progressMap = new HashMap<String, String>();
+    progressMap.put(AgentConfigConstants.NUM_PROGRESS_ID,
+                    AgentConfigConstants.NUM_PROGRESS_ID);
+    progressMap.put(AgentConfigConstants.NUM_PROGRESS_COUNT,
+                    Integer.toString(count));
+    progressMap.put(AgentConfigConstants.NUM_PROGRESS_TOTAL,
+                    Integer.toString(total));
+    if (done)
+    {
+      progressMap.put(AgentConfigConstants.NUM_PROGRESS_DONE, Boolean.TRUE.toString());
+    }
+    try
+    {
+      AgentServer.broadcastMessage(null, progressMap);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private void broadcastGovernorAction(String action, List<Integer> methodIds)
+  {
+    List<String> methodNames = new ArrayList<String>();
+    for (int methodId : methodIds)
+    {
+      methodNames.add(MethodRegistry.getQualifiedName(methodId));
+    }
+    Map<String, String> governorMap = new HashMap<String, String>();
+    governorMap.put(AgentConfigConstants.GOVERNOR_ID,
+                    AgentConfigConstants.GOVERNOR_ID);
+    governorMap.put(action, methodNames.toString());
+    if (settings.isVerboseMode())
+    {
+      TraceHandler.INSTANCE.writeTraceOutput("DEBUG: Governor " + action + " "
+                                             + methodNames);
+    }
+    try
+    {
+      AgentServer.broadcastMessage(null, governorMap);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private void broadcastStatus(int count, int total)
+  {
+    Map<String, String> progressMap = new HashMap<String, String>();
+    progressMap.put(AgentConfigConstants.STID,
+                    AgentConfigConstants.STID);
+    progressMap.put(AgentConfigConstants.STINST,
+                    Integer.toString(count));
+    progressMap.put(AgentConfigConstants.STCLS,
+                    Integer.toString(total));
+    try
+    {
+      AgentServer.broadcastMessage(null, progressMap);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
     }
   }
 
@@ -2,20 +2,38 @@ package org.intrace.agent;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.intrace.output.ISamplingPolicy;
+import org.intrace.output.ISlowCallPolicy;
+import org.intrace.output.ITriggerPolicy;
+import org.intrace.output.MethodSampler;
 import org.intrace.output.trace.TraceHandler;
 
 /**
  * Contains criteria that the 'user' specifies to request certain classes to
  * be instrumented.
+ * <p>
+ * Each class or method may be followed by options, each introduced by '@':
+ * <ul>
+ * <li>@sample=N - trace one invocation in N
+ * <li>@sample=N/s - trace at most N invocations a second
+ * <li>@slow=N - only trace invocations which take longer than N milliseconds
+ * <li>@trigger - only trace threads while they are inside an invocation of
+ * this method
+ * </ul>
+ * e.g. com.example.Foo#bar()V@sample=100
  * @author erikostermueller
  *
  */
-public class InstrCriteria {
+public class InstrCriteria implements ISamplingPolicy, ISlowCallPolicy,
+		ITriggerPolicy {
 
 	public VerboseLogger verboseLogger = null;
 	/**
@@ -26,9 +44,42 @@ public class InstrCriteria {
 	private static final String CRITERIA_DELIM = "|";
 	private static final String REGEX_CRITERIA_DELIM = "\\"+CRITERIA_DELIM;
 	private static final String INSTRUMENT_ALL_METHODS = "INSTR_ALL_METHODS";
+	static final String OPTION_DELIMITER = "@";
+	private static final String SAMPLE_OPTION = "sample=";
+	private static final String SLOW_OPTION = "slow=";
+	private static final String TRIGGER_OPTION = "trigger";
 	private String[] classNamesOnly = null;
 	private List<String> classNamesOnlyList = new ArrayList<String>();
 	private String originalCriteria = null;
+
+	/**
+	 * Compiled form of the criteria, built once the criteria are parsed and
+	 * queried without allocating: an automaton over the class patterns and an
+	 * exact class -> method name -> descriptors table.
+	 */
+	private SubstringMatcher classMatcher;
+	private final Map<String, CompiledClass> compiledCriteria = new HashMap<String, CompiledClass>();
+
+	private static class CompiledClass {
+		boolean allMethods = false;
+		final Map<String, Set<String>> methods = new HashMap<String, Set<String>>();
+		int allMethodsSamplePolicy = 0;
+		/**
+		 * Keyed by method name + descriptor.
+		 */
+		final Map<String, Integer> samplePolicies = new HashMap<String, Integer>();
+		int allMethodsSlowThreshold = 0;
+		/**
+		 * Keyed by method name + descriptor.
+		 */
+		final Map<String, Integer> slowThresholds = new HashMap<String, Integer>();
+		boolean allMethodsTrigger = false;
+		/**
+		 * Method name + descriptor of each trigger method.
+		 */
+		final Set<String> triggers = new HashSet<String>();
+	}
+
 	public InstrCriteria(String criteria) {
 		this.originalCriteria = criteria;
 		criteria = criteria.replace('{', '[');
@@ -37,6 +88,133 @@ public class InstrCriteria {
 		for (String s : tmp)
 			addClassOrMethod(s);
 		
+		compile();
+	}
+
+	private void compile() {
+		for (Map.Entry<String, List<SimpleMethod>> entry : myInstrCriteria.entrySet()) {
+			CompiledClass compiled = new CompiledClass();
+			for (SimpleMethod method : entry.getValue()) {
+				if (method.ynAllMethods) {
+					compiled.allMethods = true;
+					if (method.samplePolicy != 0) {
+						compiled.allMethodsSamplePolicy = method.samplePolicy;
+					}
+					if (method.slowThreshold != 0) {
+						compiled.allMethodsSlowThreshold = method.slowThreshold;
+					}
+					compiled.allMethodsTrigger |= method.trigger;
+				} else if (method.args != null) {
+					if (method.samplePolicy != 0) {
+						compiled.samplePolicies.put(method.name + method.args, method.samplePolicy);
+					}
+					if (method.slowThreshold != 0) {
+						compiled.slowThresholds.put(method.name + method.args, method.slowThreshold);
+					}
+					if (method.trigger) {
+						compiled.triggers.add(method.name + method.args);
+					}
+					Set<String> descs = compiled.methods.get(method.name);
+					if (descs == null) {
+						descs = new HashSet<String>();
+						compiled.methods.put(method.name, descs);
+					}
+					descs.add(method.args);
+				}
+			}
+			compiledCriteria.put(entry.getKey(), compiled);
+		}
+		classMatcher = new SubstringMatcher(getClassRegex());
+	}
+
+	/**
+	 * @return A canonical description of the criteria which apply to the
+	 *         methods of the given class. Two criteria with the same
+	 *         fingerprint for a class instrument exactly the same methods of
+	 *         it, in the same way.
+	 */
+	public String getFingerprint(String className) {
+		CompiledClass compiled = this.compiledCriteria.get(className);
+		if (compiled == null) {
+			return "";
+		}
+		List<String> methods = new ArrayList<String>();
+		if (compiled.allMethods) {
+			String all = "*";
+			if (compiled.allMethodsSlowThreshold != 0) {
+				all += OPTION_DELIMITER + SLOW_OPTION;
+			}
+			if (compiled.allMethodsTrigger) {
+				all += OPTION_DELIMITER + TRIGGER_OPTION;
+			}
+			methods.add(all);
+		} else {
+			for (Map.Entry<String, Set<String>> entry : compiled.methods.entrySet()) {
+				for (String desc : entry.getValue()) {
+					methods.add(entry.getKey() + desc);
+				}
+			}
+		}
+		// Trigger and slow call methods get a handler which runs their exit
+		// probe when an exception unwinds them. Only whether a method has a
+		// threshold matters, not its value.
+		for (String trigger : compiled.triggers) {
+			methods.add(trigger + OPTION_DELIMITER + TRIGGER_OPTION);
+		}
+		for (String slow : compiled.slowThresholds.keySet()) {
+			methods.add(slow + OPTION_DELIMITER + SLOW_OPTION);
+		}
+		Collections.sort(methods);
+		return methods.toString();
+	}
+
+	/**
+	 * Sampling doesn't change the instrumented bytecode so it isn't part of
+	 * the fingerprint.
+	 */
+	@Override
+	public int getSamplingPolicy(String className, String methodName, String desc) {
+		CompiledClass compiled = this.compiledCriteria.get(className);
+		if (compiled == null) {
+			return 0;
+		}
+		Integer policy = compiled.samplePolicies.get(methodName + desc);
+		return (policy != null) ? policy.intValue() : compiled.allMethodsSamplePolicy;
+	}
+
+	/**
+	 * Slow call thresholds are applied by the probes, but like triggers the
+	 * methods with a threshold get an extra exception handler so whether a
+	 * method has one is part of the fingerprint.
+	 */
+	@Override
+	public int getSlowCallThreshold(String className, String methodName, String desc) {
+		CompiledClass compiled = this.compiledCriteria.get(className);
+		if (compiled == null) {
+			return 0;
+		}
+		Integer threshold = compiled.slowThresholds.get(methodName + desc);
+		return (threshold != null) ? threshold.intValue() : compiled.allMethodsSlowThreshold;
+	}
+
+	/**
+	 * Triggers are applied by the probes, but trigger methods are also
+	 * instrumented with an extra exception handler so they are part of the
+	 * fingerprint.
+	 */
+	@Override
+	public boolean isTrigger(String className, String methodName, String desc) {
+		CompiledClass compiled = this.compiledCriteria.get(className);
+		return (compiled != null)
+				&& (compiled.allMethodsTrigger || compiled.triggers.contains(methodName + desc));
+	}
+
+	/**
+	 * @return True if the class name (or interface name) contains any of the
+	 *         class patterns.
+	 */
+	public boolean matchesClassName(String name) {
+		return classMatcher.matches(name);
 	}
 	/*
 	 * Example:  org.intracetest.agent.ArgumentTypes#charArrayArg([C)V
@@ -44,6 +222,18 @@ public class InstrCriteria {
 	 */
 	static class SimpleMethod {
 		boolean ynAllMethods = false;
+		/*
+		 * MethodSampler policy, 0 if every invocation is traced.
+		 */
+		int samplePolicy = 0;
+		/*
+		 * Slow call threshold in milliseconds, 0 if every invocation is traced.
+		 */
+		int slowThreshold = 0;
+		/*
+		 * True if invocations of the method enable tracing of their thread.
+		 */
+		boolean trigger = false;
 		/*
 		 * example: charArrayArg
 		 */
@@ -77,6 +267,45 @@ public class InstrCriteria {
 			return name+getArgs();
 		}
 
+		/*
+		 * example: @sample=100
+		 */
+		public String getOptions() {
+			String rc = "";
+			if (samplePolicy != 0)
+				rc += OPTION_DELIMITER + SAMPLE_OPTION + MethodSampler.formatPolicy(samplePolicy);
+			if (slowThreshold != 0)
+				rc += OPTION_DELIMITER + SLOW_OPTION + slowThreshold;
+			if (trigger)
+				rc += OPTION_DELIMITER + TRIGGER_OPTION;
+			return rc;
+		}
+
+		public void setOption(String option) {
+			if (option.startsWith(SAMPLE_OPTION)) {
+				samplePolicy = MethodSampler.parsePolicy(option.substring(SAMPLE_OPTION.length()));
+			} else if (option.startsWith(SLOW_OPTION)) {
+				slowThreshold = parseThreshold(option.substring(SLOW_OPTION.length()));
+			} else if (option.equals(TRIGGER_OPTION)) {
+				trigger = true;
+			} else {
+				throw new RuntimeException("Unknown option [" + option + "]");
+			}
+		}
+
+		private static int parseThreshold(String spec) {
+			int value;
+			try {
+				value = Integer.parseInt(spec.trim());
+			} catch (NumberFormatException ex) {
+				throw new RuntimeException("Invalid slow call threshold [" + spec + "]");
+			}
+			if (value <= 0) {
+				throw new RuntimeException("Slow call threshold must be positive [" + spec + "]");
+			}
+			return value;
+		}
+
 		public void setNameAndArgs(String methodNameAndArgs) {
 			int firstLeftParen = methodNameAndArgs.indexOf("(");
 			if (firstLeftParen >= 0) {
@@ -103,6 +332,7 @@ public class InstrCriteria {
 					sb.append(CLASS_METHOD_DELIMITER);
 					sb.append( myMethod.toString() );
 				}
+				sb.append(myMethod.getOptions());
 			}
 		}
 		return sb.toString();
@@ -124,22 +354,28 @@ public class InstrCriteria {
 	 * @return
 	 */
 	public boolean thisMethodSpecified(String myClass, String method, String arguments) {
-		List<SimpleMethod> allMethods = null;
-		arguments = arguments.replace('[', '{');
+		// Criteria may spell array types with '{'
+		if (arguments.indexOf('{') >= 0)
+			arguments = arguments.replace('{', '[');
 		boolean rc = false;
-		if (this.allMethodsSpecified(myClass)) {
-			rc = true;
-		}else {
-			allMethods = this.myInstrCriteria.get(myClass);
-			if (findMethod(allMethods, method,arguments)!=null)
+		CompiledClass compiled = this.compiledCriteria.get(myClass);
+		if (compiled != null) {
+			if (compiled.allMethods) {
 				rc = true;
+			} else {
+				Set<String> descs = compiled.methods.get(method);
+				rc = (descs != null) && descs.contains(arguments);
+			}
+		}
+		if (this.verboseLogger != null && this.verboseLogger.isVerboseMode()) {
+			List<SimpleMethod> allMethods = this.myInstrCriteria.get(myClass);
+			logVerbose("instrument method? [" + rc + 
+					"] class[" + myClass + 
+					"] method[" + method + 
+					"] + method args [" + arguments.replace('[', '{') + 
+					"] count of methods instrumented [" + ( (allMethods!=null) ? allMethods.size() : "zero" )+ 
+					"]");
 		}
-		logVerbose("instrument method? [" + rc + 
-				"] class[" + myClass + 
-				"] method[" + method + 
-				"] + method args [" + arguments + 
-				"] count of methods instrumented [" + ( (allMethods!=null) ? allMethods.size() : "zero" )+ 
-				"]");
 		return rc;
 			
 	}
@@ -158,41 +394,11 @@ public class InstrCriteria {
 		}
 	}
 	public boolean allMethodsSpecified(String myClass) {
-		boolean rc = false;
-		List<SimpleMethod> allMethods = this.myInstrCriteria.get(myClass);
-		if (allMethods !=null)
-			for(SimpleMethod method : allMethods) {
-				if (method.ynAllMethods)
-					rc = true;
-		}
+		CompiledClass compiled = this.compiledCriteria.get(myClass);
+		boolean rc = (compiled != null) && compiled.allMethods;
 		//logVerbose("instrument all methods for this class? [" + rc + "] class[" + myClass + "]");
 		return rc;
 	}
-	/**
-	 * 
-	 * The bug lies here:
-	 * Comparing fullMethodNameCriteria [byteArrayArg({B)V] to [byteArrayArg([B)V]
-	 * 
-	 * @param methods
-	 * @param nameCriteria
-	 * @param argsCriteria
-	 * @return
-	 */
-	private SimpleMethod findMethod(List<SimpleMethod> methods, String nameCriteria, String argsCriteria){
-		SimpleMethod rc = null;
-		if (nameCriteria !=null && argsCriteria !=null) {
-			String fullMethodNameCriteria = nameCriteria + argsCriteria;
-			if (methods != null)
-				for(SimpleMethod sm : methods) {
-					//logVerbose("Comparing fullMethodNameCriteria [" + fullMethodNameCriteria + "] to [" + sm.toString() + "]");
-					if (fullMethodNameCriteria.equals(sm.toString())) {
-						rc = sm;
-						break;
-					}
-				}
-		}
-		return rc;
-	}
 	/**
 	 *  trying to split this into two: MyClass#myMethod(D)V, but MyClass is also allowable here
 	 * @param methodOrClass
@@ -203,6 +409,11 @@ public class InstrCriteria {
 		
 		List<SimpleMethod> allMethods = null;
 		
+		String[] options = methodOrClass.split(OPTION_DELIMITER);
+		methodOrClass = options[0];
+		for (int i = 1; i < options.length; i++)
+			method.setOption(options[i]);
+
 		String[] parts = methodOrClass.split(CLASS_METHOD_DELIMITER);
 		if (parts.length >= 1 && parts[0]!=null) {
 			allMethods = this.myInstrCriteria.get(parts[0]);
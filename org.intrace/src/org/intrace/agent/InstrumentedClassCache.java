@@ -0,0 +1,342 @@
+package org.intrace.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.intrace.output.MethodRegistry;
+
+/**
+ * Persistent cache of instrumented class bytes, so a restarted JVM can serve
+ * the classes it instrumented last time without running ASM.
+ * <p>
+ * Entries are keyed by a SHA-1 of the original classfile, the class name and
+ * the fingerprint of the criteria which apply to the class. Two files are kept
+ * in the cache directory:
+ * <ul>
+ * <li>index.bin - a fixed size, memory mapped, open addressing hash table of
+ * key to data offset and length
+ * <li>data.bin - entries of key, the id of each instrumented method, the
+ * instrumented bytes and a CRC of the entry
+ * </ul>
+ * The index records the {@link InstrumentedClassWriter#INSTRUMENTATION_VERSION}
+ * the classes were instrumented by, a cache written by another version is
+ * started again.
+ * <p>
+ * An entry which is stored again under the same key, because its method ids
+ * were taken when it was looked up, overwrites the old entry if it fits and
+ * is appended otherwise. Once data.bin reaches 256MB no more
+ * entries are appended.
+ * The instrumented bytes contain {@link MethodRegistry} ids, which are only
+ * stable for the life of a JVM. A hit therefore has to claim the same ids in
+ * this JVM; if any of them is already taken by a different method the lookup
+ * is treated as a miss and the class is instrumented (and cached) afresh.
+ * <p>
+ * Writers take a file lock so several JVMs can share a directory. Readers
+ * don't lock: a torn index slot or entry is caught by the key and CRC stored
+ * with each entry.
+ */
+public class InstrumentedClassCache
+{
+  private static final byte[] INDEX_MAGIC = { 'I', 'C', 'I', 2 };
+  private static final long MAX_DATA_SIZE = 256L << 20;
+  private static final int SLOTS = 1 << 17;
+  private static final int MAX_ENTRIES = (SLOTS / 4) * 3;
+  private static final int KEY_SIZE = 20;
+  private static final int SLOT_SIZE = 32;
+  private static final int HEADER_SIZE = 16;
+  private static final int VERSION_OFFSET = 4;
+  private static final int COUNT_OFFSET = 8;
+
+  private final RandomAccessFile indexFile;
+  private final MappedByteBuffer index;
+  private final RandomAccessFile dataFile;
+  private final FileChannel data;
+  private boolean fullReported = false;
+
+  /**
+   * Open the cache in the given directory, creating it if necessary.
+   *
+   * @param dir
+   * @throws IOException
+   */
+  public InstrumentedClassCache(File dir) throws IOException
+  {
+    if (!dir.isDirectory() && !dir.mkdirs())
+    {
+      throw new IOException("Unable to create cache directory: " + dir);
+    }
+    indexFile = new RandomAccessFile(new File(dir, "index.bin"), "rw");
+    dataFile = new RandomAccessFile(new File(dir, "data.bin"), "rw");
+    data = dataFile.getChannel();
+    FileLock lock = data.lock();
+    try
+    {
+      long indexSize = HEADER_SIZE + ((long) SLOTS * SLOT_SIZE);
+      boolean valid = (indexFile.length() == indexSize);
+      index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                         indexSize);
+      byte[] magic = new byte[INDEX_MAGIC.length];
+      index.get(magic);
+      if (!valid || !Arrays.equals(magic, INDEX_MAGIC)
+          || (index.getInt(VERSION_OFFSET) != InstrumentedClassWriter.INSTRUMENTATION_VERSION))
+      {
+        // New or incompatible cache - start again
+        data.truncate(0);
+        for (int ii = 0; ii < indexSize; ii++)
+        {
+          index.put(ii, (byte) 0);
+        }
+        for (int ii = 0; ii < INDEX_MAGIC.length; ii++)
+        {
+          index.put(ii, INDEX_MAGIC[ii]);
+        }
+        index.putInt(VERSION_OFFSET, InstrumentedClassWriter.INSTRUMENTATION_VERSION);
+      }
+    }
+    finally
+    {
+      lock.release();
+    }
+  }
+
+  /**
+   * @param className
+   * @param originalClassfile
+   * @param fingerprint
+   *          Criteria which apply to this class.
+   * @return The cached instrumented bytes or null.
+   */
+  public byte[] get(String className, byte[] originalClassfile,
+                    String fingerprint)
+  {
+    try
+    {
+      byte[] key = key(className, originalClassfile, fingerprint);
+      int slot = findSlot(key);
+      if (slot < 0)
+      {
+        return null;
+      }
+      int pos = HEADER_SIZE + (slot * SLOT_SIZE);
+      int length = index.getInt(pos + KEY_SIZE + 8);
+      if (length <= 4)
+      {
+        return null;
+      }
+      ByteBuffer entry = ByteBuffer.allocate(length);
+      long offset = index.getLong(pos + KEY_SIZE);
+      while (entry.hasRemaining())
+      {
+        if (data.read(entry, offset + entry.position()) < 0)
+        {
+          return null;
+        }
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(entry.array(), 0, length - 4);
+      if ((int) crc.getValue() != entry.getInt(length - 4))
+      {
+        return null;
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.array()));
+      byte[] entryKey = new byte[KEY_SIZE];
+      in.readFully(entryKey);
+      if (!Arrays.equals(key, entryKey))
+      {
+        return null;
+      }
+      int numMethods = in.readInt();
+      for (int ii = 0; ii < numMethods; ii++)
+      {
+        String nameAndDesc = in.readUTF();
+        int methodId = in.readInt();
+        int descStart = nameAndDesc.indexOf('(');
+        if (!MethodRegistry.registerAt(className,
+                                       nameAndDesc.substring(0, descStart),
+                                       nameAndDesc.substring(descStart),
+                                       methodId))
+        {
+          return null;
+        }
+      }
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return bytes;
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Store the instrumented bytes of a class.
+   *
+   * @param className
+   * @param originalClassfile
+   * @param fingerprint
+   * @param instrumentedClassfile
+   * @param methodIds
+   *          Id of each instrumented method keyed by name + descriptor.
+   */
+  public synchronized void put(String className, byte[] originalClassfile,
+                               String fingerprint, byte[] instrumentedClassfile,
+                               Map<String, Integer> methodIds)
+  {
+    try
+    {
+      byte[] key = key(className, originalClassfile, fingerprint);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(instrumentedClassfile.length + 256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(key);
+      out.writeInt(methodIds.size());
+      for (Map.Entry<String, Integer> method : methodIds.entrySet())
+      {
+        out.writeUTF(method.getKey());
+        out.writeInt(method.getValue());
+      }
+      out.writeInt(instrumentedClassfile.length);
+      out.write(instrumentedClassfile);
+      out.flush();
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeInt((int) crc.getValue());
+      out.flush();
+      byte[] entry = bytes.toByteArray();
+
+      FileLock lock = data.lock();
+      try
+      {
+        int count = index.getInt(COUNT_OFFSET);
+        int slot = findSlot(key);
+        int pos = HEADER_SIZE + (slot * SLOT_SIZE);
+        int oldLength = (slot < 0) ? 0 : index.getInt(pos + KEY_SIZE + 8);
+        long offset;
+        if (oldLength >= entry.length)
+        {
+          // The entry is stored again, as its ids were taken - reuse its space
+          offset = index.getLong(pos + KEY_SIZE);
+        }
+        else
+        {
+          offset = data.size();
+        }
+        if ((slot < 0) || ((oldLength == 0) && (count >= MAX_ENTRIES))
+            || ((offset + entry.length) > MAX_DATA_SIZE))
+        {
+          if (!fullReported)
+          {
+            fullReported = true;
+            System.err.println("## Instrumented class cache is full, no more classes will be cached");
+          }
+          return;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(entry);
+        while (buf.hasRemaining())
+        {
+          data.write(buf, offset + buf.position());
+        }
+
+        if (oldLength == 0)
+        {
+          index.putInt(COUNT_OFFSET, count + 1);
+        }
+        for (int ii = 0; ii < KEY_SIZE; ii++)
+        {
+          index.put(pos + ii, key[ii]);
+        }
+        index.putLong(pos + KEY_SIZE, offset);
+        // Length last - a non zero length marks the slot as in use
+        index.putInt(pos + KEY_SIZE + 8, entry.length);
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  public synchronized void close()
+  {
+    try
+    {
+      index.force();
+      indexFile.close();
+      dataFile.close();
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * @return The slot holding the key, or the empty slot where it belongs, or
+   *         -1 if the table is full.
+   */
+  private int findSlot(byte[] key)
+  {
+    int hash = ((key[0] & 0xFF) << 24) | ((key[1] & 0xFF) << 16)
+               | ((key[2] & 0xFF) << 8) | (key[3] & 0xFF);
+    for (int probe = 0; probe < SLOTS; probe++)
+    {
+      int slot = (hash + probe) & (SLOTS - 1);
+      int pos = HEADER_SIZE + (slot * SLOT_SIZE);
+      if (index.getInt(pos + KEY_SIZE + 8) == 0)
+      {
+        return slot;
+      }
+      boolean match = true;
+      for (int ii = 0; (ii < KEY_SIZE) && match; ii++)
+      {
+        match = (index.get(pos + ii) == key[ii]);
+      }
+      if (match)
+      {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] key(String className, byte[] originalClassfile,
+                            String fingerprint) throws IOException
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new IOException(ex.toString());
+    }
+    digest.update(className.getBytes("UTF-8"));
+    digest.update((byte) 0);
+    digest.update(fingerprint.getBytes("UTF-8"));
+    digest.update((byte) 0);
+    digest.update(originalClassfile);
+    return digest.digest();
+  }
+}
@@ -4,12 +4,18 @@ import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.intrace.output.AgentHelper;
+import org.intrace.output.MethodGovernor;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.SlowCallThresholds;
+import org.intrace.output.TriggerScope;
 import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.AgentConfigConstants;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
@@ -17,6 +23,7 @@ import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodNode;
 
 /**
  * ASM2 ClassWriter used to transform class files to instrument methods to add
@@ -24,11 +31,20 @@ import org.objectweb.asm.Type;
  */
 public class InstrumentedClassWriter extends ClassWriter
 {
+  /**
+   * Version of the instrumented bytecode, to be bumped whenever the code this
+   * writer generates or the {@link AgentHelper} probe signatures change.
+   * Classes instrumented by another version are never reused, see
+   * {@link InstrumentedClassCache}.
+   */
+  public static final int INSTRUMENTATION_VERSION = 2;
+
   private final String className;
   private final ClassAnalysis analysis;
-  private final boolean threadClass;
   private final boolean shouldInstrument;
   private AgentSettings settings = null;
+  private final Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+  private int classVersion;
 
   /**
    * cTor
@@ -36,19 +52,25 @@ public class InstrumentedClassWriter extends ClassWriter
    * @param xiClassName
    * @param xiReader
    * @param xiShouldInstrument
-   * @param analysis
    */
   public InstrumentedClassWriter(String xiClassName, ClassReader xiReader,
-      ClassAnalysis xiAnalysis, boolean xiShouldInstrument, AgentSettings settings)
+      boolean xiShouldInstrument, AgentSettings settings)
   {
     super(xiReader, COMPUTE_MAXS);
     className = xiClassName;
-    analysis = xiAnalysis;
+    analysis = new ClassAnalysis(settings.getTrivialThreshold());
     shouldInstrument = xiShouldInstrument;
-    threadClass = xiClassName.equals("java.lang.Thread");
     this.settings = settings;
   }
 
+  @Override
+  public void visit(int version, int access, String name, String signature,
+                    String superName, String[] interfaces)
+  {
+    classVersion = version;
+    super.visit(version, access, name, signature, superName, interfaces);
+  }
+
   /**
    * Instrument a particular method.
    */
@@ -90,16 +112,16 @@ public class InstrumentedClassWriter extends ClassWriter
     if (this.settings.getClassesToExclude()==null
     		||!this.settings.getClassesToExclude().thisMethodSpecified(this.className, name, desc)) {
     	if (this.settings.getClassesToInclude().thisMethodSpecified(this.className, name, desc)  ) {
-            // Extract analysis results for this method
-            Set<Integer> branchTraceLines = analysis.methodReverseGOTOLines.get(name
-                                                                                + desc);
-            Integer entryLine = analysis.methodEntryLines.get(name + desc);
-
-            if (!threadClass || !name.equals("getUncaughtExceptionHandler"))
+            //System.out.println("Instrumenting class [" + this.className + "] method [" + name + "] args [" + desc + "]");
+            if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0)
             {
-            	//System.out.println("Instrumenting class [" + this.className + "] method [" + name + "] args [" + desc + "]");
-              mv = new InstrumentedMethodWriter(mv, access, name, desc,
-                                                     branchTraceLines, entryLine);
+              int methodId = MethodRegistry.register(className, name, desc);
+              if (!MethodGovernor.isRemoved(methodId))
+              {
+                methodIds.put(name + desc, methodId);
+                mv = new AnalysedMethod(mv, access, name, desc, signature,
+                                        exceptions, methodId);
+              }
             }
     	}
     }
@@ -107,16 +129,112 @@ public class InstrumentedClassWriter extends ClassWriter
     return mv;
   }
 
+  /**
+   * @return The {@link MethodRegistry} id of each instrumented method, keyed
+   *         by method name + descriptor.
+   */
+  public Map<String, Integer> getMethodIds()
+  {
+    return methodIds;
+  }
+
+  /**
+   * Buffers a method which is to be instrumented. Once the whole method has
+   * been read, {@link ClassAnalysis} is run over the buffered copy and the
+   * method is then replayed through an {@link InstrumentedMethodWriter}. This
+   * means the classfile itself is only parsed once, and methods which are not
+   * instrumented are never analysed - the ClassWriter copies them verbatim.
+   */
+  private class AnalysedMethod extends MethodNode
+  {
+    private final MethodVisitor target;
+    private final int methodId;
+
+    public AnalysedMethod(MethodVisitor xiTarget, int access, String name,
+        String desc, String signature, String[] exceptions, int xiMethodId)
+    {
+      super(access, name, desc, signature, exceptions);
+      target = xiTarget;
+      methodId = xiMethodId;
+    }
+
+    @Override
+    public void visitEnd()
+    {
+      analysis.visitMethod(access, name, desc, signature, null);
+      accept((MethodVisitor) analysis);
+
+      ClassAnalysis.TrivialKind trivialKind = analysis.methodTrivialKinds.get(name
+                                                                             + desc);
+      String trivialMode = settings.getTrivialMode();
+      if ((trivialKind != null)
+          && !AgentConfigConstants.TRIVIAL_OFF.equals(trivialMode))
+      {
+        if (settings.isVerboseMode())
+        {
+          TraceHandler.INSTANCE.writeTraceOutput("DEBUG: " + trivialMode
+                                                 + " trivial method ("
+                                                 + trivialKind + "): "
+                                                 + className + "#" + name
+                                                 + desc);
+        }
+        if (AgentConfigConstants.TRIVIAL_COUNT.equals(trivialMode))
+        {
+          accept(new CountingMethodWriter(target, methodId));
+        }
+        else
+        {
+          methodIds.remove(name + desc);
+          accept(target);
+        }
+        return;
+      }
+
+      // Extract analysis results for this method
+      Set<Integer> branchTraceLines = analysis.methodReverseGOTOLines.get(name
+                                                                          + desc);
+      Integer entryLine = analysis.methodEntryLines.get(name + desc);
+
+      accept(new InstrumentedMethodWriter(target, access, name, desc,
+                                          methodId, branchTraceLines,
+                                          entryLine));
+    }
+  }
+
+  /**
+   * Instruments a trivial method with a single call to count its
+   * invocations.
+   */
+  private static class CountingMethodWriter extends MethodAdapter
+  {
+    private final int methodId;
+
+    public CountingMethodWriter(MethodVisitor xiMethodVisitor, int xiMethodId)
+    {
+      super(xiMethodVisitor);
+      methodId = xiMethodId;
+    }
+
+    @Override
+    public void visitCode()
+    {
+      super.visitCode();
+      mv.visitLdcInsn(methodId);
+      mv.visitMethodInsn(INVOKESTATIC, InstrumentedMethodWriter.HELPER_CLASS,
+                         "count", "(I)V");
+    }
+  }
+
   /**
    * ASM2 MethodVisitor used to instrument methods.
    */
   private class InstrumentedMethodWriter extends MethodAdapter
   {
     private static final String HELPER_CLASS = "org/intrace/output/AgentHelper";
-    private static final String CRITICAL_BLOCK = "INSTRU_CRITICAL_BLOCK";
 
     // Final method fields
     private final String methodName;
+    private final int methodId;
     private final String methodDescriptor;
     private final int methodAccess;
 
@@ -127,13 +245,23 @@ public class InstrumentedClassWriter extends ClassWriter
     private final Set<Label> traceLabels = new HashSet<Label>();
     private final Set<Label> exceptionHandlerLabels = new HashSet<Label>();
 
+    /**
+     * Trigger and slow call methods write exit trace from a catch-all
+     * handler, so that an exception unwinding the method still takes the
+     * thread out of the trigger scope and closes its slow call candidate.
+     * Every method is a slow call candidate while the global slow call
+     * threshold is set. Constructors are left out as the handler can't cover
+     * the superclass constructor call.
+     */
+    private final boolean exitOnUnwind;
+    private final Label unwindStart = new Label();
+
     // State
     private boolean writeTraceLine = false;
     private CTorEntryState ctorEntryState = CTorEntryState.NORMALMETHOD;
     private int lineNumber = -1;
     private int numBranchesOnLine = 0;
     private TernaryState ternState = TernaryState.BASE;
-    private Label threadLabel;
 
     /**
      * cTor
@@ -143,16 +271,20 @@ public class InstrumentedClassWriter extends ClassWriter
      * @param xiClassName
      * @param xiMethodName
      * @param xiDesc
+     * @param xiMethodId
+     *          {@link MethodRegistry} id passed to every probe in place of the
+     *          class and method names
      * @param xiBranchTraceLines
      * @param entryLine
      */
     public InstrumentedMethodWriter(MethodVisitor xiMethodVisitor, int access,
-        String xiMethodName, String xiDesc, Set<Integer> xiBranchTraceLines,
-        Integer xiEntryLine)
+        String xiMethodName, String xiDesc, int xiMethodId,
+        Set<Integer> xiBranchTraceLines, Integer xiEntryLine)
     {
       super(xiMethodVisitor);
       methodAccess = access;
       methodName = xiMethodName;
+      methodId = xiMethodId;
       methodDescriptor = xiDesc;
       reverseGOTOLines = xiBranchTraceLines;
       entryLine = xiEntryLine;
@@ -160,38 +292,11 @@ public class InstrumentedClassWriter extends ClassWriter
       {
         ctorEntryState = CTorEntryState.ISCTOR;
       }
-    }
-
-    /**
-     * Add the special preable for the Thread.setUncaughtExceptionHandler(...)
-     */
-    private void addThreadSetUCEHPreamble()
-    {
-      Label l0 = new Label();
-      mv.visitLabel(l0);
-      mv.visitVarInsn(Opcodes.ALOAD, 1);
-      mv.visitFieldInsn(Opcodes.GETSTATIC, HELPER_CLASS, CRITICAL_BLOCK,
-                        "L" + HELPER_CLASS + "$CriticalBlock;");
-      Label l1 = new Label();
-      Label l2 = new Label();
-      Label l3 = new Label();
-      mv.visitJumpInsn(Opcodes.IF_ACMPEQ, l3);
-      mv.visitLabel(l2);
-      mv.visitVarInsn(Opcodes.ALOAD, 0);
-      mv.visitFieldInsn(Opcodes.GETFIELD, "java/lang/Thread", "uncaughtExceptionHandler",
-                        "Ljava/lang/Thread$UncaughtExceptionHandler;");
-      mv.visitFieldInsn(Opcodes.GETSTATIC, HELPER_CLASS, CRITICAL_BLOCK,
-                        "L" + HELPER_CLASS + "$CriticalBlock;");
-      mv.visitJumpInsn(Opcodes.IF_ACMPNE, l1);
-      mv.visitLabel(l3);
-      mv.visitVarInsn(Opcodes.ALOAD, 0);
-      mv.visitVarInsn(Opcodes.ALOAD, 1);
-      mv.visitFieldInsn(Opcodes.PUTFIELD, "java/lang/Thread", "uncaughtExceptionHandler",
-                        "Ljava/lang/Thread$UncaughtExceptionHandler;");
-      threadLabel = new Label();
-      mv.visitJumpInsn(Opcodes.GOTO, threadLabel);
-      mv.visitLabel(l1);
-      mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+      exitOnUnwind = shouldInstrument
+                     && (ctorEntryState == CTorEntryState.NORMALMETHOD)
+                     && (TriggerScope.isTrigger(methodId)
+                         || (SlowCallThresholds.getThreshold(methodId) > 0)
+                         || TraceHandler.INSTANCE.isSlowCallThresholdSet());
     }
 
     /**
@@ -200,11 +305,6 @@ public class InstrumentedClassWriter extends ClassWriter
     @Override
     public void visitCode()
     {
-      if (threadClass && methodName.equals("setUncaughtExceptionHandler"))
-      {
-        addThreadSetUCEHPreamble();
-      }
-
       if (ctorEntryState != CTorEntryState.ISCTOR)
       {
         addEntryCalls();
@@ -212,6 +312,36 @@ public class InstrumentedClassWriter extends ClassWriter
       // For Constructors we add the entry calls after the first invokeSpecial
       // which calls into the superclass constructor.
       super.visitCode();
+      if (exitOnUnwind)
+      {
+        mv.visitLabel(unwindStart);
+      }
+    }
+
+    /**
+     * Append the catch-all handler of a trigger or slow call method, which
+     * writes exit trace and rethrows. It is registered last so that the method's own
+     * handlers take precedence.
+     */
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals)
+    {
+      if (exitOnUnwind)
+      {
+        Label unwindEnd = new Label();
+        Label unwindHandler = new Label();
+        mv.visitLabel(unwindEnd);
+        mv.visitTryCatchBlock(unwindStart, unwindEnd, unwindHandler, null);
+        mv.visitLabel(unwindHandler);
+        if ((classVersion & 0xFFFF) >= Opcodes.V1_6)
+        {
+          mv.visitFrame(Opcodes.F_FULL, 0, new Object[0], 1,
+                        new Object[] { "java/lang/Throwable" });
+        }
+        generateCallToAgentHelper(InstrumentationType.EXIT, lineNumber);
+        mv.visitInsn(Opcodes.ATHROW);
+      }
+      super.visitMaxs(maxStack, maxLocals);
     }
 
     private void addEntryCalls()
@@ -287,12 +417,10 @@ public class InstrumentedClassWriter extends ClassWriter
         {
           mv.visitLdcInsn("Arg");
         }
-        mv.visitLdcInsn(className);
-        mv.visitLdcInsn(methodName);
+        pushInt(methodId);
         mv.visitVarInsn(opcode, varslot);
         mv.visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                           "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;"
-                               + typeDescriptor + ")V");
+                           "(Ljava/lang/String;I" + typeDescriptor + ")V");
       }
     }
 
@@ -348,11 +476,9 @@ public class InstrumentedClassWriter extends ClassWriter
               // Load args
               mv.visitLdcInsn("Caught");
               mv.visitInsn(Opcodes.SWAP);
-              mv.visitLdcInsn(className);
-              mv.visitInsn(Opcodes.SWAP);
-              mv.visitLdcInsn(methodName);
+              pushInt(methodId);
               mv.visitInsn(Opcodes.SWAP);
-              mv.visitLdcInsn(lineNumber);
+              pushInt(lineNumber);
               mv.visitInsn(Opcodes.SWAP);
 
               // Generate call to trace exception
@@ -361,7 +487,7 @@ public class InstrumentedClassWriter extends ClassWriter
                                  INVOKESTATIC,
                                  HELPER_CLASS,
                                  "val",
-                                 "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ILjava/lang/Throwable;)V");
+                                 "(Ljava/lang/String;IILjava/lang/Throwable;)V");
             }
             else if (shouldInstrument)
             {
@@ -428,28 +554,26 @@ public class InstrumentedClassWriter extends ClassWriter
         // at the top of the stack
         mv.visitLdcInsn("Return");
         mv.visitInsn(Opcodes.SWAP);
-        mv.visitLdcInsn(className);
-        mv.visitInsn(Opcodes.SWAP);
-        mv.visitLdcInsn(methodName);
+        pushInt(methodId);
         mv.visitInsn(Opcodes.SWAP);
 
         if (xiOpCode == Opcodes.IRETURN)
         {
           mv
             .visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V");
+                             "(Ljava/lang/String;II)V");
         }
         else if (xiOpCode == Opcodes.FRETURN)
         {
           mv
             .visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;F)V");
+                             "(Ljava/lang/String;IF)V");
         }
         else if (xiOpCode == Opcodes.ARETURN)
         {
           mv
             .visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/Object;)V");
+                             "(Ljava/lang/String;ILjava/lang/Object;)V");
         }
         generateCallToAgentHelper(InstrumentationType.EXIT, lineNumber);
       }
@@ -463,10 +587,7 @@ public class InstrumentedClassWriter extends ClassWriter
         mv.visitLdcInsn("Return");
         mv.visitInsn(Opcodes.DUP_X2);
         mv.visitInsn(Opcodes.POP);
-        mv.visitLdcInsn(className);
-        mv.visitInsn(Opcodes.DUP_X2);
-        mv.visitInsn(Opcodes.POP);
-        mv.visitLdcInsn(methodName);
+        pushInt(methodId);
         mv.visitInsn(Opcodes.DUP_X2);
         mv.visitInsn(Opcodes.POP);
 
@@ -474,13 +595,13 @@ public class InstrumentedClassWriter extends ClassWriter
         {
           mv
             .visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;J)V");
+                             "(Ljava/lang/String;IJ)V");
         }
         else if (xiOpCode == Opcodes.DRETURN)
         {
           mv
             .visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "val",
-                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;D)V");
+                             "(Ljava/lang/String;ID)V");
         }
         generateCallToAgentHelper(InstrumentationType.EXIT, lineNumber);
       }
@@ -493,11 +614,9 @@ public class InstrumentedClassWriter extends ClassWriter
         // Load args
         mv.visitLdcInsn("Throw");
         mv.visitInsn(Opcodes.SWAP);
-        mv.visitLdcInsn(className);
-        mv.visitInsn(Opcodes.SWAP);
-        mv.visitLdcInsn(methodName);
+        pushInt(methodId);
         mv.visitInsn(Opcodes.SWAP);
-        mv.visitLdcInsn(lineNumber);
+        pushInt(lineNumber);
         mv.visitInsn(Opcodes.SWAP);
 
         // Generate call to trace exception
@@ -506,18 +625,12 @@ public class InstrumentedClassWriter extends ClassWriter
                            INVOKESTATIC,
                            HELPER_CLASS,
                            "val",
-                           "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ILjava/lang/Throwable;)V");
+                           "(Ljava/lang/String;IILjava/lang/Throwable;)V");
 
-        // Also write exit trace
-        generateCallToAgentHelper(InstrumentationType.EXIT, lineNumber);
-      }
-
-      if (xiOpCode == Opcodes.RETURN)
-      {
-        if (threadClass && methodName.equals("setUncaughtExceptionHandler"))
+        // Also write exit trace, unless the catch-all handler does
+        if (!exitOnUnwind)
         {
-          mv.visitLabel(threadLabel);
-          mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+          generateCallToAgentHelper(InstrumentationType.EXIT, lineNumber);
         }
       }
 
@@ -617,6 +730,29 @@ public class InstrumentedClassWriter extends ClassWriter
       super.visitLookupSwitchInsn(dflt, keys, labels);
     }
 
+    /**
+     * Push an int constant using the shortest instruction for its value.
+     */
+    private void pushInt(int value)
+    {
+      if ((value >= -1) && (value <= 5))
+      {
+        mv.visitInsn(Opcodes.ICONST_0 + value);
+      }
+      else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE))
+      {
+        mv.visitIntInsn(Opcodes.BIPUSH, value);
+      }
+      else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE))
+      {
+        mv.visitIntInsn(Opcodes.SIPUSH, value);
+      }
+      else
+      {
+        mv.visitLdcInsn(value);
+      }
+    }
+
     /**
      * Generate an ENTER/BRANCH/EXIT instrumentation call.
      *
@@ -626,29 +762,28 @@ public class InstrumentedClassWriter extends ClassWriter
     private void generateCallToAgentHelper(InstrumentationType traceType,
                                            int lineNumber)
     {
-      mv.visitLdcInsn(className);
-      mv.visitLdcInsn(methodName);
-      mv.visitLdcInsn(lineNumber);
+      pushInt(methodId);
+      pushInt(lineNumber);
       switch (traceType)
       {
       case ENTER:
       {
         mv.visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "enter",
-                           "(Ljava/lang/String;Ljava/lang/String;I)V");
+                           "(II)V");
         break;
       }
 
       case BRANCH:
       {
         mv.visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "branch",
-                           "(Ljava/lang/String;Ljava/lang/String;I)V");
+                           "(II)V");
         break;
       }
 
       case EXIT:
       {
         mv.visitMethodInsn(INVOKESTATIC, HELPER_CLASS, "exit",
-                           "(Ljava/lang/String;Ljava/lang/String;I)V");
+                           "(II)V");
         break;
       }
       }
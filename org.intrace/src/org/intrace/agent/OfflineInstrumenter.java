@@ -0,0 +1,391 @@
+package org.intrace.agent;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.intrace.output.MethodRegistry;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Build time instrumentation. Runs the {@link InstrumentedClassWriter} used by
+ * the agent over the classes of a jar or class directory and writes an
+ * instrumented copy, along with a dictionary of the {@link MethodRegistry} ids
+ * baked into it.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -jar intrace-agent.jar &lt;agent args&gt; &lt;input jar|dir&gt; &lt;output jar|dir&gt; [&lt;input jar|dir&gt; &lt;output jar|dir&gt; ...] &lt;dictionary file&gt;
+ * </pre>
+ *
+ * The agent args select classes exactly as they would at runtime, e.g.
+ * "[regex-com.example.Foo#bar()V[exclude-regex-com.example.Baz".
+ * <p>
+ * Ids are allocated from 0 on every run, so every jar and directory of one
+ * application has to be instrumented in the same run to get distinct ids.
+ * <p>
+ * Instrumented classes call into the agent, so the application must still be
+ * started with the agent. Passing [offlinedict-&lt;dictionary file&gt; to the
+ * agent loads the dictionary and leaves the class loading path alone - no
+ * ClassFileTransformer is registered at all. Several dictionaries can be
+ * passed, separated by the platform path separator; the agent refuses to
+ * start if two of them give an id to different methods.
+ */
+public class OfflineInstrumenter
+{
+  private static final String DICTIONARY_HEADER = "# InTrace method dictionary";
+
+  private final AgentSettings settings;
+
+  /**
+   * Class, method name and descriptor of each instrumented method, by id.
+   */
+  private final Map<Integer, String[]> methods = new TreeMap<Integer, String[]>();
+
+  private int numClasses = 0;
+  private int numInstrumented = 0;
+
+  public OfflineInstrumenter(AgentSettings settings)
+  {
+    this.settings = settings;
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if ((args.length < 4) || ((args.length % 2) != 0))
+    {
+      System.err.println("Usage: java -jar intrace-agent.jar <agent args> <input jar|dir> <output jar|dir> [<input jar|dir> <output jar|dir> ...] <dictionary file>");
+      System.exit(1);
+    }
+    AgentSettings settings = new AgentSettings(args[0]);
+    if (settings.getClassesToInclude() == null)
+    {
+      System.err.println("No classes selected - the agent args must include [regex-<classes>");
+      System.exit(1);
+    }
+
+    OfflineInstrumenter instrumenter = new OfflineInstrumenter(settings);
+    for (int ii = 1; ii < (args.length - 1); ii += 2)
+    {
+      instrumenter.instrument(new File(args[ii]), new File(args[ii + 1]));
+    }
+    instrumenter.writeDictionary(new File(args[args.length - 1]));
+    System.out.println("## Instrumented " + instrumenter.getNumInstrumented()
+                       + " of " + instrumenter.getNumClasses() + " classes ("
+                       + instrumenter.methods.size() + " methods)");
+  }
+
+  public int getNumClasses()
+  {
+    return numClasses;
+  }
+
+  public int getNumInstrumented()
+  {
+    return numInstrumented;
+  }
+
+  /**
+   * Instrument a jar or a directory of classes. Everything other than
+   * selected classes is copied unchanged, apart from jar signature files
+   * which would no longer be valid.
+   *
+   * @param input
+   * @param output
+   * @throws IOException
+   */
+  public void instrument(File input, File output) throws IOException
+  {
+    if (input.isDirectory())
+    {
+      instrumentDirectory(input, output);
+    }
+    else
+    {
+      instrumentJar(input, output);
+    }
+  }
+
+  private void instrumentDirectory(File input, File output) throws IOException
+  {
+    if (!output.isDirectory() && !output.mkdirs())
+    {
+      throw new IOException("Unable to create directory: " + output);
+    }
+    File[] files = input.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+    for (File file : files)
+    {
+      File outFile = new File(output, file.getName());
+      if (file.isDirectory())
+      {
+        instrumentDirectory(file, outFile);
+      }
+      else
+      {
+        InputStream in = new FileInputStream(file);
+        byte[] bytes;
+        try
+        {
+          bytes = readFully(in);
+        }
+        finally
+        {
+          in.close();
+        }
+        OutputStream out = new FileOutputStream(outFile);
+        try
+        {
+          out.write(transformEntry(file.getPath(), bytes));
+        }
+        finally
+        {
+          out.close();
+        }
+      }
+    }
+  }
+
+  private void instrumentJar(File input, File output) throws IOException
+  {
+    ZipFile jar = new ZipFile(input);
+    try
+    {
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(output));
+      try
+      {
+        Enumeration<? extends ZipEntry> entries = jar.entries();
+        while (entries.hasMoreElements())
+        {
+          ZipEntry entry = entries.nextElement();
+          if (isSignatureFile(entry.getName()))
+          {
+            continue;
+          }
+          ZipEntry outEntry = new ZipEntry(entry.getName());
+          outEntry.setTime(entry.getTime());
+          out.putNextEntry(outEntry);
+          if (!entry.isDirectory())
+          {
+            InputStream in = jar.getInputStream(entry);
+            try
+            {
+              out.write(transformEntry(entry.getName(), readFully(in)));
+            }
+            finally
+            {
+              in.close();
+            }
+          }
+          out.closeEntry();
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    finally
+    {
+      jar.close();
+    }
+  }
+
+  private byte[] transformEntry(String name, byte[] bytes)
+  {
+    if (!name.endsWith(".class"))
+    {
+      return bytes;
+    }
+    byte[] instrumented = instrumentClass(name, bytes);
+    return (instrumented != null) ? instrumented : bytes;
+  }
+
+  /**
+   * @param name
+   *          Where the classfile came from, for error messages.
+   * @param classfile
+   * @return The instrumented classfile or null if the class isn't selected.
+   */
+  public byte[] instrumentClass(String name, byte[] classfile)
+  {
+    numClasses++;
+    try
+    {
+      ClassHeaderReader header = new ClassHeaderReader(classfile);
+      String className = header.getClassName().replace('/', '.');
+      if (!isSelected(className, header.getInterfaces()))
+      {
+        return null;
+      }
+
+      ClassReader cr = new ClassReader(classfile);
+      InstrumentedClassWriter writer = new InstrumentedClassWriter(className,
+                                                                   cr, true,
+                                                                   settings);
+      cr.accept(writer, 0);
+      byte[] instrumented = writer.toByteArray();
+
+      for (Map.Entry<String, Integer> method : writer.getMethodIds().entrySet())
+      {
+        String nameAndDesc = method.getKey();
+        int descStart = nameAndDesc.indexOf('(');
+        methods.put(method.getValue(),
+                    new String[] { className,
+                                  nameAndDesc.substring(0, descStart),
+                                  nameAndDesc.substring(descStart) });
+      }
+      numInstrumented++;
+      return instrumented;
+    }
+    catch (Throwable th)
+    {
+      System.err.println("Caught Throwable when trying to instrument: " + name);
+      th.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * The same criteria the agent applies to a class it is loading.
+   */
+  private boolean isSelected(String className, String[] interfaces)
+  {
+    if (ClassTransformer.isSensitiveClass(className))
+    {
+      return false;
+    }
+    InstrCriteria exclude = settings.getClassesToExclude();
+    if ((exclude != null) && exclude.allMethodsSpecified(className))
+    {
+      return false;
+    }
+    InstrCriteria include = settings.getClassesToInclude();
+    if (include.matchesClassName(className))
+    {
+      return true;
+    }
+    for (String klassInterface : interfaces)
+    {
+      if (include.matchesClassName(klassInterface))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Write the id, class, method name and descriptor of every instrumented
+   * method, one per line.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void writeDictionary(File file) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                                                             "UTF-8"));
+    try
+    {
+      out.println(DICTIONARY_HEADER);
+      for (Map.Entry<Integer, String[]> method : methods.entrySet())
+      {
+        String[] parts = method.getValue();
+        out.println(method.getKey() + "\t" + parts[0] + "\t" + parts[1] + "\t"
+                    + parts[2]);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Register every method of a dictionary written by
+   * {@link #writeDictionary(File)} under the id it was given at build time.
+   *
+   * @param file
+   * @return The number of methods registered.
+   * @throws IOException
+   *           If the dictionary can't be read, has a malformed entry or gives
+   *           a method an id which another method already has - the
+   *           instrumented code would report the wrong method.
+   */
+  public static int loadDictionary(File file) throws IOException
+  {
+    int numLoaded = 0;
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                 "UTF-8"));
+    try
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        if (line.startsWith("#") || (line.trim().length() == 0))
+        {
+          continue;
+        }
+        String[] parts = line.split("\t");
+        if ((parts.length != 4) || !parts[0].matches("[0-9]+"))
+        {
+          throw new IOException("Malformed method dictionary entry in " + file
+                                + ": " + line);
+        }
+        int methodId = Integer.parseInt(parts[0]);
+        if (!MethodRegistry.registerAt(parts[1], parts[2], parts[3], methodId))
+        {
+          throw new IOException("Method dictionary entry in " + file
+                                + " conflicts with " + MethodRegistry.getQualifiedName(methodId)
+                                + " - instrument all classes in one run: " + line);
+        }
+        numLoaded++;
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return numLoaded;
+  }
+
+  private static boolean isSignatureFile(String name)
+  {
+    String upperName = name.toUpperCase(Locale.ROOT);
+    return upperName.startsWith("META-INF/")
+           && (upperName.endsWith(".SF") || upperName.endsWith(".RSA")
+               || upperName.endsWith(".DSA") || upperName.endsWith(".EC"));
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int len;
+    while ((len = in.read(buf)) > 0)
+    {
+      out.write(buf, 0, len);
+    }
+    return out.toByteArray();
+  }
+}
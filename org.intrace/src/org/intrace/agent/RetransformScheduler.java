@@ -0,0 +1,398 @@
+package org.intrace.agent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.intrace.output.InstruRunnable;
+
+/**
+ * Schedules the retransformation of loaded classes.
+ * <p>
+ * Classes are retransformed in batches, highest priority first, on the
+ * scheduler's own daemon thread, so submitting work never blocks the caller,
+ * e.g. the control connection of the client whose settings change started the
+ * run. Classes submitted during a run join its queue instead of starting
+ * another run. A settings change part way through a bulk update therefore
+ * supersedes the rest of that update: no class is retransformed twice and
+ * every remaining class picks up the new settings when it is retransformed.
+ * <p>
+ * If {@link AgentSettings#getRetransformBudget()} is set then no more than
+ * that many milliseconds per second are spent retransforming. Batches are
+ * sized from the measured cost per class to fit the remaining budget and the
+ * run sleeps out the rest of the second once the budget is used, so that
+ * application threads aren't held at safepoints for long.
+ */
+public class RetransformScheduler
+{
+  /**
+   * The work done for the scheduler.
+   */
+  public interface Handler
+  {
+    /**
+     * @param klass
+     * @return Priority of the class, higher is retransformed sooner.
+     */
+    long getPriority(Class<?> klass);
+
+    /**
+     * Start any work for a batch which can be done before it is
+     * retransformed.
+     *
+     * @param batch
+     */
+    void prepareBatch(List<Class<?>> batch);
+
+    /**
+     * Retransform a batch of classes.
+     *
+     * @param batch
+     */
+    void retransformBatch(List<Class<?>> batch);
+
+    void runStarted();
+
+    void progress(int count, int total, boolean done);
+
+    void runFinished();
+  }
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final AgentSettings settings;
+  private final int maxBatchSize;
+  private final Handler handler;
+
+  /**
+   * Classes waiting to be retransformed, guarded by this.
+   */
+  private final PriorityQueue<PendingClass> pending = new PriorityQueue<PendingClass>();
+
+  /**
+   * Classes which are queued or polled but whose retransform hasn't started,
+   * guarded by this.
+   */
+  private final Set<Class<?>> pendingKlasses = new HashSet<Class<?>>();
+  private long nextSequence = 0;
+  private boolean running = false;
+
+  /**
+   * Thread which performs the runs, started on first use, guarded by this.
+   */
+  private Thread worker = null;
+
+  /**
+   * Budget accounting, only used by the worker thread.
+   */
+  private long windowStart = System.nanoTime() - WINDOW_NANOS;
+  private long windowUsedNanos = 0;
+  private long nanosPerClass = 0;
+
+  public RetransformScheduler(AgentSettings settings, int maxBatchSize,
+                              Handler handler)
+  {
+    this.settings = settings;
+    this.maxBatchSize = maxBatchSize;
+    this.handler = handler;
+  }
+
+  /**
+   * Queue classes for retransformation and return. If no run is active the
+   * worker thread starts one.
+   *
+   * @param klasses
+   */
+  public synchronized void submit(Collection<Class<?>> klasses)
+  {
+    for (Class<?> klass : klasses)
+    {
+      if (pendingKlasses.add(klass))
+      {
+        pending.add(new PendingClass(klass, handler.getPriority(klass),
+                                     nextSequence++));
+      }
+    }
+    if (running || pending.isEmpty())
+    {
+      return;
+    }
+    running = true;
+    if (worker == null)
+    {
+      worker = new Thread(new InstruRunnable()
+      {
+        @Override
+        public void runMethod()
+        {
+          workerLoop();
+        }
+      });
+      worker.setName("InTrace-Retransform");
+      worker.setDaemon(true);
+      worker.start();
+    }
+    else
+    {
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return True if a run is active.
+   */
+  public synchronized boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Wait for the active run, and any run started by work submitted during
+   * it, to finish.
+   *
+   * @param timeoutMillis
+   * @return True if no run is active.
+   * @throws InterruptedException
+   */
+  public synchronized boolean awaitIdle(long timeoutMillis)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (running && (remaining > 0))
+    {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return !running;
+  }
+
+  private void workerLoop()
+  {
+    while (true)
+    {
+      synchronized (this)
+      {
+        while (!running)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {
+            // Keep serving, the worker lives as long as the agent
+          }
+        }
+      }
+      try
+      {
+        run();
+      }
+      catch (Throwable th)
+      {
+        // run() has already abandoned its queue
+        th.printStackTrace();
+      }
+    }
+  }
+
+  private void run()
+  {
+    int numDone = 0;
+    boolean finished = false;
+    try
+    {
+      handler.runStarted();
+      List<Class<?>> batch = pollBatch(getBatchSize(0));
+      handler.progress(numDone, getTotal(numDone, batch), false);
+      handler.prepareBatch(batch);
+      while (true)
+      {
+        waitForBudget(batch.size());
+        started(batch);
+
+        // Look one batch ahead so it is prepared while this one is
+        // retransformed
+        List<Class<?>> next = pollBatch(getBatchSize(batch.size()));
+        if (next != null)
+        {
+          handler.prepareBatch(next);
+        }
+
+        long start = System.nanoTime();
+        handler.retransformBatch(batch);
+        recordUsage(System.nanoTime() - start, batch.size());
+        numDone += batch.size();
+
+        boolean prepared = (next != null);
+        synchronized (this)
+        {
+          if (next == null)
+          {
+            next = pollBatch(getBatchSize(0));
+          }
+          if (next == null)
+          {
+            // Report completion before another run can start
+            handler.progress(numDone, numDone, true);
+            handler.runFinished();
+            running = false;
+            finished = true;
+            notifyAll();
+            return;
+          }
+          handler.progress(numDone, getTotal(numDone, next), false);
+        }
+        if (!prepared)
+        {
+          handler.prepareBatch(next);
+        }
+        batch = next;
+      }
+    }
+    finally
+    {
+      if (!finished)
+      {
+        // Unexpected exception - abandon the queue rather than leave it
+        // without a running thread
+        synchronized (this)
+        {
+          pending.clear();
+          pendingKlasses.clear();
+          running = false;
+          notifyAll();
+        }
+        handler.runFinished();
+      }
+    }
+  }
+
+  private synchronized int getTotal(int numDone, List<Class<?>> polled)
+  {
+    return numDone + ((polled != null) ? polled.size() : 0) + pending.size();
+  }
+
+  /**
+   * @return Up to max of the highest priority pending classes or null if
+   *         none are pending.
+   */
+  private synchronized List<Class<?>> pollBatch(int max)
+  {
+    if (pending.isEmpty())
+    {
+      return null;
+    }
+    List<Class<?>> batch = new ArrayList<Class<?>>(Math.min(max, pending.size()));
+    while ((batch.size() < max) && !pending.isEmpty())
+    {
+      batch.add(pending.poll().klass);
+    }
+    return batch;
+  }
+
+  /**
+   * A class submitted again after its retransform has started needs another
+   * retransform, as the JVM may already have passed it through the
+   * transformer.
+   */
+  private synchronized void started(List<Class<?>> batch)
+  {
+    pendingKlasses.removeAll(batch);
+  }
+
+  /**
+   * @param numInFlight
+   *          Number of classes already taken for the current window but not
+   *          yet retransformed.
+   * @return The number of classes expected to fit the remaining budget.
+   */
+  private int getBatchSize(int numInFlight)
+  {
+    long budgetNanos = TimeUnit.MILLISECONDS.toNanos(settings.getRetransformBudget());
+    if (budgetNanos == 0)
+    {
+      return maxBatchSize;
+    }
+    if (nanosPerClass == 0)
+    {
+      // Measure the cost of a single class first
+      return 1;
+    }
+    long remainingNanos = budgetNanos - windowUsedNanos
+                          - (numInFlight * nanosPerClass);
+    if (remainingNanos <= 0)
+    {
+      // The batch will start a new window
+      remainingNanos = budgetNanos;
+    }
+    return (int) Math.max(1, Math.min(maxBatchSize, remainingNanos / nanosPerClass));
+  }
+
+  /**
+   * Sleep until the next window if the budget left in this one is too small
+   * for the batch.
+   */
+  private void waitForBudget(int batchSize)
+  {
+    long budgetNanos = TimeUnit.MILLISECONDS.toNanos(settings.getRetransformBudget());
+    long now = System.nanoTime();
+    if ((now - windowStart) >= WINDOW_NANOS)
+    {
+      windowStart = now;
+      windowUsedNanos = 0;
+    }
+    else if ((budgetNanos > 0) && (windowUsedNanos > 0)
+             && ((windowUsedNanos + (batchSize * nanosPerClass)) > budgetNanos))
+    {
+      try
+      {
+        TimeUnit.NANOSECONDS.sleep(windowStart + WINDOW_NANOS - now);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      windowStart = System.nanoTime();
+      windowUsedNanos = 0;
+    }
+  }
+
+  private void recordUsage(long nanos, int numClasses)
+  {
+    windowUsedNanos += nanos;
+    long perClass = Math.max(1, nanos / numClasses);
+    nanosPerClass = (nanosPerClass == 0) ? perClass
+                                         : ((nanosPerClass * 3) + perClass) / 4;
+  }
+
+  private static class PendingClass implements Comparable<PendingClass>
+  {
+    final Class<?> klass;
+    final long priority;
+    final long sequence;
+
+    PendingClass(Class<?> klass, long priority, long sequence)
+    {
+      this.klass = klass;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(PendingClass other)
+    {
+      if (priority != other.priority)
+      {
+        return (priority > other.priority) ? -1 : 1;
+      }
+      return (sequence < other.sequence) ? -1
+                                         : ((sequence == other.sequence) ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package org.intrace.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton which answers "does the target contain any of the
+ * patterns" in a single scan of the target, however many patterns there are,
+ * and without allocating.
+ * <p>
+ * {@link ClassTransformer#MATCH_ALL} matches every target and
+ * {@link ClassTransformer#MATCH_NONE} is ignored, as they always have been
+ * for the include list.
+ */
+public final class SubstringMatcher {
+	private final boolean matchAll;
+
+	/**
+	 * Per state, the sorted characters of its outgoing edges and the states
+	 * they lead to.
+	 */
+	private final char[][] edgeChars;
+	private final int[][] edgeTargets;
+	private final int[] fail;
+
+	/**
+	 * True if a pattern ends at this state or at any state on its fail chain.
+	 */
+	private final boolean[] accept;
+
+	public SubstringMatcher(String[] patterns) {
+		boolean all = false;
+		List<StringBuilder> chars = new ArrayList<StringBuilder>();
+		List<List<Integer>> targets = new ArrayList<List<Integer>>();
+		List<Boolean> ends = new ArrayList<Boolean>();
+		chars.add(new StringBuilder());
+		targets.add(new ArrayList<Integer>());
+		ends.add(Boolean.FALSE);
+
+		// Build the trie
+		for (String pattern : patterns) {
+			if (pattern.equals(ClassTransformer.MATCH_NONE)) {
+				continue;
+			} else if (pattern.equals(ClassTransformer.MATCH_ALL)) {
+				all = true;
+				continue;
+			}
+			int state = 0;
+			for (int ii = 0; ii < pattern.length(); ii++) {
+				char c = pattern.charAt(ii);
+				int edge = chars.get(state).indexOf(String.valueOf(c));
+				if (edge >= 0) {
+					state = targets.get(state).get(edge);
+				} else {
+					int next = chars.size();
+					chars.add(new StringBuilder());
+					targets.add(new ArrayList<Integer>());
+					ends.add(Boolean.FALSE);
+					chars.get(state).append(c);
+					targets.get(state).add(next);
+					state = next;
+				}
+			}
+			ends.set(state, Boolean.TRUE);
+		}
+		matchAll = all;
+
+		int numStates = chars.size();
+		edgeChars = new char[numStates][];
+		edgeTargets = new int[numStates][];
+		fail = new int[numStates];
+		accept = new boolean[numStates];
+		for (int state = 0; state < numStates; state++) {
+			char[] c = chars.get(state).toString().toCharArray();
+			List<Integer> t = targets.get(state);
+			Integer[] order = new Integer[c.length];
+			for (int ii = 0; ii < order.length; ii++) {
+				order[ii] = ii;
+			}
+			final char[] unsorted = c;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return unsorted[a] - unsorted[b];
+				}
+			});
+			edgeChars[state] = new char[c.length];
+			edgeTargets[state] = new int[c.length];
+			for (int ii = 0; ii < order.length; ii++) {
+				edgeChars[state][ii] = c[order[ii]];
+				edgeTargets[state][ii] = t.get(order[ii]);
+			}
+			accept[state] = ends.get(state);
+		}
+
+		// Breadth first to fill in fail links, root children fail to root
+		int[] queue = new int[numStates];
+		int head = 0;
+		int tail = 0;
+		for (int child : edgeTargets[0]) {
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			for (int ii = 0; ii < edgeChars[state].length; ii++) {
+				char c = edgeChars[state][ii];
+				int child = edgeTargets[state][ii];
+				int f = fail[state];
+				int next;
+				while (((next = step(f, c)) < 0) && (f != 0)) {
+					f = fail[f];
+				}
+				fail[child] = (next >= 0) ? next : 0;
+				accept[child] |= accept[fail[child]];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	private int step(int state, char c) {
+		char[] chars = edgeChars[state];
+		int idx = Arrays.binarySearch(chars, c);
+		return (idx >= 0) ? edgeTargets[state][idx] : -1;
+	}
+
+	/**
+	 * @return True if the target contains any of the patterns.
+	 */
+	public boolean matches(String target) {
+		if (matchAll) {
+			return true;
+		}
+		int state = 0;
+		for (int ii = 0; ii < target.length(); ii++) {
+			char c = target.charAt(ii);
+			int next;
+			while (((next = step(state, c)) < 0) && (state != 0)) {
+				state = fail[state];
+			}
+			state = (next >= 0) ? next : 0;
+			if (accept[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -2,4 +2,10 @@ package org.intrace.agent;
 
 public interface VerboseLogger {
 	public void logVerbose(String v);
+
+	/**
+	 * @return True if logVerbose will write anything, so callers can skip
+	 *         building the message.
+	 */
+	public boolean isVerboseMode();
 }
@@ -16,6 +16,8 @@ import org.intrace.agent.ClassTransformer;
 import org.intrace.output.AgentHelper;
 import org.intrace.output.InstruRunnable;
 import org.intrace.shared.AgentConfigConstants;
+import org.intrace.shared.FlightRecorderConfigConstants;
+import org.intrace.shared.StatisticsConfigConstants;
 import org.intrace.shared.TraceConfigConstants;
 
 /**
@@ -106,6 +108,8 @@ private boolean traceConnEstablished = false;
             Set<String> commandSet = new HashSet<String>();
             commandSet.addAll(AgentConfigConstants.COMMANDS);
             commandSet.addAll(TraceConfigConstants.COMMANDS);
+            commandSet.addAll(StatisticsConfigConstants.COMMANDS);
+            commandSet.addAll(FlightRecorderConfigConstants.COMMANDS);
             sendMessage(commandSet);
           }
           else if (message.equalsIgnoreCase(AgentConfigConstants.START_ACTIVATE))
@@ -10,6 +10,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.intrace.shared.AgentConfigConstants;
+import org.intrace.shared.CallersConfigConstants;
 
 public class ControlConnectionThread implements Runnable
 {
@@ -18,6 +19,7 @@ public class ControlConnectionThread implements Runnable
     public void setProgress(Map<String,String> progress);
     public void setStatus(Map<String,String> progress);
     public void setConfig(Map<String,String> progress);
+    public void setCallers(Map<String,String> callers);
     public void disconnect();
   }
   
@@ -80,6 +82,10 @@ public class ControlConnectionThread implements Runnable
           {
             listener.setStatus(map);
           }
+          else if (map.containsKey(CallersConfigConstants.ID))
+          {
+            listener.setCallers(map);
+          }
           else
           {
             listener.setConfig(map);
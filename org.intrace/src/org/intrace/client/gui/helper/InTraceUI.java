@@ -60,6 +60,7 @@ import org.intrace.client.gui.helper.NetworkDataReceiverThread.INetworkOutputCon
 import org.intrace.client.gui.helper.TraceFilterThread.TraceFilterProgressHandler;
 import org.intrace.client.gui.helper.TraceFilterThread.TraceTextHandler;
 import org.intrace.shared.AgentConfigConstants;
+import org.intrace.shared.CallersConfigConstants;
 import org.intrace.shared.TraceConfigConstants;
 
 public class InTraceUI implements ISocketCallback, IControlConnectionListener
@@ -2351,6 +2352,36 @@ public class InTraceUI implements ISocketCallback, IControlConnectionListener
     }
   }
 
+  @Override
+  public void setCallers(final Map<String, String> callersMap)
+  {
+    if (!sRoot.isDisposed())
+    {
+      sWindow.getDisplay().asyncExec(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          boolean finalReport = callersMap.containsKey(CallersConfigConstants.FINAL);
+          outputTabs.textOutputTab.filterThread
+              .addSystemTraceLine((finalReport ? "Final callers of " : "Callers of ")
+                                  + callersMap.get(CallersConfigConstants.PATTERN)
+                                  + " (" + callersMap.get(CallersConfigConstants.ID) + ")");
+          for (Map.Entry<String, String> entry : callersMap.entrySet())
+          {
+            if (!entry.getKey().equals(CallersConfigConstants.ID)
+                && !entry.getKey().equals(CallersConfigConstants.PATTERN)
+                && !entry.getKey().equals(CallersConfigConstants.FINAL))
+            {
+              outputTabs.textOutputTab.filterThread
+                  .addSystemTraceLine(entry.getValue() + " x " + entry.getKey());
+            }
+          }
+        }
+      });
+    }
+  }
+
   @Override
   public void setConfig(final Map<String, String> settingsMap)
   {
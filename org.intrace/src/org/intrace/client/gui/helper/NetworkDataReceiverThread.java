@@ -7,6 +7,8 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import org.intrace.shared.SerializationHelper;
+import org.intrace.shared.TraceEventCodec;
+import org.intrace.shared.TraceEventDictionary;
 
 
 public class NetworkDataReceiverThread implements Runnable
@@ -20,6 +22,9 @@ public class NetworkDataReceiverThread implements Runnable
   private final INetworkOutputConfig outputConfig;
   private final TraceFilterThread traceThread;
 
+  // Method id names sent by the agent for binary trace events
+  private final TraceEventDictionary methodNames = new TraceEventDictionary();
+
   public NetworkDataReceiverThread(InetAddress address, int networkTracePort,
       INetworkOutputConfig outputConfig, TraceFilterThread traceThread)
       throws IOException
@@ -60,7 +65,20 @@ public class NetworkDataReceiverThread implements Runnable
             }
           }
         } else if ( data instanceof byte[]) {
-        	String[] myObj1 = SerializationHelper.fromWire( (byte[])data);
+        	byte[] wireData = (byte[]) data;
+        	if (TraceEventCodec.isDictionaryFrame(wireData))
+        	{
+        	  TraceEventCodec.dictionaryFromWire(wireData, methodNames);
+        	  continue;
+        	}
+        	if (TraceEventCodec.isTextFrame(wireData))
+        	{
+        	  TraceEventCodec.textsFromWire(wireData, methodNames);
+        	  continue;
+        	}
+        	String[] myObj1 = (TraceEventCodec.isBinaryBatch(wireData)
+        	                   ? TraceEventCodec.fromWire(wireData, methodNames)
+        	                   : SerializationHelper.fromWire(wireData));
         	for(String s : myObj1)
         		traceThread.addTraceLine(s);
         }
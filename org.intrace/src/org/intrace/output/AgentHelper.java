@@ -1,7 +1,9 @@
 package org.intrace.output;
 
 import java.io.IOException;
-import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
 import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -11,6 +13,8 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.intrace.agent.server.AgentClientConnection;
+import org.intrace.output.flightrec.FlightRecorderHandler;
+import org.intrace.output.stats.StatisticsHandler;
 
 /**
  * Static implementation of the {@link IInstrumentationHandler} interface
@@ -19,10 +23,136 @@ public class AgentHelper
 {
   // Instrumentation handler
   private static IInstrumentationHandler instrumentationHandler;
-  
+
+  // Handler the probes call: the instrumentation handler, or the statistics
+  // handler while statistics mode is on, or the flight recorder while flight
+  // recorder mode is on
+  private static IInstrumentationHandler probeHandler;
+
+  // Same handler if it also accepts method ids, otherwise null
+  private static IMethodIdInstrumentationHandler methodIdHandler;
+
   public static void setInstrumentationHandler(IInstrumentationHandler handler)
   {
     instrumentationHandler = handler;
+    selectProbeHandler();
+  }
+
+  private static synchronized void selectProbeHandler()
+  {
+    IInstrumentationHandler handler = instrumentationHandler;
+    if (StatisticsHandler.INSTANCE.isEnabled())
+    {
+      handler = StatisticsHandler.INSTANCE;
+    }
+    else if (FlightRecorderHandler.INSTANCE.isEnabled())
+    {
+      handler = FlightRecorderHandler.INSTANCE;
+    }
+    probeHandler = handler;
+    methodIdHandler = (handler instanceof IMethodIdInstrumentationHandler
+                       ? (IMethodIdInstrumentationHandler) handler
+                       : null);
+    updateProbeGuards();
+  }
+
+  // Probe guards. Every probe checks the guard for its kind before doing
+  // anything else. Each guard is a MutableCallSite invoked through a static
+  // final MethodHandle, so the JIT treats its current value as a constant: a
+  // disabled probe folds away once it is inlined into the instrumented method.
+  // Changing a guard deoptimizes the code which depends on it, no class
+  // retransformation is required.
+  private static final MethodHandle GUARD_ON = MethodHandles.constant(boolean.class, true);
+  private static final MethodHandle GUARD_OFF = MethodHandles.constant(boolean.class, false);
+  private static final MutableCallSite entryExitSite = newGuardSite();
+  private static final MutableCallSite branchSite = newGuardSite();
+  private static final MutableCallSite argSite = newGuardSite();
+  private static final MethodHandle entryExitGuard = entryExitSite.dynamicInvoker();
+  private static final MethodHandle branchGuard = branchSite.dynamicInvoker();
+  private static final MethodHandle argGuard = argSite.dynamicInvoker();
+
+  private static MutableCallSite newGuardSite()
+  {
+    return new MutableCallSite(GUARD_ON);
+  }
+
+  /**
+   * Recompute the probe guards from the {@link IProbeDemand} of the active
+   * handler. Called whenever the handler or its settings change.
+   */
+  public static synchronized void updateProbeGuards()
+  {
+    IInstrumentationHandler handler = probeHandler;
+    boolean entryExit = true;
+    boolean branch = true;
+    boolean arg = true;
+    if (handler instanceof IProbeDemand)
+    {
+      IProbeDemand demand = (IProbeDemand) handler;
+      // The callers analysis runs off the entry probes, and the argument and
+      // branch probes of sampled or governed methods and trigger scopes find
+      // the state the entry probe recorded
+      entryExit = demand.isEntryExitDemanded() || CallersEngine.isActive()
+                  || MethodSampler.isActive() || MethodGovernor.isActive()
+                  || TriggerScope.isActive();
+      branch = demand.isBranchDemanded();
+      arg = demand.isArgDemanded();
+    }
+    List<MutableCallSite> changed = new ArrayList<MutableCallSite>(3);
+    setGuard(entryExitSite, entryExit, changed);
+    setGuard(branchSite, branch, changed);
+    setGuard(argSite, arg, changed);
+    if (!changed.isEmpty())
+    {
+      MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+    }
+  }
+
+  private static void setGuard(MutableCallSite site, boolean enabled,
+                               List<MutableCallSite> changed)
+  {
+    MethodHandle target = (enabled ? GUARD_ON : GUARD_OFF);
+    if (site.getTarget() != target)
+    {
+      site.setTarget(target);
+      changed.add(site);
+    }
+  }
+
+  public static boolean entryExitProbesEnabled()
+  {
+    try
+    {
+      return (boolean) entryExitGuard.invokeExact();
+    }
+    catch (Throwable e)
+    {
+      return true;
+    }
+  }
+
+  public static boolean branchProbesEnabled()
+  {
+    try
+    {
+      return (boolean) branchGuard.invokeExact();
+    }
+    catch (Throwable e)
+    {
+      return true;
+    }
+  }
+
+  public static boolean argProbesEnabled()
+  {
+    try
+    {
+      return (boolean) argGuard.invokeExact();
+    }
+    catch (Throwable e)
+    {
+      return true;
+    }
   }
 
   // Output Settings
@@ -62,6 +192,23 @@ public class AgentHelper
         responses.add(response);
       }
     }
+    if (instrumentationHandler != StatisticsHandler.INSTANCE)
+    {
+      response = StatisticsHandler.INSTANCE.getResponse(agentArgs);
+      if (response != null)
+      {
+        responses.add(response);
+      }
+    }
+    if (instrumentationHandler != FlightRecorderHandler.INSTANCE)
+    {
+      response = FlightRecorderHandler.INSTANCE.getResponse(agentArgs);
+      if (response != null)
+      {
+        responses.add(response);
+      }
+    }
+    selectProbeHandler();
     return responses;
   }
 
@@ -131,6 +278,8 @@ public class AgentHelper
     {
       settings.putAll(instrumentationHandler.getSettingsMap());
     }
+    settings.putAll(StatisticsHandler.INSTANCE.getSettingsMap());
+    settings.putAll(FlightRecorderHandler.INSTANCE.getSettingsMap());
     return settings;
   }
 
@@ -166,57 +315,51 @@ public class AgentHelper
     }
   }
 
-  public static final CriticalBlock INSTRU_CRITICAL_BLOCK = new CriticalBlock();
-  private static class CriticalBlock implements Thread.UncaughtExceptionHandler
+  public static void enter(String className, String methodName, int lineNo)
   {
-    @Override
-    public void uncaughtException(Thread t, Throwable e)
+    if (!entryExitProbesEnabled())
     {
-      // Do nothing
+      return;
     }
-  }
-  
-  public static void enter(String className, String methodName, int lineNo)
-  {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.enter(className, methodName, lineNo);
+          probeHandler.enter(className, methodName, lineNo);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
-    }    
+    }
   }
 
   public static void val(String desc, String className, String methodName,
                          byte byteArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, byteArg);
+          probeHandler.val(desc, className, methodName, byteArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -224,22 +367,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          byte[] byteArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, byteArrayArg);
+          probeHandler.val(desc, className, methodName, byteArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -247,22 +392,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          short shortArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, shortArg);
+          probeHandler.val(desc, className, methodName, shortArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);      
+        state.leaveAgent();
       }
     }
   }
@@ -270,22 +417,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          short[] shortArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, shortArrayArg);
+          probeHandler.val(desc, className, methodName, shortArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -293,22 +442,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          int intArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, intArg);
+          probeHandler.val(desc, className, methodName, intArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -316,22 +467,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          int[] intArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, intArrayArg);
+          probeHandler.val(desc, className, methodName, intArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -339,22 +492,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          long longArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, longArg);
+          probeHandler.val(desc, className, methodName, longArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -362,22 +517,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          long[] longArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, longArrayArg);
+          probeHandler.val(desc, className, methodName, longArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -385,22 +542,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          float floatArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, floatArg);
+          probeHandler.val(desc, className, methodName, floatArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -408,22 +567,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          float[] floatArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, floatArrayArg);
+          probeHandler.val(desc, className, methodName, floatArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -431,22 +592,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          double doubleArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, doubleArg);
+          probeHandler.val(desc, className, methodName, doubleArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -454,22 +617,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          double[] doubleArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, doubleArrayArg);
+          probeHandler.val(desc, className, methodName, doubleArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -477,22 +642,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          boolean boolArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, boolArg);
+          probeHandler.val(desc, className, methodName, boolArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -500,22 +667,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          boolean[] boolArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, boolArrayArg);
+          probeHandler.val(desc, className, methodName, boolArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -523,22 +692,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          char charArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, charArg);
+          probeHandler.val(desc, className, methodName, charArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -546,22 +717,24 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          char[] charArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, charArrayArg);
+          probeHandler.val(desc, className, methodName, charArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -569,29 +742,31 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          Object objArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);
       try
       {
-        if (instrumentationHandler != null)
+        if (probeHandler != null)
         {
           try
           {
-            instrumentationHandler.val(desc, className, methodName, objArg);
+            probeHandler.val(desc, className, methodName, objArg);
           }
           catch (Throwable th)
           {
-            instrumentationHandler.val(desc, className, methodName, "<InTrace: Exception thrown from toString() on Object arg: " + th.toString() + ">");
+            probeHandler.val(desc, className, methodName, "<InTrace: Exception thrown from toString() on Object arg: " + th.toString() + ">");
           }
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -599,29 +774,31 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          Object[] objArrayArg)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {  
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
           try
           {
-            instrumentationHandler.val(desc, className, methodName, objArrayArg);
+            probeHandler.val(desc, className, methodName, objArrayArg);
           }
           catch (Throwable th)
           {
-            instrumentationHandler.val(desc, className, methodName, "<Exception thrown: " + th.toString() + ">");
+            probeHandler.val(desc, className, methodName, "<Exception thrown: " + th.toString() + ">");
           }
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
@@ -629,67 +806,986 @@ public class AgentHelper
   public static void val(String desc, String className, String methodName,
                          int lineNo, Throwable throwable)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!branchProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.val(desc, className, methodName, lineNo, throwable);
+          probeHandler.val(desc, className, methodName, lineNo, throwable);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
 
   public static void branch(String className, String methodName, int lineNo)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!branchProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (probeHandler != null)
         {
-          instrumentationHandler.branch(className, methodName, lineNo);
+          probeHandler.branch(className, methodName, lineNo);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
 
   public static void exit(String className, String methodName, int lineNo)
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
-    if (handler != INSTRU_CRITICAL_BLOCK)
+    if (!entryExitProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (probeHandler != null)
+        {
+          probeHandler.exit(className, methodName, lineNo);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  // Method id probes, called by instrumented code
+
+  public static void enter(int methodId, int lineNo)
+  {
+    if (!entryExitProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        CallersEngine.enter(methodId);
+        if (!TriggerScope.admitEnter(state, methodId))
+        {
+          return;
+        }
+        // Sampling and the governor decide once per call, the exit probe
+        // follows the decision recorded here
+        boolean sampled = MethodSampler.isSampled(methodId);
+        if ((sampled || MethodGovernor.isActive())
+            && !state.pushSample(methodId,
+                                 (!sampled || MethodSampler.sample(methodId))
+                                 && MethodGovernor.admit(methodId)))
+        {
+          return;
+        }
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.enter(methodId, lineNo);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.enter(MethodRegistry.getClassName(methodId),
+                                       MethodRegistry.getMethodName(methodId), lineNo);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, byte byteArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, byteArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     byteArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, byte[] byteArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, byteArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     byteArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, short shortArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, shortArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     shortArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, short[] shortArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
     {
       // Allow instrumentation call to proceed
-      currentTh.setUncaughtExceptionHandler(INSTRU_CRITICAL_BLOCK);      
       try
-      {      
-        if (instrumentationHandler != null)
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
         {
-          instrumentationHandler.exit(className, methodName, lineNo);
+          methodIdHandler.val(desc, methodId, shortArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     shortArrayArg);
         }
       }
       finally
       {
-        currentTh.setUncaughtExceptionHandler(handler);
+        state.leaveAgent();
       }
     }
   }
+
+  public static void val(String desc, int methodId, int intArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, intArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     intArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, int[] intArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, intArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     intArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, long longArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, longArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     longArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, long[] longArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, longArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     longArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, float floatArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, floatArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     floatArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, float[] floatArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, floatArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     floatArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, double doubleArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, doubleArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     doubleArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, double[] doubleArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, doubleArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     doubleArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, boolean boolArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, boolArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     boolArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, boolean[] boolArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, boolArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     boolArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, char charArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, charArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     charArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, char[] charArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, charArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     charArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, Object objArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, objArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     objArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, Object[] objArrayArg)
+  {
+    if (!argProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, objArrayArg);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     objArrayArg);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void val(String desc, int methodId, int lineNo,
+                         Throwable throwable)
+  {
+    if (!branchProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.val(desc, methodId, lineNo, throwable);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.val(desc, MethodRegistry.getClassName(methodId),
+                                     MethodRegistry.getMethodName(methodId),
+                                     lineNo, throwable);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void branch(int methodId, int lineNo)
+  {
+    if (!branchProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admit(state))
+        {
+          return;
+        }
+        // The entry probe decided for the whole call
+        if ((MethodSampler.isSampled(methodId) || MethodGovernor.isActive())
+            && !state.isSampleTraced(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.branch(methodId, lineNo);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.branch(MethodRegistry.getClassName(methodId),
+                                        MethodRegistry.getMethodName(methodId), lineNo);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  public static void exit(int methodId, int lineNo)
+  {
+    if (!entryExitProbesEnabled())
+    {
+      return;
+    }
+    ThreadProbeState state = ThreadProbeState.current();
+    if (state.enterAgent())
+    {
+      // Allow instrumentation call to proceed
+      try
+      {
+        if (!TriggerScope.admitExit(state, methodId))
+        {
+          return;
+        }
+        if (!state.popSample(methodId))
+        {
+          return;
+        }
+        MethodGovernor.count(methodId);
+        if (methodIdHandler != null)
+        {
+          methodIdHandler.exit(methodId, lineNo);
+        }
+        else if (probeHandler != null)
+        {
+          probeHandler.exit(MethodRegistry.getClassName(methodId),
+                                      MethodRegistry.getMethodName(methodId), lineNo);
+        }
+      }
+      finally
+      {
+        state.leaveAgent();
+      }
+    }
+  }
+
+  /**
+   * Entry probe of a trivial method which is only instrumented to count its
+   * calls. Nothing is traced so no handler is involved.
+   */
+  public static void count(int methodId)
+  {
+    InvocationCounter.increment(methodId);
+  }
 }
@@ -0,0 +1,324 @@
+package org.intrace.output;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.intrace.shared.CallersConfigConstants;
+
+/**
+ * Finds out who calls the methods matching a regex. The entry probe of a
+ * matching method captures the stack above it, at most {@link #MAX_FRAMES}
+ * frames deep, and counts it against the distinct caller chains seen so far.
+ * Chains are deduplicated by a hash of their frames so that only new chains
+ * allocate anything beyond the captured stack.
+ * <p>
+ * Once a second the chains which were seen since the previous report are
+ * handed to the {@link Handler}, and all of them once more when the analysis
+ * stops. Each report is a map from chain to call count, along with
+ * {@link CallersConfigConstants#ID} identifying the analysis,
+ * {@link CallersConfigConstants#PATTERN} and, for the last report,
+ * {@link CallersConfigConstants#FINAL}.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class CallersEngine
+{
+  /**
+   * Told about the results of the analysis.
+   */
+  public interface Handler
+  {
+    /**
+     * @param results
+     */
+    void callersReported(Map<String, String> results);
+  }
+
+  /**
+   * Caller chains beyond this many are only counted in total.
+   */
+  public static final int MAX_CHAINS = 1000;
+  public static final int MAX_FRAMES = 16;
+
+  private static final String AGENT_PACKAGE = "org.intrace.output.";
+  private static final String FRAME_DELIM = ",";
+  private static final String OTHER_CHAINS = "<other callers>";
+
+  private static final byte UNKNOWN = 0;
+  private static final byte MATCHED = 1;
+  private static final byte UNMATCHED = 2;
+
+  private static final AtomicInteger nextId = new AtomicInteger(1);
+
+  private static final class Chain
+  {
+    final StackTraceElement[] frames;
+    final AtomicLong count = new AtomicLong();
+    long reported = 0;
+
+    Chain(StackTraceElement[] frames)
+    {
+      this.frames = frames;
+    }
+  }
+
+  /**
+   * State of the running analysis.
+   */
+  private static final class Analysis
+  {
+    final String id = Integer.toString(nextId.getAndIncrement());
+    final String pattern;
+    final Pattern regex;
+    final Handler handler;
+    volatile byte[] matches = new byte[0];
+    final ConcurrentHashMap<Long, Chain> chains = new ConcurrentHashMap<Long, Chain>();
+    final AtomicLong otherChains = new AtomicLong();
+    long reportedOther = 0;
+
+    Analysis(String pattern, Handler handler)
+    {
+      this.pattern = pattern;
+      this.regex = Pattern.compile(pattern);
+      this.handler = handler;
+    }
+
+    boolean matches(int methodId)
+    {
+      byte[] current = matches;
+      if ((methodId < current.length) && (current[methodId] != UNKNOWN))
+      {
+        return current[methodId] == MATCHED;
+      }
+      boolean matched = regex.matcher(MethodRegistry.getClassName(methodId)
+                                      + "."
+                                      + MethodRegistry.getMethodName(methodId))
+                             .find();
+      synchronized (this)
+      {
+        current = matches;
+        if (methodId >= current.length)
+        {
+          current = Arrays.copyOf(current,
+                                  Math.max(methodId + 1,
+                                           Math.max(MethodRegistry.idLimit(),
+                                                    current.length * 2)));
+        }
+        current[methodId] = (matched ? MATCHED : UNMATCHED);
+        matches = current;
+      }
+      return matched;
+    }
+  }
+
+  private static volatile Analysis analysis = null;
+  private static Thread ticker = null;
+
+  private CallersEngine()
+  {
+  }
+
+  /**
+   * Start a new analysis, stopping any running one.
+   *
+   * @param pattern
+   *          Regex found in the "className.methodName" of the methods whose
+   *          callers are wanted.
+   * @param handler
+   */
+  public static synchronized void start(String pattern, Handler handler)
+  {
+    stop();
+    analysis = new Analysis(pattern, handler);
+    AgentHelper.updateProbeGuards();
+    if (ticker == null)
+    {
+      ticker = new Thread(new InstruRunnable()
+      {
+        @Override
+        public void runMethod()
+        {
+          while (true)
+          {
+            try
+            {
+              Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            }
+            catch (InterruptedException e)
+            {
+              return;
+            }
+            report();
+          }
+        }
+      }, "InTrace-Callers");
+      ticker.setDaemon(true);
+      ticker.start();
+    }
+  }
+
+  /**
+   * Stop the running analysis, if any, and send its final report.
+   */
+  public static synchronized void stop()
+  {
+    Analysis stopped = analysis;
+    if (stopped != null)
+    {
+      analysis = null;
+      AgentHelper.updateProbeGuards();
+      report(stopped, true);
+    }
+  }
+
+  /**
+   * @return True while an analysis is running.
+   */
+  public static boolean isActive()
+  {
+    return analysis != null;
+  }
+
+  /**
+   * Send the chains seen since the previous report.
+   */
+  public static synchronized void report()
+  {
+    Analysis current = analysis;
+    if (current != null)
+    {
+      report(current, false);
+    }
+  }
+
+  private static void report(Analysis current, boolean isFinal)
+  {
+    Map<String, String> results = new HashMap<String, String>();
+    for (Chain chain : current.chains.values())
+    {
+      long count = chain.count.get();
+      if (isFinal || (count != chain.reported))
+      {
+        results.put(describe(chain.frames), Long.toString(count));
+        chain.reported = count;
+      }
+    }
+    long other = current.otherChains.get();
+    if ((other > 0) && (isFinal || (other != current.reportedOther)))
+    {
+      results.put(OTHER_CHAINS, Long.toString(other));
+      current.reportedOther = other;
+    }
+    if (results.isEmpty() && !isFinal)
+    {
+      return;
+    }
+    results.put(CallersConfigConstants.ID, current.id);
+    results.put(CallersConfigConstants.PATTERN, current.pattern);
+    if (isFinal)
+    {
+      results.put(CallersConfigConstants.FINAL, "true");
+    }
+    if (current.handler != null)
+    {
+      current.handler.callersReported(results);
+    }
+  }
+
+  private static String describe(StackTraceElement[] frames)
+  {
+    StringBuilder description = new StringBuilder();
+    for (int ii = 0; ii < frames.length; ii++)
+    {
+      if (ii > 0)
+      {
+        description.append(FRAME_DELIM);
+      }
+      description.append(frames[ii]);
+    }
+    return description.toString();
+  }
+
+  /**
+   * Entry probe: record the callers of the method if it matches the running
+   * analysis.
+   *
+   * @param methodId
+   */
+  public static void enter(int methodId)
+  {
+    Analysis current = analysis;
+    if ((current == null) || !current.matches(methodId))
+    {
+      return;
+    }
+
+    // Capture the stack above the probe
+    StackTraceElement[] stack = new Throwable().getStackTrace();
+    int first = 0;
+    while ((first < stack.length)
+           && stack[first].getClassName().startsWith(AGENT_PACKAGE))
+    {
+      first++;
+    }
+    int depth = Math.min(MAX_FRAMES, stack.length - first);
+    long hash = 1;
+    for (int ii = first; ii < (first + depth); ii++)
+    {
+      hash = (31 * hash) + stack[ii].hashCode();
+    }
+
+    // Find the chain, probing past hash collisions
+    while (true)
+    {
+      Chain chain = current.chains.get(hash);
+      if (chain == null)
+      {
+        if (current.chains.size() >= MAX_CHAINS)
+        {
+          current.otherChains.incrementAndGet();
+          return;
+        }
+        StackTraceElement[] frames = Arrays.copyOfRange(stack, first, first
+                                                                      + depth);
+        chain = new Chain(frames);
+        Chain raced = current.chains.putIfAbsent(hash, chain);
+        if (raced != null)
+        {
+          chain = raced;
+        }
+      }
+      if (sameFrames(chain.frames, stack, first, depth))
+      {
+        chain.count.incrementAndGet();
+        return;
+      }
+      hash++;
+    }
+  }
+
+  private static boolean sameFrames(StackTraceElement[] frames,
+                                    StackTraceElement[] stack, int first,
+                                    int depth)
+  {
+    if (frames.length != depth)
+    {
+      return false;
+    }
+    for (int ii = 0; ii < depth; ii++)
+    {
+      if (!frames[ii].equals(stack[first + ii]))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
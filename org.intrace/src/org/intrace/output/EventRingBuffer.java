@@ -0,0 +1,136 @@
+package org.intrace.output;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of trace events.
+ *
+ * Each application thread owns one ring per network connection, so offering
+ * an event never takes a lock and never allocates: the event and its
+ * timestamp are written into two preallocated parallel arrays and the tail is
+ * published with a lazySet (store-store barrier only). The single drainer
+ * thread reads up to the published tail and releases slots by advancing the
+ * head the same way.
+ */
+public class EventRingBuffer {
+	private final Object[] events;
+	private final long[] timestamps;
+	private final int mask;
+
+	/** Next slot the consumer will read. Only written by the consumer. */
+	private final AtomicLong head = new AtomicLong();
+	/** Next slot the producer will write. Only written by the producer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Producer-local copy of head, refreshed only when the ring looks full */
+	private long cachedHead = 0L;
+
+	/** Events the producer dropped because the ring was full. Only written by the producer. */
+	private final AtomicLong dropped = new AtomicLong();
+	/** Drops already reported by the consumer. Only used by the consumer. */
+	private long reportedDrops = 0L;
+
+	private final WeakReference<Thread> owner;
+
+	/**
+	 * @param capacity
+	 *            Rounded up to the next power of two.
+	 * @param owner
+	 *            The producing thread, used to purge rings of dead threads.
+	 */
+	public EventRingBuffer(int capacity, Thread owner) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.events = new Object[size];
+		this.timestamps = new long[size];
+		this.mask = size - 1;
+		this.owner = new WeakReference<Thread>(owner);
+	}
+
+	/**
+	 * Producer side.
+	 *
+	 * @return false if the ring is full and the event was not stored.
+	 */
+	public boolean offer(Object event, long timestamp) {
+		long t = tail.get();
+		if (t - cachedHead >= events.length) {
+			cachedHead = head.get();
+			if (t - cachedHead >= events.length) {
+				return false;
+			}
+		}
+		int idx = (int) t & mask;
+		events[idx] = event;
+		timestamps[idx] = timestamp;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Producer side. Count an event which was not stored because the ring was
+	 * full.
+	 */
+	public void recordDrop() {
+		dropped.lazySet(dropped.get() + 1);
+	}
+
+	/**
+	 * Consumer side.
+	 *
+	 * @return the number of events dropped since the last call.
+	 */
+	public long takeDropped() {
+		long d = dropped.get();
+		long n = d - reportedDrops;
+		reportedDrops = d;
+		return n;
+	}
+
+	/**
+	 * Consumer side. Position of the next unread event.
+	 */
+	public long readPosition() {
+		return head.get();
+	}
+
+	/**
+	 * Consumer side. Position one past the last published event.
+	 */
+	public long publishedPosition() {
+		return tail.get();
+	}
+
+	public Object eventAt(long position) {
+		return events[(int) position & mask];
+	}
+
+	public long timestampAt(long position) {
+		return timestamps[(int) position & mask];
+	}
+
+	/**
+	 * Consumer side. Release every slot before the given position back to the
+	 * producer.
+	 */
+	public void release(long position) {
+		long h = head.get();
+		for (long p = h; p < position; p++) {
+			events[(int) p & mask] = null;
+		}
+		head.lazySet(position);
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	/**
+	 * @return true once the producing thread has terminated or been collected;
+	 *         no further events can arrive.
+	 */
+	public boolean isOrphaned() {
+		Thread t = owner.get();
+		return (t == null) || !t.isAlive();
+	}
+}
@@ -0,0 +1,56 @@
+package org.intrace.output;
+
+/**
+ * Extension of {@link IInstrumentationHandler} for handlers which consume
+ * events keyed by the integer method ids of the {@link MethodRegistry}. The
+ * instrumented bytecode only passes method ids, so handlers implementing this
+ * interface never need the class and method name strings on the probe path.
+ * Handlers which only implement {@link IInstrumentationHandler} are passed the
+ * names looked up from the registry.
+ */
+public interface IMethodIdInstrumentationHandler extends IInstrumentationHandler
+{
+  public void enter(int methodId, int lineNo);
+
+  public void val(String desc, int methodId, byte byteArg);
+
+  public void val(String desc, int methodId, byte[] byteArrayArg);
+
+  public void val(String desc, int methodId, short shortArg);
+
+  public void val(String desc, int methodId, short[] shortArrayArg);
+
+  public void val(String desc, int methodId, int intArg);
+
+  public void val(String desc, int methodId, int[] intArrayArg);
+
+  public void val(String desc, int methodId, long longArg);
+
+  public void val(String desc, int methodId, long[] longArrayArg);
+
+  public void val(String desc, int methodId, float floatArg);
+
+  public void val(String desc, int methodId, float[] floatArrayArg);
+
+  public void val(String desc, int methodId, double doubleArg);
+
+  public void val(String desc, int methodId, double[] doubleArrayArg);
+
+  public void val(String desc, int methodId, boolean boolArg);
+
+  public void val(String desc, int methodId, boolean[] boolArrayArg);
+
+  public void val(String desc, int methodId, char charArg);
+
+  public void val(String desc, int methodId, char[] charArrayArg);
+
+  public void val(String desc, int methodId, Object objArg);
+
+  public void val(String desc, int methodId, Object[] objArrayArg);
+
+  public void val(String desc, int methodId, int lineNo, Throwable throwable);
+
+  public void branch(int methodId, int lineNo);
+
+  public void exit(int methodId, int lineNo);
+}
@@ -0,0 +1,26 @@
+package org.intrace.output;
+
+/**
+ * Optionally implemented by an {@link IInstrumentationHandler} to tell the
+ * {@link AgentHelper} which kinds of probe it currently consumes. Probes of a
+ * kind which no handler consumes are switched off at their guard so that they
+ * cost nothing in instrumented code. Handlers which don't implement this
+ * interface are assumed to consume every kind of probe.
+ */
+public interface IProbeDemand
+{
+  /**
+   * @return true if enter and exit probes are needed
+   */
+  public boolean isEntryExitDemanded();
+
+  /**
+   * @return true if branch and caught/thrown exception probes are needed
+   */
+  public boolean isBranchDemanded();
+
+  /**
+   * @return true if argument and return value probes are needed
+   */
+  public boolean isArgDemanded();
+}
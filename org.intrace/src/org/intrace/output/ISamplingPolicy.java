@@ -0,0 +1,17 @@
+package org.intrace.output;
+
+/**
+ * Source of the sampling policy of each instrumented method, see
+ * {@link MethodSampler}.
+ */
+public interface ISamplingPolicy
+{
+  /**
+   * @param className
+   * @param methodName
+   * @param desc
+   * @return The {@link MethodSampler} policy of the method, 0 if every
+   *         invocation is traced.
+   */
+  public int getSamplingPolicy(String className, String methodName, String desc);
+}
@@ -0,0 +1,17 @@
+package org.intrace.output;
+
+/**
+ * Source of the slow call threshold of each instrumented method, see
+ * {@link SlowCallThresholds}.
+ */
+public interface ISlowCallPolicy
+{
+  /**
+   * @param className
+   * @param methodName
+   * @param desc
+   * @return The threshold of the method in milliseconds, 0 if the method has
+   *         no threshold of its own.
+   */
+  public int getSlowCallThreshold(String className, String methodName, String desc);
+}
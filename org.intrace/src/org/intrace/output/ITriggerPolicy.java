@@ -0,0 +1,15 @@
+package org.intrace.output;
+
+/**
+ * Source of the trigger methods, see {@link TriggerScope}.
+ */
+public interface ITriggerPolicy
+{
+  /**
+   * @param className
+   * @param methodName
+   * @param desc
+   * @return True if the method is a trigger method.
+   */
+  public boolean isTrigger(String className, String methodName, String desc);
+}
@@ -1,25 +1,24 @@
 package org.intrace.output;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-
 public abstract class InstruRunnable implements Runnable
 {
   /**
-   * Wrapper work method which sets up the uncaughtexceptionhandler
+   * Wrapper work method which marks the thread as running agent code so that
+   * none of its work is traced
    */
   @Override
   public void run()
   {
-    Thread currentTh = Thread.currentThread();
-    UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
+    ThreadProbeState state = ThreadProbeState.current();
+    boolean wasInAgent = state.isInAgent();
     try
     {
-      currentTh.setUncaughtExceptionHandler(AgentHelper.INSTRU_CRITICAL_BLOCK);
+      state.setInAgent(true);
       runMethod();
     }
     finally
     {
-      currentTh.setUncaughtExceptionHandler(handler);
+      state.setInAgent(wasInAgent);
     }
   }
 
@@ -0,0 +1,81 @@
+package org.intrace.output;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Invocation counts of the methods which are only instrumented to count
+ * their calls, see {@link AgentHelper#count(int)}.
+ * <p>
+ * Counts are updated without synchronization so that a hot method doesn't
+ * contend on a shared counter. A racing update can lose a count.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class InvocationCounter
+{
+  private static volatile long[] counts = new long[0];
+
+  private InvocationCounter()
+  {
+  }
+
+  /**
+   * @param methodId
+   */
+  public static void increment(int methodId)
+  {
+    long[] current = counts;
+    if (methodId >= current.length)
+    {
+      current = grow(methodId);
+    }
+    current[methodId]++;
+  }
+
+  private static synchronized long[] grow(int methodId)
+  {
+    long[] current = counts;
+    if (methodId >= current.length)
+    {
+      long[] grown = new long[Math.max(methodId + 1,
+                                       Math.max(MethodRegistry.idLimit(),
+                                                current.length * 2))];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      counts = grown;
+      current = grown;
+    }
+    return current;
+  }
+
+  /**
+   * @param methodId
+   * @return The number of counted calls of the method.
+   */
+  public static long get(int methodId)
+  {
+    long[] current = counts;
+    return (methodId < current.length) ? current[methodId] : 0;
+  }
+
+  /**
+   * @return The counts of every method called at least once, keyed by
+   *         "className:methodName".
+   */
+  public static Map<String, Long> getCounts()
+  {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    long[] current = counts;
+    for (int id = 0; id < current.length; id++)
+    {
+      if (current[id] > 0)
+      {
+        String name = MethodRegistry.getQualifiedName(id);
+        Long previous = result.get(name);
+        result.put(name, current[id] + ((previous != null) ? previous : 0));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,362 @@
+package org.intrace.output;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects the application from methods which produce events faster than
+ * they could ever be read, e.g. an instrumented getter in a tight loop.
+ * <p>
+ * Every probe of an instrumented method counts an event. Once a second the
+ * counts are checked against the budget: a method whose count exceeds it is
+ * downgraded to count-only - its probes keep counting but emit nothing. A
+ * suppressed method whose count falls to half the budget or less is traced
+ * again. A method which stays suppressed for the configured time can be
+ * removed altogether by retransforming its class without the method's probes;
+ * only a reset brings removed methods back.
+ * <p>
+ * A call is admitted or suppressed as a whole when it is entered, see
+ * {@link AgentHelper#enter(int, int)}, so a change of suppression never
+ * separates an entry from its exit or drops part of the arguments and
+ * branches of a call. The entry and exit probes are kept enabled while the
+ * governor is on, see {@link AgentHelper#updateProbeGuards()}.
+ * <p>
+ * Counts are updated without synchronization. A racing update can lose a
+ * count, which only delays the suppression of a method.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class MethodGovernor
+{
+  /**
+   * Told about the methods the governor acts on.
+   */
+  public interface Handler
+  {
+    /**
+     * @param methodIds
+     *          Methods newly downgraded to count-only.
+     */
+    void methodsSuppressed(List<Integer> methodIds);
+
+    /**
+     * @param methodIds
+     *          Methods whose probes are to be removed. The classes declaring
+     *          them need to be retransformed.
+     */
+    void methodsRemoved(List<Integer> methodIds);
+
+    /**
+     * @param methodIds
+     *          Suppressed methods whose rate has fallen, which are traced
+     *          again.
+     */
+    void methodsRestored(List<Integer> methodIds);
+  }
+
+  /**
+   * Counts and suppression flags, replaced as a whole when it grows.
+   */
+  private static final class Table
+  {
+    final int[] counts;
+    final boolean[] suppressed;
+
+    Table(int size)
+    {
+      counts = new int[size];
+      suppressed = new boolean[size];
+    }
+  }
+
+  private static volatile int budget = 0;
+  private static volatile Table table = new Table(0);
+
+  /**
+   * The following are guarded by the class lock.
+   */
+  private static int removeAfterMillis = 0;
+  private static Handler handler = null;
+  private static final Map<Integer, Long> suppressedSince = new TreeMap<Integer, Long>();
+  private static final Map<Integer, Integer> lastRates = new TreeMap<Integer, Integer>();
+  private static Thread ticker = null;
+
+  /**
+   * Methods whose probes have been removed, mapped to their class name.
+   */
+  private static final Map<Integer, String> removed = new ConcurrentHashMap<Integer, String>();
+
+  private MethodGovernor()
+  {
+  }
+
+  /**
+   * @param eventsPerSecond
+   *          Events a method may produce each second before it is suppressed,
+   *          0 to switch the governor off.
+   * @param removeAfterSeconds
+   *          How long a method stays suppressed before its probes are
+   *          removed, 0 to never remove them.
+   * @param newHandler
+   */
+  public static synchronized void configure(int eventsPerSecond,
+                                            int removeAfterSeconds,
+                                            Handler newHandler)
+  {
+    removeAfterMillis = (int) TimeUnit.SECONDS.toMillis(removeAfterSeconds);
+    handler = newHandler;
+    if (eventsPerSecond != budget)
+    {
+      // Methods are judged afresh against a new budget
+      table = new Table(MethodRegistry.idLimit());
+      suppressedSince.clear();
+      lastRates.clear();
+      boolean wasActive = (budget != 0);
+      budget = eventsPerSecond;
+      if (wasActive != (budget != 0))
+      {
+        // The entry and exit probes record the decisions
+        AgentHelper.updateProbeGuards();
+      }
+    }
+  }
+
+  /**
+   * Start the thread which checks the counts once a second.
+   */
+  public static synchronized void start()
+  {
+    if (ticker != null)
+    {
+      return;
+    }
+    ticker = new Thread(new InstruRunnable()
+    {
+      @Override
+      public void runMethod()
+      {
+        while (true)
+        {
+          try
+          {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          tick(System.currentTimeMillis());
+        }
+      }
+    }, "InTrace-Governor");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * @return True if a budget is set.
+   */
+  public static boolean isActive()
+  {
+    return budget != 0;
+  }
+
+  /**
+   * Count an event of a method.
+   *
+   * @param methodId
+   * @return False if the method is suppressed and the event must not be
+   *         emitted.
+   */
+  public static boolean admit(int methodId)
+  {
+    if (budget == 0)
+    {
+      return true;
+    }
+    Table current = table;
+    if (methodId >= current.counts.length)
+    {
+      // Registered since the last check
+      return true;
+    }
+    current.counts[methodId]++;
+    return !current.suppressed[methodId];
+  }
+
+  /**
+   * Count an event of a method whose admission was decided by an earlier
+   * event, e.g. the exit of an admitted call.
+   *
+   * @param methodId
+   */
+  public static void count(int methodId)
+  {
+    if (budget == 0)
+    {
+      return;
+    }
+    Table current = table;
+    if (methodId < current.counts.length)
+    {
+      current.counts[methodId]++;
+    }
+  }
+
+  /**
+   * Check the counts of the last second against the budget and start again.
+   *
+   * @param now
+   *          Current time in milliseconds.
+   */
+  public static void tick(long now)
+  {
+    List<Integer> newlySuppressed = new ArrayList<Integer>();
+    List<Integer> toRemove = new ArrayList<Integer>();
+    List<Integer> restored = new ArrayList<Integer>();
+    Handler currentHandler;
+    synchronized (MethodGovernor.class)
+    {
+      currentHandler = handler;
+      int limit = budget;
+      if (limit == 0)
+      {
+        return;
+      }
+      Table current = table;
+      for (int id = 0; id < current.counts.length; id++)
+      {
+        int count = current.counts[id];
+        current.counts[id] = 0;
+        if (current.suppressed[id])
+        {
+          if (removed.containsKey(id))
+          {
+            // No probes left to count
+            continue;
+          }
+          Long since = suppressedSince.get(id);
+          if ((removeAfterMillis > 0) && (since != null)
+              && ((now - since) >= removeAfterMillis))
+          {
+            lastRates.put(id, count);
+            removed.put(id, MethodRegistry.getClassName(id));
+            toRemove.add(id);
+          }
+          else if (count <= (limit / 2))
+          {
+            current.suppressed[id] = false;
+            suppressedSince.remove(id);
+            lastRates.remove(id);
+            restored.add(id);
+          }
+          else
+          {
+            lastRates.put(id, count);
+          }
+        }
+        else if (count > limit)
+        {
+          current.suppressed[id] = true;
+          suppressedSince.put(id, now);
+          lastRates.put(id, count);
+          newlySuppressed.add(id);
+        }
+      }
+      int size = MethodRegistry.idLimit();
+      if (size > current.counts.length)
+      {
+        Table grown = new Table(size);
+        System.arraycopy(current.suppressed, 0, grown.suppressed, 0,
+                         current.suppressed.length);
+        table = grown;
+      }
+    }
+    if (currentHandler != null)
+    {
+      if (!newlySuppressed.isEmpty())
+      {
+        currentHandler.methodsSuppressed(newlySuppressed);
+      }
+      if (!toRemove.isEmpty())
+      {
+        currentHandler.methodsRemoved(toRemove);
+      }
+      if (!restored.isEmpty())
+      {
+        currentHandler.methodsRestored(restored);
+      }
+    }
+  }
+
+  /**
+   * Lift every suppression and removal.
+   *
+   * @return The methods which had been removed and need their probes back.
+   */
+  public static synchronized List<Integer> reset()
+  {
+    List<Integer> wereRemoved = new ArrayList<Integer>(removed.keySet());
+    removed.clear();
+    suppressedSince.clear();
+    lastRates.clear();
+    table = new Table(MethodRegistry.idLimit());
+    return wereRemoved;
+  }
+
+  /**
+   * @param methodId
+   * @return True if the probes of the method have been removed.
+   */
+  public static boolean isRemoved(int methodId)
+  {
+    return !removed.isEmpty() && removed.containsKey(methodId);
+  }
+
+  /**
+   * @param className
+   * @return The ids of the removed methods of a class, in the form of
+   *         {@link List#toString()}.
+   */
+  public static String getRemovedMethods(String className)
+  {
+    if (removed.isEmpty())
+    {
+      return "[]";
+    }
+    List<Integer> ids = new ArrayList<Integer>();
+    for (Map.Entry<Integer, String> entry : removed.entrySet())
+    {
+      if (entry.getValue().equals(className))
+      {
+        ids.add(entry.getKey());
+      }
+    }
+    Collections.sort(ids);
+    return ids.toString();
+  }
+
+  /**
+   * @return The suppressed methods with their event rate over the last
+   *         second, in the form of {@link List#toString()}.
+   */
+  public static synchronized String describeSuppressed()
+  {
+    List<String> methods = new ArrayList<String>();
+    for (Map.Entry<Integer, Long> entry : suppressedSince.entrySet())
+    {
+      int id = entry.getKey();
+      Integer rate = lastRates.get(id);
+      methods.add(MethodRegistry.getQualifiedName(id) + " "
+                  + ((rate != null) ? rate : 0) + "/s"
+                  + (removed.containsKey(id) ? " removed" : ""));
+    }
+    return methods.toString();
+  }
+}
@@ -0,0 +1,137 @@
+package org.intrace.output;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.intrace.shared.TraceEventDictionary;
+
+/**
+ * Registry of instrumented methods. Every method is given a small integer id
+ * at transform time which is baked into the instrumented bytecode and passed
+ * to the {@link AgentHelper} probes in place of the class and method name
+ * strings. Names are only looked up when an event is rendered, or shipped
+ * once per connection as a dictionary.
+ * <p>
+ * Ids are stable for the life of the agent: retransforming a class assigns
+ * its methods the same ids again.
+ */
+public class MethodRegistry
+{
+  private static final ConcurrentMap<String, Integer> methodIds = new ConcurrentHashMap<String, Integer>();
+  private static final TraceEventDictionary dictionary = new TraceEventDictionary();
+
+  /**
+   * @param className
+   * @param methodName
+   * @param desc
+   *          Method descriptor, so that overloads get distinct ids. May be
+   *          null.
+   * @return The id of the given method, registering it if necessary.
+   */
+  public static int register(String className, String methodName, String desc)
+  {
+    String key = className + "#" + methodName + (desc != null ? desc : "");
+    Integer id = methodIds.get(key);
+    if (id == null)
+    {
+      boolean added = false;
+      synchronized (methodIds)
+      {
+        id = methodIds.get(key);
+        if (id == null)
+        {
+          id = dictionary.add(className, methodName);
+          methodIds.put(key, id);
+          added = true;
+        }
+      }
+      if (added)
+      {
+        // Outside the lock, MethodSampler reads the registry under its own
+        MethodSampler.registered(id, className, methodName, desc);
+        SlowCallThresholds.registered(id, className, methodName, desc);
+        TriggerScope.registered(id, className, methodName, desc);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Register a method under an id chosen in a previous run, e.g. for a class
+   * whose instrumented bytes were cached on disk.
+   *
+   * @return True if the method now has the requested id. False if the method
+   *         already has a different id or the id belongs to another method.
+   */
+  public static boolean registerAt(String className, String methodName,
+                                   String desc, int methodId)
+  {
+    String key = className + "#" + methodName + (desc != null ? desc : "");
+    synchronized (methodIds)
+    {
+      Integer id = methodIds.get(key);
+      if (id != null)
+      {
+        return (id == methodId);
+      }
+      if (!dictionary.putIfAbsent(methodId, className, methodName))
+      {
+        return false;
+      }
+      methodIds.put(key, methodId);
+    }
+    MethodSampler.registered(methodId, className, methodName, desc);
+    SlowCallThresholds.registered(methodId, className, methodName, desc);
+    TriggerScope.registered(methodId, className, methodName, desc);
+    return true;
+  }
+
+  /**
+   * @return A copy of the registered methods, "className#methodName" followed
+   *         by the descriptor, mapped to their ids.
+   */
+  public static Map<String, Integer> getMethods()
+  {
+    synchronized (methodIds)
+    {
+      return Collections.unmodifiableMap(new HashMap<String, Integer>(methodIds));
+    }
+  }
+
+  public static String getClassName(int methodId)
+  {
+    return dictionary.getClassName(methodId);
+  }
+
+  public static String getMethodName(int methodId)
+  {
+    return dictionary.getMethodName(methodId);
+  }
+
+  /**
+   * @return "className:methodName" without any per call concatenation.
+   */
+  public static String getQualifiedName(int methodId)
+  {
+    return dictionary.getQualifiedName(methodId);
+  }
+
+  /**
+   * @return One more than the highest registered id, the size of a table
+   *         indexed by method id. This is not the number of registered
+   *         methods: ids chosen by {@link #registerAt} can leave unused ids
+   *         below it.
+   */
+  public static int idLimit()
+  {
+    return dictionary.size();
+  }
+
+  public static TraceEventDictionary getDictionary()
+  {
+    return dictionary;
+  }
+}
@@ -0,0 +1,237 @@
+package org.intrace.output;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which invocations of a sampled method are traced.
+ * <p>
+ * A policy is held per {@link MethodRegistry} id. Zero traces every
+ * invocation, a positive N traces one invocation in N and a negative -N
+ * traces at most N invocations a second. The entry probe takes the decision
+ * once per call and records it in the {@link ThreadProbeState} of the thread,
+ * where the argument, branch and exit probes of the same call find it. A
+ * sampled out call costs a counter update at entry and a lookup in each
+ * later probe.
+ * <p>
+ * Counters are updated without synchronization. A racing update can lose a
+ * count, which only shifts which invocations are sampled.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class MethodSampler
+{
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Policies and counters, replaced as a whole when it grows.
+   */
+  private static final class Table
+  {
+    final int[] policies;
+    final int[] counts;
+    final long[] windowStarts;
+
+    Table(int size)
+    {
+      policies = new int[size];
+      counts = new int[size];
+      windowStarts = new long[size];
+    }
+  }
+
+  private static volatile Table table = new Table(0);
+  private static volatile boolean active = false;
+  private static ISamplingPolicy source = null;
+
+  private MethodSampler()
+  {
+  }
+
+  /**
+   * Apply the policies of a new source to every registered method.
+   *
+   * @param newSource
+   *          May be null, in which case no method is sampled.
+   */
+  public static synchronized void setPolicySource(ISamplingPolicy newSource)
+  {
+    source = newSource;
+    Map<String, Integer> methods = MethodRegistry.getMethods();
+    int size = 0;
+    for (Integer id : methods.values())
+    {
+      size = Math.max(size, id + 1);
+    }
+    Table newTable = new Table(size);
+    boolean anySampled = false;
+    for (Map.Entry<String, Integer> method : methods.entrySet())
+    {
+      String key = method.getKey();
+      int hash = key.indexOf('#');
+      int descStart = key.indexOf('(', hash);
+      String className = key.substring(0, hash);
+      String methodName = (descStart >= 0) ? key.substring(hash + 1, descStart)
+                                           : key.substring(hash + 1);
+      String desc = (descStart >= 0) ? key.substring(descStart) : "";
+      int id = method.getValue();
+      if (id < newTable.policies.length)
+      {
+        newTable.policies[id] = getPolicy(className, methodName, desc);
+        anySampled |= (newTable.policies[id] != 0);
+      }
+    }
+    table = newTable;
+    setActive(anySampled);
+  }
+
+  /**
+   * Look up the policy of a newly registered method. Called by the
+   * {@link MethodRegistry}, which must not hold its own lock as
+   * {@link #setPolicySource(ISamplingPolicy)} takes it while holding this
+   * one.
+   */
+  static synchronized void registered(int methodId, String className,
+                                      String methodName, String desc)
+  {
+    int policy = getPolicy(className, methodName, (desc != null) ? desc : "");
+    Table current = table;
+    if ((policy == 0) && (methodId >= current.policies.length))
+    {
+      return;
+    }
+    if (methodId >= current.policies.length)
+    {
+      Table newTable = new Table(Math.max(methodId + 1,
+                                          current.policies.length * 2));
+      System.arraycopy(current.policies, 0, newTable.policies, 0,
+                       current.policies.length);
+      System.arraycopy(current.counts, 0, newTable.counts, 0,
+                       current.counts.length);
+      System.arraycopy(current.windowStarts, 0, newTable.windowStarts, 0,
+                       current.windowStarts.length);
+      current = newTable;
+    }
+    current.policies[methodId] = policy;
+    table = current;
+    if (policy != 0)
+    {
+      setActive(true);
+    }
+  }
+
+  /**
+   * The entry and exit probes record the sampling decisions, so they are
+   * kept enabled while any method is sampled, see
+   * {@link AgentHelper#updateProbeGuards()}.
+   */
+  private static void setActive(boolean anySampled)
+  {
+    if (active != anySampled)
+    {
+      active = anySampled;
+      AgentHelper.updateProbeGuards();
+    }
+  }
+
+  /**
+   * @return True if any method is sampled.
+   */
+  public static boolean isActive()
+  {
+    return active;
+  }
+
+  private static int getPolicy(String className, String methodName,
+                               String desc)
+  {
+    return (source != null) ? source.getSamplingPolicy(className, methodName,
+                                                       desc) : 0;
+  }
+
+  /**
+   * @param methodId
+   * @return True if the invocations of the method are sampled.
+   */
+  public static boolean isSampled(int methodId)
+  {
+    int[] policies = table.policies;
+    return (methodId < policies.length) && (policies[methodId] != 0);
+  }
+
+  /**
+   * Take the sampling decision for an invocation of a sampled method.
+   *
+   * @param methodId
+   * @return True if the invocation is to be traced.
+   */
+  public static boolean sample(int methodId)
+  {
+    Table current = table;
+    if (methodId >= current.policies.length)
+    {
+      return true;
+    }
+    int policy = current.policies[methodId];
+    if (policy > 0)
+    {
+      // Trace the first invocation and every Nth one after it
+      int count = current.counts[methodId];
+      current.counts[methodId] = ((count + 1) >= policy) ? 0 : (count + 1);
+      return (count == 0);
+    }
+    else if (policy < 0)
+    {
+      long now = System.nanoTime();
+      if ((now - current.windowStarts[methodId]) >= WINDOW_NANOS)
+      {
+        current.windowStarts[methodId] = now;
+        current.counts[methodId] = 0;
+      }
+      if (current.counts[methodId] < -policy)
+      {
+        current.counts[methodId]++;
+        return true;
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Parse a policy as written in the instrumentation criteria: "N" for one
+   * invocation in N or "N/s" for at most N invocations a second.
+   *
+   * @param spec
+   * @return The policy.
+   */
+  public static int parsePolicy(String spec)
+  {
+    boolean perSecond = spec.endsWith("/s");
+    String number = perSecond ? spec.substring(0, spec.length() - 2) : spec;
+    int value;
+    try
+    {
+      value = Integer.parseInt(number.trim());
+    }
+    catch (NumberFormatException ex)
+    {
+      throw new RuntimeException("Invalid sample rate [" + spec + "]");
+    }
+    if (value <= 0)
+    {
+      throw new RuntimeException("Sample rate must be positive [" + spec + "]");
+    }
+    return perSecond ? -value : value;
+  }
+
+  /**
+   * @param policy
+   * @return The policy in the form accepted by {@link #parsePolicy(String)}.
+   */
+  public static String formatPolicy(int policy)
+  {
+    return (policy < 0) ? ((-policy) + "/s") : Integer.toString(policy);
+  }
+}
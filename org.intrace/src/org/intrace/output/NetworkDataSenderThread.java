@@ -4,32 +4,26 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-//import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.LinkedTransferQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 import org.intrace.agent.server.AgentClientConnection;
 import org.intrace.shared.SerializationHelper;
+import org.intrace.shared.TraceEventCodec;
 
 public class NetworkDataSenderThread extends InstruRunnable {
-	private long traceEventSequence = 0;
 	private static final int EST_EVENT_COUNT_PER_BATCH = 16 * 1024;
 	private static final int BURST_SIZE = 16 * 1024;
 	private static final int DRAIN_INTERVAL_MS = 1000;
+	private static final int RING_CAPACITY = 4 * 1024;
+	private static final long HEARTBEAT_TIME_MILLIS = 5000L;
 	/**
-	 * All BatchQueueEle instances will point to this singleton, to avoid
-	 * unnecessary GC overhead. I made this public so that in the future, the
-	 * parameters could be changed on the fly.
+	 * Every drain departs at the next window boundary computed by a
+	 * BatchScheduler using this config. I made this public so that in the
+	 * future, the parameters could be changed on the fly.
 	 */
 	public static IBatchSchedulerConfig batchSchedulerConfig = new IBatchSchedulerConfig() {
 		@Override
@@ -44,29 +38,23 @@ public class NetworkDataSenderThread extends InstruRunnable {
 	};
 
 	/**
-	 * An internal wrapper class for an individual trace event. Enables use of
-	 * java.util.concurrent.DelayQueue to schedule multiples of these to be
-	 * shipped to the client in a single batch, to avoid previous chatty and
-	 * poorly performing behavior of a single socket write per trace event.
-	 * 
-	 * Because of the excess GC required, I'm not thrilled about needing this
-	 * wrapper instance for every trace event. However, the DelayQueue solution
-	 * is otherwise pretty elegant.
-	 * 
+	 * A trace event paired with its sequence number. No longer used on the
+	 * application thread (events go straight into a per-thread
+	 * {@link EventRingBuffer}); kept so callers can hand a prepared list to
+	 * {@link #transmitBatch(ObjectOutputStream, List, int)}.
+	 *
 	 * @author erikostermueller
 	 *
 	 */
-	public static class TraceEventForBatch implements Delayed {
+	public static class TraceEventForBatch {
 		private Object traceEventText = null;
 		private long arrivalTimeMillis = 0L;
 		private long traceEventSequence = 0L;
-		private BatchScheduler batchScheduler = null;
 
 		public TraceEventForBatch(Object val, long arrivalTimeMillis,
 				long traceEventSequence) {
 			this.traceEventText = val;
-			this.batchScheduler = new BatchScheduler(arrivalTimeMillis,
-					batchSchedulerConfig);
+			this.arrivalTimeMillis = arrivalTimeMillis;
 			this.traceEventSequence = traceEventSequence;
 		}
 
@@ -74,41 +62,46 @@ public class NetworkDataSenderThread extends InstruRunnable {
 			return this.traceEventText;
 		}
 
-		@Override
-		public int compareTo(Delayed o) {
-			long rc = this.getDelay(TimeUnit.MILLISECONDS)
-					- o.getDelay(TimeUnit.MILLISECONDS);
-			return (int) rc;
+		public long getArrivalTimeMillis() {
+			return this.arrivalTimeMillis;
 		}
 
 		public long getTraceEventSequence() {
 			return this.traceEventSequence;
 		}
-
-		/**
-		 * "Expiration occurs when an element's getDelay(TimeUnit.NANOSECONDS) method returns a value less than or equal to zero."
-		 * ....taken from here:
-		 * https://docs.oracle.com/javase/7/docs/api/java/util
-		 * /concurrent/DelayQueue.html
-		 */
-		@Override
-		public long getDelay(TimeUnit unit) {
-			long delay = this.batchScheduler.getDepartureTimeMillis()
-					- System.currentTimeMillis();
-			return unit.convert(delay, TimeUnit.MILLISECONDS);
-		}
-
 	}
 
-	private boolean alive = true;
+	private volatile boolean alive = true;
 	private final ServerSocket networkSocket;
 	private Socket traceSendingSocket = null;
-	// private final BlockingQueue<Object> outgoingData = new
-	// LinkedTransferQueue<Object>();
-	private final BlockingQueue<TraceEventForBatch> outgoingData = new DelayQueue<TraceEventForBatch>();
 	private Map<NetworkDataSenderThread, Object> set = new HashMap<NetworkDataSenderThread, Object>();
 	private final AgentClientConnection connection;
 
+	/** Rings of every thread that has produced an event for this connection */
+	private final List<EventRingBuffer> rings = new CopyOnWriteArrayList<EventRingBuffer>();
+
+	private final ThreadLocal<EventRingBuffer> localRing = new ThreadLocal<EventRingBuffer>() {
+		@Override
+		protected EventRingBuffer initialValue() {
+			EventRingBuffer ring = new EventRingBuffer(RING_CAPACITY,
+					Thread.currentThread());
+			rings.add(ring);
+			return ring;
+		}
+	};
+
+	private volatile Thread drainerThread = null;
+
+	// Method ids below this have been sent to the client (drainer only)
+	private int shippedMethodIds = 0;
+	private int shippedTextIds = 0;
+
+	// Drainer-only merge state, reused between drains
+	private Object[] mergedEvents = new Object[EST_EVENT_COUNT_PER_BATCH];
+	private EventRingBuffer[] heapRings = new EventRingBuffer[16];
+	private long[] heapPositions = new long[16];
+	private long[] heapLimits = new long[16];
+
 	public NetworkDataSenderThread(AgentClientConnection connection,
 			ServerSocket networkSocket) {
 		this.connection = connection;
@@ -142,15 +135,29 @@ public class NetworkDataSenderThread extends InstruRunnable {
 		// System.out.println("## Trace Connection Disconnected");
 	}
 
+	/**
+	 * Called on the application thread. Lock free and allocation free once the
+	 * calling thread has its ring. If the ring is full the event is dropped and
+	 * counted, and the drainer is woken; the application thread never waits
+	 * for a slow client. The drainer reports the number of dropped events in
+	 * the trace.
+	 */
 	public void queueData(Object data) {
-		TraceEventForBatch dataWrapper = new TraceEventForBatch(data,
-				System.currentTimeMillis(), traceEventSequence++);
-		if (alive)
-			outgoingData.offer(dataWrapper);
+		if (!alive)
+			return;
+		EventRingBuffer ring = localRing.get();
+		// A timestamp rather than a shared counter, so producers never write
+		// to the same cache line. Each ring is in timestamp order and the
+		// drainer merges the rings on it.
+		if (!ring.offer(data, System.nanoTime())) {
+			ring.recordDrop();
+			Thread drainer = drainerThread;
+			if (drainer != null)
+				LockSupport.unpark(drainer);
+		}
 	}
 
-	public void runMethod_OLD() {
-		final int HEARTBEAT_TIME_SECONDS = 5;
+	public void runMethod() {
 		try {
 			traceSendingSocket = networkSocket.accept();
 			// System.out.println("## Trace Connection Established");
@@ -162,147 +169,173 @@ public class NetworkDataSenderThread extends InstruRunnable {
 
 			ObjectOutputStream traceWriter = new ObjectOutputStream(
 					traceSendingSocket.getOutputStream());
+			drainerThread = Thread.currentThread();
 			// Ready to handle data
 			set.put(this, new Object());
 
-			List<String> traceEventsForSingleBatch = new ArrayList<String>(
-					EST_EVENT_COUNT_PER_BATCH);
-			List<TraceEventForBatch> tmp = new ArrayList<TraceEventForBatch>(
-					EST_EVENT_COUNT_PER_BATCH);
-			while (true) {
-				TraceEventForBatch traceLineWrapper = outgoingData.poll(
-						HEARTBEAT_TIME_SECONDS, TimeUnit.SECONDS);
-				if (traceLineWrapper != null) {
-					if (traceLineWrapper.getTraceEvent() instanceof String) {
-						traceEventsForSingleBatch.clear();
-						tmp.clear();
-						traceEventsForSingleBatch.add((String) traceLineWrapper
-								.getTraceEvent());
-						outgoingData.drainTo(tmp, BURST_SIZE);
-						Collections.sort(tmp,
-								new Comparator<TraceEventForBatch>() { // It all
-																		// ends
-																		// badly
-																		// without
-																		// this
-																		// sort.
-									@Override
-									public int compare(TraceEventForBatch o1,
-											TraceEventForBatch o2) {
-										return (int) (o1
-												.getTraceEventSequence() - o2
-												.getTraceEventSequence());
-									}
-								});
-						/**
-						 * This copy from-TraceEventForBatch-to-string-array is
-						 * required to avoid 2 things: -- wire format where each
-						 * trace event has the extra overhead/space of one long
-						 * timestamp (the one used for DelayQueue.getDelay() ).
-						 * -- Requiring TraceEventForBatch .class to be in
-						 * client JVM. This will avoid versioning conflicts.
-						 */
-						for (TraceEventForBatch tefb : tmp)
-							traceEventsForSingleBatch.add((String) tefb
-									.getTraceEvent());
-
-						String[] eventsForOneBatch = new String[traceEventsForSingleBatch
-								.size()];
-						traceEventsForSingleBatch.toArray(eventsForOneBatch);
-						byte[] wireData = SerializationHelper
-								.toWire(eventsForOneBatch);
-						traceWriter.writeObject(wireData);
-					}
-				} else {
+			long lastWriteMillis = System.currentTimeMillis();
+			while (alive) {
+				long now = System.currentTimeMillis();
+				long departure = new BatchScheduler(now, batchSchedulerConfig)
+						.getDepartureTimeMillis();
+				if (departure > now) {
+					// Woken early by a producer with a full ring
+					LockSupport.parkNanos(this, (departure - now) * 1000000L);
+				}
+
+				int count = drainRings();
+				if (count > 0) {
+					transmitEvents(traceWriter, mergedEvents, count, BURST_SIZE);
+					clearMerged(count);
+					lastWriteMillis = System.currentTimeMillis();
+				} else if (System.currentTimeMillis() - lastWriteMillis >= HEARTBEAT_TIME_MILLIS) {
 					traceWriter.writeObject("NOOP"); // If no events in the last
-														// HEARTBEAT_TIME_SECONDS,
+														// HEARTBEAT_TIME_MILLIS,
 														// then send a NOOP to
 														// keep the tcp
 														// connection alive.
+					lastWriteMillis = System.currentTimeMillis();
+				} else {
+					continue;
 				}
 				traceWriter.flush();
 				traceWriter.reset();
 			}
-		} catch (InterruptedException ex) {
-			stop();
 		} catch (IOException ex) {
 			stop();
 		}
 	}
 
-	public void runMethod() {
-		final int HEARTBEAT_TIME_SECONDS = 5;
-		try {
-			traceSendingSocket = networkSocket.accept();
-			// System.out.println("## Trace Connection Established");
-			traceSendingSocket.setKeepAlive(true);
+	/**
+	 * Take everything currently published in every ring and k-way merge it by
+	 * timestamp into mergedEvents. Each ring is already in timestamp order
+	 * because it has a single producer. Events are only ordered within a
+	 * drained batch: a producer preempted between taking its timestamp and
+	 * publishing its event can have that event sent in the next batch. Events
+	 * dropped since the last drain are reported by a line at the end of the
+	 * batch.
+	 *
+	 * @return the number of merged events
+	 */
+	private int drainRings() {
+		int heapSize = 0;
+		int total = 0;
+		long dropped = 0;
+		for (EventRingBuffer ring : rings) {
+			dropped += ring.takeDropped();
+			long from = ring.readPosition();
+			long to = ring.publishedPosition();
+			if (to > from) {
+				if (heapSize == heapRings.length) {
+					growHeap();
+				}
+				heapRings[heapSize] = ring;
+				heapPositions[heapSize] = from;
+				heapLimits[heapSize] = to;
+				heapSize++;
+				total += (int) (to - from);
+			} else if (ring.isOrphaned() && ring.isEmpty()) {
+				rings.remove(ring);
+			}
+		}
+		if (dropped > 0) {
+			total++;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		if (mergedEvents.length < total) {
+			mergedEvents = new Object[Math.max(total, mergedEvents.length * 2)];
+		}
+		for (int i = (heapSize / 2) - 1; i >= 0; i--) {
+			siftDown(i, heapSize);
+		}
+		int count = 0;
+		while (heapSize > 0) {
+			EventRingBuffer ring = heapRings[0];
+			long pos = heapPositions[0];
+			mergedEvents[count++] = ring.eventAt(pos);
+			pos++;
+			if (pos < heapLimits[0]) {
+				heapPositions[0] = pos;
+			} else {
+				ring.release(pos);
+				heapSize--;
+				heapRings[0] = heapRings[heapSize];
+				heapPositions[0] = heapPositions[heapSize];
+				heapLimits[0] = heapLimits[heapSize];
+				heapRings[heapSize] = null;
+			}
+			siftDown(0, heapSize);
+		}
+		if (dropped > 0) {
+			mergedEvents[count++] = dropped
+					+ " trace events dropped, the client is not keeping up";
+		}
+		return count;
+	}
 
-			if (connection != null) {
-				connection.setTraceConnEstablished(true);
+	private void siftDown(int i, int heapSize) {
+		while (true) {
+			int left = (2 * i) + 1;
+			if (left >= heapSize) {
+				return;
+			}
+			int smallest = left;
+			int right = left + 1;
+			if ((right < heapSize) && (headTimestamp(right) < headTimestamp(left))) {
+				smallest = right;
 			}
+			if (headTimestamp(i) <= headTimestamp(smallest)) {
+				return;
+			}
+			EventRingBuffer r = heapRings[i];
+			long p = heapPositions[i];
+			long l = heapLimits[i];
+			heapRings[i] = heapRings[smallest];
+			heapPositions[i] = heapPositions[smallest];
+			heapLimits[i] = heapLimits[smallest];
+			heapRings[smallest] = r;
+			heapPositions[smallest] = p;
+			heapLimits[smallest] = l;
+			i = smallest;
+		}
+	}
 
-			ObjectOutputStream traceWriter = new ObjectOutputStream(
-					traceSendingSocket.getOutputStream());
-			// Ready to handle data
-			set.put(this, new Object());
+	private long headTimestamp(int i) {
+		return heapRings[i].timestampAt(heapPositions[i]);
+	}
 
-			while (true) {
-				TraceEventForBatch traceLineWrapper = outgoingData.poll(
-						HEARTBEAT_TIME_SECONDS, TimeUnit.SECONDS);
-				if (traceLineWrapper != null) {
-					if (traceLineWrapper.getTraceEvent() instanceof String) {
-						List<TraceEventForBatch> typedAndSortedList = new ArrayList<TraceEventForBatch>(
-								EST_EVENT_COUNT_PER_BATCH);
-						typedAndSortedList.add(traceLineWrapper);
-						while (outgoingData.drainTo(typedAndSortedList, BURST_SIZE) > 0)
-							;
-						// It all ends badly without this sort
-						Collections.sort(typedAndSortedList,
-								new Comparator<TraceEventForBatch>() { 
-									@Override
-									public int compare(TraceEventForBatch o1,
-											TraceEventForBatch o2) {
-										return (int) (o1
-												.getTraceEventSequence() - o2
-												.getTraceEventSequence());
-									}
-								});
-						transmitBatch(traceWriter, typedAndSortedList, BURST_SIZE);
-					} else {
-						throw new RuntimeException(
-								"Found unsupported trace event of type ["
-										+ traceLineWrapper.getTraceEvent()
-												.getClass().getName() + "]");
-					}
-				} else {
-					traceWriter.writeObject("NOOP"); // If no events in the last
-														// HEARTBEAT_TIME_SECONDS,
-														// then send a NOOP to
-														// keep the tcp
-														// connection alive.
-				}
-				traceWriter.flush();
-				traceWriter.reset();
-			}
-		} catch (InterruptedException ex) {
-			stop();
-		} catch (IOException ex) {
-			stop();
+	private void growHeap() {
+		int size = heapRings.length * 2;
+		EventRingBuffer[] r = new EventRingBuffer[size];
+		long[] p = new long[size];
+		long[] l = new long[size];
+		System.arraycopy(heapRings, 0, r, 0, heapRings.length);
+		System.arraycopy(heapPositions, 0, p, 0, heapPositions.length);
+		System.arraycopy(heapLimits, 0, l, 0, heapLimits.length);
+		heapRings = r;
+		heapPositions = p;
+		heapLimits = l;
+	}
+
+	private void clearMerged(int count) {
+		for (int i = 0; i < count; i++) {
+			mergedEvents[i] = null;
 		}
 	}
 
 	/**
 	 * Using the give ObjectOutputStream, transmit the given list of events
 	 * in one or more successive bursts of no more than burstSize events.
-	 * 
+	 *
 	 * This copy from-TraceEventForBatch-to-string-array is required to
-	 * avoid 2 things: 
+	 * avoid 2 things:
 	 * -- Wire format where each trace event has the extra
-	 * 		overhead/space of one long timestamp (the one used for
-	 * 		DelayQueue.getDelay() ). 
+	 * 		overhead/space of its sequence number.
 	 * -- More complicated wire format that will
-	 * 		diminish the effectiveness of compression 
-	 * -- Requiring TraceEventForBatch .class to be in client JVM. 
+	 * 		diminish the effectiveness of compression
+	 * -- Requiring TraceEventForBatch .class to be in client JVM.
 	 * 		This will avoid versioning conflicts.
 	 * @param traceWriter
 	 * @param sortedAndTypedEventList
@@ -311,31 +344,86 @@ public class NetworkDataSenderThread extends InstruRunnable {
 	public int transmitBatch(ObjectOutputStream traceWriter,
 			List<TraceEventForBatch> sortedAndTypedEventList, int burstSize)
 			throws IOException {
-		List<String> eventsForSingleBurst = new ArrayList<String>(
-				burstSize);
+		Object[] events = new Object[sortedAndTypedEventList.size()];
+		int i = 0;
+		for (TraceEventForBatch tefb : sortedAndTypedEventList) {
+			events[i++] = tefb.getTraceEvent();
+		}
+		return transmitEvents(traceWriter, events, events.length, burstSize);
+	}
 
-		int remaining = sortedAndTypedEventList.size();
+	/**
+	 * Transmit the first count entries of the given (already ordered) events in
+	 * successive bursts of no more than burstSize events. String events are
+	 * sent as a serialized String[], structured (byte[]) events as a
+	 * TraceEventCodec batch. A burst never mixes the two, so a change of trace
+	 * mode starts a new burst and the ordering is preserved.
+	 */
+	private int transmitEvents(ObjectOutputStream traceWriter,
+			Object[] events, int count, int burstSize) throws IOException {
 		int burstCount = 0;
-		for (TraceEventForBatch tefb : sortedAndTypedEventList) {
-			eventsForSingleBurst.add( (String) tefb.getTraceEvent() );
-			remaining--;
-
-			if (eventsForSingleBurst.size() % burstSize == 0 
-					|| remaining ==0 ) {
-				String[] aryEventsForSingleBurst = new String[eventsForSingleBurst.size()];
-				eventsForSingleBurst.toArray(aryEventsForSingleBurst);
-				byte[] wireData = SerializationHelper.toWire(aryEventsForSingleBurst);
-				traceWriter.writeObject(wireData);
-				burstCount++;
-				eventsForSingleBurst.clear();
+		int start = 0;
+		while (start < count) {
+			boolean binary = isBinaryEvent(events[start]);
+			int end = start + 1;
+			while (end < count && (end - start) < burstSize
+					&& isBinaryEvent(events[end]) == binary) {
+				end++;
+			}
+			byte[] wireData;
+			if (binary) {
+				shipNewMethodNames(traceWriter);
+				wireData = TraceEventCodec.toWire(events, start, end - start);
+			} else {
+				String[] aryEventsForSingleBurst = new String[end - start];
+				for (int i = start; i < end; i++) {
+					aryEventsForSingleBurst[i - start] = (String) events[i];
+				}
+				wireData = SerializationHelper.toWire(aryEventsForSingleBurst);
 			}
+			traceWriter.writeObject(wireData);
+			burstCount++;
+			start = end;
 		}
-		System.out.println("stranded items [" + remaining + "]");		
 		return burstCount;
 	}
 
+	/**
+	 * Binary events only carry method and text ids. Send the names of every
+	 * method and the stack traces registered since the last dictionary frames
+	 * on this connection before the first event which could refer to them.
+	 */
+	private void shipNewMethodNames(ObjectOutputStream traceWriter)
+			throws IOException {
+		int registered = MethodRegistry.idLimit();
+		if (registered > shippedMethodIds) {
+			traceWriter.writeObject(TraceEventCodec.dictionaryToWire(
+					MethodRegistry.getDictionary(), shippedMethodIds, registered));
+			shippedMethodIds = registered;
+		}
+		int texts = MethodRegistry.getDictionary().textCount();
+		if (texts > shippedTextIds) {
+			traceWriter.writeObject(TraceEventCodec.textsToWire(
+					MethodRegistry.getDictionary(), shippedTextIds, texts));
+			shippedTextIds = texts;
+		}
+	}
+
+	private static boolean isBinaryEvent(Object event) {
+		if (event instanceof byte[]) {
+			return true;
+		} else if (event instanceof String) {
+			return false;
+		}
+		throw new RuntimeException("Found unsupported trace event of type ["
+				+ event.getClass().getName() + "]");
+	}
+
 	public void gracefulShutdown() {
-		while (!outgoingData.isEmpty()) {
+		while (alive && !allRingsEmpty()) {
+			Thread drainer = drainerThread;
+			if (drainer != null)
+				LockSupport.unpark(drainer);
 			try {
 				Thread.sleep(100);
 			} catch (InterruptedException e) {
@@ -343,4 +431,12 @@ public class NetworkDataSenderThread extends InstruRunnable {
 			}
 		}
 	}
+
+	private boolean allRingsEmpty() {
+		for (EventRingBuffer ring : rings) {
+			if (!ring.isEmpty())
+				return false;
+		}
+		return true;
+	}
 }
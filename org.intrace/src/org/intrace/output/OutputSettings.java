@@ -11,6 +11,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import org.intrace.shared.TraceConfigConstants;
+import org.intrace.shared.TraceEventCodec;
 
 public class OutputSettings
 {
@@ -23,6 +24,9 @@ public class OutputSettings
   private PrintWriter file2TraceWriter = null;
   
   public boolean networkTraceOutputRequested = false;
+
+  // Reused under the writeFileOutput lock
+  private final StringBuilder fileRenderBuffer = new StringBuilder();
   
   public OutputSettings(OutputSettings oldSettings)
   {
@@ -114,6 +118,24 @@ public class OutputSettings
     }
   }
 
+  /**
+   * Render a structured trace event (see TraceEventCodec) and write it to the
+   * active trace file.
+   */
+  public synchronized void writeFileOutput(byte[] event, int length)
+  {
+    PrintWriter outputWriter;
+    outputWriter = getFileTraceWriter();
+    if (outputWriter != null)
+    {
+      fileRenderBuffer.setLength(0);
+      TraceEventCodec.render(event, 0, length, MethodRegistry.getDictionary(),
+                             fileRenderBuffer);
+      outputWriter.println(fileRenderBuffer);
+      outputWriter.flush();
+    }
+  }
+
   public boolean isNetOutputEnabled()
   {
     return netOutputEnabled;
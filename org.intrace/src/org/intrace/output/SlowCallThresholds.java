@@ -0,0 +1,124 @@
+package org.intrace.output;
+
+import java.util.Map;
+
+/**
+ * Per method slow call thresholds, held per {@link MethodRegistry} id. A call
+ * of a method with a threshold is only traced if it takes longer than the
+ * threshold, see {@link org.intrace.output.trace.TraceHandler}.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class SlowCallThresholds
+{
+  private static volatile int[] thresholds = new int[0];
+  private static volatile boolean active = false;
+  private static volatile int epoch = 0;
+  private static ISlowCallPolicy source = null;
+
+  private SlowCallThresholds()
+  {
+  }
+
+  /**
+   * Apply the thresholds of a new source to every registered method.
+   *
+   * @param newSource
+   *          May be null, in which case no method has a threshold.
+   */
+  public static synchronized void setPolicySource(ISlowCallPolicy newSource)
+  {
+    source = newSource;
+    Map<String, Integer> methods = MethodRegistry.getMethods();
+    int size = 0;
+    for (Integer id : methods.values())
+    {
+      size = Math.max(size, id + 1);
+    }
+    int[] newThresholds = new int[size];
+    boolean anyThreshold = false;
+    for (Map.Entry<String, Integer> method : methods.entrySet())
+    {
+      String key = method.getKey();
+      int hash = key.indexOf('#');
+      int descStart = key.indexOf('(', hash);
+      String className = key.substring(0, hash);
+      String methodName = (descStart >= 0) ? key.substring(hash + 1, descStart)
+                                           : key.substring(hash + 1);
+      String desc = (descStart >= 0) ? key.substring(descStart) : "";
+      int threshold = getPolicy(className, methodName, desc);
+      newThresholds[method.getValue()] = threshold;
+      anyThreshold |= (threshold > 0);
+    }
+    thresholds = newThresholds;
+    active = anyThreshold;
+    epoch++;
+  }
+
+  /**
+   * Look up the threshold of a newly registered method. Called by the
+   * {@link MethodRegistry}, which must not hold its own lock as
+   * {@link #setPolicySource(ISlowCallPolicy)} takes it while holding this
+   * one.
+   */
+  static synchronized void registered(int methodId, String className,
+                                      String methodName, String desc)
+  {
+    int threshold = getPolicy(className, methodName, (desc != null) ? desc
+                                                                    : "");
+    int[] current = thresholds;
+    if (threshold == 0)
+    {
+      if (methodId < current.length)
+      {
+        current[methodId] = 0;
+      }
+      return;
+    }
+    if (methodId >= current.length)
+    {
+      int[] grown = new int[Math.max(methodId + 1, current.length * 2)];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      current = grown;
+    }
+    current[methodId] = threshold;
+    thresholds = current;
+    active = true;
+  }
+
+  private static int getPolicy(String className, String methodName,
+                               String desc)
+  {
+    return (source != null) ? source.getSlowCallThreshold(className,
+                                                          methodName, desc)
+                            : 0;
+  }
+
+  /**
+   * @return A count of the sources applied, slow call candidates opened under
+   *         an earlier source are stale.
+   */
+  public static int getEpoch()
+  {
+    return epoch;
+  }
+
+  /**
+   * @return True if any method has a threshold.
+   */
+  public static boolean isActive()
+  {
+    return active;
+  }
+
+  /**
+   * @param methodId
+   * @return The threshold of the method in milliseconds, 0 if it has none.
+   */
+  public static int getThreshold(int methodId)
+  {
+    int[] current = thresholds;
+    return (methodId < current.length) ? current[methodId] : 0;
+  }
+}
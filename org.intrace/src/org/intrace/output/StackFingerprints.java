@@ -0,0 +1,118 @@
+package org.intrace.output;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of rendered stack traces, keyed by a 64 bit fingerprint of their
+ * frames. A stack is rendered once, the first time it is seen, and given a
+ * text id in the {@link MethodRegistry#getDictionary() dictionary}. Binary
+ * events then carry the text id which is shipped once per connection.
+ * <p>
+ * Only binary events are smaller for it: the text trace reuses the rendered
+ * text, which saves rendering it again, but still writes the whole text with
+ * every event.
+ * <p>
+ * Once {@link #MAX_TEXTS} stacks are registered, new stacks are no longer
+ * registered and the caller has to render them inline.
+ */
+public class StackFingerprints
+{
+  public static final int MAX_TEXTS = 1 << 16;
+
+  /**
+   * Returned for stacks without a text id.
+   */
+  public static final int NONE = -1;
+
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  private static final ConcurrentMap<Long, Integer> textIds = new ConcurrentHashMap<Long, Integer>();
+
+  /**
+   * @return The text id of the given fingerprint, or {@link #NONE}.
+   */
+  public static int lookup(long fingerprint)
+  {
+    Integer id = textIds.get(fingerprint);
+    return (id != null) ? id : NONE;
+  }
+
+  /**
+   * @return The text id of the given fingerprint, registering the text if the
+   *         fingerprint is new. {@link #NONE} if the registry is full.
+   */
+  public static int register(long fingerprint, String text)
+  {
+    Integer id = textIds.get(fingerprint);
+    if (id == null)
+    {
+      synchronized (textIds)
+      {
+        id = textIds.get(fingerprint);
+        if (id == null)
+        {
+          if (textIds.size() >= MAX_TEXTS)
+          {
+            return NONE;
+          }
+          id = MethodRegistry.getDictionary().addText(text);
+          textIds.put(fingerprint, id);
+        }
+      }
+    }
+    return id;
+  }
+
+  public static String getText(int textId)
+  {
+    return MethodRegistry.getDictionary().getText(textId);
+  }
+
+  /**
+   * Start a fingerprint.
+   */
+  public static long begin()
+  {
+    return 0xCBF29CE484222325L;
+  }
+
+  /**
+   * Add a value to a fingerprint.
+   */
+  public static long mix(long fingerprint, long value)
+  {
+    long h = (fingerprint ^ value) * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * Add a string to a fingerprint, a 64 bit FNV-1a hash of its chars. Null
+   * and empty strings differ.
+   */
+  public static long mix(long fingerprint, String value)
+  {
+    if (value == null)
+    {
+      return mix(fingerprint, 0);
+    }
+    long h = mix(fingerprint, value.length() + 1L);
+    for (int ii = 0; ii < value.length(); ii++)
+    {
+      h = (h ^ value.charAt(ii)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  /**
+   * Add a frame to a fingerprint. Unlike StackTraceElement.hashCode() this
+   * takes in the line number and file name.
+   */
+  public static long mix(long fingerprint, StackTraceElement frame)
+  {
+    long h = mix(fingerprint, frame.getClassName());
+    h = mix(h, frame.getMethodName());
+    h = mix(h, frame.getFileName());
+    return mix(h, frame.getLineNumber());
+  }
+}
@@ -0,0 +1,339 @@
+package org.intrace.output;
+
+/**
+ * Per thread state used by the {@link AgentHelper} probes: the reentrancy
+ * guard which stops the agent tracing itself - a probe which runs while the
+ * flag is set returns immediately - the per call decisions of the sampled and
+ * governed methods the thread is running, see {@link MethodSampler} and
+ * {@link MethodGovernor}, the entry times
+ * of the calls timed by the statistics handler, the thread's call tree and
+ * the number of trigger calls the thread is in, see {@link TriggerScope}.
+ * <p>
+ * The common case avoids a ThreadLocal hash lookup. Each thread's state is
+ * parked in a slot of a fixed size table indexed by thread id; a lookup is an
+ * array load plus an owner check. A thread whose slot is held by another live
+ * thread falls back to the ThreadLocal on every lookup.
+ * <p>
+ * The slot of a dead thread is taken over by the next thread which maps to
+ * it. Until then the dead thread's state would stay reachable, so every
+ * thread which installs its state also sweeps a few slots for dead owners,
+ * and {@link #clearDeadThreads()} sweeps them all.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class ThreadProbeState
+{
+  private static final int SLOTS = 4096;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  private static final ThreadProbeState[] slots = new ThreadProbeState[SLOTS];
+
+  /**
+   * Slots swept each time a thread installs its state.
+   */
+  private static final int SWEEP_PER_INSTALL = 16;
+
+  /**
+   * Next slot to sweep. Racy updates only make sweeps overlap.
+   */
+  private static int sweepCursor = 0;
+
+  private static final ThreadLocal<ThreadProbeState> local = new ThreadLocal<ThreadProbeState>()
+  {
+    @Override
+    protected ThreadProbeState initialValue()
+    {
+      return new ThreadProbeState(Thread.currentThread());
+    }
+  };
+
+  /**
+   * Sampled and timed frames which are never popped, because an exception
+   * unwound them without an exit probe, are dropped from the bottom beyond
+   * this depth.
+   */
+  private static final int MAX_FRAME_DEPTH = 1024;
+
+  private final Thread owner;
+  private boolean inAgent;
+
+  /**
+   * One entry per active call of a sampled or governed method: the method id
+   * shifted left by one, with the low bit set if the call is traced.
+   */
+  private int[] sampleFrames = new int[16];
+  private int sampleDepth = 0;
+
+  /**
+   * One entry per active timed call: the method id and its entry time.
+   */
+  private int[] timedIds = new int[16];
+  private long[] timedStarts = new long[16];
+  private int timedDepth = 0;
+
+  /**
+   * Per thread state of the active handler, e.g. its call tree.
+   */
+  private Object handlerState;
+
+  /**
+   * Number of active calls of trigger methods.
+   */
+  private int triggerDepth = 0;
+
+  private ThreadProbeState(Thread owner)
+  {
+    this.owner = owner;
+  }
+
+  /**
+   * @return The state of the calling thread.
+   */
+  public static ThreadProbeState current()
+  {
+    Thread currentTh = Thread.currentThread();
+    int slot = (int) currentTh.getId() & SLOT_MASK;
+    ThreadProbeState state = slots[slot];
+    if ((state != null) && (state.owner == currentTh))
+    {
+      return state;
+    }
+    return install(currentTh, slot, state);
+  }
+
+  private static ThreadProbeState install(Thread currentTh, int slot,
+                                          ThreadProbeState previous)
+  {
+    ThreadProbeState state = local.get();
+    if ((previous == null) || !previous.owner.isAlive())
+    {
+      // A racing write from another thread can only replace one valid entry
+      // with another, the owner check above makes either outcome safe.
+      slots[slot] = state;
+    }
+    sweep(SWEEP_PER_INSTALL);
+    return state;
+  }
+
+  /**
+   * Clear every slot whose owner has terminated, so that the state of dead
+   * threads can be collected.
+   */
+  public static void clearDeadThreads()
+  {
+    sweep(SLOTS);
+  }
+
+  private static void sweep(int count)
+  {
+    int cursor = sweepCursor;
+    sweepCursor = cursor + count;
+    for (int ii = 0; ii < count; ii++)
+    {
+      int slot = (cursor + ii) & SLOT_MASK;
+      ThreadProbeState state = slots[slot];
+      if ((state != null) && !state.owner.isAlive())
+      {
+        // Clearing a slot just taken by a live thread is safe, that thread
+        // falls back to the ThreadLocal and installs itself again.
+        slots[slot] = null;
+      }
+    }
+  }
+
+  /**
+   * Mark the calling thread as running agent code.
+   *
+   * @return False if the thread was already running agent code, in which case
+   *         the caller must not call {@link #leaveAgent()}.
+   */
+  public boolean enterAgent()
+  {
+    if (inAgent)
+    {
+      return false;
+    }
+    inAgent = true;
+    return true;
+  }
+
+  public void leaveAgent()
+  {
+    inAgent = false;
+  }
+
+  public boolean isInAgent()
+  {
+    return inAgent;
+  }
+
+  /**
+   * Record whether a call to a sampled or governed method is traced, so that
+   * its exit follows the decision made at entry.
+   *
+   * @param methodId
+   * @param traced
+   * @return traced
+   */
+  public boolean pushSample(int methodId, boolean traced)
+  {
+    if (sampleDepth == sampleFrames.length)
+    {
+      if (sampleDepth >= MAX_FRAME_DEPTH)
+      {
+        int keep = sampleDepth / 2;
+        System.arraycopy(sampleFrames, sampleDepth - keep, sampleFrames, 0,
+                         keep);
+        sampleDepth = keep;
+      }
+      else
+      {
+        int[] frames = new int[sampleFrames.length * 2];
+        System.arraycopy(sampleFrames, 0, frames, 0, sampleDepth);
+        sampleFrames = frames;
+      }
+    }
+    sampleFrames[sampleDepth++] = (methodId << 1) | (traced ? 1 : 0);
+    return traced;
+  }
+
+  /**
+   * @param methodId
+   * @return The recorded decision of the innermost call of the method, true
+   *         if the method has no recorded call. Frames above it must have
+   *         been unwound by an exception and are dropped.
+   */
+  public boolean isSampleTraced(int methodId)
+  {
+    int index = findSample(methodId);
+    if (index < 0)
+    {
+      return true;
+    }
+    sampleDepth = index + 1;
+    return (sampleFrames[index] & 1) != 0;
+  }
+
+  /**
+   * Pop the innermost call of the method, along with any frames above it.
+   *
+   * @param methodId
+   * @return The recorded decision of the call, true if the method has no
+   *         recorded call.
+   */
+  public boolean popSample(int methodId)
+  {
+    int index = findSample(methodId);
+    if (index < 0)
+    {
+      return true;
+    }
+    sampleDepth = index;
+    return (sampleFrames[index] & 1) != 0;
+  }
+
+  private int findSample(int methodId)
+  {
+    for (int ii = sampleDepth - 1; ii >= 0; ii--)
+    {
+      if ((sampleFrames[ii] >>> 1) == methodId)
+      {
+        return ii;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Record the entry time of a timed call.
+   *
+   * @param methodId
+   * @param startNanos
+   */
+  public void pushTiming(int methodId, long startNanos)
+  {
+    if (timedDepth == timedIds.length)
+    {
+      if (timedDepth >= MAX_FRAME_DEPTH)
+      {
+        int keep = timedDepth / 2;
+        System.arraycopy(timedIds, timedDepth - keep, timedIds, 0, keep);
+        System.arraycopy(timedStarts, timedDepth - keep, timedStarts, 0, keep);
+        timedDepth = keep;
+      }
+      else
+      {
+        int[] ids = new int[timedIds.length * 2];
+        long[] starts = new long[timedIds.length * 2];
+        System.arraycopy(timedIds, 0, ids, 0, timedDepth);
+        System.arraycopy(timedStarts, 0, starts, 0, timedDepth);
+        timedIds = ids;
+        timedStarts = starts;
+      }
+    }
+    timedIds[timedDepth] = methodId;
+    timedStarts[timedDepth++] = startNanos;
+  }
+
+  /**
+   * Pop the innermost timed call of the method, along with any frames above
+   * it which an exception unwound.
+   *
+   * @param methodId
+   * @return The entry time of the call, -1 if the method has no recorded
+   *         call.
+   */
+  public long popTiming(int methodId)
+  {
+    for (int ii = timedDepth - 1; ii >= 0; ii--)
+    {
+      if (timedIds[ii] == methodId)
+      {
+        timedDepth = ii;
+        return timedStarts[ii];
+      }
+    }
+    return -1;
+  }
+
+  void enterTrigger()
+  {
+    triggerDepth++;
+  }
+
+  void exitTrigger()
+  {
+    if (triggerDepth > 0)
+    {
+      triggerDepth--;
+    }
+  }
+
+  /**
+   * @return True while the thread is in a call of a trigger method.
+   */
+  public boolean isInTrigger()
+  {
+    return triggerDepth > 0;
+  }
+
+  public Object getHandlerState()
+  {
+    return handlerState;
+  }
+
+  public void setHandlerState(Object handlerState)
+  {
+    this.handlerState = handlerState;
+  }
+
+  /**
+   * Used by agent threads and the transformer which need to restore whatever
+   * state they were entered with.
+   */
+  public void setInAgent(boolean inAgent)
+  {
+    this.inAgent = inAgent;
+  }
+}
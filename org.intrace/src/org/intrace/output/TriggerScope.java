@@ -0,0 +1,180 @@
+package org.intrace.output;
+
+import java.util.Map;
+
+/**
+ * Confines tracing to the threads which are running a trigger method. Once
+ * any method is a trigger, the {@link AgentHelper} probes only pass on the
+ * events of a thread while it is inside a call of a trigger method, including
+ * the entry and exit of the trigger call itself. Each thread counts the
+ * trigger calls it is in, see {@link ThreadProbeState}.
+ * <p>
+ * Trigger methods are instrumented with a catch-all handler which runs the
+ * exit probe before rethrowing, so an exception unwinding a trigger call
+ * still takes its thread out of scope. Constructors don't get the handler,
+ * an exception unwinding a trigger constructor leaves its thread in scope
+ * until the count is brought back down by the exit of another trigger call.
+ * <p>
+ * This class must not be instrumented, and it must not be loaded from within
+ * the transformer - {@link org.intrace.agent.AgentInit} loads it up front.
+ */
+public final class TriggerScope
+{
+  private static volatile boolean[] triggers = new boolean[0];
+  private static volatile boolean active = false;
+  private static ITriggerPolicy source = null;
+
+  private TriggerScope()
+  {
+  }
+
+  /**
+   * Apply the triggers of a new source to every registered method.
+   *
+   * @param newSource
+   *          May be null, in which case every thread is traced.
+   */
+  public static synchronized void setPolicySource(ITriggerPolicy newSource)
+  {
+    source = newSource;
+    Map<String, Integer> methods = MethodRegistry.getMethods();
+    int size = 0;
+    for (Integer id : methods.values())
+    {
+      size = Math.max(size, id + 1);
+    }
+    boolean[] newTriggers = new boolean[size];
+    boolean anyTrigger = false;
+    for (Map.Entry<String, Integer> method : methods.entrySet())
+    {
+      String key = method.getKey();
+      int hash = key.indexOf('#');
+      int descStart = key.indexOf('(', hash);
+      String className = key.substring(0, hash);
+      String methodName = (descStart >= 0) ? key.substring(hash + 1, descStart)
+                                           : key.substring(hash + 1);
+      String desc = (descStart >= 0) ? key.substring(descStart) : "";
+      boolean trigger = getPolicy(className, methodName, desc);
+      newTriggers[method.getValue()] = trigger;
+      anyTrigger |= trigger;
+    }
+    triggers = newTriggers;
+    setActive(anyTrigger);
+  }
+
+  /**
+   * Look up whether a newly registered method is a trigger. Called by the
+   * {@link MethodRegistry}, which must not hold its own lock as
+   * {@link #setPolicySource(ITriggerPolicy)} takes it while holding this one.
+   */
+  static synchronized void registered(int methodId, String className,
+                                      String methodName, String desc)
+  {
+    boolean trigger = getPolicy(className, methodName, (desc != null) ? desc
+                                                                      : "");
+    boolean[] current = triggers;
+    if (!trigger)
+    {
+      if (methodId < current.length)
+      {
+        current[methodId] = false;
+      }
+      return;
+    }
+    if (methodId >= current.length)
+    {
+      boolean[] grown = new boolean[Math.max(methodId + 1, current.length * 2)];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      current = grown;
+    }
+    current[methodId] = true;
+    triggers = current;
+    setActive(true);
+  }
+
+  /**
+   * The entry and exit probes count the trigger calls, so they are kept
+   * enabled while any method is a trigger, see
+   * {@link AgentHelper#updateProbeGuards()}.
+   */
+  private static void setActive(boolean anyTrigger)
+  {
+    if (active != anyTrigger)
+    {
+      active = anyTrigger;
+      AgentHelper.updateProbeGuards();
+    }
+  }
+
+  private static boolean getPolicy(String className, String methodName,
+                                   String desc)
+  {
+    return (source != null) && source.isTrigger(className, methodName, desc);
+  }
+
+  /**
+   * @return True if any method is a trigger, in which case tracing is
+   *         confined to the threads inside a trigger call.
+   */
+  public static boolean isActive()
+  {
+    return active;
+  }
+
+  /**
+   * @param methodId
+   * @return True if the method is a trigger.
+   */
+  public static boolean isTrigger(int methodId)
+  {
+    boolean[] current = triggers;
+    return (methodId < current.length) && current[methodId];
+  }
+
+  /**
+   * Entry probe: enter the scope if the method is a trigger.
+   *
+   * @return True if the event is to be traced.
+   */
+  static boolean admitEnter(ThreadProbeState state, int methodId)
+  {
+    if (!active)
+    {
+      return true;
+    }
+    if (isTrigger(methodId))
+    {
+      state.enterTrigger();
+    }
+    return state.isInTrigger();
+  }
+
+  /**
+   * Exit probe: leave the scope if the method is a trigger.
+   *
+   * @return True if the event is to be traced.
+   */
+  static boolean admitExit(ThreadProbeState state, int methodId)
+  {
+    if (!active)
+    {
+      return true;
+    }
+    boolean inScope = state.isInTrigger();
+    if (isTrigger(methodId))
+    {
+      state.exitTrigger();
+    }
+    return inScope;
+  }
+
+  /**
+   * Argument and branch probes.
+   *
+   * @return True if the event is to be traced.
+   */
+  static boolean admit(ThreadProbeState state)
+  {
+    return !active || state.isInTrigger();
+  }
+}
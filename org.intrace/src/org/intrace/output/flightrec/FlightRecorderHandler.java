@@ -0,0 +1,627 @@
+package org.intrace.output.flightrec;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.IMethodIdInstrumentationHandler;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.InstruRunnable;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.FlightRecorderConfigConstants;
+import org.intrace.shared.TraceEventBuffer;
+import org.intrace.shared.TraceEventCodec;
+
+/**
+ * Implements Flight Recorder Mode: enter, exit, branch and exception events
+ * are kept in memory rather than written out, only the most recent events are
+ * kept. The events are written to the trace output, oldest first, when a dump
+ * is triggered:
+ * <ul>
+ * <li>by the {@link FlightRecorderConfigConstants#DUMP} command
+ * <li>by an exception, thrown or caught, whose class name matches the
+ * {@link FlightRecorderConfigConstants#EXCEPTION} regex
+ * <li>by a call which takes longer than the
+ * {@link FlightRecorderConfigConstants#LATENCY} threshold
+ * </ul>
+ * A dump empties the recorder. Dumps triggered by exceptions and latencies are
+ * made at most once a second, by a background thread rather than the thread
+ * which triggered them.
+ * <p>
+ * Events are kept in rings of preallocated primitive arrays, striped by
+ * thread id, so recording an event is a handful of stores. Nothing is
+ * rendered until a dump. Recorded exceptions are referenced until their slot
+ * is overwritten.
+ */
+public class FlightRecorderHandler extends IInstrumentationHandlerAdapter
+    implements IMethodIdInstrumentationHandler, IProbeDemand
+{
+  public static final FlightRecorderHandler INSTANCE = new FlightRecorderHandler();
+  private FlightRecorderHandler()
+  {
+    // Private constructor
+  }
+
+  private static final int STRIPES = 8;
+  private static final int STRIPE_MASK = STRIPES - 1;
+  private static final long MIN_TRIGGER_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * The recent events of the threads which share a stripe.
+   */
+  private static final class Ring
+  {
+    final int mask;
+    final byte[] types;
+    final int[] methodIds;
+    final int[] lineNos;
+    final long[] threadIds;
+    final long[] nanos;
+    final String[] descs;
+    final Throwable[] throwables;
+    long written = 0;
+
+    Ring(int capacity)
+    {
+      mask = capacity - 1;
+      types = new byte[capacity];
+      methodIds = new int[capacity];
+      lineNos = new int[capacity];
+      threadIds = new long[capacity];
+      nanos = new long[capacity];
+      descs = new String[capacity];
+      throwables = new Throwable[capacity];
+    }
+
+    synchronized void record(byte type, int methodId, int lineNo,
+                             long threadId, long now, String desc,
+                             Throwable throwable)
+    {
+      int slot = (int) (written++ & mask);
+      types[slot] = type;
+      methodIds[slot] = methodId;
+      lineNos[slot] = lineNo;
+      threadIds[slot] = threadId;
+      nanos[slot] = now;
+      descs[slot] = desc;
+      throwables[slot] = throwable;
+    }
+
+    /**
+     * Move the recorded events, oldest first, into the given list.
+     */
+    synchronized void drainTo(List<Event> events)
+    {
+      long first = Math.max(0, written - (mask + 1));
+      for (long ii = first; ii < written; ii++)
+      {
+        int slot = (int) (ii & mask);
+        events.add(new Event(types[slot], methodIds[slot], lineNos[slot],
+                             threadIds[slot], nanos[slot], descs[slot],
+                             throwables[slot]));
+        descs[slot] = null;
+        throwables[slot] = null;
+      }
+      written = 0;
+    }
+  }
+
+  /**
+   * An event taken out of a ring for a dump.
+   */
+  private static final class Event
+  {
+    final byte type;
+    final int methodId;
+    final int lineNo;
+    final long threadId;
+    final long nanos;
+    final String desc;
+    final Throwable throwable;
+
+    Event(byte type, int methodId, int lineNo, long threadId, long nanos,
+          String desc, Throwable throwable)
+    {
+      this.type = type;
+      this.methodId = methodId;
+      this.lineNo = lineNo;
+      this.threadId = threadId;
+      this.nanos = nanos;
+      this.desc = desc;
+      this.throwable = throwable;
+    }
+  }
+
+  private final FlightRecorderSettings recorderSettings = new FlightRecorderSettings("");
+  private volatile boolean enabled = false;
+  private volatile Ring[] rings = null;
+  private volatile Pattern exceptionPattern = null;
+  private volatile long latencyNanos = 0;
+
+  /**
+   * Time of the last triggered dump, guarded by this handler's lock.
+   */
+  private long lastTriggerNanos = 0;
+  private boolean triggered = false;
+
+  /**
+   * The reason of a triggered dump which the dump thread has yet to start,
+   * and whether a dump is in progress, guarded by this handler's lock.
+   */
+  private String pendingTrigger = null;
+  private boolean dumping = false;
+  private Thread dumper = null;
+
+  /**
+   * @return True while flight recorder mode is on, in which case the probes
+   *         are routed to this handler rather than the trace handler.
+   */
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  @Override
+  public String getResponse(String args)
+  {
+    boolean wasEnabled = enabled;
+    int oldSize = recorderSettings.getSize();
+    recorderSettings.parseArgs(args);
+
+    String pattern = recorderSettings.getExceptionPattern();
+    try
+    {
+      exceptionPattern = (pattern.length() > 0) ? Pattern.compile(pattern)
+                                                : null;
+    }
+    catch (PatternSyntaxException e)
+    {
+      System.err.println("Invalid flight recorder exception regex: "
+                         + e.getMessage());
+      exceptionPattern = null;
+    }
+    latencyNanos = TimeUnit.MILLISECONDS.toNanos(recorderSettings.getLatencyMillis());
+
+    if (recorderSettings.takeDumpRequest())
+    {
+      dump("command");
+    }
+    if (recorderSettings.isEnabled()
+        && (!wasEnabled || (oldSize != recorderSettings.getSize())))
+    {
+      allocateRings(recorderSettings.getSize());
+    }
+    enabled = recorderSettings.isEnabled();
+    if (!enabled)
+    {
+      rings = null;
+    }
+    return null;
+  }
+
+  private synchronized void allocateRings(int size)
+  {
+    int capacity = Integer.highestOneBit(Math.max(1, (size + STRIPES - 1)
+                                                     / STRIPES));
+    if (capacity * STRIPES < size)
+    {
+      capacity *= 2;
+    }
+    Ring[] newRings = new Ring[STRIPES];
+    for (int ii = 0; ii < STRIPES; ii++)
+    {
+      newRings[ii] = new Ring(capacity);
+    }
+    rings = newRings;
+    // A new recording may be dumped straight away
+    triggered = false;
+  }
+
+  @Override
+  public Map<String, String> getSettingsMap()
+  {
+    return recorderSettings.getSettingsMap();
+  }
+
+  @Override
+  public boolean isEntryExitDemanded()
+  {
+    return true;
+  }
+
+  @Override
+  public boolean isBranchDemanded()
+  {
+    // Exceptions are reported by the branch probes
+    return true;
+  }
+
+  @Override
+  public boolean isArgDemanded()
+  {
+    return false;
+  }
+
+  private void record(byte type, int methodId, int lineNo, long now,
+                      String desc, Throwable throwable)
+  {
+    Ring[] current = rings;
+    if (current != null)
+    {
+      long threadId = Thread.currentThread().getId();
+      current[(int) threadId & STRIPE_MASK].record(type, methodId, lineNo,
+                                                   threadId, now, desc,
+                                                   throwable);
+    }
+  }
+
+  @Override
+  public void enter(int methodId, int lineNo)
+  {
+    long now = TraceEventCodec.currentTimeNanos();
+    record(TraceEventCodec.ENTER, methodId, lineNo, now, null, null);
+    if (latencyNanos > 0)
+    {
+      ThreadProbeState.current().pushTiming(methodId, now);
+    }
+  }
+
+  @Override
+  public void exit(int methodId, int lineNo)
+  {
+    long now = TraceEventCodec.currentTimeNanos();
+    record(TraceEventCodec.EXIT, methodId, lineNo, now, null, null);
+    long threshold = latencyNanos;
+    if (threshold > 0)
+    {
+      long start = ThreadProbeState.current().popTiming(methodId);
+      if ((start >= 0) && ((now - start) > threshold))
+      {
+        trigger("latency of " + MethodRegistry.getQualifiedName(methodId)
+                + " " + TimeUnit.NANOSECONDS.toMillis(now - start) + "ms");
+      }
+    }
+  }
+
+  @Override
+  public void branch(int methodId, int lineNo)
+  {
+    record(TraceEventCodec.BRANCH, methodId, lineNo,
+           TraceEventCodec.currentTimeNanos(), null, null);
+  }
+
+  @Override
+  public void val(String desc, int methodId, int lineNo, Throwable throwable)
+  {
+    record(TraceEventCodec.THROWABLE, methodId, lineNo,
+           TraceEventCodec.currentTimeNanos(), desc, throwable);
+    Pattern pattern = exceptionPattern;
+    if ((pattern != null) && (throwable != null)
+        && pattern.matcher(throwable.getClass().getName()).find())
+    {
+      trigger(desc + " " + throwable.getClass().getName() + " in "
+              + MethodRegistry.getQualifiedName(methodId));
+    }
+  }
+
+  /**
+   * Hand a dump to the dump thread, the recording thread carries on.
+   */
+  private synchronized void trigger(String reason)
+  {
+    long now = System.nanoTime();
+    if (triggered && ((now - lastTriggerNanos) < MIN_TRIGGER_INTERVAL_NANOS))
+    {
+      return;
+    }
+    triggered = true;
+    lastTriggerNanos = now;
+    pendingTrigger = reason;
+    if (dumper == null)
+    {
+      dumper = new Thread(new InstruRunnable()
+      {
+        @Override
+        public void runMethod()
+        {
+          dumpLoop();
+        }
+      }, "InTrace-FlightRecorder");
+      dumper.setDaemon(true);
+      dumper.start();
+    }
+    notifyAll();
+  }
+
+  private void dumpLoop()
+  {
+    while (true)
+    {
+      String reason;
+      synchronized (this)
+      {
+        while (pendingTrigger == null)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+        reason = pendingTrigger;
+        pendingTrigger = null;
+        dumping = true;
+      }
+      try
+      {
+        dump(reason);
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          dumping = false;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait for the triggered dumps to be made.
+   *
+   * @param timeoutMillis
+   * @return False if a dump was still pending when the timeout expired.
+   */
+  public synchronized boolean awaitDumps(long timeoutMillis)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (((pendingTrigger != null) || dumping) && (remaining > 0))
+    {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return (pendingTrigger == null) && !dumping;
+  }
+
+  /**
+   * Write the recorded events to the trace output and forget them.
+   *
+   * @param reason
+   *          What triggered the dump.
+   */
+  public void dump(String reason)
+  {
+    List<String> lines = drain();
+    TraceHandler.INSTANCE.writeTraceOutput("FLIGHTREC: dump of " + lines.size()
+                                           + " events, trigger: " + reason);
+    for (String line : lines)
+    {
+      if (AgentHelper.getOutputSettings().isFileOutputEnabled())
+      {
+        AgentHelper.getOutputSettings().writeFileOutput(line);
+      }
+      if (AgentHelper.getOutputSettings().isNetOutputEnabled())
+      {
+        AgentHelper.writeDataOutput(line);
+      }
+    }
+    TraceHandler.INSTANCE.writeTraceOutput("FLIGHTREC: end of dump");
+  }
+
+  /**
+   * @return The recorded events, oldest first, rendered like the string
+   *         trace. The recorder is emptied.
+   */
+  public synchronized List<String> drain()
+  {
+    List<Event> events = new ArrayList<Event>();
+    Ring[] current = rings;
+    if (current != null)
+    {
+      for (Ring ring : current)
+      {
+        ring.drainTo(events);
+      }
+    }
+    Event[] sorted = events.toArray(new Event[events.size()]);
+    // Stable, so the events of a thread stay in order
+    Arrays.sort(sorted, new Comparator<Event>()
+    {
+      @Override
+      public int compare(Event a, Event b)
+      {
+        return (a.nanos < b.nanos) ? -1 : ((a.nanos == b.nanos) ? 0 : 1);
+      }
+    });
+
+    List<String> lines = new ArrayList<String>(sorted.length);
+    TraceEventBuffer buf = new TraceEventBuffer();
+    for (Event event : sorted)
+    {
+      buf.begin(event.type, event.threadId, event.nanos, event.methodId);
+      if (event.type == TraceEventCodec.THROWABLE)
+      {
+        buf.putString(event.desc);
+        buf.putInt(event.lineNo);
+        buf.putString(throwableToString(event.throwable));
+      }
+      else
+      {
+        buf.putInt(event.lineNo);
+        if (event.type == TraceEventCodec.EXIT)
+        {
+          buf.putString(null);
+        }
+      }
+      lines.add(TraceEventCodec.render(buf.toByteArray(),
+                                       MethodRegistry.getDictionary()));
+    }
+    return lines;
+  }
+
+  private static String throwableToString(Throwable throwable)
+  {
+    if (throwable == null)
+    {
+      return "null";
+    }
+    StringWriter strWriter = new StringWriter();
+    throwable.printStackTrace(new PrintWriter(strWriter));
+    return strWriter.toString();
+  }
+
+  // Values aren't recorded
+
+  @Override
+  public void val(String desc, int methodId, byte byteArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, byte[] byteArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, short shortArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, short[] shortArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, int intArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, int[] intArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, long longArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, long[] longArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, float floatArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, float[] floatArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, double doubleArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, double[] doubleArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, boolean boolArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, boolean[] boolArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, char charArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, char[] charArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, Object objArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, Object[] objArrayArg)
+  {
+    // Do nothing
+  }
+
+  // Name based events, from callers which don't have a method id
+
+  @Override
+  public void enter(String className, String methodName, int lineNo)
+  {
+    enter(MethodRegistry.register(className, methodName, null), lineNo);
+  }
+
+  @Override
+  public void exit(String className, String methodName, int lineNo)
+  {
+    exit(MethodRegistry.register(className, methodName, null), lineNo);
+  }
+
+  @Override
+  public void branch(String className, String methodName, int lineNo)
+  {
+    branch(MethodRegistry.register(className, methodName, null), lineNo);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  int lineNo, Throwable throwable)
+  {
+    val(desc, MethodRegistry.register(className, methodName, null), lineNo,
+        throwable);
+  }
+}
@@ -0,0 +1,133 @@
+package org.intrace.output.flightrec;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.intrace.shared.FlightRecorderConfigConstants;
+
+/**
+ * Args Format: "[arg1[arg2[arg3"
+ * 
+ * where argx is of the form value-parameter
+ */
+public class FlightRecorderSettings
+{
+  private static final int DEFAULT_SIZE = 1 << 16;
+
+  private boolean enabled = false;
+  private int size = DEFAULT_SIZE;
+  private String exceptionPattern = "";
+  private int latencyMillis = 0;
+  private boolean dumpRequested = false;
+
+  public FlightRecorderSettings(FlightRecorderSettings oldSettings)
+  {
+    enabled = oldSettings.enabled;
+    size = oldSettings.size;
+    exceptionPattern = oldSettings.exceptionPattern;
+    latencyMillis = oldSettings.latencyMillis;
+  }
+
+  public FlightRecorderSettings(String args)
+  {
+    parseArgs(args);
+  }
+
+  public void parseArgs(String args)
+  {
+    String[] seperateArgs = args.split("\\[");
+    for (int ii = 0; ii < seperateArgs.length; ii++)
+    {
+      parseArg("[" + seperateArgs[ii]);
+    }
+  }
+
+  private void parseArg(String arg)
+  {
+    // The exception regex is case sensitive
+    String lowerArg = arg.toLowerCase(Locale.ROOT);
+    if (lowerArg.equals(FlightRecorderConfigConstants.FLIGHTREC + "true"))
+    {
+      enabled = true;
+    }
+    else if (lowerArg.equals(FlightRecorderConfigConstants.FLIGHTREC + "false"))
+    {
+      enabled = false;
+    }
+    else if (lowerArg.equals(FlightRecorderConfigConstants.DUMP))
+    {
+      dumpRequested = true;
+    }
+    else if (lowerArg.startsWith(FlightRecorderConfigConstants.SIZE))
+    {
+      String sizeStr = arg.substring(FlightRecorderConfigConstants.SIZE.length());
+      size = Math.max(1, Integer.parseInt(sizeStr));
+    }
+    else if (lowerArg.startsWith(FlightRecorderConfigConstants.EXCEPTION))
+    {
+      exceptionPattern = arg.substring(FlightRecorderConfigConstants.EXCEPTION.length());
+    }
+    else if (lowerArg.startsWith(FlightRecorderConfigConstants.LATENCY))
+    {
+      String latencyStr = arg.substring(FlightRecorderConfigConstants.LATENCY.length());
+      latencyMillis = Math.max(0, Integer.parseInt(latencyStr));
+    }
+  }
+
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  /**
+   * @return Number of recent events to keep.
+   */
+  public int getSize()
+  {
+    return size;
+  }
+
+  /**
+   * @return Regex found in the class name of an exception which triggers a
+   *         dump, empty if exceptions don't trigger dumps.
+   */
+  public String getExceptionPattern()
+  {
+    return exceptionPattern;
+  }
+
+  /**
+   * @return Latency of a call which triggers a dump, 0 if latencies don't
+   *         trigger dumps.
+   */
+  public int getLatencyMillis()
+  {
+    return latencyMillis;
+  }
+
+  /**
+   * @return True if the args parsed since the previous call held the
+   *         {@link FlightRecorderConfigConstants#DUMP} command.
+   */
+  public boolean takeDumpRequest()
+  {
+    boolean requested = dumpRequested;
+    dumpRequested = false;
+    return requested;
+  }
+
+  public Map<String, String> getSettingsMap()
+  {
+    Map<String, String> settingsMap = new HashMap<String, String>();
+    settingsMap.put(FlightRecorderConfigConstants.FLIGHTREC,
+                    Boolean.toString(enabled));
+    settingsMap.put(FlightRecorderConfigConstants.SIZE,
+                    Integer.toString(size));
+    settingsMap.put(FlightRecorderConfigConstants.EXCEPTION,
+                    exceptionPattern);
+    settingsMap.put(FlightRecorderConfigConstants.LATENCY,
+                    Integer.toString(latencyMillis));
+    return settingsMap;
+  }
+}
@@ -0,0 +1,245 @@
+package org.intrace.output.stats;
+
+import java.util.Map;
+
+import org.intrace.output.MethodRegistry;
+
+/**
+ * Call tree of a single thread, built from its enter and exit probes: a
+ * shadow stack of the active calls and one node per distinct caller path,
+ * holding the number of calls along that path and their total time. The time
+ * spent in callees is recorded against the caller so that self time can be
+ * derived.
+ * <p>
+ * Nodes are kept in primitive arrays, a node's children are found through an
+ * open addressing table keyed by parent node and method id. Node 0 is the
+ * root which stands for the thread itself. Once {@link #MAX_NODES} nodes
+ * exist, calls along new paths are no longer recorded.
+ * <p>
+ * Only the owning thread updates the tree, but snapshots are taken from
+ * other threads so every access is made under the tree's lock. Once the
+ * owner has terminated the tree no longer changes.
+ */
+final class CallTree
+{
+  static final int MAX_NODES = 1 << 16;
+  private static final int MAX_DEPTH = 1024;
+  private static final int NOT_RECORDED = -1;
+
+  private int nodeCount = 1;
+  private int[] methods = new int[64];
+  private int[] parents = new int[64];
+  private long[] counts = new long[64];
+  private long[] totalNanos = new long[64];
+  private long[] childNanos = new long[64];
+
+  // Children lookup: key is (parent << 32 | methodId), value is node + 1
+  private long[] childKeys = new long[128];
+  private int[] childNodes = new int[128];
+
+  // Shadow stack
+  private int[] stackMethods = new int[64];
+  private int[] stackNodes = new int[64];
+  private long[] stackStarts = new long[64];
+  private int depth = 0;
+
+  private final Thread owner;
+
+  CallTree(Thread owner)
+  {
+    this.owner = owner;
+    methods[0] = -1;
+    parents[0] = -1;
+  }
+
+  /**
+   * @return True while the thread which builds the tree is alive.
+   */
+  boolean isOwnerAlive()
+  {
+    return owner.isAlive();
+  }
+
+  synchronized void enter(int methodId, long now)
+  {
+    int parent = (depth > 0) ? stackNodes[depth - 1] : 0;
+    int node = (parent == NOT_RECORDED) ? NOT_RECORDED : child(parent,
+                                                               methodId);
+    if (depth == stackNodes.length)
+    {
+      if (depth >= MAX_DEPTH)
+      {
+        // Frames which an exception unwound without an exit probe
+        int keep = depth / 2;
+        System.arraycopy(stackMethods, depth - keep, stackMethods, 0, keep);
+        System.arraycopy(stackNodes, depth - keep, stackNodes, 0, keep);
+        System.arraycopy(stackStarts, depth - keep, stackStarts, 0, keep);
+        depth = keep;
+      }
+      else
+      {
+        stackMethods = grow(stackMethods, depth * 2);
+        stackNodes = grow(stackNodes, depth * 2);
+        stackStarts = grow(stackStarts, depth * 2);
+      }
+    }
+    stackMethods[depth] = methodId;
+    stackNodes[depth] = node;
+    stackStarts[depth++] = now;
+  }
+
+  synchronized void exit(int methodId, long now)
+  {
+    for (int ii = depth - 1; ii >= 0; ii--)
+    {
+      if (stackMethods[ii] == methodId)
+      {
+        // Frames above were unwound by an exception
+        depth = ii;
+        int node = stackNodes[ii];
+        if (node != NOT_RECORDED)
+        {
+          long elapsed = now - stackStarts[ii];
+          counts[node]++;
+          totalNanos[node] += elapsed;
+          childNanos[parents[node]] += elapsed;
+        }
+        return;
+      }
+    }
+  }
+
+  private int child(int parent, int methodId)
+  {
+    long key = (((long) parent) << 32) | (methodId & 0xFFFFFFFFL);
+    int mask = childKeys.length - 1;
+    int slot = hash(key) & mask;
+    while (childNodes[slot] != 0)
+    {
+      if (childKeys[slot] == key)
+      {
+        return childNodes[slot] - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (nodeCount >= MAX_NODES)
+    {
+      return NOT_RECORDED;
+    }
+    int node = nodeCount++;
+    if (node == methods.length)
+    {
+      int size = node * 2;
+      methods = grow(methods, size);
+      parents = grow(parents, size);
+      counts = grow(counts, size);
+      totalNanos = grow(totalNanos, size);
+      childNanos = grow(childNanos, size);
+    }
+    methods[node] = methodId;
+    parents[node] = parent;
+    counts[node] = 0;
+    totalNanos[node] = 0;
+    childNanos[node] = 0;
+    childKeys[slot] = key;
+    childNodes[slot] = node + 1;
+    if ((nodeCount * 2) > childKeys.length)
+    {
+      rehash();
+    }
+    return node;
+  }
+
+  private void rehash()
+  {
+    long[] oldKeys = childKeys;
+    int[] oldNodes = childNodes;
+    childKeys = new long[oldKeys.length * 2];
+    childNodes = new int[oldNodes.length * 2];
+    int mask = childKeys.length - 1;
+    for (int ii = 0; ii < oldKeys.length; ii++)
+    {
+      if (oldNodes[ii] != 0)
+      {
+        int slot = hash(oldKeys[ii]) & mask;
+        while (childNodes[slot] != 0)
+        {
+          slot = (slot + 1) & mask;
+        }
+        childKeys[slot] = oldKeys[ii];
+        childNodes[slot] = oldNodes[ii];
+      }
+    }
+  }
+
+  private static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static int[] grow(int[] array, int size)
+  {
+    int[] grown = new int[size];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static long[] grow(long[] array, int size)
+  {
+    long[] grown = new long[size];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Forget every recorded call. The calls which are active carry on without
+   * being recorded.
+   */
+  synchronized void clear()
+  {
+    nodeCount = 1;
+    childKeys = new long[128];
+    childNodes = new int[128];
+    counts[0] = 0;
+    totalNanos[0] = 0;
+    childNanos[0] = 0;
+    for (int ii = 0; ii < depth; ii++)
+    {
+      stackNodes[ii] = NOT_RECORDED;
+    }
+  }
+
+  /**
+   * Add this tree's nodes to a merged tree keyed by caller path.
+   *
+   * @param merged
+   *          Map from a path of frames separated by ';' to the call count,
+   *          total time and self time of the path.
+   */
+  synchronized void mergeInto(Map<String, long[]> merged)
+  {
+    String[] paths = new String[nodeCount];
+    for (int node = 1; node < nodeCount; node++)
+    {
+      // Parents are always created before their children
+      int parent = parents[node];
+      String frame = MethodRegistry.getClassName(methods[node]) + "."
+                     + MethodRegistry.getMethodName(methods[node]);
+      paths[node] = (parent == 0) ? frame : paths[parent] + ";" + frame;
+      if (counts[node] == 0)
+      {
+        continue;
+      }
+      long[] values = merged.get(paths[node]);
+      if (values == null)
+      {
+        values = new long[3];
+        merged.put(paths[node], values);
+      }
+      values[0] += counts[node];
+      values[1] += totalNanos[node];
+      values[2] += Math.max(0, totalNanos[node] - childNanos[node]);
+    }
+  }
+}
@@ -0,0 +1,681 @@
+package org.intrace.output.stats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.IMethodIdInstrumentationHandler;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.InstruRunnable;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.StatisticsConfigConstants;
+
+/**
+ * Implements Statistics Mode: instead of tracing every enter and exit, the
+ * calls of each instrumented method are counted and their latencies recorded
+ * in a histogram. A snapshot of the methods called since the previous one is
+ * written to the trace output at a fixed interval, one "STATS:" line per
+ * method.
+ * <p>
+ * Everything is kept in primitive arrays indexed by method id. To keep
+ * threads off each other's cache lines the arrays are striped by thread id,
+ * the stripes are only summed up for a snapshot. Updates are not
+ * synchronized, a racing update within a stripe can lose a call.
+ * <p>
+ * Histogram buckets keep two significant bits of the latency in nanoseconds:
+ * four buckets for each power of two, so a reported percentile is within 25%
+ * of the actual latency.
+ * <p>
+ * Call tree capture attributes the calls to their caller paths instead. Each
+ * thread builds a {@link CallTree} from its probes, the trees are merged by
+ * path for the periodic "CALLTREE:" lines or a collapsed stack export for
+ * flame graphs. The trees of threads which have terminated are folded into a
+ * retired tree when they are next merged, and dropped.
+ */
+public class StatisticsHandler extends IInstrumentationHandlerAdapter
+    implements IMethodIdInstrumentationHandler, IProbeDemand
+{
+  public static final StatisticsHandler INSTANCE = new StatisticsHandler();
+  private StatisticsHandler()
+  {
+    // Private constructor
+  }
+
+  private static final int STRIPES = 8;
+  private static final int STRIPE_MASK = STRIPES - 1;
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_MAGNITUDE = 40;
+  private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2)
+                                     * SUB_BUCKETS;
+  private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+  /**
+   * The statistics of the threads which share a stripe, replaced as a whole
+   * when it grows.
+   */
+  private static final class Stripe
+  {
+    final long[] counts;
+    final long[] totalNanos;
+    final long[] maxNanos;
+    final long[][] histograms;
+
+    Stripe(int size)
+    {
+      counts = new long[size];
+      totalNanos = new long[size];
+      maxNanos = new long[size];
+      histograms = new long[size][];
+    }
+
+    Stripe(Stripe old, int size)
+    {
+      this(size);
+      System.arraycopy(old.counts, 0, counts, 0, old.counts.length);
+      System.arraycopy(old.totalNanos, 0, totalNanos, 0, old.totalNanos.length);
+      System.arraycopy(old.maxNanos, 0, maxNanos, 0, old.maxNanos.length);
+      System.arraycopy(old.histograms, 0, histograms, 0, old.histograms.length);
+    }
+  }
+
+  private final StatisticsSettings statsSettings = new StatisticsSettings("");
+  private volatile boolean statsEnabled = false;
+  private volatile boolean callTreeEnabled = false;
+  private volatile Stripe[] stripes = newStripes(0);
+  private final Queue<CallTree> callTrees = new ConcurrentLinkedQueue<CallTree>();
+
+  /**
+   * Merged paths of the call trees of terminated threads, guarded by this
+   * handler's lock.
+   */
+  private Map<String, long[]> retiredPaths = new HashMap<String, long[]>();
+
+  /**
+   * Call counts at the previous snapshot, guarded by this handler's lock.
+   */
+  private long[] reportedCounts = new long[0];
+  private Map<String, Long> reportedPaths = new HashMap<String, Long>();
+  private Thread reporter = null;
+
+  private static Stripe[] newStripes(int size)
+  {
+    Stripe[] newStripes = new Stripe[STRIPES];
+    for (int ii = 0; ii < STRIPES; ii++)
+    {
+      newStripes[ii] = new Stripe(size);
+    }
+    return newStripes;
+  }
+
+  /**
+   * @return True while statistics mode or call tree capture is on, in which
+   *         case the probes are routed to this handler rather than the trace
+   *         handler.
+   */
+  public boolean isEnabled()
+  {
+    return statsEnabled || callTreeEnabled;
+  }
+
+  @Override
+  public String getResponse(String args)
+  {
+    boolean wasStatsEnabled = statsEnabled;
+    boolean wasCallTreeEnabled = callTreeEnabled;
+    statsSettings.parseArgs(args);
+    String lowerArgs = args.toLowerCase(Locale.ROOT);
+    if (lowerArgs.contains(StatisticsConfigConstants.RESET))
+    {
+      reset();
+    }
+    if (lowerArgs.contains(StatisticsConfigConstants.CALLTREE_RESET))
+    {
+      resetCallTree();
+    }
+    statsEnabled = statsSettings.isStatsEnabled();
+    callTreeEnabled = statsSettings.isCallTreeEnabled();
+    if (isEnabled())
+    {
+      startReporter();
+    }
+    // Report what was recorded since the last snapshot
+    if (wasStatsEnabled && !statsEnabled)
+    {
+      writeSnapshot();
+    }
+    if (wasCallTreeEnabled && !callTreeEnabled)
+    {
+      writeCallTreeSnapshot();
+    }
+    if (lowerArgs.contains(StatisticsConfigConstants.CALLTREE_COLLAPSED))
+    {
+      return getCollapsedStacks();
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getSettingsMap()
+  {
+    return statsSettings.getSettingsMap();
+  }
+
+  @Override
+  public boolean isEntryExitDemanded()
+  {
+    return true;
+  }
+
+  @Override
+  public boolean isBranchDemanded()
+  {
+    return false;
+  }
+
+  @Override
+  public boolean isArgDemanded()
+  {
+    return false;
+  }
+
+  @Override
+  public void enter(int methodId, int lineNo)
+  {
+    ThreadProbeState state = ThreadProbeState.current();
+    long now = System.nanoTime();
+    if (statsEnabled)
+    {
+      state.pushTiming(methodId, now);
+    }
+    if (callTreeEnabled)
+    {
+      callTree(state).enter(methodId, now);
+    }
+  }
+
+  @Override
+  public void exit(int methodId, int lineNo)
+  {
+    ThreadProbeState state = ThreadProbeState.current();
+    long now = System.nanoTime();
+    if (statsEnabled)
+    {
+      long start = state.popTiming(methodId);
+      if (start >= 0)
+      {
+        record(methodId, now - start);
+      }
+    }
+    if (callTreeEnabled)
+    {
+      callTree(state).exit(methodId, now);
+    }
+  }
+
+  private CallTree callTree(ThreadProbeState state)
+  {
+    CallTree tree = (CallTree) state.getHandlerState();
+    if (tree == null)
+    {
+      tree = new CallTree(Thread.currentThread());
+      state.setHandlerState(tree);
+      callTrees.add(tree);
+    }
+    return tree;
+  }
+
+  /**
+   * Record a completed call.
+   *
+   * @param methodId
+   * @param nanos
+   *          Time from the entry to the exit of the call.
+   */
+  public void record(int methodId, long nanos)
+  {
+    int stripeIndex = (int) Thread.currentThread().getId() & STRIPE_MASK;
+    Stripe stripe = stripes[stripeIndex];
+    if (methodId >= stripe.counts.length)
+    {
+      stripe = grow(methodId)[stripeIndex];
+    }
+    stripe.counts[methodId]++;
+    stripe.totalNanos[methodId] += nanos;
+    if (nanos > stripe.maxNanos[methodId])
+    {
+      stripe.maxNanos[methodId] = nanos;
+    }
+    long[] histogram = stripe.histograms[methodId];
+    if (histogram == null)
+    {
+      histogram = new long[BUCKETS];
+      stripe.histograms[methodId] = histogram;
+    }
+    histogram[bucket(nanos)]++;
+  }
+
+  private synchronized Stripe[] grow(int methodId)
+  {
+    Stripe[] current = stripes;
+    if (methodId >= current[0].counts.length)
+    {
+      int size = Math.max(methodId + 1,
+                          Math.max(MethodRegistry.idLimit(),
+                                   current[0].counts.length * 2));
+      Stripe[] grown = new Stripe[STRIPES];
+      for (int ii = 0; ii < STRIPES; ii++)
+      {
+        grown[ii] = new Stripe(current[ii], size);
+      }
+      stripes = grown;
+      current = grown;
+    }
+    return current;
+  }
+
+  private static int bucket(long nanos)
+  {
+    if (nanos < SUB_BUCKETS)
+    {
+      return (nanos < 0) ? 0 : (int) nanos;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+    if (magnitude > MAX_MAGNITUDE)
+    {
+      return BUCKETS - 1;
+    }
+    int shift = magnitude - SUB_BUCKET_BITS;
+    return ((shift + 1) * SUB_BUCKETS)
+           + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * @param bucket
+   * @return The highest latency which falls into the bucket.
+   */
+  private static long highestValue(int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+    {
+      return bucket;
+    }
+    int shift = (bucket / SUB_BUCKETS) - 1;
+    long lowest = ((long) (SUB_BUCKETS + (bucket % SUB_BUCKETS))) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /**
+   * Forget every recorded call.
+   */
+  public synchronized void reset()
+  {
+    stripes = newStripes(MethodRegistry.idLimit());
+    reportedCounts = new long[0];
+  }
+
+  /**
+   * @return One line for each method called since the previous snapshot,
+   *         with its total number of calls and latency distribution.
+   */
+  public synchronized List<String> snapshot()
+  {
+    List<String> lines = new ArrayList<String>();
+    Stripe[] current = stripes;
+    int size = current[0].counts.length;
+    long[] counts = new long[size];
+    long[] histogram = new long[BUCKETS];
+    for (int id = 0; id < size; id++)
+    {
+      long count = 0;
+      long total = 0;
+      long max = 0;
+      for (Stripe stripe : current)
+      {
+        count += stripe.counts[id];
+        total += stripe.totalNanos[id];
+        max = Math.max(max, stripe.maxNanos[id]);
+      }
+      counts[id] = count;
+      long reported = (id < reportedCounts.length) ? reportedCounts[id] : 0;
+      if (count == reported)
+      {
+        continue;
+      }
+
+      long histogramCount = 0;
+      for (int bucket = 0; bucket < BUCKETS; bucket++)
+      {
+        long bucketCount = 0;
+        for (Stripe stripe : current)
+        {
+          long[] stripeHistogram = stripe.histograms[id];
+          if (stripeHistogram != null)
+          {
+            bucketCount += stripeHistogram[bucket];
+          }
+        }
+        histogram[bucket] = bucketCount;
+        histogramCount += bucketCount;
+      }
+
+      StringBuilder line = new StringBuilder("STATS: ");
+      line.append(MethodRegistry.getQualifiedName(id));
+      line.append(" count=").append(count);
+      line.append(" mean=").append(formatNanos(total / Math.max(1, count)));
+      for (double percentile : PERCENTILES)
+      {
+        line.append(" p").append((int) (percentile * 100)).append('=');
+        line.append(formatNanos(Math.min(max,
+                                         valueAt(histogram, histogramCount,
+                                                 percentile))));
+      }
+      line.append(" max=").append(formatNanos(max));
+      lines.add(line.toString());
+    }
+    reportedCounts = counts;
+    return lines;
+  }
+
+  /**
+   * Forget every call recorded in the call trees.
+   */
+  public synchronized void resetCallTree()
+  {
+    for (CallTree tree : callTrees)
+    {
+      tree.clear();
+    }
+    retiredPaths = new HashMap<String, long[]>();
+    reportedPaths = new HashMap<String, Long>();
+  }
+
+  /**
+   * Merge the call trees of every thread. The trees of terminated threads are
+   * moved into the retired paths.
+   */
+  private synchronized Map<String, long[]> mergeCallTrees()
+  {
+    for (Iterator<CallTree> trees = callTrees.iterator(); trees.hasNext();)
+    {
+      CallTree tree = trees.next();
+      if (!tree.isOwnerAlive())
+      {
+        tree.mergeInto(retiredPaths);
+        trees.remove();
+      }
+    }
+    // Let go of the probe state, and with it the tree, of dead threads
+    ThreadProbeState.clearDeadThreads();
+
+    Map<String, long[]> merged = new TreeMap<String, long[]>();
+    for (Map.Entry<String, long[]> entry : retiredPaths.entrySet())
+    {
+      merged.put(entry.getKey(), entry.getValue().clone());
+    }
+    for (CallTree tree : callTrees)
+    {
+      tree.mergeInto(merged);
+    }
+    return merged;
+  }
+
+  /**
+   * @return One line for each caller path along which calls completed since
+   *         the previous snapshot, with its total number of calls, total time
+   *         and self time.
+   */
+  public synchronized List<String> callTreeSnapshot()
+  {
+    List<String> lines = new ArrayList<String>();
+    Map<String, Long> paths = new HashMap<String, Long>();
+    for (Map.Entry<String, long[]> entry : mergeCallTrees().entrySet())
+    {
+      long[] values = entry.getValue();
+      paths.put(entry.getKey(), values[0]);
+      Long reported = reportedPaths.get(entry.getKey());
+      if ((reported != null) && (reported == values[0]))
+      {
+        continue;
+      }
+      lines.add("CALLTREE: " + entry.getKey() + " count=" + values[0]
+                + " total=" + formatNanos(values[1]) + " self="
+                + formatNanos(values[2]));
+    }
+    reportedPaths = paths;
+    return lines;
+  }
+
+  /**
+   * @return The call trees in the collapsed stack format read by flame graph
+   *         tools: one line per caller path, its frames separated by ';',
+   *         followed by its self time in microseconds.
+   */
+  public String getCollapsedStacks()
+  {
+    StringBuilder collapsed = new StringBuilder();
+    for (Map.Entry<String, long[]> entry : mergeCallTrees().entrySet())
+    {
+      collapsed.append(entry.getKey()).append(' ');
+      collapsed.append(entry.getValue()[2] / 1000).append('\n');
+    }
+    return collapsed.toString();
+  }
+
+  private static long valueAt(long[] histogram, long count, double percentile)
+  {
+    long rank = (long) Math.ceil(percentile * count);
+    long seen = 0;
+    for (int bucket = 0; bucket < histogram.length; bucket++)
+    {
+      seen += histogram[bucket];
+      if ((seen > 0) && (seen >= rank))
+      {
+        return highestValue(bucket);
+      }
+    }
+    return 0;
+  }
+
+  private static String formatNanos(long nanos)
+  {
+    return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+  }
+
+  private void writeSnapshot()
+  {
+    for (String line : snapshot())
+    {
+      TraceHandler.INSTANCE.writeTraceOutput(line);
+    }
+  }
+
+  private void writeCallTreeSnapshot()
+  {
+    for (String line : callTreeSnapshot())
+    {
+      TraceHandler.INSTANCE.writeTraceOutput(line);
+    }
+  }
+
+  private synchronized void startReporter()
+  {
+    if (reporter != null)
+    {
+      return;
+    }
+    reporter = new Thread(new InstruRunnable()
+    {
+      @Override
+      public void runMethod()
+      {
+        while (true)
+        {
+          try
+          {
+            Thread.sleep(statsSettings.getIntervalMillis());
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          if (statsEnabled)
+          {
+            writeSnapshot();
+          }
+          if (callTreeEnabled)
+          {
+            writeCallTreeSnapshot();
+          }
+        }
+      }
+    }, "InTrace-Statistics");
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
+  // Values, branches and exceptions aren't part of the statistics
+
+  @Override
+  public void val(String desc, int methodId, byte byteArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, byte[] byteArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, short shortArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, short[] shortArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, int intArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, int[] intArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, long longArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, long[] longArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, float floatArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, float[] floatArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, double doubleArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, double[] doubleArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, boolean boolArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, boolean[] boolArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, char charArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, char[] charArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, Object objArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, Object[] objArrayArg)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void val(String desc, int methodId, int lineNo, Throwable throwable)
+  {
+    // Do nothing
+  }
+
+  @Override
+  public void branch(int methodId, int lineNo)
+  {
+    // Do nothing
+  }
+
+  // Name based events, from callers which don't have a method id
+
+  @Override
+  public void enter(String className, String methodName, int lineNo)
+  {
+    enter(MethodRegistry.register(className, methodName, null), lineNo);
+  }
+
+  @Override
+  public void exit(String className, String methodName, int lineNo)
+  {
+    exit(MethodRegistry.register(className, methodName, null), lineNo);
+  }
+}
@@ -0,0 +1,94 @@
+package org.intrace.output.stats;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.intrace.shared.StatisticsConfigConstants;
+
+/**
+ * Args Format: "[arg1[arg2[arg3"
+ * 
+ * where argx is of the form value-parameter
+ */
+public class StatisticsSettings
+{
+  private static final int DEFAULT_INTERVAL_MILLIS = 5000;
+
+  private boolean statsEnabled = false;
+  private boolean callTreeEnabled = false;
+  private int intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+  public StatisticsSettings(StatisticsSettings oldSettings)
+  {
+    statsEnabled = oldSettings.statsEnabled;
+    callTreeEnabled = oldSettings.callTreeEnabled;
+    intervalMillis = oldSettings.intervalMillis;
+  }
+
+  public StatisticsSettings(String args)
+  {
+    parseArgs(args);
+  }
+
+  public void parseArgs(String args)
+  {
+    String[] seperateArgs = args.split("\\[");
+    for (int ii = 0; ii < seperateArgs.length; ii++)
+    {
+      parseArg("[" + seperateArgs[ii].toLowerCase(Locale.ROOT));
+    }
+  }
+
+  private void parseArg(String arg)
+  {
+    if (arg.equals(StatisticsConfigConstants.STATS + "true"))
+    {
+      statsEnabled = true;
+    }
+    else if (arg.equals(StatisticsConfigConstants.STATS + "false"))
+    {
+      statsEnabled = false;
+    }
+    else if (arg.equals(StatisticsConfigConstants.CALLTREE + "true"))
+    {
+      callTreeEnabled = true;
+    }
+    else if (arg.equals(StatisticsConfigConstants.CALLTREE + "false"))
+    {
+      callTreeEnabled = false;
+    }
+    else if (arg.startsWith(StatisticsConfigConstants.INTERVAL))
+    {
+      String intervalStr = arg.substring(StatisticsConfigConstants.INTERVAL.length());
+      intervalMillis = Math.max(1, Integer.parseInt(intervalStr));
+    }
+  }
+
+  public boolean isStatsEnabled()
+  {
+    return statsEnabled;
+  }
+
+  public boolean isCallTreeEnabled()
+  {
+    return callTreeEnabled;
+  }
+
+  public int getIntervalMillis()
+  {
+    return intervalMillis;
+  }
+
+  public Map<String, String> getSettingsMap()
+  {
+    Map<String, String> settingsMap = new HashMap<String, String>();
+    settingsMap.put(StatisticsConfigConstants.STATS,
+                    Boolean.toString(statsEnabled));
+    settingsMap.put(StatisticsConfigConstants.CALLTREE,
+                    Boolean.toString(callTreeEnabled));
+    settingsMap.put(StatisticsConfigConstants.INTERVAL,
+                    Integer.toString(intervalMillis));
+    return settingsMap;
+  }
+}
@@ -0,0 +1,129 @@
+package org.intrace.output.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trace events of a thread's current slow call candidate: the outermost call
+ * on the thread of a method with a slow call threshold. Events are staged
+ * here until the call exits, then either written out as a unit or dropped.
+ * Recursive calls of the same method are part of the unit.
+ * <p>
+ * Once {@link #MAX_STAGED_EVENTS} events are staged, the rest of the call's
+ * events are only counted.
+ * <p>
+ * A unit is only closed by the exit probe of its call. Methods which can open
+ * a unit are instrumented with a catch-all handler which runs the exit probe
+ * when an exception unwinds them, see
+ * {@link org.intrace.agent.InstrumentedClassWriter}. Constructors have no
+ * handler, an exception unwinding a constructor leaves the unit open, staging
+ * the thread's later events, until the slow call settings change. Each unit
+ * records the epoch of the settings it was opened under and is discarded
+ * once they change.
+ */
+final class SlowCallUnit
+{
+  static final int MAX_STAGED_EVENTS = 10000;
+
+  private static final int NONE = -1;
+
+  private int methodId = NONE;
+  private int recursion = 0;
+  private long startNanos;
+  private long thresholdNanos;
+  private long epoch;
+  private final List<Object> staged = new ArrayList<Object>();
+  private int dropped = 0;
+
+  boolean isOpen()
+  {
+    return methodId != NONE;
+  }
+
+  void open(int methodId, long startNanos, long thresholdNanos, long epoch)
+  {
+    this.methodId = methodId;
+    this.recursion = 1;
+    this.startNanos = startNanos;
+    this.thresholdNanos = thresholdNanos;
+    this.epoch = epoch;
+  }
+
+  /**
+   * @return True if the unit was opened under the given settings epoch.
+   */
+  boolean isCurrent(long currentEpoch)
+  {
+    return epoch == currentEpoch;
+  }
+
+  /**
+   * Record a call of a method within the unit.
+   */
+  void entered(int calledId)
+  {
+    if (calledId == methodId)
+    {
+      recursion++;
+    }
+  }
+
+  /**
+   * Record the exit of a method within the unit.
+   *
+   * @return True if this was the exit of the unit's call.
+   */
+  boolean exited(int calledId)
+  {
+    return (calledId == methodId) && (--recursion == 0);
+  }
+
+  int getMethodId()
+  {
+    return methodId;
+  }
+
+  long getElapsedNanos(long now)
+  {
+    return now - startNanos;
+  }
+
+  boolean isSlow(long now)
+  {
+    return getElapsedNanos(now) > thresholdNanos;
+  }
+
+  /**
+   * @param event
+   *          A trace line or an encoded binary event.
+   */
+  void stage(Object event)
+  {
+    if (staged.size() < MAX_STAGED_EVENTS)
+    {
+      staged.add(event);
+    }
+    else
+    {
+      dropped++;
+    }
+  }
+
+  List<Object> getStaged()
+  {
+    return staged;
+  }
+
+  int getDropped()
+  {
+    return dropped;
+  }
+
+  void close()
+  {
+    methodId = NONE;
+    recursion = 0;
+    staged.clear();
+    dropped = 0;
+  }
+}
@@ -3,18 +3,29 @@ package org.intrace.output.trace;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Array;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.intrace.output.AgentHelper;
-import org.intrace.output.IInstrumentationHandler;
+import org.intrace.output.IMethodIdInstrumentationHandler;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.SlowCallThresholds;
+import org.intrace.output.StackFingerprints;
+import org.intrace.shared.TraceEventBuffer;
+import org.intrace.shared.TraceEventCodec;
+import org.intrace.shared.TraceTimestampFormat;
 
 /**
  * Implements Standard Output Tracing
+ * <p>
+ * With a slow call threshold, globally or for a method, the events of a call
+ * are staged per thread and only written out, after a "SLOWCALL:" line, if
+ * the call turns out to be slower than the threshold.
  */
-public class TraceHandler implements IInstrumentationHandler
+public class TraceHandler implements IMethodIdInstrumentationHandler,
+    IProbeDemand
 {
 	/**
 	 * Including the period at the end enables code in "org.intracetest" to be included in the trace
@@ -22,6 +33,7 @@ public class TraceHandler implements IInstrumentationHandler
   private static final String INTRACE_PACKAGE = "org.intrace.";
   private static final String THREAD = "java.lang.Thread";
   private static final String GET_STACK_TRACE = "getStackTrace";
+  private static final int MAX_CAUSE_DEPTH = 32;
   public static final TraceHandler INSTANCE = new TraceHandler();
   private TraceHandler()
   {
@@ -33,6 +45,27 @@ public class TraceHandler implements IInstrumentationHandler
   private boolean argTrace = true;
   private boolean truncateArrays = true;
   private boolean exitStackTrace = false;
+  private boolean binaryEvents = false;
+  private long slowCallNanos = 0;
+  private int slowCallEpoch = 0;
+
+  private final ThreadLocal<TraceEventBuffer> eventBuffer = new ThreadLocal<TraceEventBuffer>()
+  {
+    @Override
+    protected TraceEventBuffer initialValue()
+    {
+      return new TraceEventBuffer();
+    }
+  };
+
+  private final ThreadLocal<SlowCallUnit> slowCallUnits = new ThreadLocal<SlowCallUnit>()
+  {
+    @Override
+    protected SlowCallUnit initialValue()
+    {
+      return new SlowCallUnit();
+    }
+  };
 
   private static final TraceSettings traceSettings = new TraceSettings("");
 
@@ -59,16 +92,50 @@ public class TraceHandler implements IInstrumentationHandler
     argTrace = traceSettings.isArgTraceEnabled();
     truncateArrays = traceSettings.isTruncateArraysEnabled();
     exitStackTrace = traceSettings.isExitStackTraceEnabled();
+    binaryEvents = traceSettings.isBinaryEventsEnabled();
+    long newSlowCallNanos = TimeUnit.MILLISECONDS.toNanos(traceSettings.getSlowCallThresholdMillis());
+    if (newSlowCallNanos != slowCallNanos)
+    {
+      slowCallNanos = newSlowCallNanos;
+      slowCallEpoch++;
+    }
 
     return null;
   }
 
+  /**
+   * @return True if the global slow call threshold is set, in which case
+   *         every instrumented method is a slow call candidate.
+   */
+  public boolean isSlowCallThresholdSet()
+  {
+    return slowCallNanos > 0;
+  }
+
   @Override
   public Map<String, String> getSettingsMap()
   {
     return traceSettings.getSettingsMap();
   }
 
+  @Override
+  public boolean isEntryExitDemanded()
+  {
+    return entryExitTrace;
+  }
+
+  @Override
+  public boolean isBranchDemanded()
+  {
+    return branchTrace;
+  }
+
+  @Override
+  public boolean isArgDemanded()
+  {
+    return argTrace;
+  }
+
   private String getArrayLenStr(Object array)
   {
     String lRet = "";
@@ -91,174 +158,306 @@ public class TraceHandler implements IInstrumentationHandler
   }
 
   @Override
-  public void val(String desc, String className, String methodName, byte byteArg)
+  public void val(String desc, int methodId, byte byteArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + byteArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(byteArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + byteArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  byte[] byteArrayArg)
+  public void val(String desc, int methodId, byte[] byteArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(byteArrayArg) + arrayStr(Arrays.toString(byteArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(byteArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(byteArrayArg) + arrayStr(Arrays.toString(byteArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  short shortArg)
+  public void val(String desc, int methodId, short shortArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + shortArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(shortArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + shortArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  short[] shortArrayArg)
+  public void val(String desc, int methodId, short[] shortArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(shortArrayArg) + arrayStr(Arrays.toString(shortArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(shortArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(shortArrayArg) + arrayStr(Arrays.toString(shortArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName, int intArg)
+  public void val(String desc, int methodId, int intArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + intArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(intArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + intArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  int[] intArrayArg)
+  public void val(String desc, int methodId, int[] intArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(intArrayArg) + arrayStr(Arrays.toString(intArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(intArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(intArrayArg) + arrayStr(Arrays.toString(intArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName, long longArg)
+  public void val(String desc, int methodId, long longArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + longArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(longArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + longArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  long[] longArrayArg)
+  public void val(String desc, int methodId, long[] longArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(longArrayArg) + arrayStr(Arrays.toString(longArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(longArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(longArrayArg) + arrayStr(Arrays.toString(longArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  float floatArg)
+  public void val(String desc, int methodId, float floatArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + floatArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(floatArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + floatArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  float[] floatArrayArg)
+  public void val(String desc, int methodId, float[] floatArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(floatArrayArg) + arrayStr(Arrays.toString(floatArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(floatArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(floatArrayArg) + arrayStr(Arrays.toString(floatArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  double doubleArg)
+  public void val(String desc, int methodId, double doubleArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + doubleArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(doubleArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + doubleArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  double[] doubleArrayArg)
+  public void val(String desc, int methodId, double[] doubleArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(doubleArrayArg) + arrayStr(Arrays.toString(doubleArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(doubleArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(doubleArrayArg) + arrayStr(Arrays.toString(doubleArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  boolean boolArg)
+  public void val(String desc, int methodId, boolean boolArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + boolArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(boolArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + boolArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  boolean[] boolArrayArg)
+  public void val(String desc, int methodId, boolean[] boolArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(boolArrayArg) + arrayStr(Arrays.toString(boolArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(boolArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(boolArrayArg) + arrayStr(Arrays.toString(boolArrayArg)));
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName, char charArg)
+  public void val(String desc, int methodId, char charArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + charArg);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(charArg);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + charArg);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  char[] charArrayArg)
+  public void val(String desc, int methodId, char[] charArrayArg)
   {
     if (argTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(charArrayArg) + arrayStr(Arrays.toString(charArrayArg)));
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(charArrayArg, truncateArrays);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(charArrayArg) + arrayStr(Arrays.toString(charArrayArg)));
+      }
     }
   }
 
@@ -320,8 +519,7 @@ private static final Object STACK_ELE_DELIM = ",";
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  Object objArg)
+  public void val(String desc, int methodId, Object objArg)
   {
     if (argTrace)
     {
@@ -340,43 +538,93 @@ private static final Object STACK_ELE_DELIM = ",";
       {
         objStr = (objArg != null ? objArg.toString() : "null");
       }
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + objStr);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(objStr);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + objStr);
+      }
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName,
-                  Object[] objArrayArg)
+  public void val(String desc, int methodId, Object[] objArrayArg)
   {
     if (argTrace)
     {
       String objStr = Arrays.deepToString(objArrayArg);
       objStr = replaceChars(objStr);
       objStr = arrayStr(objStr);
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ": "
-                       + getArrayLenStr(objArrayArg) + objStr);
+      if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginValEvent(desc, methodId);
+        buf.putValue(getArrayLenStr(objArrayArg) + objStr);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": " + desc + ": "
+                         + getArrayLenStr(objArrayArg) + objStr);
+      }
     }
   }
 
   @Override
-  public void branch(String className, String methodName, int lineNo)
+  public void branch(int methodId, int lineNo)
   {
-    if (branchTrace)
+    if (branchTrace && binaryEvents)
+    {
+      TraceEventBuffer buf = beginEvent(TraceEventCodec.BRANCH, methodId);
+      buf.putInt(lineNo);
+      writeTraceEvent(buf);
+    }
+    else if (branchTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": /" +
+      writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": /" +
                        (lineNo >= 0 ? ":" + lineNo : ""));
     }
   }
 
   @Override
-  public void val(String desc, String className, String methodName, int lineNo,
+  public void val(String desc, int methodId, int lineNo,
                   Throwable throwable)
   {
     if (branchTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": " + desc + ":"
-                       + lineNo + ": " + throwableToString(throwable));
+      String header = (throwable != null) ? throwable.toString() : null;
+      int textId = (throwable != null) ? throwableTextId(throwable, header)
+                                       : StackFingerprints.NONE;
+      if (binaryEvents && (textId != StackFingerprints.NONE))
+      {
+        TraceEventBuffer buf = beginEvent(TraceEventCodec.THROWABLE_REF,
+                                          methodId);
+        buf.putString(desc);
+        buf.putInt(lineNo);
+        buf.putString(header);
+        buf.putVarLong(textId);
+        writeTraceEvent(buf);
+      }
+      else if (binaryEvents)
+      {
+        TraceEventBuffer buf = beginEvent(TraceEventCodec.THROWABLE, methodId);
+        buf.putString(desc);
+        buf.putInt(lineNo);
+        buf.putString(throwableToString(throwable));
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        String rendered = (textId != StackFingerprints.NONE)
+                          ? header + StackFingerprints.getText(textId)
+                          : throwableToString(throwable);
+        writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": "
+                         + desc + ":" + lineNo + ": " + rendered);
+      }
     }
   }
 
@@ -397,12 +645,82 @@ private static final Object STACK_ELE_DELIM = ",";
     return throwToStr.toString();
   }
 
+  /**
+   * The rendered throwable is its header (toString()) followed by the text
+   * which this returns the id of: the frames and causes. Only the first
+   * throwable with a given fingerprint is rendered.
+   *
+   * @return The text id, or {@link StackFingerprints#NONE} if the throwable
+   *         has to be rendered inline.
+   */
+  private int throwableTextId(Throwable throwable, String header)
+  {
+    long fingerprint = throwableFingerprint(throwable);
+    if (fingerprint == 0)
+    {
+      return StackFingerprints.NONE;
+    }
+    int textId = StackFingerprints.lookup(fingerprint);
+    if (textId == StackFingerprints.NONE)
+    {
+      String rendered = throwableToString(throwable);
+      if (rendered.startsWith(header))
+      {
+        textId = StackFingerprints.register(fingerprint,
+                                            rendered.substring(header.length()));
+      }
+    }
+    return textId;
+  }
+
+  /**
+   * The fingerprint covers everything printStackTrace() renders except the
+   * message of the throwable itself. Throwables with suppressed exceptions or
+   * long cause chains are not fingerprinted.
+   *
+   * @return The fingerprint or 0.
+   */
+  private static long throwableFingerprint(Throwable throwable)
+  {
+    long fingerprint = StackFingerprints.begin();
+    fingerprint = StackFingerprints.mix(fingerprint, throwable.getClass()
+                                                              .getName());
+    Throwable current = throwable;
+    for (int depth = 0; current != null; depth++)
+    {
+      if ((depth >= MAX_CAUSE_DEPTH) || (current.getSuppressed().length > 0))
+      {
+        return 0;
+      }
+      if (current != throwable)
+      {
+        fingerprint = StackFingerprints.mix(fingerprint, current.toString());
+      }
+      for (StackTraceElement frame : current.getStackTrace())
+      {
+        fingerprint = StackFingerprints.mix(fingerprint, frame);
+      }
+      current = current.getCause();
+    }
+    return fingerprint;
+  }
+
   @Override
-  public void enter(String className, String methodName, int lineNo)
+  public void enter(int methodId, int lineNo)
   {
     if (entryExitTrace)
     {
-      writeTraceOutput(className + ":" + methodName + ": {" +
+      enterSlowCall(methodId);
+    }
+    if (entryExitTrace && binaryEvents)
+    {
+      TraceEventBuffer buf = beginEvent(TraceEventCodec.ENTER, methodId);
+      buf.putInt(lineNo);
+      writeTraceEvent(buf);
+    }
+    else if (entryExitTrace)
+    {
+      writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": {" +
                        (lineNo >= 0 ? ":" + lineNo : ""));
     }
   }
@@ -411,47 +729,104 @@ private static final Object STACK_ELE_DELIM = ",";
    * Remove all "org.intrace" elements from the current stack trace and return it as string.
    * @return
    */
-  public String getStackTrace() {
+  public String getStackTrace()
+  {
+    StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+    int textId = stackTextId(stack);
+    return (textId != StackFingerprints.NONE) ? StackFingerprints.getText(textId)
+                                              : stackToString(stack);
+  }
+
+  /**
+   * @return The text id of the rendered stack, rendering it if it has not
+   *         been seen before, or {@link StackFingerprints#NONE}.
+   */
+  private static int stackTextId(StackTraceElement[] stack)
+  {
+    long fingerprint = StackFingerprints.begin();
+    for (StackTraceElement ste : stack)
+    {
+      if (isReported(ste))
+      {
+        fingerprint = StackFingerprints.mix(fingerprint, ste);
+      }
+    }
+    int textId = StackFingerprints.lookup(fingerprint);
+    if (textId == StackFingerprints.NONE)
+    {
+      textId = StackFingerprints.register(fingerprint, stackToString(stack));
+    }
+    return textId;
+  }
 
+  private static String stackToString(StackTraceElement[] stack)
+  {
 	  StringBuilder sb = new StringBuilder();
 	  int counter = 0;
-	  for(StackTraceElement ste : Thread.currentThread().getStackTrace() ) {
-		  boolean disqualify = false;
-		  if (ste != null) {
-			  
-			  if ( (ste.getClassName() !=null) &&
-					(  (ste.getClassName().indexOf(INTRACE_PACKAGE) >= 0) 
-					  || (ste.getClassName().indexOf(THREAD) >= 0) ) 
-				)
-				  disqualify = true;
-				  
-			  if (ste.getMethodName()!=null 
-					  && ste.getMethodName().indexOf(GET_STACK_TRACE) >=0)
-					  disqualify = true;
-		  }
-				   
-		  if ( !disqualify) {
+	  for(StackTraceElement ste : stack ) {
+		  if (isReported(ste)) {
 			  if (counter++>0) sb.append(STACK_ELE_DELIM);  //Just like Arrays.toString(), place a comma between each stack trace ele.
 			  sb.append(ste.toString());
 		  }
 	  }
 	  return sb.toString();
   }
+
+  private static boolean isReported(StackTraceElement ste)
+  {
+	  if (ste != null) {
+		  if ( (ste.getClassName() !=null) &&
+				(  (ste.getClassName().indexOf(INTRACE_PACKAGE) >= 0) 
+				  || (ste.getClassName().indexOf(THREAD) >= 0) ) 
+			)
+			  return false;
+
+		  if (ste.getMethodName()!=null 
+				  && ste.getMethodName().indexOf(GET_STACK_TRACE) >=0)
+			  return false;
+	  }
+	  return true;
+  }
+
   @Override
-  public void exit(String className, String methodName, int lineNo)
+  public void exit(int methodId, int lineNo)
   {
-    if (entryExitTrace)
+    if (entryExitTrace && binaryEvents)
+    {
+      int textId = exitStackTrace ? stackTextId(Thread.currentThread()
+                                                      .getStackTrace())
+                                  : StackFingerprints.NONE;
+      if (textId != StackFingerprints.NONE)
+      {
+        TraceEventBuffer buf = beginEvent(TraceEventCodec.EXIT_REF, methodId);
+        buf.putInt(lineNo);
+        buf.putVarLong(textId);
+        writeTraceEvent(buf);
+      }
+      else
+      {
+        TraceEventBuffer buf = beginEvent(TraceEventCodec.EXIT, methodId);
+        buf.putInt(lineNo);
+        buf.putString(exitStackTrace ? getStackTrace() : null);
+        writeTraceEvent(buf);
+      }
+    }
+    else if (entryExitTrace)
     {
 
         if (exitStackTrace) {
-        	writeTraceOutput(className + ":" + methodName + ": }" +
+        	writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": }" +
                     (lineNo >= 0 ? ":" + lineNo : "") +
                     STACK_TRACE_DELIM + getStackTrace() );
         } else {
-        	writeTraceOutput(className + ":" + methodName + ": }" +
+        	writeProbeOutput(MethodRegistry.getQualifiedName(methodId) + ": }" +
                     (lineNo >= 0 ? ":" + lineNo : "") );
         }
     }
+    if (entryExitTrace)
+    {
+      exitSlowCall(methodId);
+    }
   }
 
   /**
@@ -466,10 +841,21 @@ private static final Object STACK_ELE_DELIM = ",";
    */
   public void writeTraceOutput(String xiOutput)
   {
-    SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    writeTraceLine(formatTraceLine(xiOutput));
+  }
+
+  private static String formatTraceLine(String xiOutput)
+  {
     long threadID = Thread.currentThread().getId();
-    String traceString = "[" + dateFormat.format(new Date()) + "]:[" + threadID
-                         + "]:" + xiOutput;
+    StringBuilder traceLine = new StringBuilder(xiOutput.length() + 32);
+    traceLine.append('[');
+    TraceTimestampFormat.append(traceLine, System.currentTimeMillis());
+    traceLine.append("]:[").append(threadID).append("]:").append(xiOutput);
+    return traceLine.toString();
+  }
+
+  private static void writeTraceLine(String traceString)
+  {
 //    if (AgentHelper.getOutputSettings().isStdoutOutputEnabled())
 //    {
 ////      System.out.println(traceString);
@@ -485,4 +871,348 @@ private static final Object STACK_ELE_DELIM = ",";
       AgentHelper.writeDataOutput(traceString);
     }
   }
+
+  /**
+   * Write the output of a probe, or stage it if the thread is in a slow call
+   * candidate.
+   */
+  private void writeProbeOutput(String xiOutput)
+  {
+    SlowCallUnit unit = openSlowCallUnit();
+    if (unit != null)
+    {
+      unit.stage(formatTraceLine(xiOutput));
+    }
+    else
+    {
+      writeTraceOutput(xiOutput);
+    }
+  }
+
+  // Slow call capture
+
+  /**
+   * @return The thread's slow call candidate if one is open.
+   */
+  private SlowCallUnit openSlowCallUnit()
+  {
+    if (!isSlowCallCaptureEnabled())
+    {
+      return null;
+    }
+    SlowCallUnit unit = slowCallUnits.get();
+    if (!unit.isOpen())
+    {
+      return null;
+    }
+    if (!unit.isCurrent(getSlowCallEpoch()))
+    {
+      unit.close();
+      return null;
+    }
+    return unit;
+  }
+
+  /**
+   * @return An epoch which changes with the global threshold and with the
+   *         per method thresholds.
+   */
+  private long getSlowCallEpoch()
+  {
+    return (((long) slowCallEpoch) << 32)
+           | (SlowCallThresholds.getEpoch() & 0xFFFFFFFFL);
+  }
+
+  private boolean isSlowCallCaptureEnabled()
+  {
+    return (slowCallNanos > 0) || SlowCallThresholds.isActive();
+  }
+
+  /**
+   * Called on entry to a method, before its enter event is written: open a
+   * slow call candidate if the method has a threshold and no candidate is
+   * open on the thread. A candidate opened under earlier settings is
+   * discarded.
+   */
+  private void enterSlowCall(int methodId)
+  {
+    if (!isSlowCallCaptureEnabled())
+    {
+      return;
+    }
+    SlowCallUnit unit = slowCallUnits.get();
+    long epoch = getSlowCallEpoch();
+    if (unit.isOpen())
+    {
+      if (unit.isCurrent(epoch))
+      {
+        unit.entered(methodId);
+        return;
+      }
+      unit.close();
+    }
+    int methodMillis = SlowCallThresholds.getThreshold(methodId);
+    long threshold = (methodMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(methodMillis)
+                                        : slowCallNanos;
+    if (threshold > 0)
+    {
+      unit.open(methodId, System.nanoTime(), threshold, epoch);
+    }
+  }
+
+  /**
+   * Called on exit from a method, after its exit event is staged: write out
+   * the staged events if the candidate turned out to be slow.
+   */
+  private void exitSlowCall(int methodId)
+  {
+    SlowCallUnit unit = openSlowCallUnit();
+    if ((unit == null) || !unit.exited(methodId))
+    {
+      return;
+    }
+    long now = System.nanoTime();
+    if (unit.isSlow(now))
+    {
+      StringBuilder header = new StringBuilder("SLOWCALL: ");
+      header.append(MethodRegistry.getQualifiedName(unit.getMethodId()));
+      header.append(" took ");
+      header.append(TimeUnit.NANOSECONDS.toMillis(unit.getElapsedNanos(now)));
+      header.append("ms");
+      if (unit.getDropped() > 0)
+      {
+        header.append(", ").append(unit.getDropped());
+        header.append(" events not captured");
+      }
+      writeTraceOutput(header.toString());
+      for (Object event : unit.getStaged())
+      {
+        if (event instanceof String)
+        {
+          writeTraceLine((String) event);
+        }
+        else
+        {
+          writeTraceEvent((byte[]) event);
+        }
+      }
+    }
+    unit.close();
+  }
+
+  /**
+   * Start encoding a structured event into this thread's reusable buffer.
+   */
+  private TraceEventBuffer beginEvent(byte eventType, int methodId)
+  {
+    return eventBuffer.get().begin(eventType, Thread.currentThread().getId(),
+                                   TraceEventCodec.currentTimeNanos(),
+                                   methodId);
+  }
+
+  private TraceEventBuffer beginValEvent(String desc, int methodId)
+  {
+    TraceEventBuffer buf = beginEvent(TraceEventCodec.VAL, methodId);
+    buf.putString(desc);
+    return buf;
+  }
+
+  /**
+   * Binary equivalent of {@link #writeTraceOutput(String)}. Network output
+   * ships a copy of the encoded event, text is only rendered for the file
+   * sink.
+   *
+   * @param buf
+   */
+  private void writeTraceEvent(TraceEventBuffer buf)
+  {
+    SlowCallUnit unit = openSlowCallUnit();
+    if (unit != null)
+    {
+      unit.stage(buf.toByteArray());
+      return;
+    }
+
+    if (AgentHelper.getOutputSettings().isFileOutputEnabled())
+    {
+      AgentHelper.getOutputSettings().writeFileOutput(buf.array(), buf.length());
+    }
+
+    if (AgentHelper.getOutputSettings().isNetOutputEnabled())
+    {
+      AgentHelper.writeDataOutput(buf.toByteArray());
+    }
+  }
+
+  private static void writeTraceEvent(byte[] event)
+  {
+    if (AgentHelper.getOutputSettings().isFileOutputEnabled())
+    {
+      AgentHelper.getOutputSettings().writeFileOutput(event, event.length);
+    }
+
+    if (AgentHelper.getOutputSettings().isNetOutputEnabled())
+    {
+      AgentHelper.writeDataOutput(event);
+    }
+  }
+
+  // Name based events, from callers which don't have a method id. The method
+  // is registered (once) so both output modes can handle it.
+
+  private static int methodId(String className, String methodName)
+  {
+    return MethodRegistry.register(className, methodName, null);
+  }
+
+  @Override
+  public void enter(String className, String methodName, int lineNo)
+  {
+    enter(methodId(className, methodName), lineNo);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  byte byteArg)
+  {
+    val(desc, methodId(className, methodName), byteArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  byte[] byteArrayArg)
+  {
+    val(desc, methodId(className, methodName), byteArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  short shortArg)
+  {
+    val(desc, methodId(className, methodName), shortArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  short[] shortArrayArg)
+  {
+    val(desc, methodId(className, methodName), shortArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  int intArg)
+  {
+    val(desc, methodId(className, methodName), intArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  int[] intArrayArg)
+  {
+    val(desc, methodId(className, methodName), intArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  long longArg)
+  {
+    val(desc, methodId(className, methodName), longArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  long[] longArrayArg)
+  {
+    val(desc, methodId(className, methodName), longArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  float floatArg)
+  {
+    val(desc, methodId(className, methodName), floatArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  float[] floatArrayArg)
+  {
+    val(desc, methodId(className, methodName), floatArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  double doubleArg)
+  {
+    val(desc, methodId(className, methodName), doubleArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  double[] doubleArrayArg)
+  {
+    val(desc, methodId(className, methodName), doubleArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  boolean boolArg)
+  {
+    val(desc, methodId(className, methodName), boolArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  boolean[] boolArrayArg)
+  {
+    val(desc, methodId(className, methodName), boolArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  char charArg)
+  {
+    val(desc, methodId(className, methodName), charArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  char[] charArrayArg)
+  {
+    val(desc, methodId(className, methodName), charArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  Object objArg)
+  {
+    val(desc, methodId(className, methodName), objArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName,
+                  Object[] objArrayArg)
+  {
+    val(desc, methodId(className, methodName), objArrayArg);
+  }
+
+  @Override
+  public void val(String desc, String className, String methodName, int lineNo,
+                  Throwable throwable)
+  {
+    val(desc, methodId(className, methodName), lineNo, throwable);
+  }
+
+  @Override
+  public void branch(String className, String methodName, int lineNo)
+  {
+    branch(methodId(className, methodName), lineNo);
+  }
+
+  @Override
+  public void exit(String className, String methodName, int lineNo)
+  {
+    exit(methodId(className, methodName), lineNo);
+  }
 }
@@ -28,6 +28,21 @@ public class TraceSettings
    */
   private boolean exitStackTrace = false;
 
+  /**
+   * If true, trace events are encoded as structured binary events and only
+   * rendered as text by the consumer (file sink or client). Exit stack traces
+   * and throwables repeated in binary events are sent as a reference to the
+   * text sent the first time; text events always carry the whole text.
+   */
+  private boolean binaryEventsEnabled = false;
+
+  /**
+   * If positive, a call is only traced if it takes longer than this many
+   * milliseconds. Methods may have a threshold of their own, see
+   * {@link org.intrace.output.SlowCallThresholds}.
+   */
+  private int slowCallThresholdMillis = 0;
+
   public TraceSettings(TraceSettings oldSettings)
   {
     entryExitTraceEnabled = oldSettings.entryExitTraceEnabled;
@@ -35,6 +50,8 @@ public class TraceSettings
     argTraceEnabled = oldSettings.argTraceEnabled; 
     truncateArraysEnabled = oldSettings.truncateArraysEnabled;
     exitStackTrace = oldSettings.exitStackTrace;
+    binaryEventsEnabled = oldSettings.binaryEventsEnabled;
+    slowCallThresholdMillis = oldSettings.slowCallThresholdMillis;
   }
 
   public TraceSettings(String args)
@@ -93,6 +110,19 @@ public class TraceSettings
     {
       exitStackTrace = true;
     }
+    else if (arg.equals(TraceConfigConstants.BINARY + "true"))
+    {
+      binaryEventsEnabled = true;
+    }
+    else if (arg.equals(TraceConfigConstants.BINARY + "false"))
+    {
+      binaryEventsEnabled = false;
+    }
+    else if (arg.startsWith(TraceConfigConstants.SLOW_CALL_THRESHOLD))
+    {
+      String thresholdStr = arg.substring(TraceConfigConstants.SLOW_CALL_THRESHOLD.length());
+      slowCallThresholdMillis = Math.max(0, Integer.parseInt(thresholdStr));
+    }
   }
 
   public boolean isEntryExitTraceEnabled()
@@ -118,6 +148,16 @@ public class TraceSettings
 	  return exitStackTrace;
   }
 
+  public boolean isBinaryEventsEnabled()
+  {
+    return binaryEventsEnabled;
+  }
+
+  public int getSlowCallThresholdMillis()
+  {
+    return slowCallThresholdMillis;
+  }
+
   public Map<String, String> getSettingsMap()
   {
     Map<String, String> settingsMap = new HashMap<String, String>();
@@ -132,6 +172,10 @@ public class TraceSettings
     
     settingsMap.put(TraceConfigConstants.EXIT_STACK_TRACE,
             Boolean.toString(exitStackTrace));
+    settingsMap.put(TraceConfigConstants.BINARY,
+            Boolean.toString(binaryEventsEnabled));
+    settingsMap.put(TraceConfigConstants.SLOW_CALL_THRESHOLD,
+            Integer.toString(slowCallThresholdMillis));
     return settingsMap;
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
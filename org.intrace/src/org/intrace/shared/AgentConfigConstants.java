@@ -13,6 +13,11 @@ public class AgentConfigConstants
   public static final String NUM_PROGRESS_COUNT = "NUM_PROGRESS_COUNT";
   public static final String NUM_PROGRESS_TOTAL = "NUM_PROGRESS_TOTAL";
   public static final String NUM_PROGRESS_DONE = "NUM_PROGRESS_DONE";
+
+  public static final String GOVERNOR_ID = "GOVERNOR_ID";
+  public static final String GOVERNOR_SUPPRESSED = "GOVERNOR_SUPPRESSED";
+  public static final String GOVERNOR_REMOVED = "GOVERNOR_REMOVED";
+  public static final String GOVERNOR_RESTORED = "GOVERNOR_RESTORED";
   
   public static final String SERVER_PORT = "SERVER_PORT";
 
@@ -24,6 +29,21 @@ public class AgentConfigConstants
   public static final String OPT_SERVER_PORT = "[serverport-";
   public static final String CALLBACK_PORT = "[callbackport-";
   public static final String EXIT_STACK_TRACE = "[exit-stack-trace-";
+  public static final String INSTRU_CACHE = "[instrucache-";
+  public static final String RETRANSFORM_BUDGET = "[retransform-budget-";
+  public static final String OFFLINE_DICTIONARY = "[offlinedict-";
+  public static final String GOVERNOR_BUDGET = "[governor-budget-";
+  public static final String GOVERNOR_REMOVE = "[governor-remove-";
+  public static final String GOVERNOR_RESET = "[governor-reset";
+  public static final String GOVERNOR_LIST = "[governor-list";
+  public static final String TRIVIAL = "[trivial-";
+  public static final String TRIVIAL_THRESHOLD = "[trivial-threshold-";
+  public static final String TRIVIAL_COUNTS = "[trivial-counts";
+  public static final String CALLERS_START = "[callers-start-";
+  public static final String CALLERS_STOP = "[callers-stop";
+  public static final String TRIVIAL_OFF = "off";
+  public static final String TRIVIAL_SKIP = "skip";
+  public static final String TRIVIAL_COUNT = "count";
   
   public static final String START_WAIT = "[startwait";
   public static final String START_ACTIVATE = "[startactivate";
@@ -39,5 +59,17 @@ public class AgentConfigConstants
     COMMANDS.add(OPT_SERVER_PORT + "<int>");
     COMMANDS.add(CALLBACK_PORT + "<int>");
     COMMANDS.add(EXIT_STACK_TRACE + "<true/false>");
+    COMMANDS.add(INSTRU_CACHE + "<dir>");
+    COMMANDS.add(RETRANSFORM_BUDGET + "<ms per second>");
+    COMMANDS.add(OFFLINE_DICTIONARY + "<file>[<path separator><file>...]");
+    COMMANDS.add(GOVERNOR_BUDGET + "<events per second>");
+    COMMANDS.add(GOVERNOR_REMOVE + "<seconds>");
+    COMMANDS.add(GOVERNOR_RESET);
+    COMMANDS.add(GOVERNOR_LIST);
+    COMMANDS.add(TRIVIAL + "<off/skip/count>");
+    COMMANDS.add(TRIVIAL_THRESHOLD + "<instructions>");
+    COMMANDS.add(TRIVIAL_COUNTS);
+    COMMANDS.add(CALLERS_START + "<regex>");
+    COMMANDS.add(CALLERS_STOP);
   }
 }
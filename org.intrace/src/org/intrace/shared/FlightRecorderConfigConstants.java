@@ -0,0 +1,22 @@
+package org.intrace.shared;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class FlightRecorderConfigConstants
+{
+  public static final String FLIGHTREC = "[flightrec-";
+  public static final String SIZE = "[flightrec-size-";
+  public static final String EXCEPTION = "[flightrec-exception-";
+  public static final String LATENCY = "[flightrec-latency-";
+  public static final String DUMP = "[flightrec-dump";
+  public static final Set<String> COMMANDS = new HashSet<String>();
+  static
+  {
+    COMMANDS.add(FLIGHTREC + "<true/false>");
+    COMMANDS.add(SIZE + "<events>");
+    COMMANDS.add(EXCEPTION + "<regex>");
+    COMMANDS.add(LATENCY + "<milliseconds>");
+    COMMANDS.add(DUMP);
+  }
+}
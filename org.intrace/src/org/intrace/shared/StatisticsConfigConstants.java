@@ -0,0 +1,24 @@
+package org.intrace.shared;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class StatisticsConfigConstants
+{
+  public static final String STATS = "[stats-";
+  public static final String INTERVAL = "[stats-interval-";
+  public static final String RESET = "[stats-reset";
+  public static final String CALLTREE = "[calltree-";
+  public static final String CALLTREE_COLLAPSED = "[calltree-collapsed";
+  public static final String CALLTREE_RESET = "[calltree-reset";
+  public static final Set<String> COMMANDS = new HashSet<String>();
+  static
+  {
+    COMMANDS.add(STATS + "<true/false>");
+    COMMANDS.add(INTERVAL + "<milliseconds>");
+    COMMANDS.add(RESET);
+    COMMANDS.add(CALLTREE + "<true/false>");
+    COMMANDS.add(CALLTREE_COLLAPSED);
+    COMMANDS.add(CALLTREE_RESET);
+  }
+}
@@ -13,6 +13,8 @@ public class TraceConfigConstants
   public static final String FILE_OUT = "[out-file-";
   public static final String NET_OUT = "[out-network-";
   public static final String EXIT_STACK_TRACE = "[exit-stack-trace-";
+  public static final String BINARY = "[trace-binary-";
+  public static final String SLOW_CALL_THRESHOLD = "[slowcall-threshold-";
   public static final Set<String> COMMANDS = new HashSet<String>();
   static
   {
@@ -24,5 +26,7 @@ public class TraceConfigConstants
     COMMANDS.add(FILE_OUT + "<true/false>");
     COMMANDS.add(NET_OUT + "<true/false>");
     COMMANDS.add(EXIT_STACK_TRACE + "<true/false>");
+    COMMANDS.add(BINARY + "<true/false>");
+    COMMANDS.add(SLOW_CALL_THRESHOLD + "<milliseconds>");
   }
 }
@@ -0,0 +1,297 @@
+package org.intrace.shared;
+
+/**
+ * Reusable, growable buffer into which a single structured trace event is
+ * encoded. Intended to be owned by one thread and reset for every event, so
+ * encoding does not allocate once the buffer has grown to its working size.
+ *
+ * The layout of an event is described in {@link TraceEventCodec}.
+ */
+public class TraceEventBuffer
+{
+  private byte[] buf;
+  private int pos = 0;
+
+  public TraceEventBuffer()
+  {
+    this(256);
+  }
+
+  public TraceEventBuffer(int initialSize)
+  {
+    buf = new byte[Math.max(16, initialSize)];
+  }
+
+  /**
+   * Discard any previous content and write the common event header.
+   */
+  public TraceEventBuffer begin(byte eventType, long threadId, long epochNanos,
+                                int methodId)
+  {
+    pos = 0;
+    putByte(eventType);
+    putVarLong(threadId);
+    putLong(epochNanos);
+    putVarLong(methodId);
+    return this;
+  }
+
+  public byte[] array()
+  {
+    return buf;
+  }
+
+  public int length()
+  {
+    return pos;
+  }
+
+  /**
+   * @return An exact size copy of the encoded event
+   */
+  public byte[] toByteArray()
+  {
+    byte[] ret = new byte[pos];
+    System.arraycopy(buf, 0, ret, 0, pos);
+    return ret;
+  }
+
+  private void ensure(int extra)
+  {
+    if (pos + extra > buf.length)
+    {
+      byte[] newBuf = new byte[Math.max(buf.length * 2, pos + extra)];
+      System.arraycopy(buf, 0, newBuf, 0, pos);
+      buf = newBuf;
+    }
+  }
+
+  public void putByte(byte b)
+  {
+    ensure(1);
+    buf[pos++] = b;
+  }
+
+  public void putInt(int v)
+  {
+    ensure(4);
+    buf[pos++] = (byte) (v >>> 24);
+    buf[pos++] = (byte) (v >>> 16);
+    buf[pos++] = (byte) (v >>> 8);
+    buf[pos++] = (byte) v;
+  }
+
+  public void putLong(long v)
+  {
+    putInt((int) (v >>> 32));
+    putInt((int) v);
+  }
+
+  /**
+   * Unsigned LEB128 style encoding, used for lengths and ids.
+   */
+  public void putVarLong(long v)
+  {
+    ensure(10);
+    while ((v & ~0x7FL) != 0)
+    {
+      buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  /**
+   * Null is encoded as length 0, otherwise length + 1 followed by the chars in
+   * modified UTF-8.
+   */
+  public void putString(String s)
+  {
+    if (s == null)
+    {
+      putVarLong(0);
+      return;
+    }
+    int len = s.length();
+    putVarLong(len + 1L);
+    ensure(len * 3);
+    for (int ii = 0; ii < len; ii++)
+    {
+      char c = s.charAt(ii);
+      if ((c > 0) && (c < 0x80))
+      {
+        buf[pos++] = (byte) c;
+      }
+      else if (c < 0x800)
+      {
+        buf[pos++] = (byte) (0xC0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+      else
+      {
+        buf[pos++] = (byte) (0xE0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  // Typed argument payloads
+
+  public void putValue(byte v)
+  {
+    putByte(TraceEventCodec.P_BYTE);
+    putByte(v);
+  }
+
+  public void putValue(short v)
+  {
+    putByte(TraceEventCodec.P_SHORT);
+    putInt(v);
+  }
+
+  public void putValue(int v)
+  {
+    putByte(TraceEventCodec.P_INT);
+    putInt(v);
+  }
+
+  public void putValue(long v)
+  {
+    putByte(TraceEventCodec.P_LONG);
+    putLong(v);
+  }
+
+  public void putValue(float v)
+  {
+    putByte(TraceEventCodec.P_FLOAT);
+    putInt(Float.floatToRawIntBits(v));
+  }
+
+  public void putValue(double v)
+  {
+    putByte(TraceEventCodec.P_DOUBLE);
+    putLong(Double.doubleToRawLongBits(v));
+  }
+
+  public void putValue(boolean v)
+  {
+    putByte(TraceEventCodec.P_BOOLEAN);
+    putByte(v ? (byte) 1 : (byte) 0);
+  }
+
+  public void putValue(char v)
+  {
+    putByte(TraceEventCodec.P_CHAR);
+    putInt(v);
+  }
+
+  /**
+   * An already rendered value (objects, object arrays and throwables are
+   * rendered on the application thread as their state may change).
+   */
+  public void putValue(String v)
+  {
+    putByte(TraceEventCodec.P_STRING);
+    putString(v);
+  }
+
+  /**
+   * Array header: whether the rendered text is to be truncated, the real
+   * length (-1 for null) and the number of elements which follow. When
+   * truncating only the first {@link TraceEventCodec#TRUNCATE_LENGTH} elements
+   * are captured as that is all the rendered text can show.
+   */
+  private int putArrayHeader(byte type, Object array, int length, boolean truncate)
+  {
+    putByte(type);
+    putByte(truncate ? (byte) 1 : (byte) 0);
+    int maxElements = (truncate ? TraceEventCodec.TRUNCATE_LENGTH : Integer.MAX_VALUE);
+    if (array == null)
+    {
+      putInt(-1);
+      putInt(0);
+      return 0;
+    }
+    int captured = Math.min(length, maxElements);
+    putInt(length);
+    putInt(captured);
+    return captured;
+  }
+
+  public void putValue(byte[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_BYTE_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    ensure(n);
+    for (int ii = 0; ii < n; ii++)
+    {
+      buf[pos++] = v[ii];
+    }
+  }
+
+  public void putValue(short[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_SHORT_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    for (int ii = 0; ii < n; ii++)
+    {
+      putInt(v[ii]);
+    }
+  }
+
+  public void putValue(int[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_INT_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    for (int ii = 0; ii < n; ii++)
+    {
+      putInt(v[ii]);
+    }
+  }
+
+  public void putValue(long[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_LONG_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    for (int ii = 0; ii < n; ii++)
+    {
+      putLong(v[ii]);
+    }
+  }
+
+  public void putValue(float[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_FLOAT_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    for (int ii = 0; ii < n; ii++)
+    {
+      putInt(Float.floatToRawIntBits(v[ii]));
+    }
+  }
+
+  public void putValue(double[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_DOUBLE_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    for (int ii = 0; ii < n; ii++)
+    {
+      putLong(Double.doubleToRawLongBits(v[ii]));
+    }
+  }
+
+  public void putValue(boolean[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_BOOLEAN_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    ensure(n);
+    for (int ii = 0; ii < n; ii++)
+    {
+      buf[pos++] = (v[ii] ? (byte) 1 : (byte) 0);
+    }
+  }
+
+  public void putValue(char[] v, boolean truncate)
+  {
+    int n = putArrayHeader(TraceEventCodec.P_CHAR_ARRAY, v, (v == null ? 0 : v.length), truncate);
+    ensure(n * 2);
+    for (int ii = 0; ii < n; ii++)
+    {
+      buf[pos++] = (byte) (v[ii] >>> 8);
+      buf[pos++] = (byte) v[ii];
+    }
+  }
+}
@@ -0,0 +1,536 @@
+package org.intrace.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Structured (binary) trace events. Agent side encoding is done with a
+ * {@link TraceEventBuffer}, the consumer (file sink or client) renders the
+ * events into exactly the same text as the string based trace.
+ *
+ * Event layout:
+ * <pre>
+ * byte   event type
+ * varint thread id
+ * long   timestamp, nanoseconds since the epoch
+ * varint method id (see {@link TraceEventDictionary})
+ * ENTER/BRANCH : int line
+ * EXIT          : int line, string stack trace (null if not captured)
+ * EXIT_REF      : int line, varint stack trace text id
+ * VAL           : string desc, typed payload
+ * THROWABLE     : string desc, int line, string rendered throwable
+ * THROWABLE_REF : string desc, int line, string header (toString()),
+ *                 varint text id of the rest of the rendered throwable
+ * </pre>
+ *
+ * A batch of binary events on the wire is a byte[] starting with
+ * {@link #BATCH_MAGIC} followed by the gzipped events, each prefixed with a
+ * varint length. The magic can never be confused with the gzip header used by
+ * {@link SerializationHelper}.
+ * <p>
+ * Method names are not part of an event. Before a batch refers to a method id
+ * for the first time the sender ships a dictionary frame: {@link #DICT_MAGIC}
+ * followed by the gzipped entries (varint id, string class name, string method
+ * name) preceded by a varint count.
+ * <p>
+ * Stack traces are deduplicated the same way. Before a batch refers to a text
+ * id for the first time the sender ships a text frame: {@link #TEXT_MAGIC}
+ * followed by the gzipped entries (varint id, string text) preceded by a
+ * varint count.
+ */
+public class TraceEventCodec
+{
+  public static final byte ENTER = 1;
+  public static final byte EXIT = 2;
+  public static final byte BRANCH = 3;
+  public static final byte VAL = 4;
+  public static final byte THROWABLE = 5;
+  public static final byte EXIT_REF = 6;
+  public static final byte THROWABLE_REF = 7;
+
+  public static final byte P_BYTE = 1;
+  public static final byte P_SHORT = 2;
+  public static final byte P_INT = 3;
+  public static final byte P_LONG = 4;
+  public static final byte P_FLOAT = 5;
+  public static final byte P_DOUBLE = 6;
+  public static final byte P_BOOLEAN = 7;
+  public static final byte P_CHAR = 8;
+  public static final byte P_STRING = 9;
+  public static final byte P_BYTE_ARRAY = 11;
+  public static final byte P_SHORT_ARRAY = 12;
+  public static final byte P_INT_ARRAY = 13;
+  public static final byte P_LONG_ARRAY = 14;
+  public static final byte P_FLOAT_ARRAY = 15;
+  public static final byte P_DOUBLE_ARRAY = 16;
+  public static final byte P_BOOLEAN_ARRAY = 17;
+  public static final byte P_CHAR_ARRAY = 18;
+
+  /**
+   * Rendered arrays are cut to this many chars when array truncation is
+   * enabled. Each element renders as at least 3 chars (", x") so capturing
+   * this many elements is always enough to render the same text.
+   */
+  public static final int TRUNCATE_LENGTH = 100;
+
+  public static final byte[] BATCH_MAGIC = { 'I', 'T', 'B', 1 };
+  public static final byte[] DICT_MAGIC = { 'I', 'T', 'D', 1 };
+  public static final byte[] TEXT_MAGIC = { 'I', 'T', 'X', 1 };
+
+  private static final long BASE_MILLIS = System.currentTimeMillis();
+  private static final long BASE_NANOS = System.nanoTime();
+
+  /**
+   * @return A nanosecond resolution timestamp since the epoch, derived from
+   *         System.nanoTime() relative to the time this class was loaded.
+   */
+  public static long currentTimeNanos()
+  {
+    return (BASE_MILLIS * 1000000L) + (System.nanoTime() - BASE_NANOS);
+  }
+
+  // Wire batches
+
+  public static boolean isBinaryBatch(byte[] wireData)
+  {
+    return hasMagic(wireData, BATCH_MAGIC);
+  }
+
+  public static boolean isDictionaryFrame(byte[] wireData)
+  {
+    return hasMagic(wireData, DICT_MAGIC);
+  }
+
+  public static boolean isTextFrame(byte[] wireData)
+  {
+    return hasMagic(wireData, TEXT_MAGIC);
+  }
+
+  private static boolean hasMagic(byte[] wireData, byte[] magic)
+  {
+    if ((wireData == null) || (wireData.length < magic.length))
+    {
+      return false;
+    }
+    for (int ii = 0; ii < magic.length; ii++)
+    {
+      if (wireData[ii] != magic[ii])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encode the dictionary entries with ids from (inclusive) to to (exclusive).
+   */
+  public static byte[] dictionaryToWire(TraceEventDictionary dictionary,
+                                        int from, int to) throws IOException
+  {
+    TraceEventBuffer buf = new TraceEventBuffer();
+    buf.putVarLong(to - from);
+    for (int id = from; id < to; id++)
+    {
+      buf.putVarLong(id);
+      buf.putString(dictionary.getClassName(id));
+      buf.putString(dictionary.getMethodName(id));
+    }
+    return gzip(DICT_MAGIC, buf);
+  }
+
+  /**
+   * Add the entries of a dictionary frame to the given dictionary.
+   */
+  public static void dictionaryFromWire(byte[] wireData,
+                                        TraceEventDictionary dictionary)
+      throws IOException
+  {
+    byte[] data = gunzip(wireData, DICT_MAGIC.length);
+    Reader r = new Reader(data, 0, data.length);
+    int count = (int) r.varLong();
+    for (int ii = 0; ii < count; ii++)
+    {
+      int id = (int) r.varLong();
+      String className = r.string();
+      String methodName = r.string();
+      dictionary.put(id, className, methodName);
+    }
+  }
+
+  /**
+   * Encode the dictionary texts with ids from (inclusive) to to (exclusive).
+   */
+  public static byte[] textsToWire(TraceEventDictionary dictionary, int from,
+                                   int to) throws IOException
+  {
+    TraceEventBuffer buf = new TraceEventBuffer();
+    buf.putVarLong(to - from);
+    for (int id = from; id < to; id++)
+    {
+      buf.putVarLong(id);
+      buf.putString(dictionary.getText(id));
+    }
+    return gzip(TEXT_MAGIC, buf);
+  }
+
+  /**
+   * Add the texts of a text frame to the given dictionary.
+   */
+  public static void textsFromWire(byte[] wireData,
+                                   TraceEventDictionary dictionary)
+      throws IOException
+  {
+    byte[] data = gunzip(wireData, TEXT_MAGIC.length);
+    Reader r = new Reader(data, 0, data.length);
+    int count = (int) r.varLong();
+    for (int ii = 0; ii < count; ii++)
+    {
+      int id = (int) r.varLong();
+      dictionary.putText(id, r.string());
+    }
+  }
+
+  private static byte[] gzip(byte[] magic, TraceEventBuffer buf)
+      throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(magic);
+    GZIPOutputStream gzipOut = new GZIPOutputStream(baos);
+    gzipOut.write(buf.array(), 0, buf.length());
+    gzipOut.close();
+    return baos.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] wireData, int offset) throws IOException
+  {
+    GZIPInputStream gzipIn = new GZIPInputStream(
+        new ByteArrayInputStream(wireData, offset, wireData.length - offset));
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    int read;
+    while ((read = gzipIn.read(chunk)) > 0)
+    {
+      raw.write(chunk, 0, read);
+    }
+    gzipIn.close();
+    return raw.toByteArray();
+  }
+
+  /**
+   * Encode count events from the given array, starting at offset, into a
+   * single wire batch.
+   */
+  public static byte[] toWire(Object[] events, int offset, int count)
+      throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(BATCH_MAGIC);
+    GZIPOutputStream gzipOut = new GZIPOutputStream(baos);
+    for (int ii = offset; ii < offset + count; ii++)
+    {
+      byte[] event = (byte[]) events[ii];
+      writeVarInt(gzipOut, event.length);
+      gzipOut.write(event);
+    }
+    gzipOut.close();
+    return baos.toByteArray();
+  }
+
+  private static void writeVarInt(OutputStream out, int v) throws IOException
+  {
+    while ((v & ~0x7F) != 0)
+    {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  public static byte[] toWire(List<byte[]> events) throws IOException
+  {
+    return toWire(events.toArray(), 0, events.size());
+  }
+
+  /**
+   * Decode a wire batch and render every event in it.
+   */
+  public static String[] fromWire(byte[] wireData,
+                                  TraceEventDictionary dictionary)
+      throws IOException
+  {
+    byte[] data = gunzip(wireData, BATCH_MAGIC.length);
+    Reader reader = new Reader(data, 0, data.length);
+    StringBuilder sb = new StringBuilder();
+    String[] lines = new String[16];
+    int count = 0;
+    while (reader.pos < data.length)
+    {
+      int len = (int) reader.varLong();
+      sb.setLength(0);
+      render(data, reader.pos, len, dictionary, sb);
+      reader.pos += len;
+      if (count == lines.length)
+      {
+        lines = Arrays.copyOf(lines, count * 2);
+      }
+      lines[count++] = sb.toString();
+    }
+    return Arrays.copyOf(lines, count);
+  }
+
+  // Rendering
+
+  public static String render(byte[] event, TraceEventDictionary dictionary)
+  {
+    StringBuilder sb = new StringBuilder();
+    render(event, 0, event.length, dictionary, sb);
+    return sb.toString();
+  }
+
+  /**
+   * Render a single event into the same text that the string based trace
+   * produces.
+   */
+  public static void render(byte[] data, int offset, int length,
+                            TraceEventDictionary dictionary, StringBuilder sb)
+  {
+    Reader r = new Reader(data, offset, length);
+    byte type = r.readByte();
+    long threadId = r.varLong();
+    long nanos = r.readLong();
+    int methodId = (int) r.varLong();
+
+    sb.append('[');
+    TraceTimestampFormat.append(sb, nanos / 1000000L);
+    sb.append("]:[").append(threadId).append("]:");
+    sb.append(dictionary.getQualifiedName(methodId));
+    switch (type)
+    {
+    case ENTER:
+      sb.append(": {");
+      appendLine(sb, r.readInt());
+      break;
+    case EXIT:
+      sb.append(": }");
+      appendLine(sb, r.readInt());
+      String stack = r.string();
+      if (stack != null)
+      {
+        sb.append('~').append(stack);
+      }
+      break;
+    case EXIT_REF:
+      sb.append(": }");
+      appendLine(sb, r.readInt());
+      sb.append('~').append(dictionary.getText((int) r.varLong()));
+      break;
+    case BRANCH:
+      sb.append(": /");
+      appendLine(sb, r.readInt());
+      break;
+    case VAL:
+      sb.append(": ").append(r.string()).append(": ");
+      renderValue(r, sb);
+      break;
+    case THROWABLE:
+      sb.append(": ").append(r.string()).append(':');
+      sb.append(r.readInt()).append(": ");
+      sb.append(r.string());
+      break;
+    case THROWABLE_REF:
+      sb.append(": ").append(r.string()).append(':');
+      sb.append(r.readInt()).append(": ");
+      sb.append(r.string());
+      sb.append(dictionary.getText((int) r.varLong()));
+      break;
+    default:
+      sb.append(": <unknown event type ").append(type).append('>');
+    }
+  }
+
+  private static void appendLine(StringBuilder sb, int lineNo)
+  {
+    if (lineNo >= 0)
+    {
+      sb.append(':').append(lineNo);
+    }
+  }
+
+  private static void renderValue(Reader r, StringBuilder sb)
+  {
+    byte type = r.readByte();
+    switch (type)
+    {
+    case P_BYTE:
+      sb.append(r.readByte());
+      return;
+    case P_SHORT:
+      sb.append((short) r.readInt());
+      return;
+    case P_INT:
+      sb.append(r.readInt());
+      return;
+    case P_LONG:
+      sb.append(r.readLong());
+      return;
+    case P_FLOAT:
+      sb.append(Float.intBitsToFloat(r.readInt()));
+      return;
+    case P_DOUBLE:
+      sb.append(Double.longBitsToDouble(r.readLong()));
+      return;
+    case P_BOOLEAN:
+      sb.append(r.readByte() != 0);
+      return;
+    case P_CHAR:
+      sb.append((char) r.readInt());
+      return;
+    case P_STRING:
+      sb.append(r.string());
+      return;
+    default:
+      break;
+    }
+
+    boolean truncate = (r.readByte() != 0);
+    int length = r.readInt();
+    int captured = r.readInt();
+    if (length < 0)
+    {
+      sb.append("null");
+      return;
+    }
+    sb.append("Len:").append(length).append(' ');
+    int start = sb.length();
+    sb.append('[');
+    for (int ii = 0; ii < captured; ii++)
+    {
+      if (ii > 0)
+      {
+        sb.append(", ");
+      }
+      switch (type)
+      {
+      case P_BYTE_ARRAY:
+        sb.append(r.readByte());
+        break;
+      case P_SHORT_ARRAY:
+        sb.append((short) r.readInt());
+        break;
+      case P_INT_ARRAY:
+        sb.append(r.readInt());
+        break;
+      case P_LONG_ARRAY:
+        sb.append(r.readLong());
+        break;
+      case P_FLOAT_ARRAY:
+        sb.append(Float.intBitsToFloat(r.readInt()));
+        break;
+      case P_DOUBLE_ARRAY:
+        sb.append(Double.longBitsToDouble(r.readLong()));
+        break;
+      case P_BOOLEAN_ARRAY:
+        sb.append(r.readByte() != 0);
+        break;
+      case P_CHAR_ARRAY:
+        sb.append((char) (((r.readByte() & 0xFF) << 8) | (r.readByte() & 0xFF)));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown payload type: " + type);
+      }
+    }
+    sb.append(']');
+    if (truncate && (sb.length() - start > TRUNCATE_LENGTH))
+    {
+      sb.setLength(start + TRUNCATE_LENGTH);
+      sb.append("...");
+    }
+  }
+
+  /**
+   * Cursor over an encoded event
+   */
+  private static final class Reader
+  {
+    private final byte[] data;
+    private int pos;
+
+    private Reader(byte[] data, int offset, int length)
+    {
+      this.data = data;
+      this.pos = offset;
+    }
+
+    private byte readByte()
+    {
+      return data[pos++];
+    }
+
+    private int readInt()
+    {
+      int v = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+              | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+      pos += 4;
+      return v;
+    }
+
+    private long readLong()
+    {
+      long hi = readInt() & 0xFFFFFFFFL;
+      long lo = readInt() & 0xFFFFFFFFL;
+      return (hi << 32) | lo;
+    }
+
+    private long varLong()
+    {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do
+      {
+        b = data[pos++];
+        v |= ((long) (b & 0x7F)) << shift;
+        shift += 7;
+      }
+      while ((b & 0x80) != 0);
+      return v;
+    }
+
+    private String string()
+    {
+      int len = (int) varLong();
+      if (len == 0)
+      {
+        return null;
+      }
+      len--;
+      char[] chars = new char[len];
+      for (int ii = 0; ii < len; ii++)
+      {
+        int b = data[pos++] & 0xFF;
+        if (b < 0x80)
+        {
+          chars[ii] = (char) b;
+        }
+        else if ((b & 0xE0) == 0xC0)
+        {
+          chars[ii] = (char) (((b & 0x1F) << 6) | (data[pos++] & 0x3F));
+        }
+        else
+        {
+          int b2 = data[pos++] & 0x3F;
+          int b3 = data[pos++] & 0x3F;
+          chars[ii] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+        }
+      }
+      return new String(chars);
+    }
+  }
+}
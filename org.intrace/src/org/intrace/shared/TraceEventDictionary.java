@@ -0,0 +1,185 @@
+package org.intrace.shared;
+
+import java.util.Arrays;
+
+/**
+ * Method id to name mapping used to render structured trace events, along
+ * with the texts (stack traces) which events refer to by id.
+ * <p>
+ * The agent appends an entry per instrumented method at transform time, the
+ * client fills in entries as dictionary frames arrive. Lookups are lock free:
+ * entries live in arrays which are only ever copied (never modified in place
+ * for an existing id) and are published by a volatile write.
+ */
+public class TraceEventDictionary
+{
+  private static final class Table
+  {
+    private final String[] classNames;
+    private final String[] methodNames;
+    private final String[] qualifiedNames;
+
+    private Table(int capacity)
+    {
+      classNames = new String[capacity];
+      methodNames = new String[capacity];
+      qualifiedNames = new String[capacity];
+    }
+
+    private Table copy(int capacity)
+    {
+      Table t = new Table(capacity);
+      int len = Math.min(capacity, classNames.length);
+      System.arraycopy(classNames, 0, t.classNames, 0, len);
+      System.arraycopy(methodNames, 0, t.methodNames, 0, len);
+      System.arraycopy(qualifiedNames, 0, t.qualifiedNames, 0, len);
+      return t;
+    }
+  }
+
+  private volatile Table table = new Table(256);
+  private volatile int size = 0;
+  private volatile String[] texts = new String[64];
+  private volatile int textCount = 0;
+
+  /**
+   * @return One more than the highest id in the dictionary.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Append a new entry.
+   *
+   * @return The id of the new entry
+   */
+  public synchronized int add(String className, String methodName)
+  {
+    int id = size;
+    put(id, className, methodName);
+    return id;
+  }
+
+  /**
+   * Set the entry for the given id.
+   */
+  public synchronized void put(int id, String className, String methodName)
+  {
+    Table t = table;
+    if (id >= t.classNames.length)
+    {
+      t = t.copy(Math.max(id + 1, t.classNames.length * 2));
+    }
+    else if (t.classNames[id] != null)
+    {
+      // Existing entries are never changed in place
+      t = t.copy(t.classNames.length);
+    }
+    t.classNames[id] = className;
+    t.methodNames[id] = methodName;
+    t.qualifiedNames[id] = className + ":" + methodName;
+    table = t;
+    if (id >= size)
+    {
+      size = id + 1;
+    }
+  }
+
+  /**
+   * Set the entry for the given id unless it is already in use.
+   *
+   * @return True if the entry was set.
+   */
+  public synchronized boolean putIfAbsent(int id, String className,
+                                          String methodName)
+  {
+    Table t = table;
+    if ((id < t.classNames.length) && (t.classNames[id] != null))
+    {
+      return false;
+    }
+    put(id, className, methodName);
+    return true;
+  }
+
+  public String getClassName(int id)
+  {
+    String[] names = table.classNames;
+    return ((id >= 0) && (id < names.length) && (names[id] != null)) ? names[id]
+                                                                     : unknown(id);
+  }
+
+  public String getMethodName(int id)
+  {
+    String[] names = table.methodNames;
+    return ((id >= 0) && (id < names.length) && (names[id] != null)) ? names[id]
+                                                                     : unknown(id);
+  }
+
+  /**
+   * @return "className:methodName", the prefix used by every trace line.
+   */
+  public String getQualifiedName(int id)
+  {
+    String[] names = table.qualifiedNames;
+    return ((id >= 0) && (id < names.length) && (names[id] != null)) ? names[id]
+                                                                     : unknown(id) + ":" + unknown(id);
+  }
+
+  /**
+   * @return One more than the highest text id in the dictionary.
+   */
+  public int textCount()
+  {
+    return textCount;
+  }
+
+  /**
+   * Append a new text.
+   *
+   * @return The id of the new text
+   */
+  public synchronized int addText(String text)
+  {
+    int id = textCount;
+    putText(id, text);
+    return id;
+  }
+
+  /**
+   * Set the text for the given id.
+   */
+  public synchronized void putText(int id, String text)
+  {
+    String[] t = texts;
+    if (id >= t.length)
+    {
+      t = Arrays.copyOf(t, Math.max(id + 1, t.length * 2));
+    }
+    else if (t[id] != null)
+    {
+      // Existing entries are never changed in place
+      t = t.clone();
+    }
+    t[id] = text;
+    texts = t;
+    if (id >= textCount)
+    {
+      textCount = id + 1;
+    }
+  }
+
+  public String getText(int id)
+  {
+    String[] t = texts;
+    return ((id >= 0) && (id < t.length) && (t[id] != null)) ? t[id]
+                                                             : "<text " + id + ">";
+  }
+
+  private static String unknown(int id)
+  {
+    return "<method " + id + ">";
+  }
+}
@@ -0,0 +1,72 @@
+package org.intrace.shared;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Renders the "HH:mm:ss.SSS" timestamp used at the start of every trace line.
+ *
+ * The "HH:mm:ss" part only changes once a second so it is formatted with a
+ * SimpleDateFormat at most once per second and cached in an immutable holder;
+ * every other call just appends the cached chars and the millis.
+ */
+public class TraceTimestampFormat
+{
+  private static final class CachedSecond
+  {
+    private final long second;
+    private final String text;
+
+    private CachedSecond(long second, String text)
+    {
+      this.second = second;
+      this.text = text;
+    }
+  }
+
+  private static volatile CachedSecond cached = new CachedSecond(Long.MIN_VALUE, "");
+
+  /**
+   * Append the time of day for the given epoch millis to the given builder.
+   */
+  public static void append(StringBuilder sb, long epochMillis)
+  {
+    long second = floorDiv(epochMillis, 1000);
+    CachedSecond c = cached;
+    if (c.second != second)
+    {
+      SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
+      c = new CachedSecond(second, dateFormat.format(new Date(second * 1000)));
+      cached = c;
+    }
+    sb.append(c.text);
+    sb.append('.');
+    int millis = (int) (epochMillis - (second * 1000));
+    if (millis < 100)
+    {
+      sb.append('0');
+    }
+    if (millis < 10)
+    {
+      sb.append('0');
+    }
+    sb.append(millis);
+  }
+
+  public static String format(long epochMillis)
+  {
+    StringBuilder sb = new StringBuilder(12);
+    append(sb, epochMillis);
+    return sb.toString();
+  }
+
+  private static long floorDiv(long x, long y)
+  {
+    long r = x / y;
+    if (((x % y) != 0) && ((x < 0) != (y < 0)))
+    {
+      r--;
+    }
+    return r;
+  }
+}
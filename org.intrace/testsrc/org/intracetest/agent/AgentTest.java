@@ -25,6 +25,8 @@ import org.easymock.EasyMock;
 import org.intrace.output.AgentHelper;
 import org.intrace.output.IInstrumentationHandler;
 import org.intrace.shared.AgentConfigConstants;
+import org.intrace.shared.FlightRecorderConfigConstants;
+import org.intrace.shared.StatisticsConfigConstants;
 import org.intrace.shared.TraceConfigConstants;
 
 /**
@@ -106,6 +108,8 @@ public class AgentTest extends TestCase
     Set<String> expectedHelpResponse = new HashSet<String>();
     expectedHelpResponse.addAll(AgentConfigConstants.COMMANDS);
     expectedHelpResponse.addAll(TraceConfigConstants.COMMANDS);
+    expectedHelpResponse.addAll(StatisticsConfigConstants.COMMANDS);
+    expectedHelpResponse.addAll(FlightRecorderConfigConstants.COMMANDS);
     assertEquals(helpResponse, expectedHelpResponse);
   }
 
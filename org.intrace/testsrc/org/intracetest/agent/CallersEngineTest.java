@@ -0,0 +1,120 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.CallersEngine;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.CallersConfigConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallersEngineTest {
+	private final List<Map<String, String>> reports = new CopyOnWriteArrayList<Map<String, String>>();
+
+	private final CallersEngine.Handler handler = new CallersEngine.Handler() {
+		@Override
+		public void callersReported(Map<String, String> results) {
+			reports.add(results);
+		}
+	};
+
+	@Before
+	public void disableTrace() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter());
+	}
+
+	@After
+	public void restore() {
+		CallersEngine.stop();
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	private static void firstCaller(int methodId) {
+		AgentHelper.enter(methodId, 1);
+	}
+
+	private static void secondCaller(int methodId) {
+		AgentHelper.enter(methodId, 1);
+	}
+
+	private static String chainFrom(Map<String, String> report, String callerName) {
+		for (String chain : report.keySet()) {
+			if (chain.contains("CallersEngineTest." + callerName + "(")) {
+				return chain;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void countsDistinctCallerChains() {
+		int target = MethodRegistry.register("callers.test.Target", "run", "()V");
+		int other = MethodRegistry.register("callers.test.Other", "run", "()V");
+		CallersEngine.start("callers\\.test\\.Target\\.run", handler);
+		assertTrue(CallersEngine.isActive());
+
+		for (int i = 0; i < 3; i++) {
+			firstCaller(target);
+		}
+		secondCaller(target);
+		secondCaller(other);
+		CallersEngine.report();
+
+		// Reports are also sent once a second, so look at the latest
+		Map<String, String> report = reports.get(reports.size() - 1);
+		assertEquals("callers\\.test\\.Target\\.run", report.get(CallersConfigConstants.PATTERN));
+		assertFalse(report.containsKey(CallersConfigConstants.FINAL));
+		String second = chainFrom(report, "secondCaller");
+		assertEquals("1", report.get(second));
+		assertFalse(second.contains("org.intrace.output."));
+
+		// Nothing is sent until another call is seen
+		int sent = reports.size();
+		CallersEngine.report();
+		assertEquals(sent, reports.size());
+		// Called from another line of this test, so along another chain
+		secondCaller(target);
+		CallersEngine.report();
+		assertEquals(sent + 1, reports.size());
+		Map<String, String> increment = reports.get(sent);
+		assertNull(chainFrom(increment, "firstCaller"));
+		assertFalse(increment.containsKey(second));
+		assertEquals("1", increment.get(chainFrom(increment, "secondCaller")));
+		assertEquals(report.get(CallersConfigConstants.ID), increment.get(CallersConfigConstants.ID));
+
+		CallersEngine.stop();
+		assertFalse(CallersEngine.isActive());
+		Map<String, String> last = reports.get(reports.size() - 1);
+		assertEquals("true", last.get(CallersConfigConstants.FINAL));
+		assertEquals("3", last.get(chainFrom(last, "firstCaller")));
+		assertEquals("1", last.get(second));
+		// Three chains plus the id, pattern and final flag
+		assertEquals(6, last.size());
+	}
+
+	@Test
+	public void keepsEntryProbesOnWhileRunning() {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+		AgentHelper.getResponses(null, "[trace-ee-false");
+		try {
+			assertFalse(AgentHelper.entryExitProbesEnabled());
+			CallersEngine.start("callers\\.test\\.Guarded", handler);
+			assertTrue(AgentHelper.entryExitProbesEnabled());
+			CallersEngine.stop();
+			assertFalse(AgentHelper.entryExitProbesEnabled());
+		} finally {
+			AgentHelper.getResponses(null, "[trace-ee-true");
+		}
+	}
+}
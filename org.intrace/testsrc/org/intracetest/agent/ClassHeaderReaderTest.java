@@ -0,0 +1,68 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.intrace.agent.ClassHeaderReader;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+public class ClassHeaderReaderTest {
+
+	private static byte[] classBytes(Class<?> klass) throws Exception {
+		InputStream in = ClassLoader.getSystemResourceAsStream(klass.getName().replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void matchesAsmClassReader() throws Exception {
+		for (Class<?> klass : new Class<?>[] { ClassHeaderReaderTest.class, ClassHeaderReader.class,
+				ClassReader.class, Test.class }) {
+			byte[] bytes = classBytes(klass);
+			ClassReader cr = new ClassReader(bytes);
+			ClassHeaderReader header = new ClassHeaderReader(bytes);
+			assertEquals(cr.getClassName(), header.getClassName());
+			assertEquals(cr.getSuperName(), header.getSuperName());
+			assertArrayEquals(cr.getInterfaces(), header.getInterfaces());
+		}
+	}
+
+	@Test
+	public void readsModernClassfiles() throws Exception {
+		// Recent JDK classes use constant pool entries ASM 3 doesn't know
+		ClassHeaderReader header = new ClassHeaderReader(classBytes(java.util.ArrayList.class));
+		assertEquals("java/util/ArrayList", header.getClassName());
+		assertEquals("java/util/AbstractList", header.getSuperName());
+		assertEquals(Arrays.asList("java/util/List", "java/util/RandomAccess", "java/lang/Cloneable",
+				"java/io/Serializable"), Arrays.asList(header.getInterfaces()));
+
+		assertNull(new ClassHeaderReader(classBytes(Object.class)).getSuperName());
+	}
+
+	@Test
+	public void rejectsTruncatedClassfiles() throws Exception {
+		byte[] bytes = classBytes(ClassHeaderReaderTest.class);
+		try {
+			new ClassHeaderReader(Arrays.copyOf(bytes, 40));
+			fail("Truncated classfile accepted");
+		} catch (IllegalArgumentException ex) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.intrace.agent.ClassRegistry;
+import org.junit.Test;
+
+public class ClassRegistryTest {
+
+	@Test
+	public void separatesClassLoaders() {
+		ClassRegistry registry = new ClassRegistry();
+		ClassLoader loader = new URLClassLoader(new URL[0]);
+		assertTrue(registry.add(null, "a.B"));
+		assertFalse(registry.add(null, "a.B"));
+		assertTrue(registry.add(loader, "a.B"));
+		assertEquals(2, registry.size());
+
+		assertTrue(registry.remove(null, "a.B"));
+		assertFalse(registry.contains(null, "a.B"));
+		assertTrue(registry.contains(loader, "a.B"));
+		assertFalse(registry.remove(new URLClassLoader(new URL[0]), "a.B"));
+		assertEquals("[" + loader + ":a.B]", registry.toString());
+
+		registry.clear();
+		assertEquals(0, registry.size());
+		assertEquals("[]", registry.toString());
+	}
+
+	@Test
+	public void forgetsCollectedClassLoaders() throws Exception {
+		ClassRegistry registry = new ClassRegistry();
+		registry.add(null, "a.B");
+		registry.add(new URLClassLoader(new URL[0]), "c.D");
+		for (int ii = 0; (ii < 100) && (registry.size() > 1); ii++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(1, registry.size());
+		assertTrue(registry.contains(null, "a.B"));
+	}
+
+	@Test
+	public void concurrentAddsShareALoaderEntry() throws Exception {
+		final ClassRegistry registry = new ClassRegistry();
+		final ClassLoader loader = new URLClassLoader(new URL[0]);
+		Thread[] threads = new Thread[8];
+		for (int ii = 0; ii < threads.length; ii++) {
+			final int thread = ii;
+			threads[ii] = new Thread() {
+				@Override
+				public void run() {
+					for (int jj = 0; jj < 100; jj++) {
+						registry.add(loader, "a.B" + thread + "_" + jj);
+					}
+				}
+			};
+			threads[ii].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(800, registry.size());
+		for (int ii = 0; ii < threads.length; ii++) {
+			assertTrue(registry.contains(loader, "a.B" + ii + "_99"));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.ClassTransformer;
+import org.intrace.shared.AgentConfigConstants;
+import org.junit.Test;
+
+public class ClassTransformerTest {
+
+	public static class Target1 {
+	}
+
+	public static class Target2 {
+	}
+
+	public static class Target3 {
+	}
+
+	public static class Target4 {
+	}
+
+	public static class Target5 {
+	}
+
+	private static final String TARGET_PREFIX = ClassTransformerTest.class.getName() + "$Target";
+
+	private final Class<?>[] targets = { Target1.class, Target2.class, Target3.class, Target4.class,
+			Target5.class };
+
+	/**
+	 * Every call to retransformClasses, whether it failed or not.
+	 */
+	private final List<List<Class<?>>> calls = Collections.synchronizedList(new ArrayList<List<Class<?>>>());
+
+	/**
+	 * Classes in a successful call.
+	 */
+	private final List<Class<?>> retransformed = Collections.synchronizedList(new ArrayList<Class<?>>());
+
+	private Class<?> failing = null;
+
+	private ClassTransformer newTransformer() {
+		Instrumentation inst = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getAllLoadedClasses")) {
+							return targets.clone();
+						} else if (name.equals("isRetransformClassesSupported")
+								|| name.equals("isModifiableClass")) {
+							return true;
+						} else if (name.equals("retransformClasses")) {
+							List<Class<?>> batch = Arrays.asList((Class<?>[]) args[0]);
+							calls.add(batch);
+							if (batch.contains(failing)) {
+								throw new UnmodifiableClassException(failing.getName());
+							}
+							retransformed.addAll(batch);
+							return null;
+						}
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class) {
+							return false;
+						} else if (type == long.class) {
+							return 0L;
+						}
+						return null;
+					}
+				});
+		return new ClassTransformer(inst, new AgentSettings(AgentConfigConstants.INSTRU_ENABLED + "true"));
+	}
+
+	private void awaitRetransformed(int count) throws InterruptedException {
+		for (int ii = 0; (ii < 200) && (retransformed.size() < count); ii++) {
+			Thread.sleep(50);
+		}
+		// Anything more would be a mistake
+		Thread.sleep(200);
+	}
+
+	@Test
+	public void retransformsInOneBatchAndBisectsAFailure() throws Exception {
+		failing = Target4.class;
+		ClassTransformer transformer = newTransformer();
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + TARGET_PREFIX);
+		awaitRetransformed(4);
+
+		assertEquals("First call", new HashSet<Class<?>>(Arrays.asList(targets)),
+				new HashSet<Class<?>>(calls.get(0)));
+		assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>> asList(Target1.class, Target2.class,
+				Target3.class, Target5.class)), new HashSet<Class<?>>(retransformed));
+		assertEquals("Retransformed more than once", 4, retransformed.size());
+		assertTrue("Failing class wasn't tried alone", calls.contains(Arrays.<Class<?>> asList(Target4.class)));
+	}
+
+	@Test
+	public void retransformsOnlyClassesWhoseCriteriaChanged() throws Exception {
+		ClassTransformer transformer = newTransformer();
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + TARGET_PREFIX + "1|" + TARGET_PREFIX + "2");
+		awaitRetransformed(2);
+		assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>> asList(Target1.class, Target2.class)),
+				new HashSet<Class<?>>(retransformed));
+
+		// Adding a class touches that class
+		retransformed.clear();
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + TARGET_PREFIX + "1|" + TARGET_PREFIX + "2|"
+				+ TARGET_PREFIX + "3");
+		awaitRetransformed(1);
+		assertEquals(Arrays.<Class<?>> asList(Target3.class), retransformed);
+
+		// Selecting other methods of a class touches that class
+		retransformed.clear();
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + TARGET_PREFIX + "1#toString()Ljava/lang/String;|"
+				+ TARGET_PREFIX + "2|" + TARGET_PREFIX + "3");
+		awaitRetransformed(1);
+		assertEquals(Arrays.<Class<?>> asList(Target1.class), retransformed);
+
+		// Settings which don't change the instrumentation touch nothing
+		retransformed.clear();
+		transformer.getResponse(null, AgentConfigConstants.VERBOSE_MODE + "false");
+		Thread.sleep(500);
+		assertTrue(retransformed.isEmpty());
+	}
+}
@@ -0,0 +1,74 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.intrace.output.EventRingBuffer;
+import org.intrace.output.NetworkDataSenderThread;
+import org.junit.Test;
+
+public class EventRingBufferTest {
+
+	@Test
+	public void canFillDrainAndWrap() {
+		EventRingBuffer ring = new EventRingBuffer(3, Thread.currentThread());
+		// capacity rounds up to 4
+		for (int i = 0; i < 4; i++) {
+			assertTrue("Ring rejected an event before it was full", ring.offer("e" + i, 10 + i));
+		}
+		assertFalse("Ring accepted an event when full", ring.offer("e4", 14));
+
+		long from = ring.readPosition();
+		long to = ring.publishedPosition();
+		assertEquals("Didn't find all published events", 4, to - from);
+		assertEquals("Events out of order", "e0", ring.eventAt(from));
+		assertEquals("Timestamp not stored with event", 13, ring.timestampAt(to - 1));
+
+		ring.release(from + 2);
+		assertTrue("Released slots were not reusable", ring.offer("e4", 14));
+		assertTrue("Released slots were not reusable", ring.offer("e5", 15));
+		assertFalse("Ring accepted an event when full", ring.offer("e6", 16));
+		assertEquals("Wrapped event not in expected slot", "e5", ring.eventAt(from + 5));
+
+		ring.release(ring.publishedPosition());
+		assertTrue("Fully released ring was not empty", ring.isEmpty());
+	}
+
+	@Test
+	public void canDetectOrphanedRing() throws Exception {
+		final EventRingBuffer[] holder = new EventRingBuffer[1];
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				holder[0] = new EventRingBuffer(16, Thread.currentThread());
+				holder[0].offer("last", 1);
+			}
+		};
+		producer.start();
+		producer.join();
+		assertTrue("Ring of a dead thread not reported as orphaned", holder[0].isOrphaned());
+		assertFalse("Events of a dead thread were lost", holder[0].isEmpty());
+		assertFalse("Ring of a live thread reported as orphaned",
+				new EventRingBuffer(16, Thread.currentThread()).isOrphaned());
+	}
+
+	@Test
+	public void canCountDroppedEvents() {
+		EventRingBuffer ring = new EventRingBuffer(2, Thread.currentThread());
+		assertEquals("Drops reported for a new ring", 0, ring.takeDropped());
+		ring.recordDrop();
+		ring.recordDrop();
+		assertEquals("Drops not reported", 2, ring.takeDropped());
+		assertEquals("Drops reported twice", 0, ring.takeDropped());
+	}
+
+	@Test(timeout = 10000)
+	public void fullRingDoesNotBlockProducer() {
+		// No drainer is connected so the ring fills and stays full
+		NetworkDataSenderThread sender = new NetworkDataSenderThread(null, null);
+		for (int i = 0; i < 10000; i++) {
+			sender.queueData("event" + i);
+		}
+	}
+}
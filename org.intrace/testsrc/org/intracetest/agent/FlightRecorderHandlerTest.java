@@ -0,0 +1,111 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.flightrec.FlightRecorderHandler;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightRecorderHandlerTest {
+	private final int[] enters = new int[1];
+
+	@Before
+	public void enableFlightRecorder() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				enters[0]++;
+			}
+		});
+		AgentHelper.getResponses(null, "[flightrec-size-64[flightrec-true");
+		FlightRecorderHandler.INSTANCE.drain();
+	}
+
+	@After
+	public void restore() {
+		AgentHelper.getResponses(null, "[flightrec-false[flightrec-size-65536[flightrec-exception-[flightrec-latency-0");
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	private static List<String> linesFor(List<String> lines, String className) {
+		List<String> matching = new ArrayList<String>();
+		for (String line : lines) {
+			if (line.contains("]:" + className + ":")) {
+				matching.add(line.substring(line.indexOf("]:" + className + ":") + 2));
+			}
+		}
+		return matching;
+	}
+
+	@Test
+	public void keepsOnlyRecentEvents() {
+		int methodId = MethodRegistry.register("flightrec.test.Recent", "run", "()V");
+		assertTrue(AgentHelper.branchProbesEnabled());
+		for (int i = 0; i < 100; i++) {
+			AgentHelper.enter(methodId, i);
+		}
+		AgentHelper.exit(methodId, 7);
+		assertEquals(0, enters[0]);
+
+		// This thread's stripe holds 8 events
+		List<String> lines = linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Recent");
+		assertEquals(8, lines.size());
+		assertEquals("flightrec.test.Recent:run: {:93", lines.get(0));
+		assertEquals("flightrec.test.Recent:run: }:7", lines.get(7));
+		assertTrue(linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Recent").isEmpty());
+	}
+
+	@Test
+	public void matchingExceptionTriggersDump() throws Exception {
+		int methodId = MethodRegistry.register("flightrec.test.Failing", "run", "()V");
+		AgentHelper.getResponses(null, "[flightrec-exception-IllegalState");
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.val("Caught", methodId, 2, new IllegalArgumentException("ignored"));
+		List<String> lines = linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Failing");
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(1).startsWith("flightrec.test.Failing:run: Caught:2: java.lang.IllegalArgumentException: ignored"));
+
+		// The dump empties the recorder
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.val("Throw", methodId, 3, new IllegalStateException("boom"));
+		assertTrue(FlightRecorderHandler.INSTANCE.awaitDumps(5000));
+		assertTrue(linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Failing").isEmpty());
+	}
+
+	@Test
+	public void slowCallTriggersDump() throws Exception {
+		int methodId = MethodRegistry.register("flightrec.test.Slow", "run", "()V");
+		AgentHelper.getResponses(null, "[flightrec-latency-20");
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.exit(methodId, 2);
+		assertEquals(2, linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Slow").size());
+
+		AgentHelper.enter(methodId, 1);
+		Thread.sleep(50);
+		AgentHelper.exit(methodId, 2);
+		assertTrue(FlightRecorderHandler.INSTANCE.awaitDumps(5000));
+		assertTrue(linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Slow").isEmpty());
+	}
+
+	@Test
+	public void dumpCommandIsAWholeArg() {
+		int methodId = MethodRegistry.register("flightrec.test.Command", "run", "()V");
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.getResponses(null, "[flightrec-dumps");
+		AgentHelper.getResponses(null, "[flightrec-exception-Dump[flightrec-dumping");
+		assertEquals(1, linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Command").size());
+
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.getResponses(null, "[FLIGHTREC-DUMP");
+		assertTrue(linesFor(FlightRecorderHandler.INSTANCE.drain(), "flightrec.test.Command").isEmpty());
+	}
+}
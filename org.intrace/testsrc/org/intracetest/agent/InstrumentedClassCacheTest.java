@@ -0,0 +1,118 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.intrace.agent.InstrumentedClassCache;
+import org.intrace.agent.InstrumentedClassWriter;
+import org.intrace.output.MethodRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedClassCacheTest {
+	private static final byte[] ORIGINAL = { 1, 2, 3, 4 };
+	private static final byte[] INSTRUMENTED = { 5, 6, 7, 8, 9 };
+
+	private File dir;
+
+	@Before
+	public void createDir() throws Exception {
+		dir = File.createTempFile("instrucache", "");
+		dir.delete();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void servesBytesAfterReopen() throws Exception {
+		String className = "cache.test.Reopen";
+		int id = MethodRegistry.register(className, "run", "()V");
+		Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+		methodIds.put("run()V", id);
+
+		InstrumentedClassCache cache = new InstrumentedClassCache(dir);
+		assertNull(cache.get(className, ORIGINAL, "*|"));
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		cache.close();
+
+		cache = new InstrumentedClassCache(dir);
+		assertArrayEquals(INSTRUMENTED, cache.get(className, ORIGINAL, "*|"));
+		assertNull("Criteria ignored", cache.get(className, ORIGINAL, "[run()V]|"));
+		assertNull("Classfile ignored", cache.get(className, new byte[] { 1, 2, 3 }, "*|"));
+		assertNull("Class name ignored", cache.get("cache.test.Other", ORIGINAL, "*|"));
+		cache.close();
+	}
+
+	@Test
+	public void claimsMethodIdsFromPreviousRun() throws Exception {
+		String className = "cache.test.Claim";
+		int freeId = MethodRegistry.idLimit() + 100;
+		Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+		methodIds.put("run()V", freeId);
+
+		InstrumentedClassCache cache = new InstrumentedClassCache(dir);
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		assertArrayEquals(INSTRUMENTED, cache.get(className, ORIGINAL, "*|"));
+		assertEquals(className + ":run", MethodRegistry.getQualifiedName(freeId));
+		assertEquals(freeId, MethodRegistry.register(className, "run", "()V"));
+
+		// An id which now belongs to another method is a miss
+		int takenId = MethodRegistry.register("cache.test.Taken", "run", "()V");
+		methodIds.put("other()V", takenId);
+		cache.put(className, ORIGINAL, "[other()V]|", INSTRUMENTED, methodIds);
+		assertNull(cache.get(className, ORIGINAL, "[other()V]|"));
+		cache.close();
+	}
+
+	@Test
+	public void otherInstrumentationVersionIsAMiss() throws Exception {
+		String className = "cache.test.Version";
+		Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+		methodIds.put("run()V", MethodRegistry.register(className, "run", "()V"));
+
+		InstrumentedClassCache cache = new InstrumentedClassCache(dir);
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		cache.close();
+
+		RandomAccessFile index = new RandomAccessFile(new File(dir, "index.bin"), "rw");
+		index.seek(4);
+		index.writeInt(InstrumentedClassWriter.INSTRUMENTATION_VERSION - 1);
+		index.close();
+
+		cache = new InstrumentedClassCache(dir);
+		assertNull(cache.get(className, ORIGINAL, "*|"));
+		cache.close();
+	}
+
+	@Test
+	public void storingAnEntryAgainReusesItsSpace() throws Exception {
+		String className = "cache.test.Again";
+		Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+		methodIds.put("run()V", MethodRegistry.idLimit() + 200);
+
+		InstrumentedClassCache cache = new InstrumentedClassCache(dir);
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		File data = new File(dir, "data.bin");
+		long size = data.length();
+
+		methodIds.put("run()V", MethodRegistry.idLimit() + 300);
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		cache.put(className, ORIGINAL, "*|", INSTRUMENTED, methodIds);
+		assertEquals(size, data.length());
+		assertArrayEquals(INSTRUMENTED, cache.get(className, ORIGINAL, "*|"));
+		cache.close();
+	}
+}
@@ -0,0 +1,61 @@
+package org.intracetest.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.InstrumentedClassWriter;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Loads instrumented copies of test classes in their own class loaders.
+ */
+public class InstrumentedClasses {
+	public static byte[] classBytes(String className) throws Exception {
+		InputStream in = ClassLoader.getSystemResourceAsStream(className.replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Instrument every method of the class.
+	 */
+	public static Class<?> instrument(String className) throws Exception {
+		ClassReader cr = new ClassReader(classBytes(className));
+		InstrumentedClassWriter writer = new InstrumentedClassWriter(className, cr, true,
+				new AgentSettings("[regex-" + className));
+		cr.accept(writer, 0);
+		return define(className, writer.toByteArray());
+	}
+
+	/**
+	 * Define the class from the given bytes in a new class loader.
+	 */
+	public static Class<?> define(final String className, final byte[] bytes) throws Exception {
+		ClassLoader loader = new ClassLoader(InstrumentedClasses.class.getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (name.equals(className)) {
+					synchronized (this) {
+						Class<?> klass = findLoadedClass(name);
+						if (klass == null) {
+							klass = defineClass(name, bytes, 0, bytes.length);
+						}
+						return klass;
+					}
+				}
+				return super.loadClass(name, resolve);
+			}
+		};
+		return loader.loadClass(className);
+	}
+}
@@ -0,0 +1,190 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodGovernor;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MethodGovernorTest {
+	private final int[] enters = new int[1];
+	private final int[] exits = new int[1];
+	private final int[] vals = new int[1];
+	private final List<Integer> suppressed = new ArrayList<Integer>();
+	private final List<Integer> removed = new ArrayList<Integer>();
+	private final List<Integer> restored = new ArrayList<Integer>();
+
+	private final MethodGovernor.Handler handler = new MethodGovernor.Handler() {
+		@Override
+		public void methodsSuppressed(List<Integer> methodIds) {
+			suppressed.addAll(methodIds);
+		}
+
+		@Override
+		public void methodsRemoved(List<Integer> methodIds) {
+			removed.addAll(methodIds);
+		}
+
+		@Override
+		public void methodsRestored(List<Integer> methodIds) {
+			restored.addAll(methodIds);
+		}
+	};
+
+	@Before
+	public void countEvents() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				enters[0]++;
+			}
+
+			@Override
+			public void exit(String className, String methodName, int lineNo) {
+				exits[0]++;
+			}
+
+			@Override
+			public void val(String desc, String className, String methodName, int intArg) {
+				vals[0]++;
+			}
+		});
+	}
+
+	@After
+	public void restore() {
+		MethodGovernor.configure(0, 0, null);
+		MethodGovernor.reset();
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	private static void enter(int methodId, int times) {
+		for (int i = 0; i < times; i++) {
+			AgentHelper.enter(methodId, 1);
+		}
+	}
+
+	@Test
+	public void suppressesAndRemovesHotMethods() {
+		int hot = MethodRegistry.register("governor.test.Hot", "get", "()I");
+		int cold = MethodRegistry.register("governor.test.Cold", "run", "()V");
+		MethodGovernor.configure(5, 2, handler);
+
+		enter(hot, 10);
+		enter(cold, 5);
+		assertEquals(15, enters[0]);
+		MethodGovernor.tick(1000);
+		assertEquals(Arrays.asList(hot), suppressed);
+
+		// Count-only from now on
+		enter(hot, 10);
+		enter(cold, 1);
+		assertEquals(16, enters[0]);
+		assertTrue(MethodGovernor.describeSuppressed().contains("governor.test.Hot:get 10/s"));
+
+		MethodGovernor.tick(2000);
+		assertTrue(removed.isEmpty());
+		MethodGovernor.tick(3000);
+		assertEquals(Arrays.asList(hot), removed);
+		assertTrue(MethodGovernor.isRemoved(hot));
+		assertFalse(MethodGovernor.isRemoved(cold));
+		assertEquals("[" + hot + "]", MethodGovernor.getRemovedMethods("governor.test.Hot"));
+		assertEquals("[]", MethodGovernor.getRemovedMethods("governor.test.Cold"));
+
+		assertEquals(Arrays.asList(hot), MethodGovernor.reset());
+		assertFalse(MethodGovernor.isRemoved(hot));
+		enter(hot, 1);
+		assertEquals(17, enters[0]);
+	}
+
+	@Test
+	public void offByDefault() {
+		int methodId = MethodRegistry.register("governor.test.Off", "get", "()I");
+		MethodGovernor.configure(0, 0, handler);
+		enter(methodId, 100);
+		MethodGovernor.tick(1000);
+		assertEquals(100, enters[0]);
+		assertTrue(suppressed.isEmpty());
+	}
+
+	@Test
+	public void exitFollowsTheDecisionMadeAtEntry() {
+		int methodId = MethodRegistry.register("governor.test.Pairs", "run", "()V");
+		MethodGovernor.configure(5, 0, handler);
+
+		// Suppressed while the call is active
+		AgentHelper.enter(methodId, 1);
+		enter(methodId, 10);
+		MethodGovernor.tick(1000);
+		assertEquals(Arrays.asList(methodId), suppressed);
+		AgentHelper.exit(methodId, 2);
+		assertEquals("Exit of an admitted call was dropped", 1, exits[0]);
+
+		// Restored while a suppressed call is active
+		int entersBefore = enters[0];
+		AgentHelper.enter(methodId, 1);
+		assertEquals(entersBefore, enters[0]);
+		MethodGovernor.tick(2000);
+		assertEquals(Arrays.asList(methodId), restored);
+		AgentHelper.exit(methodId, 2);
+		assertEquals("Exit of a suppressed call was emitted", 1, exits[0]);
+	}
+
+	@Test
+	public void argumentsFollowTheDecisionMadeAtEntry() {
+		int methodId = MethodRegistry.register("governor.test.Args", "run", "(I)V");
+		MethodGovernor.configure(10, 0, handler);
+
+		// Suppressed while the call is active
+		AgentHelper.enter(methodId, 1);
+		enter(methodId, 20);
+		MethodGovernor.tick(1000);
+		assertEquals(Arrays.asList(methodId), suppressed);
+		AgentHelper.exit(methodId, 2);
+		AgentHelper.val("Arg", methodId, 1);
+		assertEquals("Argument of an admitted call was dropped", 1, vals[0]);
+		AgentHelper.exit(methodId, 2);
+
+		// Restored while a suppressed call is active
+		AgentHelper.enter(methodId, 1);
+		MethodGovernor.tick(2000);
+		assertEquals(Arrays.asList(methodId), restored);
+		AgentHelper.val("Arg", methodId, 1);
+		assertEquals("Argument of a suppressed call was emitted", 1, vals[0]);
+		AgentHelper.exit(methodId, 2);
+	}
+
+	@Test
+	public void liftsSuppressionOnceTheRateFalls() {
+		int methodId = MethodRegistry.register("governor.test.Burst", "get", "()I");
+		MethodGovernor.configure(10, 0, handler);
+
+		enter(methodId, 20);
+		MethodGovernor.tick(1000);
+		assertEquals(Arrays.asList(methodId), suppressed);
+
+		// Still above half the budget
+		enter(methodId, 6);
+		MethodGovernor.tick(2000);
+		assertTrue(restored.isEmpty());
+
+		enter(methodId, 5);
+		MethodGovernor.tick(3000);
+		assertEquals(Arrays.asList(methodId), restored);
+		assertEquals("[]", MethodGovernor.describeSuppressed());
+		int before = enters[0];
+		enter(methodId, 1);
+		assertEquals(before + 1, enters[0]);
+	}
+}
@@ -0,0 +1,181 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.intrace.agent.InstrCriteria;
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.MethodSampler;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MethodSamplerTest {
+	private final int[] enters = new int[1];
+	private final int[] vals = new int[1];
+	private final int[] exits = new int[1];
+
+	@Before
+	public void countEvents() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				enters[0]++;
+			}
+
+			@Override
+			public void val(String desc, String className, String methodName, int intArg) {
+				vals[0]++;
+			}
+
+			@Override
+			public void exit(String className, String methodName, int lineNo) {
+				exits[0]++;
+			}
+		});
+	}
+
+	@After
+	public void restore() {
+		MethodSampler.setPolicySource(null);
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	private static void call(int methodId) {
+		AgentHelper.enter(methodId, 1);
+		AgentHelper.val("Arg", methodId, 7);
+		AgentHelper.exit(methodId, 2);
+	}
+
+	@Test
+	public void tracesOneInvocationInN() {
+		// Registered before and after the policy source is set
+		int before = MethodRegistry.register("sample.test.OneInN", "run", "(I)V");
+		MethodSampler.setPolicySource(new InstrCriteria("sample.test.OneInN#run(I)V@sample=3"
+				+ "|sample.test.OneInNLater@sample=2"));
+		int after = MethodRegistry.register("sample.test.OneInNLater", "run", "(I)V");
+		assertTrue(MethodSampler.isSampled(before));
+		assertTrue(MethodSampler.isSampled(after));
+
+		for (int i = 0; i < 7; i++) {
+			call(before);
+		}
+		assertEquals(3, enters[0]);
+		assertEquals(3, vals[0]);
+		assertEquals(3, exits[0]);
+
+		for (int i = 0; i < 4; i++) {
+			call(after);
+		}
+		assertEquals(5, enters[0]);
+		assertEquals(5, vals[0]);
+		assertEquals(5, exits[0]);
+	}
+
+	@Test
+	public void tracesAtMostNPerSecond() {
+		MethodSampler.setPolicySource(new InstrCriteria("sample.test.PerSecond@sample=2/s"));
+		int methodId = MethodRegistry.register("sample.test.PerSecond", "run", "(I)V");
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			call(methodId);
+		}
+		if ((System.nanoTime() - start) < 1000000000L) {
+			assertEquals(2, enters[0]);
+			assertEquals(2, exits[0]);
+		}
+	}
+
+	@Test
+	public void decisionIsPerCall() {
+		MethodSampler.setPolicySource(new InstrCriteria("sample.test.Outer#run(I)V@sample=2"
+				+ "|sample.test.Unwound#run(I)V@sample=2"));
+		int outer = MethodRegistry.register("sample.test.Outer", "run", "(I)V");
+		int unwound = MethodRegistry.register("sample.test.Unwound", "run", "(I)V");
+		int inner = MethodRegistry.register("sample.test.Inner", "run", "(I)V");
+		assertFalse(MethodSampler.isSampled(inner));
+
+		// Traced outer call
+		call(outer);
+		assertEquals(1, enters[0]);
+
+		// Sampled out outer call - the unsampled inner call is still traced
+		AgentHelper.enter(outer, 1);
+		call(inner);
+		AgentHelper.val("Return", outer, 1);
+		AgentHelper.exit(outer, 2);
+		assertEquals(2, enters[0]);
+		assertEquals(2, vals[0]);
+		assertEquals(2, exits[0]);
+
+		// Traced outer call around a sampled out call which an exception
+		// unwound without an exit probe
+		call(unwound);
+		assertEquals(3, enters[0]);
+		AgentHelper.enter(outer, 1);
+		AgentHelper.enter(unwound, 1);
+		AgentHelper.val("Return", outer, 1);
+		AgentHelper.exit(outer, 2);
+		assertEquals(4, enters[0]);
+		assertEquals(4, vals[0]);
+		assertEquals(4, exits[0]);
+	}
+
+	@Test
+	public void optionsAreKeptOutOfTheFingerprint() {
+		InstrCriteria sampled = new InstrCriteria("sample.test.Fingerprint#run(I)V@sample=10/s");
+		InstrCriteria plain = new InstrCriteria("sample.test.Fingerprint#run(I)V");
+		assertEquals(plain.getFingerprint("sample.test.Fingerprint"),
+				sampled.getFingerprint("sample.test.Fingerprint"));
+		assertEquals("sample.test.Fingerprint#run(I)V@sample=10/s", sampled.toString());
+		assertEquals(-10, sampled.getSamplingPolicy("sample.test.Fingerprint", "run", "(I)V"));
+		assertEquals(0, plain.getSamplingPolicy("sample.test.Fingerprint", "run", "(I)V"));
+	}
+
+	/**
+	 * Argument tracing only, as with [trace-ee-false[trace-args-true.
+	 */
+	private class ArgsOnlyHandler extends IInstrumentationHandlerAdapter implements IProbeDemand {
+		@Override
+		public void val(String desc, String className, String methodName, int intArg) {
+			vals[0]++;
+		}
+
+		@Override
+		public boolean isEntryExitDemanded() {
+			return false;
+		}
+
+		@Override
+		public boolean isBranchDemanded() {
+			return false;
+		}
+
+		@Override
+		public boolean isArgDemanded() {
+			return true;
+		}
+	}
+
+	@Test
+	public void samplesWithoutEntryExitTracing() {
+		AgentHelper.setInstrumentationHandler(new ArgsOnlyHandler());
+		assertFalse(AgentHelper.entryExitProbesEnabled());
+		MethodSampler.setPolicySource(new InstrCriteria("sample.test.ArgsOnly#run(I)V@sample=3"));
+		int methodId = MethodRegistry.register("sample.test.ArgsOnly", "run", "(I)V");
+		assertTrue("Sampling decisions need the entry probes", AgentHelper.entryExitProbesEnabled());
+
+		for (int i = 0; i < 7; i++) {
+			call(methodId);
+		}
+		assertEquals(3, vals[0]);
+
+		MethodSampler.setPolicySource(null);
+		assertFalse(AgentHelper.entryExitProbesEnabled());
+	}
+}
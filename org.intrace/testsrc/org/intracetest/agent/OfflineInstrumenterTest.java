@@ -0,0 +1,192 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.OfflineInstrumenter;
+import org.intrace.output.MethodRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OfflineInstrumenterTest {
+	private File dir;
+
+	@Before
+	public void createDir() throws Exception {
+		dir = File.createTempFile("offline", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDir() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+	private static byte[] classBytes(Class<?> klass) throws Exception {
+		InputStream in = ClassLoader.getSystemResourceAsStream(klass.getName().replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File writeClass(File root, Class<?> klass) throws Exception {
+		File file = new File(root, klass.getName().replace('.', '/') + ".class");
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(classBytes(klass));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void instrumentsSelectedClassesOfDirectory() throws Exception {
+		File in = new File(dir, "in");
+		writeClass(in, ArgumentTypes.class);
+		writeClass(in, BranchPatterns.class);
+		File out = new File(dir, "out");
+		File dict = new File(dir, "methods.dict");
+
+		OfflineInstrumenter instrumenter = new OfflineInstrumenter(new AgentSettings("[regex-"
+				+ ArgumentTypes.class.getName()));
+		instrumenter.instrument(in, out);
+		instrumenter.writeDictionary(dict);
+		assertEquals(2, instrumenter.getNumClasses());
+		assertEquals(1, instrumenter.getNumInstrumented());
+
+		String path = ArgumentTypes.class.getName().replace('.', '/') + ".class";
+		byte[] instrumented = readFile(new File(out, path));
+		assertFalse(Arrays.equals(classBytes(ArgumentTypes.class), instrumented));
+		assertTrue(new String(instrumented, "ISO-8859-1").contains("org/intrace/output/AgentHelper"));
+
+		path = BranchPatterns.class.getName().replace('.', '/') + ".class";
+		assertTrue("Unselected class copied unchanged",
+				Arrays.equals(classBytes(BranchPatterns.class), readFile(new File(out, path))));
+
+		int numEntries = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(dict));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("#")) {
+					assertEquals(4, line.split("\t").length);
+					assertTrue(line.contains(ArgumentTypes.class.getName()));
+					numEntries++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		assertTrue(numEntries > 0);
+
+		// The ids were registered by this run so reloading them must agree
+		assertEquals(numEntries, OfflineInstrumenter.loadDictionary(dict));
+	}
+
+	@Test
+	public void instrumentsSeveralInputsInOneRun() throws Exception {
+		File in1 = new File(dir, "in1");
+		writeClass(in1, ArgumentTypes.class);
+		File in2 = new File(dir, "in2");
+		writeClass(in2, BranchPatterns.class);
+		File dict = new File(dir, "methods.dict");
+
+		OfflineInstrumenter instrumenter = new OfflineInstrumenter(new AgentSettings("[regex-"
+				+ ArgumentTypes.class.getName() + "|" + BranchPatterns.class.getName()));
+		instrumenter.instrument(in1, new File(dir, "out1"));
+		instrumenter.instrument(in2, new File(dir, "out2"));
+		instrumenter.writeDictionary(dict);
+		assertEquals(2, instrumenter.getNumInstrumented());
+
+		Set<String> ids = new HashSet<String>();
+		Set<String> classNames = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(dict));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("#")) {
+					String[] parts = line.split("\t");
+					assertTrue("Id used twice: " + line, ids.add(parts[0]));
+					classNames.add(parts[1]);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		assertEquals(new HashSet<String>(Arrays.asList(ArgumentTypes.class.getName(), BranchPatterns.class.getName())),
+				classNames);
+	}
+
+	@Test
+	public void conflictingDictionaryEntryFails() throws Exception {
+		int takenId = MethodRegistry.register("offline.test.Taken", "run", "()V");
+		File dict = new File(dir, "conflict.dict");
+		FileWriter out = new FileWriter(dict);
+		try {
+			out.write(takenId + "\toffline.test.Other\trun\t()V\n");
+		} finally {
+			out.close();
+		}
+
+		try {
+			OfflineInstrumenter.loadDictionary(dict);
+			fail("Conflicting id was accepted");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("offline.test.Taken:run"));
+		}
+	}
+}
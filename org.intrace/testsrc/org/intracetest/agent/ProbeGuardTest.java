@@ -0,0 +1,97 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.TraceConfigConstants;
+import org.junit.After;
+import org.junit.Test;
+
+public class ProbeGuardTest {
+
+	/**
+	 * Counts entry and arg events, demanding only entry/exit probes.
+	 */
+	private static class EntryOnlyHandler extends IInstrumentationHandlerAdapter implements IProbeDemand {
+		int enters = 0;
+		int vals = 0;
+
+		@Override
+		public void enter(String className, String methodName, int lineNo) {
+			enters++;
+		}
+
+		@Override
+		public void val(String desc, String className, String methodName, int intArg) {
+			vals++;
+		}
+
+		@Override
+		public boolean isEntryExitDemanded() {
+			return true;
+		}
+
+		@Override
+		public boolean isBranchDemanded() {
+			return false;
+		}
+
+		@Override
+		public boolean isArgDemanded() {
+			return false;
+		}
+	}
+
+	@After
+	public void restore() {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+		AgentHelper.getResponses(null, TraceConfigConstants.ENTRY_EXIT + "true"
+				+ TraceConfigConstants.ARG + "true"
+				+ TraceConfigConstants.BRANCH + "false");
+	}
+
+	@Test
+	public void canToggleGuardsFromTraceSettings() {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+		AgentHelper.getResponses(null, TraceConfigConstants.ENTRY_EXIT + "false"
+				+ TraceConfigConstants.ARG + "false"
+				+ TraceConfigConstants.BRANCH + "true");
+		assertFalse("Entry/exit probes should be disabled", AgentHelper.entryExitProbesEnabled());
+		assertFalse("Arg probes should be disabled", AgentHelper.argProbesEnabled());
+		assertTrue("Branch probes should be enabled", AgentHelper.branchProbesEnabled());
+
+		AgentHelper.getResponses(null, TraceConfigConstants.ENTRY_EXIT + "true");
+		assertTrue("Entry/exit probes should be re-enabled", AgentHelper.entryExitProbesEnabled());
+	}
+
+	@Test
+	public void canResetGuardsForOtherHandlers() {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+		AgentHelper.getResponses(null, TraceConfigConstants.ENTRY_EXIT + "false");
+		assertFalse(AgentHelper.entryExitProbesEnabled());
+
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter());
+		assertTrue("Handlers without IProbeDemand need every probe", AgentHelper.entryExitProbesEnabled());
+		assertTrue(AgentHelper.branchProbesEnabled());
+		assertTrue(AgentHelper.argProbesEnabled());
+	}
+
+	@Test
+	public void canSkipDisabledProbes() {
+		EntryOnlyHandler handler = new EntryOnlyHandler();
+		AgentHelper.setInstrumentationHandler(handler);
+		int methodId = MethodRegistry.register("a.B", "guarded", "()V");
+		for (int ii = 0; ii < 10; ii++) {
+			AgentHelper.enter(methodId, ii);
+			AgentHelper.val("Arg", methodId, ii);
+		}
+		assertEquals("Enabled probes should reach the handler", 10, handler.enters);
+		assertEquals("Disabled probes should not reach the handler", 0, handler.vals);
+	}
+}
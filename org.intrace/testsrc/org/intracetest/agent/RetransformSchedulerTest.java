@@ -0,0 +1,203 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.ClassTransformer;
+import org.intrace.agent.RetransformScheduler;
+import org.intrace.shared.AgentConfigConstants;
+import org.junit.Test;
+
+public class RetransformSchedulerTest {
+
+	private static class RecordingHandler implements RetransformScheduler.Handler {
+		final Map<Class<?>, Long> priorities = new HashMap<Class<?>, Long>();
+		final List<Class<?>> prepared = Collections.synchronizedList(new ArrayList<Class<?>>());
+		final List<Class<?>> retransformed = Collections.synchronizedList(new ArrayList<Class<?>>());
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		long sleepPerClassMs = 0;
+		Runnable duringFirstBatch = null;
+		int started = 0;
+		int finished = 0;
+		boolean doneReported = false;
+
+		@Override
+		public long getPriority(Class<?> klass) {
+			Long priority = priorities.get(klass);
+			return (priority != null) ? priority : -1;
+		}
+
+		@Override
+		public void prepareBatch(List<Class<?>> batch) {
+			prepared.addAll(batch);
+		}
+
+		@Override
+		public void retransformBatch(List<Class<?>> batch) {
+			assertTrue(prepared.containsAll(batch));
+			batchSizes.add(batch.size());
+			retransformed.addAll(batch);
+			if (duringFirstBatch != null) {
+				Runnable r = duringFirstBatch;
+				duringFirstBatch = null;
+				r.run();
+			}
+			try {
+				Thread.sleep(sleepPerClassMs * batch.size());
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void runStarted() {
+			started++;
+		}
+
+		@Override
+		public void progress(int count, int total, boolean done) {
+			assertTrue(count <= total);
+			doneReported |= done;
+		}
+
+		@Override
+		public void runFinished() {
+			finished++;
+		}
+	}
+
+	@Test
+	public void retransformsMostRecentFirstInBatches() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		handler.priorities.put(Integer.class, 2L);
+		handler.priorities.put(Long.class, 3L);
+		RetransformScheduler scheduler = new RetransformScheduler(new AgentSettings(""), 2, handler);
+
+		List<Class<?>> klasses = Arrays.<Class<?>> asList(String.class, Integer.class, Long.class, Short.class,
+				Byte.class);
+		scheduler.submit(klasses);
+		assertTrue(scheduler.awaitIdle(10000));
+
+		assertEquals(Arrays.<Class<?>> asList(Long.class, Integer.class, String.class, Short.class, Byte.class),
+				handler.retransformed);
+		assertEquals(Arrays.asList(2, 2, 1), handler.batchSizes);
+		assertEquals(1, handler.started);
+		assertEquals(1, handler.finished);
+		assertTrue(handler.doneReported);
+		assertFalse(scheduler.isRunning());
+	}
+
+	@Test
+	public void mergesWorkSubmittedDuringARun() throws Exception {
+		final RecordingHandler handler = new RecordingHandler();
+		final RetransformScheduler scheduler = new RetransformScheduler(new AgentSettings(""), 1, handler);
+		handler.duringFirstBatch = new Runnable() {
+			@Override
+			public void run() {
+				// A settings change mid run - joins the active run and returns
+				scheduler.submit(Arrays.<Class<?>> asList(Integer.class, Long.class));
+			}
+		};
+		scheduler.submit(Arrays.<Class<?>> asList(String.class, Integer.class));
+		assertTrue(scheduler.awaitIdle(10000));
+
+		assertEquals(Arrays.<Class<?>> asList(String.class, Integer.class, Long.class), handler.retransformed);
+		assertEquals(1, handler.started);
+		assertEquals(1, handler.finished);
+	}
+
+	@Test
+	public void keepsWithinBudget() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		handler.sleepPerClassMs = 20;
+		AgentSettings settings = new AgentSettings(AgentConfigConstants.RETRANSFORM_BUDGET + "50");
+		RetransformScheduler scheduler = new RetransformScheduler(settings, 128, handler);
+
+		long start = System.currentTimeMillis();
+		scheduler.submit(Arrays.<Class<?>> asList(String.class, Integer.class, Long.class, Short.class, Byte.class,
+				Character.class));
+		assertTrue(scheduler.awaitIdle(30000));
+		long elapsed = System.currentTimeMillis() - start;
+
+		// 120ms of work at 50ms per second needs at least two further windows
+		assertEquals(6, handler.retransformed.size());
+		assertTrue("Took " + elapsed, elapsed >= 2000);
+		for (int size : handler.batchSizes) {
+			assertTrue("Batch of " + size, size <= 3);
+		}
+	}
+
+	public static class Target1 {
+	}
+
+	public static class Target2 {
+	}
+
+	public static class Target3 {
+	}
+
+	public static class Target4 {
+	}
+
+	@Test
+	public void settingsChangesDoNotWaitForABudgetedRun() throws Exception {
+		final Class<?>[] targets = { Target1.class, Target2.class, Target3.class, Target4.class };
+		final List<Class<?>> retransformed = Collections.synchronizedList(new ArrayList<Class<?>>());
+		Instrumentation inst = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getAllLoadedClasses")) {
+							return targets.clone();
+						} else if (name.equals("isRetransformClassesSupported")
+								|| name.equals("isModifiableClass")) {
+							return true;
+						} else if (name.equals("retransformClasses")) {
+							Class<?>[] batch = (Class<?>[]) args[0];
+							Thread.sleep(50 * batch.length);
+							retransformed.addAll(Arrays.asList(batch));
+							return null;
+						}
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class) {
+							return false;
+						} else if (type == long.class) {
+							return 0L;
+						}
+						return null;
+					}
+				});
+		ClassTransformer transformer = new ClassTransformer(inst,
+				new AgentSettings(AgentConfigConstants.INSTRU_ENABLED + "true"
+						+ AgentConfigConstants.RETRANSFORM_BUDGET + "10"));
+
+		// Both changes are handled on this thread, as they would be on a
+		// client's control connection
+		String targetPrefix = RetransformSchedulerTest.class.getName() + "$Target";
+		long start = System.currentTimeMillis();
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + targetPrefix + ".*");
+		transformer.getResponse(null, AgentConfigConstants.CLASS_REGEX + targetPrefix + "[23]");
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Settings changes waited " + elapsed + "ms for the run", elapsed < 1000);
+		assertTrue("Run finished before the second change", retransformed.size() < targets.length);
+		for (int ii = 0; (ii < 100) && retransformed.isEmpty(); ii++) {
+			Thread.sleep(50);
+		}
+		assertFalse("Nothing was retransformed", retransformed.isEmpty());
+	}
+}
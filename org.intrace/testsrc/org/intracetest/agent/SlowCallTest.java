@@ -0,0 +1,177 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.intrace.agent.InstrCriteria;
+import org.intrace.output.AgentHelper;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.SlowCallThresholds;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlowCallTest {
+	private File file1;
+	private File file2;
+
+	@Before
+	public void traceToFile() throws Exception {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+		file1 = File.createTempFile("slowcall", ".txt");
+		file2 = File.createTempFile("slowcall", ".txt");
+		AgentHelper.getResponses(null, "[out-file1-" + file1.getPath() + "[out-file2-" + file2.getPath()
+				+ "[out-file-true");
+	}
+
+	@After
+	public void restore() {
+		AgentHelper.getResponses(null, "[out-file-false[slowcall-threshold-0[out-file1-trc1.txt[out-file2-trc2.txt");
+		SlowCallThresholds.setPolicySource(null);
+		file1.delete();
+		file2.delete();
+	}
+
+	private List<String> tracedLines(String className) throws Exception {
+		AgentHelper.getResponses(null, "[out-file-false");
+		List<String> lines = new ArrayList<String>();
+		for (File file : new File[] { file1, file2 }) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int start = line.indexOf(className);
+					if (start >= 0) {
+						lines.add(line.substring(line.indexOf("]:", line.indexOf("]:") + 2) + 2));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void onlySlowCallsAreTraced() throws Exception {
+		int outer = MethodRegistry.register("slowcall.test.Outer", "run", "()V");
+		int inner = MethodRegistry.register("slowcall.test.Inner", "run", "()V");
+		AgentHelper.getResponses(null, "[slowcall-threshold-200");
+
+		AgentHelper.enter(outer, 1);
+		AgentHelper.enter(inner, 2);
+		AgentHelper.exit(inner, 3);
+		AgentHelper.exit(outer, 4);
+
+		AgentHelper.enter(outer, 1);
+		AgentHelper.val("Arg", outer, 5);
+		Thread.sleep(300);
+		AgentHelper.exit(outer, 4);
+
+		List<String> lines = tracedLines("slowcall.test.");
+		assertEquals(lines.toString(), 4, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("SLOWCALL: slowcall.test.Outer:run took "));
+		assertEquals("slowcall.test.Outer:run: {:1", lines.get(1));
+		assertEquals("slowcall.test.Outer:run: Arg: 5", lines.get(2));
+		assertEquals("slowcall.test.Outer:run: }:4", lines.get(3));
+	}
+
+	@Test
+	public void methodsCanHaveTheirOwnThreshold() throws Exception {
+		int watched = MethodRegistry.register("slowcall.test.Watched", "run", "()V");
+		int other = MethodRegistry.register("slowcall.test.Other", "run", "()V");
+		InstrCriteria criteria = new InstrCriteria("slowcall.test.Watched#run()V@slow=20");
+		assertEquals("slowcall.test.Watched#run()V@slow=20", criteria.toString());
+		SlowCallThresholds.setPolicySource(criteria);
+		assertEquals(20, SlowCallThresholds.getThreshold(watched));
+
+		AgentHelper.enter(watched, 1);
+		AgentHelper.exit(watched, 2);
+		AgentHelper.enter(other, 1);
+		AgentHelper.exit(other, 2);
+
+		List<String> lines = tracedLines("slowcall.test.");
+		assertEquals(lines.toString(), 2, lines.size());
+		assertEquals("slowcall.test.Other:run: {:1", lines.get(0));
+	}
+
+	@Test
+	public void unitsOpenedUnderEarlierSettingsAreDiscarded() throws Exception {
+		int unwound = MethodRegistry.register("slowcall.test.Unwound", "run", "()V");
+		int next = MethodRegistry.register("slowcall.test.Next", "run", "()V");
+
+		// An exception unwinds the call without an exit probe
+		AgentHelper.getResponses(null, "[slowcall-threshold-100");
+		AgentHelper.enter(unwound, 1);
+		AgentHelper.getResponses(null, "[slowcall-threshold-0");
+		AgentHelper.getResponses(null, "[slowcall-threshold-100");
+		AgentHelper.enter(next, 1);
+		Thread.sleep(150);
+		AgentHelper.exit(next, 2);
+
+		// Likewise for a change of the per method thresholds
+		AgentHelper.getResponses(null, "[slowcall-threshold-0");
+		SlowCallThresholds.setPolicySource(new InstrCriteria("slowcall.test.Unwound#run()V@slow=100"));
+		AgentHelper.enter(unwound, 1);
+		SlowCallThresholds.setPolicySource(new InstrCriteria("slowcall.test.Next#run()V@slow=100"));
+		AgentHelper.enter(next, 3);
+		Thread.sleep(150);
+		AgentHelper.exit(next, 4);
+
+		List<String> lines = tracedLines("slowcall.test.");
+		assertEquals(lines.toString(), 6, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("SLOWCALL: slowcall.test.Next:run took "));
+		assertEquals("slowcall.test.Next:run: {:1", lines.get(1));
+		assertEquals("slowcall.test.Next:run: }:2", lines.get(2));
+		assertTrue(lines.get(3), lines.get(3).startsWith("SLOWCALL: slowcall.test.Next:run took "));
+		assertEquals("slowcall.test.Next:run: {:3", lines.get(4));
+		assertEquals("slowcall.test.Next:run: }:4", lines.get(5));
+	}
+
+	private static void runAndFail(Class<?> klass) throws Exception {
+		try {
+			klass.getMethod("run", boolean.class).invoke(klass.newInstance(), true);
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void exceptionThroughTheRootClosesTheUnit() throws Exception {
+		String className = TriggerMethods.class.getName();
+		int other = MethodRegistry.register("slowcall.test.AfterThrow", "run", "()V");
+		SlowCallThresholds.setPolicySource(new InstrCriteria(className + "#run(Z)V@slow=100"));
+		runAndFail(InstrumentedClasses.instrument(className));
+
+		// The thread's later calls are traced
+		AgentHelper.enter(other, 1);
+		AgentHelper.exit(other, 2);
+		List<String> lines = tracedLines("slowcall.test.");
+		assertEquals(lines.toString(), 2, lines.size());
+		assertEquals("slowcall.test.AfterThrow:run: {:1", lines.get(0));
+	}
+
+	@Test
+	public void exceptionThroughTheRootClosesTheUnitUnderTheGlobalThreshold() throws Exception {
+		int other = MethodRegistry.register("slowcall.test.SlowAfterThrow", "run", "()V");
+		AgentHelper.getResponses(null, "[slowcall-threshold-100");
+		assertTrue(TraceHandler.INSTANCE.isSlowCallThresholdSet());
+		runAndFail(InstrumentedClasses.instrument(TriggerMethods.class.getName()));
+
+		// The thread's next call is a candidate of its own
+		AgentHelper.enter(other, 1);
+		Thread.sleep(150);
+		AgentHelper.exit(other, 2);
+		List<String> lines = tracedLines("slowcall.test.");
+		assertEquals(lines.toString(), 3, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("SLOWCALL: slowcall.test.SlowAfterThrow:run took "));
+	}
+}
@@ -2,6 +2,7 @@ package org.intracetest.agent;
 
 import junit.framework.TestCase;
 
+import org.intrace.output.StackFingerprints;
 import org.intrace.output.trace.TraceHandler;
 
 public class StackTraceTest extends TestCase
@@ -31,6 +32,24 @@ public void testStackTrace()
 	  validateStackTraceElement("org.intracetest.agent.StackTraceTest.a", parts[2]);
 	  validateStackTraceElement("org.intracetest.agent.StackTraceTest.testStackTrace", parts[3]);
 	  //validateStackTraceElement("sun.reflect.NativeMethodAccessorImpl.invoke0", parts[4]);
+  }
+  public void testRepeatedStackIsRenderedOnce()
+  {
+	  String[] traces = new String[2];
+	  for (int ii = 0; ii < traces.length; ii++) {
+		  a();
+		  traces[ii] = m_stackTrace;
+	  }
+	  assertSame("Same stack should reuse the rendered text", traces[0], traces[1]);
+	  a();
+	  assertFalse("Stack from another line rendered the same", traces[0].equals(m_stackTrace));
+  }
+  public void testStringsWithTheSameHashCodeDiffer()
+  {
+	  assertEquals("Aa".hashCode(), "BB".hashCode());
+	  long start = StackFingerprints.begin();
+	  assertFalse(StackFingerprints.mix(start, "Aa") == StackFingerprints.mix(start, "BB"));
+	  assertFalse(StackFingerprints.mix(start, "") == StackFingerprints.mix(start, (String) null));
   }
 	private void validateStackTraceElement(String expectedPackageAndClassAndMethod, String actual) {
 		String[] partsOfStackTraceElement = actual.split("[\\(:\\)]");
@@ -0,0 +1,178 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.stats.StatisticsHandler;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatisticsHandlerTest {
+	private final int[] enters = new int[1];
+
+	@Before
+	public void enableStatistics() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				enters[0]++;
+			}
+		});
+		AgentHelper.getResponses(null, "[stats-interval-600000[stats-reset[stats-true");
+	}
+
+	@After
+	public void restore() {
+		AgentHelper.getResponses(null, "[stats-false[stats-reset[calltree-false[calltree-reset"
+				+ "[stats-interval-5000");
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	private static List<String> linesFor(List<String> snapshot, String prefix) {
+		List<String> lines = new ArrayList<String>();
+		for (String line : snapshot) {
+			if (line.substring(line.indexOf(' ') + 1).startsWith(prefix + " ")) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void reportsLatencyDistribution() {
+		int methodId = MethodRegistry.register("stats.test.Latency", "run", "()V");
+		for (int i = 1; i <= 100; i++) {
+			StatisticsHandler.INSTANCE.record(methodId, i * 1000L);
+		}
+		List<String> lines = linesFor(StatisticsHandler.INSTANCE.snapshot(), "stats.test.Latency:run");
+		assertEquals(1, lines.size());
+		assertEquals("STATS: stats.test.Latency:run count=100 mean=50.5us p50=57.3us p90=98.3us"
+				+ " p99=100.0us max=100.0us", lines.get(0));
+
+		// Only methods called since the previous snapshot are reported
+		assertTrue(linesFor(StatisticsHandler.INSTANCE.snapshot(), "stats.test.Latency:run").isEmpty());
+		StatisticsHandler.INSTANCE.record(methodId, 1000L);
+		lines = linesFor(StatisticsHandler.INSTANCE.snapshot(), "stats.test.Latency:run");
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).contains(" count=101 "));
+	}
+
+	@Test
+	public void probesAreTimedInsteadOfTraced() {
+		int outer = MethodRegistry.register("stats.test.Outer", "run", "()V");
+		int unwound = MethodRegistry.register("stats.test.Unwound", "run", "()V");
+		assertFalse(AgentHelper.argProbesEnabled());
+		assertFalse(AgentHelper.branchProbesEnabled());
+		assertTrue(AgentHelper.entryExitProbesEnabled());
+
+		AgentHelper.enter(outer, 1);
+		AgentHelper.exit(outer, 2);
+		// An exception unwinds the inner call without an exit probe
+		AgentHelper.enter(outer, 1);
+		AgentHelper.enter(unwound, 1);
+		AgentHelper.exit(outer, 2);
+		assertEquals(0, enters[0]);
+
+		List<String> snapshot = StatisticsHandler.INSTANCE.snapshot();
+		assertEquals(1, linesFor(snapshot, "stats.test.Outer:run").size());
+		assertTrue(linesFor(snapshot, "stats.test.Outer:run").get(0).contains(" count=2 "));
+		assertTrue(linesFor(snapshot, "stats.test.Unwound:run").isEmpty());
+
+		// Tracing resumes once statistics mode is off
+		AgentHelper.getResponses(null, "[stats-false");
+		assertTrue(AgentHelper.argProbesEnabled());
+		AgentHelper.enter(outer, 1);
+		assertEquals(1, enters[0]);
+	}
+
+	@Test
+	public void attributesCallsToCallerPaths() {
+		int a = MethodRegistry.register("calltree.test.A", "run", "()V");
+		int b = MethodRegistry.register("calltree.test.B", "run", "()V");
+		int c = MethodRegistry.register("calltree.test.C", "run", "()V");
+		AgentHelper.getResponses(null, "[stats-false[calltree-true");
+		assertTrue(StatisticsHandler.INSTANCE.isEnabled());
+
+		for (int i = 0; i < 2; i++) {
+			AgentHelper.enter(a, 1);
+			AgentHelper.enter(b, 1);
+			AgentHelper.exit(b, 2);
+			AgentHelper.enter(c, 1);
+			// An exception unwinds the call of B without an exit probe
+			AgentHelper.enter(b, 1);
+			AgentHelper.exit(c, 2);
+			AgentHelper.exit(a, 2);
+		}
+		AgentHelper.enter(b, 1);
+		AgentHelper.exit(b, 2);
+		assertEquals(0, enters[0]);
+
+		List<String> snapshot = StatisticsHandler.INSTANCE.callTreeSnapshot();
+		assertEquals(1, linesFor(snapshot, "calltree.test.A.run count=2").size());
+		assertEquals(1, linesFor(snapshot, "calltree.test.A.run;calltree.test.B.run count=2").size());
+		assertEquals(1, linesFor(snapshot, "calltree.test.A.run;calltree.test.C.run count=2").size());
+		assertEquals(1, linesFor(snapshot, "calltree.test.B.run count=1").size());
+		assertTrue(linesFor(snapshot, "calltree.test.A.run;calltree.test.C.run;calltree.test.B.run").isEmpty());
+		assertTrue(linesFor(StatisticsHandler.INSTANCE.callTreeSnapshot(), "calltree.test.A.run count=2").isEmpty());
+
+		String collapsed = AgentHelper.getResponses(null, "[calltree-collapsed").get(0);
+		assertTrue(collapsed.contains("calltree.test.A.run;calltree.test.C.run "));
+		assertTrue(collapsed.contains("\ncalltree.test.B.run "));
+		assertFalse(collapsed.contains(";calltree.test.C.run;"));
+
+		AgentHelper.getResponses(null, "[calltree-reset");
+		assertFalse(StatisticsHandler.INSTANCE.getCollapsedStacks().contains("calltree.test."));
+	}
+
+	@Test
+	public void treesOfDeadThreadsAreRetired() throws Exception {
+		final int d = MethodRegistry.register("calltree.test.D", "run", "()V");
+		AgentHelper.getResponses(null, "[stats-false[calltree-true");
+
+		List<WeakReference<Thread>> threads = new ArrayList<WeakReference<Thread>>();
+		for (int i = 0; i < 3; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					AgentHelper.enter(d, 1);
+					AgentHelper.exit(d, 2);
+				}
+			};
+			thread.start();
+			thread.join();
+			threads.add(new WeakReference<Thread>(thread));
+		}
+		assertEquals(1, linesFor(StatisticsHandler.INSTANCE.callTreeSnapshot(), "calltree.test.D.run count=3").size());
+
+		// The calls of the dead threads are still counted
+		AgentHelper.enter(d, 1);
+		AgentHelper.exit(d, 2);
+		assertEquals(1, linesFor(StatisticsHandler.INSTANCE.callTreeSnapshot(), "calltree.test.D.run count=4").size());
+
+		// but their trees are no longer held
+		for (int i = 0; (i < 50) && !allCleared(threads); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(allCleared(threads));
+	}
+
+	private static boolean allCleared(List<WeakReference<Thread>> threads) {
+		for (WeakReference<Thread> thread : threads) {
+			if (thread.get() != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,82 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.intrace.agent.ClassTransformer;
+import org.intrace.agent.InstrCriteria;
+import org.intrace.agent.SubstringMatcher;
+import org.junit.Test;
+
+public class SubstringMatcherTest {
+
+	private static boolean naiveMatches(String[] patterns, String target) {
+		for (String pattern : patterns) {
+			if (pattern.equals(ClassTransformer.MATCH_NONE)) {
+				continue;
+			} else if (pattern.equals(ClassTransformer.MATCH_ALL) || target.contains(pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void matchesOverlappingPatterns() {
+		SubstringMatcher matcher = new SubstringMatcher(new String[] { "he", "she", "hers", "org.foo.Bar" });
+		assertTrue(matcher.matches("ushers"));
+		assertTrue(matcher.matches("xorg.foo.Barx"));
+		assertTrue(matcher.matches("ahe"));
+		assertFalse(matcher.matches("org.foo.Baz"));
+		assertFalse(matcher.matches(""));
+	}
+
+	@Test
+	public void handlesMatchAllAndNone() {
+		assertFalse(new SubstringMatcher(new String[] { ClassTransformer.MATCH_NONE }).matches("a.B"));
+		assertFalse(new SubstringMatcher(new String[0]).matches("a.B"));
+		assertTrue(new SubstringMatcher(new String[] { "x", ClassTransformer.MATCH_ALL }).matches("a.B"));
+	}
+
+	@Test
+	public void agreesWithContains() {
+		Random random = new Random(42);
+		String alphabet = "ab.c";
+		for (int round = 0; round < 200; round++) {
+			String[] patterns = new String[1 + random.nextInt(6)];
+			for (int ii = 0; ii < patterns.length; ii++) {
+				patterns[ii] = randomString(random, alphabet, 1 + random.nextInt(4));
+			}
+			SubstringMatcher matcher = new SubstringMatcher(patterns);
+			for (int jj = 0; jj < 50; jj++) {
+				String target = randomString(random, alphabet, random.nextInt(12));
+				assertEquals(target, naiveMatches(patterns, target), matcher.matches(target));
+			}
+		}
+	}
+
+	@Test
+	public void criteriaUseCompiledTables() {
+		InstrCriteria ic = new InstrCriteria("org.foo.Bar#baz({I)V|org.foo.Bar#baz(J)V|org.qux");
+		assertTrue(ic.matchesClassName("org.foo.Bar$Inner"));
+		assertTrue(ic.matchesClassName("org.quxx.Y"));
+		assertFalse(ic.matchesClassName("org.foo.Baz"));
+		assertTrue(ic.thisMethodSpecified("org.foo.Bar", "baz", "([I)V"));
+		assertTrue(ic.thisMethodSpecified("org.foo.Bar", "baz", "({I)V"));
+		assertTrue(ic.thisMethodSpecified("org.foo.Bar", "baz", "(J)V"));
+		assertFalse(ic.thisMethodSpecified("org.foo.Bar", "baz", "(I)V"));
+		assertTrue(ic.thisMethodSpecified("org.qux", "anything", "()V"));
+		assertFalse(ic.allMethodsSpecified("org.foo.Bar"));
+	}
+
+	private static String randomString(Random random, String alphabet, int len) {
+		StringBuilder sb = new StringBuilder();
+		for (int ii = 0; ii < len; ii++) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+}
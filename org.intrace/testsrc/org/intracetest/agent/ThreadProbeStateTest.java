@@ -0,0 +1,106 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.ref.WeakReference;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.trace.TraceHandler;
+import org.junit.After;
+import org.junit.Test;
+
+public class ThreadProbeStateTest {
+
+	@After
+	public void restoreHandler() {
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	@Test
+	public void stateIsPerThread() throws Exception {
+		final ThreadProbeState mine = ThreadProbeState.current();
+		assertSame(mine, ThreadProbeState.current());
+		assertTrue(mine.enterAgent());
+		try {
+			assertFalse("Reentry not detected", mine.enterAgent());
+
+			final ThreadProbeState[] other = new ThreadProbeState[1];
+			final boolean[] otherEntered = new boolean[1];
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					other[0] = ThreadProbeState.current();
+					otherEntered[0] = other[0].enterAgent();
+					other[0].leaveAgent();
+				}
+			};
+			t.start();
+			t.join();
+			assertNotSame(mine, other[0]);
+			assertTrue("Guard leaked to another thread", otherEntered[0]);
+		} finally {
+			mine.leaveAgent();
+		}
+		assertFalse(mine.isInAgent());
+	}
+
+	@Test
+	public void probesAreNotReentrantAndLeaveHandlersAlone() {
+		final int methodId = MethodRegistry.register("a.B", "reenter", "()V");
+		final int[] enters = new int[1];
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				enters[0]++;
+				// Tracing code which is itself instrumented must not recurse
+				AgentHelper.enter(methodId, lineNo);
+			}
+		});
+
+		UncaughtExceptionHandler appHandler = new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+			}
+		};
+		Thread.currentThread().setUncaughtExceptionHandler(appHandler);
+		try {
+			AgentHelper.enter(methodId, 1);
+			assertEquals(1, enters[0]);
+			assertSame(appHandler, Thread.currentThread().getUncaughtExceptionHandler());
+		} finally {
+			Thread.currentThread().setUncaughtExceptionHandler(null);
+		}
+	}
+
+	@Test
+	public void stateOfDeadThreadIsReleased() throws Exception {
+		final WeakReference<?>[] stateRef = new WeakReference<?>[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				Object handlerState = new long[1024];
+				ThreadProbeState.current().setHandlerState(handlerState);
+				stateRef[0] = new WeakReference<Object>(handlerState);
+			}
+		};
+		t.start();
+		t.join();
+		t = null;
+
+		ThreadProbeState.clearDeadThreads();
+		for (int ii = 0; (ii < 20) && (stateRef[0].get() != null); ii++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue("State of a dead thread is still reachable",
+				stateRef[0].get() == null);
+	}
+}
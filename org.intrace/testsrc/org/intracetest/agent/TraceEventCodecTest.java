@@ -0,0 +1,173 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.intrace.shared.SerializationHelper;
+import org.intrace.shared.TraceEventBuffer;
+import org.intrace.shared.TraceEventCodec;
+import org.intrace.shared.TraceEventDictionary;
+import org.intrace.shared.TraceTimestampFormat;
+import org.junit.Test;
+
+public class TraceEventCodecTest {
+	private static final long NANOS = 1400000000123456789L;
+	private static final String PREFIX = "[" + TraceTimestampFormat.format(NANOS / 1000000L) + "]:[7]:a.b.C:m";
+
+	private final TraceEventDictionary dictionary = new TraceEventDictionary();
+	private final int methodId = dictionary.add("a.b.C", "m");
+
+	private TraceEventBuffer begin(byte type) {
+		return new TraceEventBuffer(16).begin(type, 7, NANOS, methodId);
+	}
+
+	@Test
+	public void canRenderEntryExitBranch() {
+		TraceEventBuffer buf = begin(TraceEventCodec.ENTER);
+		buf.putInt(12);
+		assertEquals(PREFIX + ": {:12", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.EXIT);
+		buf.putInt(-1);
+		buf.putString(null);
+		assertEquals(PREFIX + ": }", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.EXIT);
+		buf.putInt(20);
+		buf.putString("x.Y.z(Y.java:3)");
+		assertEquals(PREFIX + ": }:20~x.Y.z(Y.java:3)", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.BRANCH);
+		buf.putInt(5);
+		assertEquals(PREFIX + ": /:5", TraceEventCodec.render(buf.toByteArray(), dictionary));
+	}
+
+	@Test
+	public void canRenderValues() {
+		TraceEventBuffer buf = begin(TraceEventCodec.VAL);
+		buf.putString("Arg (x)");
+		buf.putValue(-3.5d);
+		assertEquals(PREFIX + ": Arg (x): -3.5", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.VAL);
+		buf.putString("Return");
+		buf.putValue('\u00e9');
+		assertEquals(PREFIX + ": Return: \u00e9", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.VAL);
+		buf.putString("Arg");
+		buf.putValue((int[]) null, true);
+		assertEquals(PREFIX + ": Arg: null", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.VAL);
+		buf.putString("Arg");
+		buf.putValue(new short[] { 1, -2 }, true);
+		assertEquals(PREFIX + ": Arg: Len:2 [1, -2]", TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.THROWABLE);
+		buf.putString("Throw");
+		buf.putInt(44);
+		buf.putString("java.lang.Exception: \u2603");
+		assertEquals(PREFIX + ": Throw:44: java.lang.Exception: \u2603", TraceEventCodec.render(buf.toByteArray(), dictionary));
+	}
+
+	@Test
+	public void canRenderArraysLikeTextTrace() {
+		long[] big = new long[500];
+		for (int ii = 0; ii < big.length; ii++) {
+			big[ii] = ii * 1000L;
+		}
+		String full = Arrays.toString(big);
+
+		TraceEventBuffer buf = begin(TraceEventCodec.VAL);
+		buf.putString("Arg");
+		buf.putValue(big, true);
+		assertEquals(PREFIX + ": Arg: Len:500 " + full.substring(0, 100) + "...",
+				TraceEventCodec.render(buf.toByteArray(), dictionary));
+
+		buf = begin(TraceEventCodec.VAL);
+		buf.putString("Arg");
+		buf.putValue(big, false);
+		assertEquals(PREFIX + ": Arg: Len:500 " + full, TraceEventCodec.render(buf.toByteArray(), dictionary));
+	}
+
+	@Test
+	public void canRoundTripWireBatch() throws Exception {
+		List<byte[]> events = new ArrayList<byte[]>();
+		List<String> expected = new ArrayList<String>();
+		for (int ii = 0; ii < 50; ii++) {
+			TraceEventBuffer buf = begin(TraceEventCodec.ENTER);
+			buf.putInt(ii);
+			events.add(buf.toByteArray());
+			expected.add(PREFIX + ": {:" + ii);
+		}
+		byte[] wire = TraceEventCodec.toWire(events);
+		assertTrue("Binary batch not recognised", TraceEventCodec.isBinaryBatch(wire));
+		assertFalse("String batch mistaken for binary batch",
+				TraceEventCodec.isBinaryBatch(SerializationHelper.toWire(new String[] { "foo" })));
+		assertEquals(expected, Arrays.asList(TraceEventCodec.fromWire(wire, dictionary)));
+	}
+
+	@Test
+	public void canShipDictionary() throws Exception {
+		dictionary.add("x.Y", "first");
+		dictionary.add("x.Y", "second");
+		byte[] frame = TraceEventCodec.dictionaryToWire(dictionary, 1, 3);
+		assertTrue("Dictionary frame not recognised", TraceEventCodec.isDictionaryFrame(frame));
+		assertFalse("Dictionary frame mistaken for a batch", TraceEventCodec.isBinaryBatch(frame));
+
+		TraceEventDictionary clientDictionary = new TraceEventDictionary();
+		TraceEventCodec.dictionaryFromWire(frame, clientDictionary);
+		assertEquals("Only the shipped range should be known", 3, clientDictionary.size());
+		assertEquals("x.Y:second", clientDictionary.getQualifiedName(2));
+		assertEquals("first", clientDictionary.getMethodName(1));
+		assertEquals("<method 0>", clientDictionary.getMethodName(0));
+
+		TraceEventBuffer buf = new TraceEventBuffer(16).begin(TraceEventCodec.BRANCH, 7, NANOS, 2);
+		buf.putInt(9);
+		assertEquals("[" + TraceTimestampFormat.format(NANOS / 1000000L) + "]:[7]:x.Y:second: /:9",
+				TraceEventCodec.render(buf.toByteArray(), clientDictionary));
+	}
+
+	@Test
+	public void canShipStackTexts() throws Exception {
+		int stack = dictionary.addText("x.Y.z(Y.java:3),x.Y.main(Y.java:1)");
+		int trace = dictionary.addText("\n\tat x.Y.z(Y.java:3)\n");
+		byte[] frame = TraceEventCodec.textsToWire(dictionary, stack, trace + 1);
+		assertTrue("Text frame not recognised", TraceEventCodec.isTextFrame(frame));
+		assertFalse("Text frame mistaken for a dictionary frame", TraceEventCodec.isDictionaryFrame(frame));
+		assertFalse("Text frame mistaken for a batch", TraceEventCodec.isBinaryBatch(frame));
+
+		TraceEventDictionary clientDictionary = new TraceEventDictionary();
+		clientDictionary.add("a.b.C", "m");
+		TraceEventCodec.textsFromWire(frame, clientDictionary);
+		assertEquals(trace + 1, clientDictionary.textCount());
+
+		TraceEventBuffer buf = begin(TraceEventCodec.EXIT_REF);
+		buf.putInt(20);
+		buf.putVarLong(stack);
+		assertEquals(PREFIX + ": }:20~x.Y.z(Y.java:3),x.Y.main(Y.java:1)",
+				TraceEventCodec.render(buf.toByteArray(), clientDictionary));
+
+		buf = begin(TraceEventCodec.THROWABLE_REF);
+		buf.putString("Throw");
+		buf.putInt(44);
+		buf.putString("java.lang.Exception: \u2603");
+		buf.putVarLong(trace);
+		assertEquals(PREFIX + ": Throw:44: java.lang.Exception: \u2603\n\tat x.Y.z(Y.java:3)\n",
+				TraceEventCodec.render(buf.toByteArray(), clientDictionary));
+	}
+
+	@Test
+	public void canFormatTimestamps() {
+		String a = TraceTimestampFormat.format(NANOS / 1000000L);
+		assertEquals("Didn't find HH:mm:ss.SSS", 12, a.length());
+		assertTrue("Millis not rendered", a.endsWith(".123"));
+		assertTrue("Millis not zero padded", TraceTimestampFormat.format(1000L * 60 + 7).endsWith(".007"));
+	}
+}
@@ -0,0 +1,31 @@
+package org.intracetest.agent;
+
+/**
+ * Trigger and slow call methods which exceptions unwind.
+ */
+public class TriggerMethods {
+	private int recovered;
+
+	public void run(boolean fail) {
+		work(fail);
+	}
+
+	public void fail() {
+		throw new IllegalStateException("fail");
+	}
+
+	public int recover() {
+		try {
+			work(true);
+		} catch (IllegalStateException ex) {
+			recovered++;
+		}
+		return recovered;
+	}
+
+	private void work(boolean fail) {
+		if (fail) {
+			throw new IllegalStateException("work");
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.ClassTransformer;
+import org.intrace.agent.InstrCriteria;
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.IProbeDemand;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.ThreadProbeState;
+import org.intrace.output.TriggerScope;
+import org.intrace.output.trace.TraceHandler;
+import org.intrace.shared.AgentConfigConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TriggerScopeTest {
+	private final List<String> events = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void captureEvents() {
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				events.add("{" + className);
+			}
+
+			@Override
+			public void exit(String className, String methodName, int lineNo) {
+				events.add("}" + className);
+			}
+
+			@Override
+			public void val(String desc, String className, String methodName, int intArg) {
+				events.add(desc + " " + intArg);
+			}
+		});
+	}
+
+	@After
+	public void restore() {
+		TriggerScope.setPolicySource(null);
+		AgentHelper.setInstrumentationHandler(TraceHandler.INSTANCE);
+	}
+
+	@Test
+	public void onlyThreadsInsideTriggerAreTraced() throws Exception {
+		int service = MethodRegistry.register("trigger.test.Service", "run", "()V");
+		final int other = MethodRegistry.register("trigger.test.Other", "run", "()V");
+		InstrCriteria criteria = new InstrCriteria("trigger.test.Service#run()V@trigger|trigger.test.Other");
+		assertTrue(criteria.toString().contains("trigger.test.Service#run()V@trigger"));
+		TriggerScope.setPolicySource(criteria);
+		assertTrue(TriggerScope.isActive());
+
+		AgentHelper.enter(other, 1);
+		AgentHelper.exit(other, 2);
+		assertTrue(events.isEmpty());
+
+		AgentHelper.enter(service, 1);
+		AgentHelper.enter(other, 1);
+		AgentHelper.val("Arg", other, 7);
+		// Another thread isn't inside the trigger
+		Thread outside = new Thread() {
+			@Override
+			public void run() {
+				AgentHelper.enter(other, 1);
+			}
+		};
+		outside.start();
+		outside.join();
+		AgentHelper.exit(other, 2);
+		AgentHelper.exit(service, 2);
+		AgentHelper.enter(other, 1);
+
+		assertEquals("[{trigger.test.Service, {trigger.test.Other, Arg 7, }trigger.test.Other, }trigger.test.Service]",
+				events.toString());
+
+		// Without triggers every thread is traced
+		events.clear();
+		TriggerScope.setPolicySource(null);
+		assertFalse(TriggerScope.isActive());
+		AgentHelper.enter(other, 1);
+		assertEquals(1, events.size());
+	}
+
+	/**
+	 * Argument tracing only, as with [trace-ee-false[trace-args-true.
+	 */
+	private class ArgsOnlyHandler extends IInstrumentationHandlerAdapter implements IProbeDemand {
+		@Override
+		public void val(String desc, String className, String methodName, int intArg) {
+			events.add(desc + " " + intArg);
+		}
+
+		@Override
+		public boolean isEntryExitDemanded() {
+			return false;
+		}
+
+		@Override
+		public boolean isBranchDemanded() {
+			return false;
+		}
+
+		@Override
+		public boolean isArgDemanded() {
+			return true;
+		}
+	}
+
+	@Test
+	public void triggersWorkWithoutEntryExitTracing() {
+		AgentHelper.setInstrumentationHandler(new ArgsOnlyHandler());
+		assertFalse(AgentHelper.entryExitProbesEnabled());
+		int service = MethodRegistry.register("trigger.test.ArgsService", "run", "()V");
+		int other = MethodRegistry.register("trigger.test.ArgsOther", "run", "(I)V");
+		TriggerScope.setPolicySource(new InstrCriteria("trigger.test.ArgsService#run()V@trigger"));
+		assertTrue("Trigger scopes need the entry probes", AgentHelper.entryExitProbesEnabled());
+
+		AgentHelper.val("Arg", other, 1);
+		AgentHelper.enter(service, 1);
+		AgentHelper.val("Arg", other, 2);
+		AgentHelper.exit(service, 2);
+		AgentHelper.val("Arg", other, 3);
+		assertEquals("[Arg 2]", events.toString());
+
+		TriggerScope.setPolicySource(null);
+		assertFalse(AgentHelper.entryExitProbesEnabled());
+	}
+
+	@Test
+	public void exceptionThroughTriggerLeavesScope() throws Exception {
+		String className = TriggerMethods.class.getName();
+		TriggerScope.setPolicySource(new InstrCriteria(className + "#run(Z)V@trigger|" + className
+				+ "#fail()V@trigger|" + className + "#recover()I@trigger"));
+		Class<?> klass = InstrumentedClasses.instrument(className);
+		Object instance = klass.newInstance();
+		AgentHelper.setInstrumentationHandler(new IInstrumentationHandlerAdapter() {
+			@Override
+			public void enter(String className, String methodName, int lineNo) {
+				events.add("{" + methodName);
+			}
+
+			@Override
+			public void exit(String className, String methodName, int lineNo) {
+				events.add("}" + methodName);
+			}
+		});
+
+		try {
+			klass.getMethod("run", boolean.class).invoke(instance, true);
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+		assertFalse(ThreadProbeState.current().isInTrigger());
+		assertEquals("[{run, {work, }work, }run]", events.toString());
+
+		// An explicit throw out of a trigger writes a single exit
+		events.clear();
+		try {
+			klass.getMethod("fail").invoke(instance);
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+		assertFalse(ThreadProbeState.current().isInTrigger());
+		assertEquals("[{fail, }fail]", events.toString());
+
+		// An exception caught within the trigger doesn't end the scope
+		events.clear();
+		assertEquals(1, klass.getMethod("recover").invoke(instance));
+		assertFalse(ThreadProbeState.current().isInTrigger());
+		assertEquals("[{recover, {work, }work, }recover]", events.toString());
+
+		klass.getMethod("run", boolean.class).invoke(instance, false);
+		assertFalse(ThreadProbeState.current().isInTrigger());
+	}
+
+	@Test
+	public void addingATriggerRetransformsTheClass() throws Exception {
+		final Class<?> target = TriggerMethods.class;
+		final String className = target.getName();
+		final byte[] original = InstrumentedClasses.classBytes(className);
+		// The bytes each retransform produced, the transformer is driven as the
+		// JVM would drive it
+		final Map<Integer, byte[]> transformed = new ConcurrentHashMap<Integer, byte[]>();
+		final ClassTransformer[] transformer = new ClassTransformer[1];
+		Instrumentation inst = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getAllLoadedClasses")) {
+							return new Class<?>[] { target };
+						} else if (name.equals("isRetransformClassesSupported")
+								|| name.equals("isModifiableClass")) {
+							return true;
+						} else if (name.equals("retransformClasses")) {
+							byte[] bytes = transformer[0].transform(target.getClassLoader(),
+									className.replace('.', '/'), target, null, original);
+							if (bytes != null) {
+								transformed.put(transformed.size(), bytes);
+							}
+							return null;
+						}
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class) {
+							return false;
+						} else if (type == long.class) {
+							return 0L;
+						}
+						return null;
+					}
+				});
+		transformer[0] = new ClassTransformer(inst, new AgentSettings(AgentConfigConstants.INSTRU_ENABLED + "true"));
+
+		transformer[0].getResponse(null, AgentConfigConstants.CLASS_REGEX + className + "#run(Z)V");
+		for (int ii = 0; (ii < 200) && (transformed.size() < 1); ii++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, transformed.size());
+
+		// Only the trigger option changes
+		transformer[0].getResponse(null, AgentConfigConstants.CLASS_REGEX + className + "#run(Z)V@trigger");
+		for (int ii = 0; (ii < 200) && (transformed.size() < 2); ii++) {
+			Thread.sleep(10);
+		}
+		assertEquals("The class wasn't retransformed", 2, transformed.size());
+
+		Class<?> klass = InstrumentedClasses.define(className, transformed.get(1));
+		try {
+			klass.getMethod("run", boolean.class).invoke(klass.newInstance(), true);
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+		assertFalse(ThreadProbeState.current().isInTrigger());
+		assertTrue(events.contains("}" + className));
+	}
+}
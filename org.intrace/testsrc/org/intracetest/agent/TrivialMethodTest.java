@@ -0,0 +1,112 @@
+package org.intracetest.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.intrace.agent.AgentSettings;
+import org.intrace.agent.ClassAnalysis;
+import org.intrace.agent.ClassAnalysis.TrivialKind;
+import org.intrace.agent.InstrumentedClassWriter;
+import org.intrace.output.InvocationCounter;
+import org.intrace.output.MethodRegistry;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+public class TrivialMethodTest {
+	private static final String CLASS_NAME = TrivialMethods.class.getName();
+
+	private static byte[] classBytes() throws Exception {
+		InputStream in = ClassLoader.getSystemResourceAsStream(CLASS_NAME.replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static InstrumentedClassWriter instrument(String args) throws Exception {
+		ClassReader cr = new ClassReader(classBytes());
+		InstrumentedClassWriter writer = new InstrumentedClassWriter(CLASS_NAME, cr, true,
+				new AgentSettings("[regex-" + CLASS_NAME + args));
+		cr.accept(writer, 0);
+		return writer;
+	}
+
+	@Test
+	public void classifiesTrivialMethods() throws Exception {
+		ClassAnalysis analysis = new ClassAnalysis();
+		new ClassReader(classBytes()).accept(analysis, 0);
+		Map<String, TrivialKind> kinds = analysis.methodTrivialKinds;
+		assertEquals(TrivialKind.EMPTY, kinds.get("<init>()V"));
+		assertEquals(TrivialKind.EMPTY, kinds.get("empty()V"));
+		assertEquals(TrivialKind.ACCESSOR, kinds.get("getX()I"));
+		assertEquals(TrivialKind.ACCESSOR, kinds.get("setX(I)V"));
+		assertEquals(TrivialKind.CONSTANT, kinds.get("constant()Ljava/lang/String;"));
+		assertEquals(TrivialKind.BRIDGE, kinds.get("compareTo(Ljava/lang/Object;)I"));
+		assertNull(kinds.get("sum(I)I"));
+		assertNull(kinds.get("twice()I"));
+		assertNull(kinds.get("compareTo(Lorg/intracetest/agent/TrivialMethods;)I"));
+
+		analysis = new ClassAnalysis(10);
+		new ClassReader(classBytes()).accept(analysis, 0);
+		assertEquals(TrivialKind.SMALL, analysis.methodTrivialKinds.get("twice()I"));
+		assertNull(analysis.methodTrivialKinds.get("sum(I)I"));
+	}
+
+	@Test
+	public void skipsTrivialMethods() throws Exception {
+		assertTrue(instrument("").getMethodIds().containsKey("getX()I"));
+
+		Map<String, Integer> methodIds = instrument("[trivial-skip").getMethodIds();
+		assertFalse(methodIds.containsKey("getX()I"));
+		assertFalse(methodIds.containsKey("<init>()V"));
+		assertFalse(methodIds.containsKey("compareTo(Ljava/lang/Object;)I"));
+		assertTrue(methodIds.containsKey("sum(I)I"));
+		assertTrue(methodIds.containsKey("twice()I"));
+
+		methodIds = instrument("[trivial-skip[trivial-threshold-10").getMethodIds();
+		assertFalse(methodIds.containsKey("twice()I"));
+		assertTrue(methodIds.containsKey("sum(I)I"));
+	}
+
+	@Test
+	public void countsTrivialMethods() throws Exception {
+		final byte[] bytes = instrument("[trivial-count").toByteArray();
+		ClassLoader loader = new ClassLoader(TrivialMethodTest.class.getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (name.equals(CLASS_NAME)) {
+					synchronized (this) {
+						Class<?> klass = findLoadedClass(name);
+						if (klass == null) {
+							klass = defineClass(name, bytes, 0, bytes.length);
+						}
+						return klass;
+					}
+				}
+				return super.loadClass(name, resolve);
+			}
+		};
+		Class<?> klass = loader.loadClass(CLASS_NAME);
+		Object instance = klass.newInstance();
+		int getX = MethodRegistry.register(CLASS_NAME, "getX", "()I");
+		long before = InvocationCounter.get(getX);
+		for (int i = 0; i < 3; i++) {
+			klass.getMethod("getX").invoke(instance);
+		}
+		assertEquals(before + 3, InvocationCounter.get(getX));
+		assertTrue(InvocationCounter.getCounts().containsKey(CLASS_NAME + ":getX"));
+	}
+}
@@ -0,0 +1,44 @@
+package org.intracetest.agent;
+
+/**
+ * Methods which the trivial method analysis should and shouldn't classify as
+ * trivial.
+ */
+public class TrivialMethods implements Comparable<TrivialMethods> {
+	private int x;
+
+	public TrivialMethods() {
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public void setX(int x) {
+		this.x = x;
+	}
+
+	public String constant() {
+		return "constant";
+	}
+
+	public void empty() {
+	}
+
+	public int sum(int n) {
+		int total = 0;
+		for (int i = 0; i < n; i++) {
+			total += i * x;
+		}
+		return total;
+	}
+
+	public int twice() {
+		return x + x;
+	}
+
+	@Override
+	public int compareTo(TrivialMethods other) {
+		return sum(x) - other.sum(other.x);
+	}
+}
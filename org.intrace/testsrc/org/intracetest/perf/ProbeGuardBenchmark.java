@@ -0,0 +1,125 @@
+package org.intracetest.perf;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+
+import org.intrace.output.AgentHelper;
+import org.intrace.output.IInstrumentationHandlerAdapter;
+import org.intrace.output.MethodRegistry;
+import org.intrace.output.ThreadProbeState;
+
+/**
+ * Compares the per probe cost of the reentrancy guards: the old
+ * UncaughtExceptionHandler swap, a plain ThreadLocal and
+ * {@link ThreadProbeState}. Also times a complete {@link AgentHelper#enter}
+ * call into a handler which only counts.
+ * <p>
+ * Not a unit test - run by hand with the agent classes on the classpath:
+ * java -cp build/classes:build/testclasses
+ * org.intracetest.perf.ProbeGuardBenchmark
+ */
+public class ProbeGuardBenchmark {
+	private static final int ITERATIONS = 20000000;
+	private static final int ROUNDS = 5;
+
+	private static final UncaughtExceptionHandler CRITICAL_BLOCK = new UncaughtExceptionHandler() {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+			// Do nothing
+		}
+	};
+
+	private static final ThreadLocal<boolean[]> LOCAL_FLAG = new ThreadLocal<boolean[]>() {
+		@Override
+		protected boolean[] initialValue() {
+			return new boolean[1];
+		}
+	};
+
+	private static long sink;
+
+	private static class CountingHandler extends IInstrumentationHandlerAdapter {
+		long count;
+
+		@Override
+		public void enter(String className, String methodName, int lineNo) {
+			count++;
+		}
+	}
+
+	private interface Probe {
+		void run(int ii);
+	}
+
+	private static final Probe UCEH_SWAP = new Probe() {
+		@Override
+		public void run(int ii) {
+			Thread currentTh = Thread.currentThread();
+			UncaughtExceptionHandler handler = currentTh.getUncaughtExceptionHandler();
+			if (handler != CRITICAL_BLOCK) {
+				currentTh.setUncaughtExceptionHandler(CRITICAL_BLOCK);
+				try {
+					sink += ii;
+				} finally {
+					currentTh.setUncaughtExceptionHandler(handler);
+				}
+			}
+		}
+	};
+
+	private static final Probe THREAD_LOCAL = new Probe() {
+		@Override
+		public void run(int ii) {
+			boolean[] flag = LOCAL_FLAG.get();
+			if (!flag[0]) {
+				flag[0] = true;
+				try {
+					sink += ii;
+				} finally {
+					flag[0] = false;
+				}
+			}
+		}
+	};
+
+	private static final Probe PROBE_STATE = new Probe() {
+		@Override
+		public void run(int ii) {
+			ThreadProbeState state = ThreadProbeState.current();
+			if (state.enterAgent()) {
+				try {
+					sink += ii;
+				} finally {
+					state.leaveAgent();
+				}
+			}
+		}
+	};
+
+	private static double time(Probe probe) {
+		long start = System.nanoTime();
+		for (int ii = 0; ii < ITERATIONS; ii++) {
+			probe.run(ii);
+		}
+		return (System.nanoTime() - start) / (double) ITERATIONS;
+	}
+
+	private static double timeEnter(int methodId) {
+		long start = System.nanoTime();
+		for (int ii = 0; ii < ITERATIONS; ii++) {
+			AgentHelper.enter(methodId, ii);
+		}
+		return (System.nanoTime() - start) / (double) ITERATIONS;
+	}
+
+	public static void main(String[] args) {
+		CountingHandler handler = new CountingHandler();
+		AgentHelper.setInstrumentationHandler(handler);
+		int methodId = MethodRegistry.register("bench.Target", "run", "()V");
+
+		for (int round = 0; round < ROUNDS; round++) {
+			System.out.printf("round %d: uceh swap %.2f ns, threadlocal %.2f ns, probe state %.2f ns, AgentHelper.enter %.2f ns%n",
+					round, time(UCEH_SWAP), time(THREAD_LOCAL), time(PROBE_STATE), timeEnter(methodId));
+		}
+		System.out.println("(" + sink + ", " + handler.count + ")");
+	}
+}